@@ -0,0 +1,113 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.red5.server.mqtt.codec.MQTTDecoder;
+import org.red5.server.mqtt.codec.MQTTEncoder;
+import org.red5.server.mqtt.codec.MQTTProtocol;
+
+/**
+ * Encodes and decodes MQTT messages outside of a MINA filter chain, on a dummy session already past the CONNECT.
+ */
+public class Codec {
+
+	private final IoSession session = new DummySession();
+
+	private final MQTTEncoder encoder = new MQTTEncoder();
+
+	private final MQTTDecoder decoder;
+
+	private final Output output = new Output();
+
+	public Codec(int payloadSliceThreshold) {
+		decoder = new MQTTDecoder(payloadSliceThreshold);
+		session.setAttribute(MQTTDecoder.PROTOCOL_VERSION, (int) MQTTProtocol.VERSION_3_1_1);
+	}
+
+	/**
+	 * @return the frames of the message, one buffer each for the header and a large payload
+	 */
+	public List<Object> encode(AbstractMessage message) throws Exception {
+		output.clear();
+		encoder.encode(session, message, output);
+		return output.messages;
+	}
+
+	/**
+	 * @return the frame of the message in a single array
+	 */
+	public byte[] toFrame(AbstractMessage message) throws Exception {
+		IoBuffer frame = IoBuffer.allocate(256).setAutoExpand(true);
+		for (Object encoded : encode(message)) {
+			frame.put(((IoBuffer) encoded).duplicate());
+		}
+		frame.flip();
+		byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return the messages decoded from the buffer
+	 */
+	public List<Object> decode(IoBuffer in) throws Exception {
+		output.clear();
+		decoder.decode(session, in, output);
+		return output.messages;
+	}
+
+	private static final class Output implements ProtocolEncoderOutput, ProtocolDecoderOutput {
+
+		final List<Object> messages = new ArrayList<Object>(4);
+
+		void clear() {
+			messages.clear();
+		}
+
+		@Override
+		public void write(Object message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void mergeAll() {
+		}
+
+		@Override
+		public WriteFuture flush() {
+			return null;
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+	}
+
+}
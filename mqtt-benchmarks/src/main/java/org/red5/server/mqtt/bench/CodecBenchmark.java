@@ -0,0 +1,90 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a PUBLISH by payload size; the decoding is measured on a whole frame and on a frame split in two reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	int payloadSize;
+
+	@Param({ "1024" })
+	int payloadSliceThreshold;
+
+	private Codec codec;
+
+	private PublishMessage message;
+
+	private byte[] frame;
+
+	@Setup
+	public void setup() throws Exception {
+		codec = new Codec(payloadSliceThreshold);
+		message = new PublishMessage();
+		message.setTopicName("sensors/building1/floor2/room3/temperature");
+		message.setQos(QOSType.LEAST_ONE);
+		message.setMessageID(42);
+		message.setPayload(new byte[payloadSize]);
+		frame = codec.toFrame(message);
+	}
+
+	@Benchmark
+	public List<Object> encodePublish() throws Exception {
+		return codec.encode(message);
+	}
+
+	@Benchmark
+	public List<Object> decodePublish() throws Exception {
+		return codec.decode(IoBuffer.wrap(frame));
+	}
+
+	@Benchmark
+	public List<Object> decodeSplitPublish() throws Exception {
+		int half = frame.length / 2;
+		codec.decode(IoBuffer.wrap(frame, 0, half));
+		return codec.decode(IoBuffer.wrap(frame, half, frame.length - half));
+	}
+
+}
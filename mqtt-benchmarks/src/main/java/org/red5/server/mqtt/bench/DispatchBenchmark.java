@@ -0,0 +1,178 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.PingReqMessage;
+import org.eclipse.moquette.proto.messages.PubAckMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.proto.messages.SubscribeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch of a mix of protocol messages to their handlers, the switch on the message type of ProtocolProcessor.dispatch against the former lookup of
+ * the annotated method by message class and Method.invoke; the handlers only count, so the cost measured is the dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Target(ElementType.METHOD)
+	@Retention(RetentionPolicy.RUNTIME)
+	@interface Handles {
+		Class<? extends AbstractMessage> value();
+	}
+
+	public static class Handler {
+
+		long count;
+
+		@Handles(PublishMessage.class)
+		public void processPublish(Object session, PublishMessage msg) {
+			count++;
+		}
+
+		@Handles(PubAckMessage.class)
+		public void processPubAck(Object session, PubAckMessage msg) {
+			count += 2;
+		}
+
+		@Handles(PubRelMessage.class)
+		public void processPubRel(Object session, PubRelMessage msg) {
+			count += 3;
+		}
+
+		@Handles(SubscribeMessage.class)
+		public void processSubscribe(Object session, SubscribeMessage msg) {
+			count += 4;
+		}
+
+		@Handles(PingReqMessage.class)
+		public void processPingReq(Object session, PingReqMessage msg) {
+			count += 5;
+		}
+	}
+
+	//mostly publishes and acknowledgements, as on a loaded broker
+	private static final int MIX = 64;
+
+	private final Handler handler = new Handler();
+
+	private final Map<Class<?>, Method> methods = new HashMap<Class<?>, Method>();
+
+	private final Object session = new Object();
+
+	private AbstractMessage[] messages;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		for (Method method : Handler.class.getDeclaredMethods()) {
+			Handles handles = method.getAnnotation(Handles.class);
+			if (handles != null) {
+				methods.put(handles.value(), method);
+			}
+		}
+		messages = new AbstractMessage[MIX];
+		for (int i = 0; i < MIX; i++) {
+			switch (i % 8) {
+				case 0:
+				case 2:
+				case 4:
+				case 6:
+					messages[i] = new PublishMessage();
+					break;
+				case 1:
+				case 5:
+					messages[i] = new PubAckMessage();
+					break;
+				case 3:
+					messages[i] = new PubRelMessage();
+					break;
+				default:
+					messages[i] = i % 16 == 7 ? new SubscribeMessage() : new PingReqMessage();
+			}
+		}
+	}
+
+	@Benchmark
+	public long reflective() {
+		AbstractMessage msg = messages[next++ & (MIX - 1)];
+		Method method = methods.get(msg.getClass());
+		if (method == null) {
+			throw new RuntimeException("No handler for " + msg);
+		}
+		try {
+			method.invoke(handler, session, msg);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+		return handler.count;
+	}
+
+	@Benchmark
+	public long switchOnType() {
+		AbstractMessage msg = messages[next++ & (MIX - 1)];
+		switch (msg.getMessageType()) {
+			case AbstractMessage.PUBLISH:
+				handler.processPublish(session, (PublishMessage) msg);
+				break;
+			case AbstractMessage.PUBACK:
+				handler.processPubAck(session, (PubAckMessage) msg);
+				break;
+			case AbstractMessage.PUBREL:
+				handler.processPubRel(session, (PubRelMessage) msg);
+				break;
+			case AbstractMessage.SUBSCRIBE:
+				handler.processSubscribe(session, (SubscribeMessage) msg);
+				break;
+			case AbstractMessage.PINGREQ:
+				handler.processPingReq(session, (PingReqMessage) msg);
+				break;
+			default:
+				throw new RuntimeException("No handler for " + msg);
+		}
+		return handler.count;
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.proto.messages.PubAckMessage;
+import org.eclipse.moquette.proto.messages.PubCompMessage;
+import org.eclipse.moquette.proto.messages.PubRecMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.proto.messages.SubscribeMessage;
+import org.eclipse.moquette.spi.impl.AcceptAllAuthenticator;
+import org.eclipse.moquette.spi.impl.SimpleMessaging;
+import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.red5.server.mqtt.codec.MQTTCodecFactory;
+import org.red5.server.mqtt.codec.MQTTDecoder;
+import org.red5.server.mqtt.codec.MQTTProtocol;
+import org.red5.server.mqtt.net.MQTTTransport;
+
+/**
+ * End to end load over loopback: starts the broker in process, connects subscribers to one topic and a publisher sending to it at a fixed rate, then
+ * reports the publish to deliver latency percentiles of the fan-out.
+ * 
+ * Each payload carries the time it was due to be sent, not the time it was sent, so a broker stalling the publisher still shows in the latencies.
+ * 
+ * Options, as --name=value: qos (0), subscribers (10), messages (10000), warmup (1000), rate in messages per second (1000), payload size in bytes (64),
+ * shards (1), store commit interval in milliseconds (0, every change committed), port (18830).
+ */
+public class LoadDriver {
+
+	private static final String TOPIC = "bench/fanout";
+
+	private static final String CLIENT = "client";
+
+	//timestamp and sequence number
+	private static final int HEADER_SIZE = 12;
+
+	private final QOSType qos;
+
+	private final int subscribers;
+
+	private final int messages;
+
+	private final int warmup;
+
+	private final int rate;
+
+	private final int payloadSize;
+
+	private final int shards;
+
+	private final int commitInterval;
+
+	private final int port;
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	private CountDownLatch allDelivered;
+
+	public LoadDriver(Map<String, String> options) {
+		qos = QOSType.values()[intOption(options, "qos", 0)];
+		subscribers = intOption(options, "subscribers", 10);
+		messages = intOption(options, "messages", 10000);
+		warmup = intOption(options, "warmup", 1000);
+		rate = intOption(options, "rate", 1000);
+		payloadSize = Math.max(HEADER_SIZE, intOption(options, "payload", 64));
+		shards = intOption(options, "shards", 1);
+		commitInterval = intOption(options, "commitInterval", 0);
+		port = intOption(options, "port", 18830);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				System.err.println("Options are given as --name=value, found " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		new LoadDriver(options).run();
+		System.exit(0);
+	}
+
+	public void run() throws Exception {
+		File storeFile = File.createTempFile("mqttload", ".mapdb");
+		SimpleMessaging messaging = SimpleMessaging.getInstance();
+		MapDBPersistentStore store = new MapDBPersistentStore(storeFile.getAbsolutePath());
+		store.setCommitIntervalMillis(commitInterval);
+		messaging.setMapStorage(store);
+		messaging.setAuthenticator(new AcceptAllAuthenticator());
+		messaging.setShardCount(shards);
+		messaging.init();
+		MQTTTransport transport = new MQTTTransport();
+		transport.setPort(port);
+		transport.setIoThreads(4);
+		transport.afterPropertiesSet();
+		transport.getHandler().setMessaging(messaging);
+		transport.getHandler().setOutboundMetrics(messaging.getOutboundMetrics());
+
+		NioSocketConnector connector = new NioSocketConnector(4);
+		connector.getFilterChain().addLast("protocol", new ProtocolCodecFilter(new MQTTCodecFactory()));
+		connector.getSessionConfig().setTcpNoDelay(true);
+		connector.setHandler(new ClientHandler());
+		try {
+			Client[] clients = new Client[subscribers];
+			for (int i = 0; i < subscribers; i++) {
+				clients[i] = new Client(messages);
+				connect(connector, clients[i], CLIENT + i);
+				clients[i].subscribe(qos);
+			}
+			Client publisher = new Client(0);
+			connect(connector, publisher, "publisher");
+
+			allDelivered = new CountDownLatch(1);
+			long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+			int total = warmup + messages;
+			long start = System.nanoTime();
+			for (int i = 0; i < total; i++) {
+				long due = start + i * interval;
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				publisher.publish(qos, due, i - warmup, payloadSize);
+			}
+			long sent = System.nanoTime() - start;
+			boolean complete = allDelivered.await(30, TimeUnit.SECONDS);
+			report(clients, sent, complete);
+			System.out.println(messaging.getOutboundMetrics());
+			for (Client client : clients) {
+				client.session.closeNow();
+			}
+			publisher.session.closeNow();
+		} finally {
+			connector.dispose();
+			transport.destroy();
+			messaging.stop();
+			final String name = storeFile.getName();
+			for (File file : storeFile.getParentFile().listFiles()) {
+				if (file.getName().startsWith(name)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private void connect(NioSocketConnector connector, Client client, String clientID) throws Exception {
+		ConnectFuture future = connector.connect(new InetSocketAddress("localhost", port));
+		future.awaitUninterruptibly();
+		client.session = future.getSession();
+		client.session.setAttribute(Client.class, client);
+		ConnectMessage connect = new ConnectMessage();
+		connect.setProtocolName("MQIsdp");
+		connect.setProcotolVersion(MQTTProtocol.VERSION_3_1);
+		connect.setClientID(clientID);
+		connect.setCleanSession(true);
+		connect.setKeepAlive(60);
+		client.await(connect);
+	}
+
+	private void report(Client[] clients, long sentNanos, boolean complete) {
+		long expected = (long) messages * subscribers;
+		long[] all = new long[(int) delivered.get()];
+		int n = 0;
+		for (Client client : clients) {
+			int count = Math.min(client.count, all.length - n);
+			System.arraycopy(client.latencies, 0, all, n, count);
+			n += count;
+		}
+		Arrays.sort(all, 0, n);
+		System.out.printf("QoS %d, %d subscribers, %d messages of %d bytes at %d/s%n", qos.ordinal(), subscribers, messages, payloadSize, rate);
+		System.out.printf("sent in %d ms, delivered %d of %d%s%n", TimeUnit.NANOSECONDS.toMillis(sentNanos), n, expected, complete ? "" : " (timed out)");
+		if (n == 0) {
+			return;
+		}
+		System.out.printf("latency us: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n", micros(all, n, 0.5), micros(all, n, 0.9), micros(all, n, 0.99), micros(all, n, 0.999), TimeUnit.NANOSECONDS.toMicros(all[n - 1]));
+	}
+
+	private static long micros(long[] sorted, int n, double percentile) {
+		int index = (int) Math.ceil(percentile * n) - 1;
+		return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, Math.min(n - 1, index))]);
+	}
+
+	private static int intOption(Map<String, String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+
+	/**
+	 * A client connection; the latencies are only written by the i/o thread of its session.
+	 */
+	private final class Client {
+
+		IoSession session;
+
+		final long[] latencies;
+
+		int count;
+
+		private int nextMessageID;
+
+		private CountDownLatch ack;
+
+		Client(int capacity) {
+			latencies = new long[capacity];
+		}
+
+		/**
+		 * Writes the message and waits for its acknowledgement.
+		 */
+		void await(AbstractMessage message) throws InterruptedException {
+			ack = new CountDownLatch(1);
+			session.write(message);
+			if (!ack.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("No acknowledgement of " + message);
+			}
+		}
+
+		void acknowledged() {
+			if (ack != null) {
+				ack.countDown();
+			}
+		}
+
+		void subscribe(QOSType qos) throws InterruptedException {
+			SubscribeMessage subscribe = new SubscribeMessage();
+			subscribe.setMessageID(messageID());
+			subscribe.addSubscription(new SubscribeMessage.Couple((byte) qos.ordinal(), TOPIC));
+			await(subscribe);
+		}
+
+		void publish(QOSType qos, long due, int sequence, int size) {
+			ByteBuffer payload = ByteBuffer.allocate(size);
+			payload.putLong(due).putInt(sequence).clear();
+			PublishMessage publish = new PublishMessage();
+			publish.setTopicName(TOPIC);
+			publish.setQos(qos);
+			if (qos != QOSType.MOST_ONE) {
+				publish.setMessageID(messageID());
+			}
+			publish.setPayload(payload);
+			session.write(publish);
+		}
+
+		void received(PublishMessage publish) {
+			ByteBuffer payload = publish.getPayloadBuffer();
+			long latency = System.nanoTime() - payload.getLong(payload.position());
+			int sequence = payload.getInt(payload.position() + 8);
+			if (sequence >= 0 && count < latencies.length) {
+				latencies[count++] = latency;
+				if (delivered.incrementAndGet() == (long) messages * subscribers) {
+					allDelivered.countDown();
+				}
+			}
+		}
+
+		private int messageID() {
+			nextMessageID = nextMessageID % 0xFFFF + 1;
+			return nextMessageID;
+		}
+	}
+
+	private final class ClientHandler extends IoHandlerAdapter {
+
+		@Override
+		public void sessionCreated(IoSession session) throws Exception {
+			//the client side decoder doesn't see a CONNECT to learn the version from
+			session.setAttribute(MQTTDecoder.PROTOCOL_VERSION, (int) MQTTProtocol.VERSION_3_1_1);
+		}
+
+		@Override
+		public void messageReceived(IoSession session, Object message) throws Exception {
+			Client client = (Client) session.getAttribute(Client.class);
+			AbstractMessage msg = (AbstractMessage) message;
+			switch (msg.getMessageType()) {
+				case AbstractMessage.CONNACK:
+				case AbstractMessage.SUBACK:
+					client.acknowledged();
+					break;
+				case AbstractMessage.PUBLISH:
+					PublishMessage publish = (PublishMessage) msg;
+					client.received(publish);
+					if (publish.getQos() == QOSType.LEAST_ONE) {
+						PubAckMessage pubAck = new PubAckMessage();
+						pubAck.setMessageID(publish.getMessageID());
+						session.write(pubAck);
+					} else if (publish.getQos() == QOSType.EXACTLY_ONCE) {
+						PubRecMessage pubRec = new PubRecMessage();
+						pubRec.setMessageID(publish.getMessageID());
+						session.write(pubRec);
+					}
+					break;
+				case AbstractMessage.PUBREC:
+					PubRelMessage pubRel = new PubRelMessage();
+					pubRel.setMessageID(((PubRecMessage) msg).getMessageID());
+					pubRel.setQos(QOSType.LEAST_ONE);
+					session.write(pubRel);
+					break;
+				case AbstractMessage.PUBREL:
+					PubCompMessage pubComp = new PubCompMessage();
+					pubComp.setMessageID(((PubRelMessage) msg).getMessageID());
+					session.write(pubComp);
+					break;
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+			cause.printStackTrace();
+			session.closeNow();
+		}
+	}
+
+}
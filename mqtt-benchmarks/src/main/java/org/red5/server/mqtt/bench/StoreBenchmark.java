@@ -0,0 +1,123 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The store operations on the path of a QoS 1 delivery, on a file store committing every change (commitInterval 0) or in groups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+	private static final int CLIENTS = 1000;
+
+	@Param({ "0", "10" })
+	long commitInterval;
+
+	@Param({ "256" })
+	int payloadSize;
+
+	private File storeFile;
+
+	private MapDBPersistentStore store;
+
+	private byte[] payload;
+
+	private String[] clientIDs;
+
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		storeFile = File.createTempFile("mqttbench", ".mapdb");
+		store = new MapDBPersistentStore(storeFile.getAbsolutePath());
+		store.setCommitIntervalMillis(commitInterval);
+		store.initStore();
+		payload = new byte[payloadSize];
+		clientIDs = new String[CLIENTS];
+		for (int i = 0; i < CLIENTS; i++) {
+			clientIDs[i] = "client" + i;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		store.close();
+		final String name = storeFile.getName();
+		for (File file : storeFile.getParentFile().listFiles()) {
+			if (file.getName().startsWith(name)) {
+				file.delete();
+			}
+		}
+	}
+
+	@Benchmark
+	public void storeRetained() {
+		store.storeRetained("retained/" + (next++ % CLIENTS), payload, QOSType.LEAST_ONE);
+	}
+
+	/**
+	 * A publish put in flight to a subscriber and acknowledged.
+	 */
+	@Benchmark
+	public int inFlight() {
+		String clientID = clientIDs[next++ % CLIENTS];
+		int packetID = store.nextPacketID(clientID);
+		store.addInFlight(new PublishEvent("sensors/temperature", QOSType.LEAST_ONE, payload, false, clientID, packetID), clientID, packetID);
+		store.cleanInFlight(clientID, packetID);
+		return packetID;
+	}
+
+	/**
+	 * A publish queued for an offline subscriber and removed once delivered.
+	 */
+	@Benchmark
+	public int sessionQueue() {
+		String clientID = clientIDs[next++ % CLIENTS];
+		int packetID = store.nextPacketID(clientID);
+		store.storePublishForFuture(new PublishEvent("sensors/temperature", QOSType.LEAST_ONE, payload, false, clientID, packetID));
+		store.removeMessageInSession(clientID, packetID);
+		store.cleanInFlight(clientID, packetID);
+		return packetID;
+	}
+
+}
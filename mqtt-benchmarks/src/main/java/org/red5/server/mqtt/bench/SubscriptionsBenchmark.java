@@ -0,0 +1,119 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.MemoryStorageService;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Topic matching against a subscription tree of site/area/device/metric filters, where wildcardDensity is the share of the filters with a + level
+ * or a trailing #.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionsBenchmark {
+
+	private static final int SITES = 10;
+
+	private static final int AREAS = 20;
+
+	private static final int METRICS = 8;
+
+	//topics published to, cycled through by the benchmark
+	private static final int TOPICS = 1024;
+
+	@Param({ "1000", "100000" })
+	int subscriptions;
+
+	@Param({ "0", "0.1", "0.5" })
+	double wildcardDensity;
+
+	private SubscriptionsStore store;
+
+	private String[] topics;
+
+	private final List<Subscription> matching = new ArrayList<Subscription>();
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(17);
+		store = new SubscriptionsStore();
+		store.init(new MemoryStorageService());
+		int devices = Math.max(1, subscriptions / (SITES * AREAS));
+		for (int i = 0; i < subscriptions; i++) {
+			String[] levels = { "site" + random.nextInt(SITES), "area" + random.nextInt(AREAS), "device" + random.nextInt(devices), "metric" + random.nextInt(METRICS) };
+			String filter;
+			if (random.nextDouble() < wildcardDensity) {
+				if (random.nextBoolean()) {
+					levels[1 + random.nextInt(3)] = "+";
+					filter = join(levels, levels.length);
+				} else {
+					filter = join(levels, 1 + random.nextInt(3)) + "/#";
+				}
+			} else {
+				filter = join(levels, levels.length);
+			}
+			store.add(new Subscription("client" + i, filter, QOSType.LEAST_ONE, true));
+		}
+		topics = new String[TOPICS];
+		for (int i = 0; i < TOPICS; i++) {
+			topics[i] = "site" + random.nextInt(SITES) + "/area" + random.nextInt(AREAS) + "/device" + random.nextInt(devices) + "/metric" + random.nextInt(METRICS);
+		}
+	}
+
+	@Benchmark
+	public int matches() {
+		matching.clear();
+		store.matches(topics[next++ & (TOPICS - 1)], matching);
+		return matching.size();
+	}
+
+	private static String join(String[] levels, int count) {
+		StringBuilder sb = new StringBuilder(levels[0]);
+		for (int i = 1; i < count; i++) {
+			sb.append('/').append(levels[i]);
+		}
+		return sb.toString();
+	}
+
+}
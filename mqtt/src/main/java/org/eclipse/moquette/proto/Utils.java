@@ -15,6 +15,8 @@
  */
 package org.eclipse.moquette.proto;
 
+import java.nio.ByteBuffer;
+
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 
 /**
@@ -198,4 +200,16 @@ public class Utils {
             default: throw  new RuntimeException("Can't decode message type " + type);
         }
     }
+
+    /**
+     * Returns the bytes between position and limit of the buffer, without copying when they already are a whole array; the position is left untouched.
+     */
+    public static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
 }
@@ -15,6 +15,10 @@
  */
 package org.eclipse.moquette.proto.messages;
 
+import java.nio.ByteBuffer;
+
+import org.eclipse.moquette.proto.Utils;
+
 /**
  * Publish message.
  *
@@ -25,7 +29,11 @@ public class PublishMessage extends MessageIDMessage {
 
 	private String m_topicName;
 
-	private byte[] m_payload;
+	//bytes between position and limit, possibly a slice of the buffer the message was decoded from
+	private ByteBuffer m_payload;
+
+	//fixed header and topic already encoded, shared by the messages of a fan-out
+	private byte[] m_encodedHeader;
 
 	public PublishMessage() {
 		m_messageType = AbstractMessage.PUBLISH;
@@ -39,13 +47,47 @@ public class PublishMessage extends MessageIDMessage {
 		this.m_topicName = topicName;
 	}
 
+	/**
+	 * @return the payload as an array, a copy when the message carries a slice of a larger buffer
+	 */
 	public byte[] getPayload() {
-		return m_payload;
+		return m_payload == null ? null : Utils.toArray(m_payload);
+	}
+
+	/**
+	 * @return a view of the payload with its own position and limit, the content must not be modified
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return m_payload == null ? null : m_payload.duplicate();
+	}
+
+	public int getPayloadLength() {
+		return m_payload == null ? 0 : m_payload.remaining();
 	}
 
+	/**
+	 * Sets the payload without copying it; the same array is shared by all the subscribers of a publish, so it must not be modified afterwards.
+	 */
 	public void setPayload(byte[] payload) {
-		this.m_payload = new byte[payload.length];
-		System.arraycopy(payload, 0, this.m_payload, 0, payload.length);
+		this.m_payload = payload == null ? null : ByteBuffer.wrap(payload);
+	}
+
+	/**
+	 * Sets the payload to the bytes between position and limit of the buffer, without copying them; as for arrays the content must not be modified afterwards.
+	 */
+	public void setPayload(ByteBuffer payload) {
+		this.m_payload = payload == null ? null : payload.slice();
+	}
+
+	public byte[] getEncodedHeader() {
+		return m_encodedHeader;
+	}
+
+	/**
+	 * Sets the fixed header and topic name as produced by PublishEncoder.encodeHeader, the encoder then only appends the message ID and the payload.
+	 */
+	public void setEncodedHeader(byte[] encodedHeader) {
+		this.m_encodedHeader = encodedHeader;
 	}
 
 }
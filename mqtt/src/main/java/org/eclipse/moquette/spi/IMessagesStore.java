@@ -71,6 +71,14 @@ public interface IMessagesStore {
 	 */
 	Collection<StoredMessage> searchMatching(IMatchingCondition condition);
 
+	/**
+	 * Return the retained messages whose topic is matched by the topic filter; implementations use an index so only the matching topics are visited.
+	 */
+	Collection<StoredMessage> searchMatching(String topicFilter);
+
+	/**
+	 * Stores a publish for a client not connected or not keeping up, without a packet ID: it's given one when sent.
+	 */
 	void storePublishForFuture(PublishEvent evt);
 
 	/**
@@ -78,19 +86,56 @@ public interface IMessagesStore {
 	 */
 	List<PublishEvent> listMessagesInSession(String clientID);
 
+	/**
+	 * Remove the oldest of the stored publishes with the packet ID, 0 for the ones stored without.
+	 */
 	void removeMessageInSession(String clientID, int packetID);
 
 	void dropMessagesInSession(String clientID);
 
 	void cleanInFlight(String clientID, int packetID);
 
+	/**
+	 * Keep the publish sent to the client until acknowledged; the packet ID is marked in use, if not already, so it's not handed out again meanwhile.
+	 */
 	void addInFlight(PublishEvent evt, String clientID, int packetID);
 
+	/**
+	 * Mark the in flight QoS 2 publish as received by the client, its PUBREC arrived: only the PUBREL is sent again until the PUBCOMP.
+	 */
+	void markReceived(String clientID, int packetID);
+
+	/**
+	 * Return true if the client sent the PUBREC of the in flight publish.
+	 */
+	boolean isReceived(String clientID, int packetID);
+
+	/**
+	 * Return the in flight publish sent to the client with the packet ID, null if it has been acknowledged.
+	 */
+	PublishEvent getInFlight(String clientID, int packetID);
+
+	/**
+	 * Return the packet IDs of the in flight messages of the client, in increasing order.
+	 */
+	List<Integer> inFlightPacketIDs(String clientID);
+
+	/**
+	 * Forget the packet IDs of a client whose session ended: its in flight messages are removed and its packet ID allocator released.
+	 */
+	void dropPacketIDs(String clientID);
+
 	/**
 	 * Return the next valid packetIdentifer for the given client session.
 	 * */
 	int nextPacketID(String clientID);
 
+	/**
+	 * Return the number of packet IDs in use by the client, its messages waiting for an acknowledgement. Read from a shard not owning the client
+	 * it's an approximation.
+	 */
+	int inFlightCount(String clientID);
+
 	void close();
 
 	void persistQoS2Message(String publishKey, PublishEvent evt);
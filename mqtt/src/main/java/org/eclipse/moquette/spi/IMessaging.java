@@ -31,6 +31,11 @@ public interface IMessaging {
 
 	void lostConnection(ServerChannel session, String clientID);
 
+	/**
+	 * Notifies that a slow consumer drained its writes, the messages held back for it can be written again.
+	 */
+	void drained(ServerChannel session, String clientID);
+
 	void handleProtocolMessage(ServerChannel session, AbstractMessage msg);
 
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.server.mqtt.IAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the authenticator on a bounded pool, so hashing the passwords of a reconnect storm doesn't stall the processing shards.
+ *
+ * The credentials verified recently are cached for a short time to live, keyed by username with a salted digest of the password rather than the
+ * password itself; a cached client reconnects without leaving the shard thread. Only successes are cached, a password removed from the backend is
+ * still accepted until its entry expires.
+ */
+public class AuthenticationService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AuthenticationService.class);
+
+	/**
+	 * Called on a pool thread with the result of a verification.
+	 */
+	public interface Callback {
+		void verified(boolean valid);
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final class CachedCredential {
+
+		final byte[] digest;
+
+		final long expiry;
+
+		CachedCredential(byte[] digest, long expiry) {
+			this.digest = digest;
+			this.expiry = expiry;
+		}
+	}
+
+	private final IAuthenticator m_authenticator;
+
+	private final ThreadPoolExecutor m_executor;
+
+	private final long m_cacheTtl;
+
+	private final int m_maxCacheSize;
+
+	private final ConcurrentMap<String, CachedCredential> m_cache = new ConcurrentHashMap<String, CachedCredential>();
+
+	//digests the cached passwords, so a dump of the cache doesn't disclose them
+	private final byte[] m_salt = new byte[16];
+
+	private final AtomicLong m_cacheHits = new AtomicLong();
+
+	private final AtomicLong m_verifications = new AtomicLong();
+
+	private final AtomicLong m_rejected = new AtomicLong();
+
+	/**
+	 * @param authenticator
+	 *            the backend verifying the credentials
+	 * @param threads
+	 *            the threads verifying
+	 * @param queueSize
+	 *            the verifications waiting for a thread, the connects beyond are refused
+	 * @param cacheTtl
+	 *            the milliseconds a verified credential is cached, 0 disables the cache
+	 * @param maxCacheSize
+	 *            the credentials cached at most
+	 */
+	public AuthenticationService(IAuthenticator authenticator, int threads, int queueSize, long cacheTtl, int maxCacheSize) {
+		m_authenticator = authenticator;
+		m_cacheTtl = cacheTtl;
+		m_maxCacheSize = maxCacheSize;
+		new SecureRandom().nextBytes(m_salt);
+		m_executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private final AtomicInteger m_count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MQTTAuthentication-" + m_count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return true if the credentials were verified within the time to live
+	 */
+	public boolean isCached(String username, String password) {
+		if (m_cacheTtl <= 0 || username == null) {
+			return false;
+		}
+		CachedCredential cached = m_cache.get(username);
+		if (cached == null) {
+			return false;
+		}
+		if (cached.expiry <= System.currentTimeMillis()) {
+			m_cache.remove(username, cached);
+			return false;
+		}
+		if (MessageDigest.isEqual(cached.digest, digest(password))) {
+			m_cacheHits.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Verifies the credentials on the pool, caching them when valid.
+	 *
+	 * @return false if the pool is saturated, the callback is not called then
+	 */
+	public boolean verify(final String username, final String password, final Callback callback) {
+		try {
+			m_executor.execute(new Runnable() {
+				public void run() {
+					boolean valid = false;
+					try {
+						valid = m_authenticator.checkValid(username, password);
+						m_verifications.incrementAndGet();
+						if (valid) {
+							cache(username, password);
+						}
+					} catch (Throwable th) {
+						LOG.error("Authenticator failed for user <{}>", username, th);
+					}
+					callback.verified(valid);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			m_rejected.incrementAndGet();
+			LOG.warn("Authentication of user <{}> refused, {} verifications pending", username, m_executor.getQueue().size());
+			return false;
+		}
+	}
+
+	/**
+	 * Forgets the cached credentials, so the next connects are verified by the backend.
+	 */
+	public void invalidate() {
+		m_cache.clear();
+	}
+
+	public void stop() {
+		m_executor.shutdownNow();
+		m_cache.clear();
+	}
+
+	public long getCacheHits() {
+		return m_cacheHits.get();
+	}
+
+	public long getVerifications() {
+		return m_verifications.get();
+	}
+
+	/**
+	 * @return the number of connects refused because the pool was saturated
+	 */
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "AuthenticationService [cached=" + m_cache.size() + ", cacheHits=" + m_cacheHits + ", verifications=" + m_verifications + ", rejected=" + m_rejected + "]";
+	}
+
+	private void cache(String username, String password) {
+		if (m_cacheTtl <= 0 || username == null) {
+			return;
+		}
+		if (m_cache.size() >= m_maxCacheSize) {
+			purgeExpired();
+			if (m_cache.size() >= m_maxCacheSize) {
+				return;
+			}
+		}
+		m_cache.put(username, new CachedCredential(digest(password), System.currentTimeMillis() + m_cacheTtl));
+	}
+
+	private void purgeExpired() {
+		long now = System.currentTimeMillis();
+		for (Iterator<CachedCredential> it = m_cache.values().iterator(); it.hasNext();) {
+			if (it.next().expiry <= now) {
+				it.remove();
+			}
+		}
+	}
+
+	private byte[] digest(String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(m_salt);
+			if (password != null) {
+				digest.update(password.getBytes(UTF8));
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			//mandatory in every JRE
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
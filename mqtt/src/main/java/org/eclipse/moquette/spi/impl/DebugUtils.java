@@ -28,10 +28,9 @@ class DebugUtils {
 	}
 
 	static String payload2Str(ByteBuffer content) {
+		//the buffer may be shared by shards, read a duplicate
 		byte[] b = new byte[content.remaining()];
-		content.mark();
-		content.get(b);
-		content.reset();
+		content.duplicate().get(b);
 		return new String(b);
 	}
 }
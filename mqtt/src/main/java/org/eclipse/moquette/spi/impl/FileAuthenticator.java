@@ -30,6 +30,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Authenticates against a file of <code>username:password</code> lines, the passwords being plain text or hashes made by PasswordHash.
+ *
+ * The file is read again when its modification time changes, checked at most every reload interval on authentication, so users can be added or
+ * removed without restarting; a file failing to parse leaves the previous identities in place.
  *
  * @author andrea
  */
@@ -37,30 +41,68 @@ public class FileAuthenticator implements IAuthenticator {
 
 	private static final Logger LOG = LoggerFactory.getLogger(FileAuthenticator.class);
 
-	private Map<String, String> m_identities = new HashMap<String, String>();
+	public static final long DEFAULT_RELOAD_INTERVAL = 5000;
+
+	private final File m_file;
+
+	//replaced as a whole on reload
+	private volatile Map<String, String> m_identities = new HashMap<String, String>();
+
+	private long m_reloadInterval = DEFAULT_RELOAD_INTERVAL;
+
+	private long m_lastModified;
+
+	private long m_nextCheck;
 
 	public FileAuthenticator(String parent, String filePath) {
-		File file = new File(parent, filePath);
-		LOG.info("Loading password file: " + file);
-		if (file.isDirectory()) {
-			LOG.warn(String.format("Bad file reference %s is a directory", file));
+		m_file = new File(parent, filePath);
+		LOG.info("Loading password file: " + m_file);
+		load();
+	}
+
+	/**
+	 * Sets the milliseconds between the checks of the password file modification time, 0 disables the reload.
+	 */
+	public void setReloadInterval(long reloadInterval) {
+		m_reloadInterval = reloadInterval;
+	}
+
+	public long getReloadInterval() {
+		return m_reloadInterval;
+	}
+
+	private void load() {
+		if (m_file.isDirectory()) {
+			LOG.warn(String.format("Bad file reference %s is a directory", m_file));
 			return;
 		}
-
-		try {
-			FileReader reader = new FileReader(file);
-			parse(reader);
+		m_lastModified = m_file.lastModified();
+		try (FileReader reader = new FileReader(m_file)) {
+			m_identities = parse(reader);
+			LOG.info("Loaded {} identities from {}", m_identities.size(), m_file);
 		} catch (FileNotFoundException fex) {
-			LOG.warn(String.format("Parsing not existing file %s", file), fex);
+			LOG.warn(String.format("Parsing not existing file %s", m_file), fex);
 		} catch (ParseException pex) {
-			LOG.warn(String.format("Fromat ero in parsing password file %s", file), pex);
+			LOG.warn(String.format("Fromat ero in parsing password file %s", m_file), pex);
+		} catch (IOException ex) {
+			LOG.warn(String.format("Failed to close password file %s", m_file), ex);
 		}
 	}
 
-	private void parse(Reader reader) throws ParseException {
-		if (reader == null) {
+	private synchronized void reloadIfChanged() {
+		long now = System.currentTimeMillis();
+		if (now < m_nextCheck) {
 			return;
 		}
+		m_nextCheck = now + m_reloadInterval;
+		if (m_file.lastModified() != m_lastModified) {
+			LOG.info("Password file {} changed, reloading", m_file);
+			load();
+		}
+	}
+
+	private Map<String, String> parse(Reader reader) throws ParseException {
+		Map<String, String> identities = new HashMap<String, String>();
 
 		BufferedReader br = new BufferedReader(reader);
 		String line;
@@ -86,21 +128,25 @@ public class FileAuthenticator implements IAuthenticator {
 					String username = line.substring(0, deilimiterIdx).trim();
 					String password = line.substring(deilimiterIdx + 1).trim();
 
-					m_identities.put(username, password);
+					identities.put(username, password);
 				}
 			}
 		} catch (IOException ex) {
 			throw new ParseException("Failed to read", 1);
 		}
+		return identities;
 	}
 
 	public boolean checkValid(String username, String password) {
+		if (m_reloadInterval > 0) {
+			reloadIfChanged();
+		}
 		String foundPwq = m_identities.get(username);
 		if (foundPwq == null) {
 			return false;
 		}
 
-		return foundPwq.equals(password);
+		return PasswordHash.verify(foundPwq, password);
 	}
 
 }
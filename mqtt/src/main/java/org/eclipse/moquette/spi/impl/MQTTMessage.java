@@ -23,6 +23,8 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 
 /**
+ * Marks the protocol message handlers of ProtocolProcessor. Dispatch is a switch on the message type in ProtocolProcessor.dispatch, a new handler has to
+ * be added there too.
  *
  * @author andrea
  */
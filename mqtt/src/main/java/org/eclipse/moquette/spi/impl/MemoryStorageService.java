@@ -17,6 +17,9 @@ package org.eclipse.moquette.spi.impl;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.moquette.spi.IMatchingCondition;
 import org.eclipse.moquette.spi.IMessagesStore;
@@ -31,21 +34,41 @@ import org.slf4j.LoggerFactory;
 import static org.eclipse.moquette.spi.impl.Utils.defaultGet;
 
 /**
+ * In memory store, maps are concurrent because retained messages and sessions can be accessed from any processing shard.
  */
 public class MemoryStorageService implements IMessagesStore, ISessionsStore {
     
-    private Map<String, Set<Subscription>> m_persistentSubscriptions = new HashMap<String, Set<Subscription>>();
-    private Map<String, StoredMessage> m_retainedStore = new HashMap<String, StoredMessage>();
+    private Map<String, Set<Subscription>> m_persistentSubscriptions = new ConcurrentHashMap<String, Set<Subscription>>();
+    private final OffHeapRetainedStore m_retainedStore;
     //TODO move in a multimap because only Qos1 and QoS2 are stored here and they have messageID(key of secondary map)
-    private Map<String, List<PublishEvent>> m_persistentMessageStore = new HashMap<String, List<PublishEvent>>();
-    private Map<String, PublishEvent> m_inflightStore = new HashMap<String, PublishEvent>();
-    private Map<String, Set<Integer>> m_inflightIDs = new HashMap<>();
-    private Map<String, PublishEvent> m_qos2Store = new HashMap<String, PublishEvent>();
+    private Map<String, List<PublishEvent>> m_persistentMessageStore = new ConcurrentHashMap<String, List<PublishEvent>>();
+    //in flight messages by (client handle, packet ID) key
+    private Map<Long, PublishEvent> m_inflightStore = new ConcurrentHashMap<Long, PublishEvent>();
+    //keys of the in flight QoS 2 publishes the client received, waiting for the PUBCOMP of their PUBREL
+    private Set<Long> m_receivedInFlight = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private ConcurrentMap<String, PacketIDAllocator> m_packetIDs = new ConcurrentHashMap<String, PacketIDAllocator>();
+    private AtomicInteger m_clientHandles = new AtomicInteger();
+    private Map<String, PublishEvent> m_qos2Store = new ConcurrentHashMap<String, PublishEvent>();
     
     private static final Logger LOG = LoggerFactory.getLogger(MemoryStorageService.class);
     
+    public MemoryStorageService() {
+        this(new OffHeapRetainedStore());
+    }
+
+    /**
+     * @param retainedStore keeps the retained messages, sized and configured by the caller
+     */
+    public MemoryStorageService(OffHeapRetainedStore retainedStore) {
+        m_retainedStore = retainedStore;
+    }
+
     public void initStore() {
     }
+
+    public OffHeapRetainedStore getRetainedStore() {
+        return m_retainedStore;
+    }
     
     @Override
     public void cleanRetained(String topic) {
@@ -54,22 +77,19 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
     
     @Override
     public void storeRetained(String topic, byte[] message, AbstractMessage.QOSType qos) {
-        m_retainedStore.put(topic, new StoredMessage(message, qos, topic));
+        m_retainedStore.put(topic, message, qos);
     }
 
     @Override
     public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
         LOG.debug("searchMatching scanning all retained messages, presents are {}", m_retainedStore.size());
+        return m_retainedStore.matching(condition);
+    }
 
-        List<StoredMessage> results = new ArrayList<StoredMessage>();
-
-        for (Map.Entry<String, StoredMessage> entry : m_retainedStore.entrySet()) {
-            StoredMessage storedMsg = entry.getValue();
-            if (condition.match(entry.getKey())) {
-                results.add(storedMsg);
-            }
-        }
-
+    @Override
+    public Collection<StoredMessage> searchMatching(String topicFilter) {
+        List<StoredMessage> results = m_retainedStore.matching(topicFilter);
+        LOG.debug("searchMatching found {} retained messages for {}", results.size(), topicFilter);
         return results;
     }
 
@@ -96,10 +116,15 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
     @Override
     public void removeMessageInSession(String clientID, int messageID) {
         List<PublishEvent> events = m_persistentMessageStore.get(clientID);
+        if (events == null) {
+            return;
+        }
         PublishEvent toRemoveEvt = null;
+        //the oldest stored with this ID, the first one listed
         for (PublishEvent evt : events) {
             if (evt.getMessageID() == messageID) {
                 toRemoveEvt = evt;
+                break;
             }
         }
         events.remove(toRemoveEvt);
@@ -113,18 +138,35 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
 
     @Override
     public void cleanInFlight(String clientID, int packetID) {
-        String publishKey = String.format("%s%d", clientID, packetID);
-        m_inflightStore.remove(publishKey);
-        Set<Integer> inFlightForClient = m_inflightIDs.get(clientID);
-        if (inFlightForClient != null) {
-            inFlightForClient.remove(packetID);
-        }
+        PacketIDAllocator packetIDs = packetIDsFor(clientID);
+        m_inflightStore.remove(packetIDs.inFlightKey(packetID));
+        m_receivedInFlight.remove(packetIDs.inFlightKey(packetID));
+        packetIDs.release(packetID);
     }
 
     @Override
     public void addInFlight(PublishEvent evt, String clientID, int packetID) {
-        String publishKey = String.format("%s%d", clientID, packetID);
-        m_inflightStore.put(publishKey, evt);
+        PacketIDAllocator packetIDs = packetIDsFor(clientID);
+        packetIDs.markInUse(packetID);
+        m_inflightStore.put(packetIDs.inFlightKey(packetID), evt);
+    }
+
+    @Override
+    public void markReceived(String clientID, int packetID) {
+        long key = packetIDsFor(clientID).inFlightKey(packetID);
+        if (m_inflightStore.containsKey(key)) {
+            m_receivedInFlight.add(key);
+        }
+    }
+
+    @Override
+    public boolean isReceived(String clientID, int packetID) {
+        return m_receivedInFlight.contains(packetIDsFor(clientID).inFlightKey(packetID));
+    }
+
+    @Override
+    public PublishEvent getInFlight(String clientID, int packetID) {
+        return m_inflightStore.get(packetIDsFor(clientID).inFlightKey(packetID));
     }
 
     /**
@@ -132,18 +174,52 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
      * */
     @Override
     public int nextPacketID(String clientID) {
-        Set<Integer> inFlightForClient = m_inflightIDs.get(clientID);
-        if (inFlightForClient == null) {
-            int nextPacketId = 1;
-            inFlightForClient = new HashSet<>();
-            inFlightForClient.add(nextPacketId);
-            m_inflightIDs.put(clientID, inFlightForClient);
-            return nextPacketId;
+        return packetIDsFor(clientID).acquire();
+    }
+
+    @Override
+    public List<Integer> inFlightPacketIDs(String clientID) {
+        PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+        if (packetIDs == null) {
+            return Collections.emptyList();
+        }
+        List<Integer> inFlight = new ArrayList<>();
+        for (int packetID = packetIDs.nextInUse(1); packetID > 0; packetID = packetIDs.nextInUse(packetID + 1)) {
+            if (m_inflightStore.containsKey(packetIDs.inFlightKey(packetID))) {
+                inFlight.add(packetID);
+            }
+        }
+        return inFlight;
+    }
+
+    @Override
+    public void dropPacketIDs(String clientID) {
+        PacketIDAllocator packetIDs = m_packetIDs.remove(clientID);
+        if (packetIDs == null) {
+            return;
+        }
+        for (int packetID = packetIDs.nextInUse(1); packetID > 0; packetID = packetIDs.nextInUse(packetID + 1)) {
+            m_inflightStore.remove(packetIDs.inFlightKey(packetID));
+            m_receivedInFlight.remove(packetIDs.inFlightKey(packetID));
+        }
+    }
+
+    @Override
+    public int inFlightCount(String clientID) {
+        PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+        return packetIDs == null ? 0 : packetIDs.inUseCount();
+    }
+
+    private PacketIDAllocator packetIDsFor(String clientID) {
+        PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+        if (packetIDs == null) {
+            packetIDs = new PacketIDAllocator(m_clientHandles.incrementAndGet());
+            PacketIDAllocator existing = m_packetIDs.putIfAbsent(clientID, packetIDs);
+            if (existing != null) {
+                packetIDs = existing;
+            }
         }
-        int maxId = Collections.max(inFlightForClient);
-        int nextPacketId = (maxId + 1) % 0xFFFF;
-        inFlightForClient.add(nextPacketId);
-        return nextPacketId;
+        return packetIDs;
     }
 
     @Override
@@ -185,7 +261,7 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
 
     @Override
     public void close() {
-        //To change body of implemented methods use File | Settings | File Templates.
+        m_retainedStore.close();
     }
 
     @Override
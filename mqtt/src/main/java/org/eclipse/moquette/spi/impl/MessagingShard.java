@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IMessagesStore;
+import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.events.AuthenticatedEvent;
+import org.eclipse.moquette.spi.impl.events.DrainedEvent;
+import org.eclipse.moquette.spi.impl.events.HandOffEvent;
+import org.eclipse.moquette.spi.impl.events.LostConnectionEvent;
+import org.eclipse.moquette.spi.impl.events.MessagingEvent;
+import org.eclipse.moquette.spi.impl.events.ProtocolEvent;
+import org.eclipse.moquette.spi.impl.events.RedeliveryEvent;
+import org.eclipse.moquette.spi.impl.events.StopEvent;
+import org.eclipse.moquette.spi.impl.events.SubscriberPublishEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.red5.server.mqtt.IAuthenticator;
+import org.red5.server.mqtt.ServerChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+
+/**
+ * One partition of the protocol processing.
+ *
+ * Each shard owns a Disruptor with a single consumer thread and a ProtocolProcessor; the client IDs hashed to the shard are only ever handled on that thread, so the per client state of the processor
+ * (connections, will testaments, in flight ids) needs no locking.
+ *
+ * The events a shard hands over to another one never wait for room in its ring buffer: two shards publishing to each other with both rings full would wait on each other forever. What
+ * doesn't fit goes to an unbounded queue of the target shard, processed at the end of its batches.
+ */
+class MessagingShard implements EventHandler<ValueEvent> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessagingShard.class);
+
+	//trace only one event every 1024 so tracing a loaded broker doesn't flood the appenders
+	private static final long TRACE_SAMPLE_MASK = 1024 - 1;
+
+	//most handed over events processed at the end of a batch, so they don't starve the ring buffer
+	private static final int HANDOFF_BATCH = 1024;
+
+	private static final MessagingEvent HANDOFF = new HandOffEvent();
+
+	private final int index;
+
+	private final SimpleMessaging messaging;
+
+	private final ProtocolProcessor processor = new ProtocolProcessor();
+
+	private ExecutorService executor;
+
+	private Disruptor<ValueEvent> disruptor;
+
+	private RingBuffer<ValueEvent> ringBuffer;
+
+	private CountDownLatch stopLatch;
+
+	private final ConcurrentLinkedQueue<MessagingEvent> handoffs = new ConcurrentLinkedQueue<>();
+
+	MessagingShard(int index, SimpleMessaging messaging) {
+		this.index = index;
+		this.messaging = messaging;
+	}
+
+	void init(SubscriptionsStore subscriptions, IMessagesStore storageService, ISessionsStore sessionsStore, IAuthenticator authenticator) {
+		executor = Executors.newFixedThreadPool(1);
+		disruptor = new Disruptor<>(ValueEvent.EVENT_FACTORY, 1024 * 32, executor);
+		disruptor.handleEventsWith(this);
+		disruptor.start();
+		// Get the ring buffer from the Disruptor to be used for publishing
+		ringBuffer = disruptor.getRingBuffer();
+		processor.init(subscriptions, storageService, sessionsStore, authenticator, this);
+	}
+
+	void publish(MessagingEvent msgEvent) {
+		long sequence = ringBuffer.next();
+		ValueEvent event = ringBuffer.get(sequence);
+		event.setEvent(msgEvent);
+		ringBuffer.publish(sequence);
+	}
+
+	/**
+	 * Publishes the event without waiting for room in the ring buffer, from the thread of another shard or a timer.
+	 */
+	void handOff(MessagingEvent msgEvent) {
+		//behind the events already queued, to keep their order
+		if (handoffs.isEmpty() && tryPublish(msgEvent)) {
+			return;
+		}
+		handoffs.add(msgEvent);
+		//the consumer may have checked the queue just before, wakes it up; if the ring is full it has a batch to end anyway
+		tryPublish(HANDOFF);
+	}
+
+	private boolean tryPublish(MessagingEvent msgEvent) {
+		long sequence;
+		try {
+			sequence = ringBuffer.tryNext();
+		} catch (InsufficientCapacityException e) {
+			return false;
+		}
+		ValueEvent event = ringBuffer.get(sequence);
+		event.setEvent(msgEvent);
+		ringBuffer.publish(sequence);
+		return true;
+	}
+
+	/**
+	 * @return true if the given client ID is handled by this shard
+	 */
+	boolean isLocal(String clientID) {
+		return messaging.shardFor(clientID) == index;
+	}
+
+	/**
+	 * Hands over an event to the shard owning the given client ID.
+	 */
+	void route(String clientID, MessagingEvent msgEvent) {
+		messaging.handOff(messaging.shardFor(clientID), msgEvent);
+	}
+
+	void stop(CountDownLatch stopLatch) {
+		this.stopLatch = stopLatch;
+		publish(new StopEvent());
+	}
+
+	void shutdown() {
+		executor.shutdown();
+		disruptor.shutdown();
+		processor.shutdown();
+	}
+
+	SimpleMessaging getMessaging() {
+		return messaging;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	@Override
+	public void onEvent(ValueEvent t, long sequence, boolean endOfBatch) throws Exception {
+		MessagingEvent evt = t.getEvent();
+		if ((sequence & TRACE_SAMPLE_MASK) == 0 && LOG.isTraceEnabled()) {
+			LOG.trace("onEvent processing messaging event {} from input ringbuffer of shard {}", sequence, index);
+			LOG.trace("sampled event {}", evt);
+		}
+		if (evt != HANDOFF) {
+			process(evt);
+		}
+		if (endOfBatch && !handoffs.isEmpty()) {
+			processHandOffs();
+		}
+	}
+
+	private void processHandOffs() {
+		MessagingEvent evt;
+		for (int i = 0; i < HANDOFF_BATCH && (evt = handoffs.poll()) != null; i++) {
+			process(evt);
+		}
+		if (!handoffs.isEmpty()) {
+			tryPublish(HANDOFF);
+		}
+	}
+
+	private void process(MessagingEvent evt) {
+		if (evt instanceof StopEvent) {
+			LOG.debug("processStop invoked on shard {}", index);
+			stopLatch.countDown();
+			return;
+		}
+		if (evt instanceof LostConnectionEvent) {
+			LostConnectionEvent lostEvt = (LostConnectionEvent) evt;
+			processor.processConnectionLost(lostEvt);
+			return;
+		}
+		if (evt instanceof DrainedEvent) {
+			processor.processDrained((DrainedEvent) evt);
+			return;
+		}
+		if (evt instanceof AuthenticatedEvent) {
+			try {
+				processor.processAuthenticated((AuthenticatedEvent) evt);
+			} catch (Throwable th) {
+				LOG.error("Grave error completing the connect of {}", evt, th);
+			}
+			return;
+		}
+		if (evt instanceof RedeliveryEvent) {
+			try {
+				processor.processRedelivery((RedeliveryEvent) evt);
+			} catch (Throwable th) {
+				LOG.error("Grave error redelivering {}", evt, th);
+			}
+			return;
+		}
+		if (evt instanceof SubscriberPublishEvent) {
+			try {
+				processor.processSubscriberPublish((SubscriberPublishEvent) evt);
+			} catch (Throwable th) {
+				LOG.error("Grave error delivering {}", evt, th);
+			}
+			return;
+		}
+		if (evt instanceof ProtocolEvent) {
+			ServerChannel session = ((ProtocolEvent) evt).getSession();
+			AbstractMessage message = ((ProtocolEvent) evt).getMessage();
+			try {
+				processor.dispatch(session, message);
+			} catch (Throwable th) {
+				LOG.error("Grave error processing the message {} for {}", message, session, th);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.IMatchingCondition;
+import org.eclipse.moquette.spi.IMessagesStore.StoredMessage;
+import org.eclipse.moquette.spi.impl.subscriptions.RetainedTopicsIndex;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retained messages with their payloads kept off the heap, within a byte budget.
+ *
+ * The payloads are written in fixed size blocks carved out of direct buffer slabs, allocated as needed up to the budget; the free blocks are chained
+ * through their first 4 bytes, so the heap only holds the topic, the QoS and the block numbers of each message. When a message doesn't fit the least
+ * recently stored or read ones are evicted. A message can expire after a time to live, the default one or the one of the first topic filter matching
+ * its topic; expired messages are dropped when read, or when found at the least recently used end while storing.
+ *
+ * Shared by the processing shards, all the operations run under a single lock and copy the payloads in or out.
+ */
+public class OffHeapRetainedStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OffHeapRetainedStore.class);
+
+	/**
+	 * Notified of the topics dropped by the store itself, evicted or expired.
+	 */
+	public interface Listener {
+		void dropped(String topic);
+	}
+
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	private static final int SLAB_SIZE = 1024 * 1024;
+
+	//least recently used messages checked for expiry on each store
+	private static final int EXPIRY_SWEEP = 8;
+
+	private static final int NO_BLOCK = -1;
+
+	private static final int[] NO_BLOCKS = new int[0];
+
+	private static final class Entry {
+
+		final QOSType qos;
+
+		final int length;
+
+		final long deadline;
+
+		final int[] blocks;
+
+		Entry(QOSType qos, int length, long deadline, int[] blocks) {
+			this.qos = qos;
+			this.length = length;
+			this.deadline = deadline;
+			this.blocks = blocks;
+		}
+	}
+
+	private final long m_budget;
+
+	private final int m_blockSize;
+
+	private final int m_blocksPerSlab;
+
+	private final int m_maxBlocks;
+
+	private final ByteBuffer[] m_slabs;
+
+	//blocks handed out of the slabs so far, the ones freed since are in the free list
+	private int m_carvedBlocks;
+
+	private int m_freeHead = NO_BLOCK;
+
+	private int m_usedBlocks;
+
+	private long m_payloadBytes;
+
+	//in least recently used order
+	private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final RetainedTopicsIndex m_index = new RetainedTopicsIndex();
+
+	private final Lock m_lock = new ReentrantLock();
+
+	private long m_defaultTtl;
+
+	//time to live by topic filter, the first matching wins
+	private Map<String, Long> m_topicTtls = Collections.emptyMap();
+
+	private Listener m_listener;
+
+	private final AtomicLong m_hits = new AtomicLong();
+
+	private final AtomicLong m_misses = new AtomicLong();
+
+	private final AtomicLong m_evictions = new AtomicLong();
+
+	private final AtomicLong m_expirations = new AtomicLong();
+
+	private final AtomicLong m_rejected = new AtomicLong();
+
+	public OffHeapRetainedStore() {
+		this(DEFAULT_BUDGET, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param budget
+	 *            the off heap bytes available to the payloads
+	 * @param blockSize
+	 *            the allocation unit of the payloads, a message wastes less than a block
+	 */
+	public OffHeapRetainedStore(long budget, int blockSize) {
+		if (blockSize < 4) {
+			throw new IllegalArgumentException("Block size must be at least 4 bytes, found " + blockSize);
+		}
+		if (budget < blockSize) {
+			throw new IllegalArgumentException("Budget must hold at least a block of " + blockSize + " bytes, found " + budget);
+		}
+		m_budget = budget;
+		m_blockSize = blockSize;
+		m_blocksPerSlab = Math.max(1, SLAB_SIZE / blockSize);
+		m_maxBlocks = (int) Math.min(budget / blockSize, Integer.MAX_VALUE);
+		m_slabs = new ByteBuffer[(m_maxBlocks + m_blocksPerSlab - 1) / m_blocksPerSlab];
+	}
+
+	/**
+	 * Sets the time to live in milliseconds of the messages not matched by a topic rule, 0 (default) keeps them until evicted.
+	 */
+	public void setDefaultTtl(long defaultTtl) {
+		m_defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * Sets the time to live in milliseconds of the messages by topic filter, checked in iteration order; 0 keeps them until evicted.
+	 */
+	public void setTopicTtls(Map<String, Long> topicTtls) {
+		m_topicTtls = new LinkedHashMap<String, Long>(topicTtls);
+	}
+
+	public void setListener(Listener listener) {
+		m_listener = listener;
+	}
+
+	/**
+	 * Stores the message replacing the one retained for the topic, evicting the least recently used ones to make room.
+	 *
+	 * @return false if the payload alone exceeds the budget, the topic has no retained message then
+	 */
+	public boolean put(String topic, byte[] payload, QOSType qos) {
+		int count = (payload.length + m_blockSize - 1) / m_blockSize;
+		List<String> dropped = null;
+		boolean stored = false;
+		m_lock.lock();
+		try {
+			Entry previous = m_entries.remove(topic);
+			if (previous != null) {
+				release(previous);
+			}
+			if (count > m_maxBlocks) {
+				m_index.remove(topic);
+				m_rejected.incrementAndGet();
+			} else {
+				long now = System.currentTimeMillis();
+				dropped = sweepExpired(now, dropped);
+				while (m_maxBlocks - m_usedBlocks < count) {
+					dropped = evictEldest(dropped);
+				}
+				int[] blocks = allocate(count);
+				write(blocks, payload);
+				long ttl = ttlFor(topic);
+				m_entries.put(topic, new Entry(qos, payload.length, ttl > 0 ? now + ttl : Long.MAX_VALUE, blocks));
+				m_payloadBytes += payload.length;
+				if (previous == null) {
+					m_index.add(topic);
+				}
+				stored = true;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (!stored) {
+			LOG.warn("Retained message of {} bytes on <{}> exceeds the budget of {} bytes", payload.length, topic, m_budget);
+		}
+		notifyDropped(dropped);
+		return stored;
+	}
+
+	/**
+	 * @return the message retained for the topic, null if none or expired
+	 */
+	public StoredMessage get(String topic) {
+		List<String> dropped = null;
+		StoredMessage message;
+		m_lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			Entry entry = m_entries.get(topic);
+			message = entry != null && entry.deadline > now ? read(topic, entry) : null;
+			if (entry != null && message == null) {
+				dropped = expire(topic, entry, dropped);
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		count(message);
+		notifyDropped(dropped);
+		return message;
+	}
+
+	/**
+	 * @return the retained messages whose topic is matched by the topic filter, looked up in the topic index
+	 */
+	public List<StoredMessage> matching(String topicFilter) {
+		List<String> topics = m_index.matches(topicFilter);
+		List<StoredMessage> results = new ArrayList<StoredMessage>(topics.size());
+		List<String> dropped = null;
+		m_lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			for (String topic : topics) {
+				Entry entry = m_entries.get(topic);
+				//could have been cleaned meanwhile
+				if (entry == null) {
+					m_misses.incrementAndGet();
+				} else if (entry.deadline <= now) {
+					m_misses.incrementAndGet();
+					dropped = expire(topic, entry, dropped);
+				} else {
+					m_hits.incrementAndGet();
+					results.add(read(topic, entry));
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		notifyDropped(dropped);
+		return results;
+	}
+
+	/**
+	 * @return the retained messages whose topic meets the condition, scanning all of them without changing their use order
+	 */
+	public List<StoredMessage> matching(IMatchingCondition condition) {
+		List<StoredMessage> results = new ArrayList<StoredMessage>();
+		m_lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, Entry> entry : m_entries.entrySet()) {
+				if (entry.getValue().deadline > now && condition.match(entry.getKey())) {
+					results.add(read(entry.getKey(), entry.getValue()));
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		return results;
+	}
+
+	public void remove(String topic) {
+		m_lock.lock();
+		try {
+			Entry entry = m_entries.remove(topic);
+			if (entry != null) {
+				release(entry);
+				m_index.remove(topic);
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops all the messages, the slabs are kept for the next ones.
+	 */
+	public void clear() {
+		m_lock.lock();
+		try {
+			m_entries.clear();
+			m_index.clear();
+			m_carvedBlocks = 0;
+			m_freeHead = NO_BLOCK;
+			m_usedBlocks = 0;
+			m_payloadBytes = 0;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops all the messages and the slabs, leaving their memory to be reclaimed.
+	 */
+	public void close() {
+		m_lock.lock();
+		try {
+			clear();
+			for (int i = 0; i < m_slabs.length; i++) {
+				m_slabs[i] = null;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public int size() {
+		m_lock.lock();
+		try {
+			return m_entries.size();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getBudget() {
+		return m_budget;
+	}
+
+	/**
+	 * @return the bytes of the payloads stored
+	 */
+	public long getPayloadBytes() {
+		m_lock.lock();
+		try {
+			return m_payloadBytes;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the bytes of the blocks holding the payloads
+	 */
+	public long getUsedBytes() {
+		m_lock.lock();
+		try {
+			return (long) m_usedBlocks * m_blockSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	public long getEvictions() {
+		return m_evictions.get();
+	}
+
+	public long getExpirations() {
+		return m_expirations.get();
+	}
+
+	/**
+	 * @return the number of messages not stored because larger than the budget
+	 */
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	/**
+	 * Resets the hit, miss, eviction, expiration and rejection counts to 0.
+	 */
+	public void resetCounts() {
+		m_hits.set(0);
+		m_misses.set(0);
+		m_evictions.set(0);
+		m_expirations.set(0);
+		m_rejected.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapRetainedStore [size=" + size() + ", usedBytes=" + getUsedBytes() + ", budget=" + m_budget + ", hits=" + m_hits + ", misses=" + m_misses + ", evictions=" + m_evictions + ", expirations=" + m_expirations + ", rejected=" + m_rejected + "]";
+	}
+
+	private void count(StoredMessage message) {
+		if (message != null) {
+			m_hits.incrementAndGet();
+		} else {
+			m_misses.incrementAndGet();
+		}
+	}
+
+	private long ttlFor(String topic) {
+		for (Map.Entry<String, Long> rule : m_topicTtls.entrySet()) {
+			if (SubscriptionsStore.matchTopics(topic, rule.getKey())) {
+				return rule.getValue();
+			}
+		}
+		return m_defaultTtl;
+	}
+
+	private List<String> sweepExpired(long now, List<String> dropped) {
+		Iterator<Map.Entry<String, Entry>> eldest = m_entries.entrySet().iterator();
+		for (int i = 0; i < EXPIRY_SWEEP && eldest.hasNext(); i++) {
+			Map.Entry<String, Entry> entry = eldest.next();
+			if (entry.getValue().deadline > now) {
+				break;
+			}
+			eldest.remove();
+			release(entry.getValue());
+			m_index.remove(entry.getKey());
+			m_expirations.incrementAndGet();
+			dropped = add(dropped, entry.getKey());
+		}
+		return dropped;
+	}
+
+	private List<String> evictEldest(List<String> dropped) {
+		Iterator<Map.Entry<String, Entry>> eldest = m_entries.entrySet().iterator();
+		Map.Entry<String, Entry> entry = eldest.next();
+		eldest.remove();
+		release(entry.getValue());
+		m_index.remove(entry.getKey());
+		m_evictions.incrementAndGet();
+		return add(dropped, entry.getKey());
+	}
+
+	private List<String> expire(String topic, Entry entry, List<String> dropped) {
+		m_entries.remove(topic);
+		release(entry);
+		m_index.remove(topic);
+		m_expirations.incrementAndGet();
+		return add(dropped, topic);
+	}
+
+	private static List<String> add(List<String> dropped, String topic) {
+		if (dropped == null) {
+			dropped = new ArrayList<String>(4);
+		}
+		dropped.add(topic);
+		return dropped;
+	}
+
+	private void notifyDropped(Collection<String> dropped) {
+		Listener listener = m_listener;
+		if (dropped == null || listener == null) {
+			return;
+		}
+		for (String topic : dropped) {
+			listener.dropped(topic);
+		}
+	}
+
+	private int[] allocate(int count) {
+		if (count == 0) {
+			return NO_BLOCKS;
+		}
+		int[] blocks = new int[count];
+		for (int i = 0; i < count; i++) {
+			if (m_freeHead != NO_BLOCK) {
+				int block = m_freeHead;
+				m_freeHead = slab(block).getInt(offset(block));
+				blocks[i] = block;
+			} else {
+				int block = m_carvedBlocks++;
+				int slab = block / m_blocksPerSlab;
+				if (m_slabs[slab] == null) {
+					int slabBlocks = Math.min(m_blocksPerSlab, m_maxBlocks - slab * m_blocksPerSlab);
+					m_slabs[slab] = ByteBuffer.allocateDirect(slabBlocks * m_blockSize);
+				}
+				blocks[i] = block;
+			}
+		}
+		m_usedBlocks += count;
+		return blocks;
+	}
+
+	private void release(Entry entry) {
+		for (int block : entry.blocks) {
+			slab(block).putInt(offset(block), m_freeHead);
+			m_freeHead = block;
+		}
+		m_usedBlocks -= entry.blocks.length;
+		m_payloadBytes -= entry.length;
+	}
+
+	private void write(int[] blocks, byte[] payload) {
+		int position = 0;
+		for (int block : blocks) {
+			int length = Math.min(m_blockSize, payload.length - position);
+			ByteBuffer slab = slab(block);
+			slab.clear().position(offset(block));
+			slab.put(payload, position, length);
+			position += length;
+		}
+	}
+
+	private StoredMessage read(String topic, Entry entry) {
+		byte[] payload = new byte[entry.length];
+		int position = 0;
+		for (int block : entry.blocks) {
+			int length = Math.min(m_blockSize, payload.length - position);
+			ByteBuffer slab = slab(block);
+			slab.clear().position(offset(block));
+			slab.get(payload, position, length);
+			position += length;
+		}
+		return new StoredMessage(payload, entry.qos, topic);
+	}
+
+	private ByteBuffer slab(int block) {
+		return m_slabs[block / m_blocksPerSlab];
+	}
+
+	private int offset(int block) {
+		return (block % m_blocksPerSlab) * m_blockSize;
+	}
+
+}
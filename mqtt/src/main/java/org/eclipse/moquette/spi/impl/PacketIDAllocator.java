@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packet identifiers in use by a client session, kept in a 65536 bit bitmap with a rolling cursor so the IDs are handed out in sequence and
+ * wrap around without boxing or scanning a collection.
+ *
+ * The allocator also carries the numeric handle of the client, used with the packet ID to build the primitive key of its in flight messages.
+ * Not thread safe, a client is only handled by the shard owning it.
+ */
+public class PacketIDAllocator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PacketIDAllocator.class);
+
+	public static final int MAX_PACKET_ID = 0xFFFF;
+
+	private final int m_clientHandle;
+
+	//bit i is set when the packet ID i is in use, 0 is not a valid ID so it's always set
+	private final long[] m_inUse = new long[(MAX_PACKET_ID + 1) >>> 6];
+
+	//last ID handed out
+	private int m_cursor;
+
+	//IDs in use, read by the other shards to balance the share groups
+	private volatile int m_inUseCount;
+
+	public PacketIDAllocator(int clientHandle) {
+		m_clientHandle = clientHandle;
+		m_inUse[0] = 1L;
+	}
+
+	public int getClientHandle() {
+		return m_clientHandle;
+	}
+
+	/**
+	 * @return the first free ID following the last one handed out, if all the IDs are in use the next one is reused
+	 */
+	public int acquire() {
+		int start = m_cursor % MAX_PACKET_ID + 1;
+		int id = nextFree(start, MAX_PACKET_ID);
+		if (id < 0) {
+			id = nextFree(1, start - 1);
+		}
+		if (id < 0) {
+			LOG.warn("All the packet IDs of client handle {} are in flight, reusing {}", m_clientHandle, start);
+			id = start;
+		}
+		if (!isInUse(id)) {
+			m_inUse[id >>> 6] |= 1L << id;
+			m_inUseCount++;
+		}
+		m_cursor = id;
+		return id;
+	}
+
+	/**
+	 * Marks an ID in use whoever handed it out, a former run of the broker or the caller of an in flight store.
+	 */
+	public void markInUse(int packetID) {
+		if (packetID > 0 && packetID <= MAX_PACKET_ID && !isInUse(packetID)) {
+			m_inUse[packetID >>> 6] |= 1L << packetID;
+			m_inUseCount++;
+		}
+	}
+
+	public void release(int packetID) {
+		if (isInUse(packetID)) {
+			m_inUse[packetID >>> 6] &= ~(1L << packetID);
+			m_inUseCount--;
+		}
+	}
+
+	/**
+	 * @return the number of IDs in use
+	 */
+	public int inUseCount() {
+		return m_inUseCount;
+	}
+
+	/**
+	 * @return the first ID in use from the given one on, -1 if none
+	 */
+	public int nextInUse(int from) {
+		int i = Math.max(from, 1);
+		while (i <= MAX_PACKET_ID) {
+			int word = i >>> 6;
+			long used = m_inUse[word] & (-1L << i);
+			if (used != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(used);
+			}
+			i = (word + 1) << 6;
+		}
+		return -1;
+	}
+
+	public boolean isInUse(int packetID) {
+		return packetID > 0 && packetID <= MAX_PACKET_ID && (m_inUse[packetID >>> 6] & (1L << packetID)) != 0;
+	}
+
+	/**
+	 * @return the key of an in flight message of this client
+	 */
+	public long inFlightKey(int packetID) {
+		return inFlightKey(m_clientHandle, packetID);
+	}
+
+	public static long inFlightKey(int clientHandle, int packetID) {
+		return ((long) clientHandle << 16) | (packetID & MAX_PACKET_ID);
+	}
+
+	private int nextFree(int from, int to) {
+		int i = from;
+		while (i <= to) {
+			int word = i >>> 6;
+			//free bits of the word starting at i, the shift only uses the low 6 bits of i
+			long free = ~m_inUse[word] & (-1L << i);
+			if (free != 0) {
+				int id = (word << 6) + Long.numberOfTrailingZeros(free);
+				return id <= to ? id : -1;
+			}
+			i = (word + 1) << 6;
+		}
+		return -1;
+	}
+
+}
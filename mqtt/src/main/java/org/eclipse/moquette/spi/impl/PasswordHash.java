@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Salted password hashes of the password file, in the form <code>$scheme$iterations$salt$hash</code> with the salt and hash in hex.
+ *
+ * The schemes are pbkdf2-sha256 (PBKDF2WithHmacSHA256, needs Java 8) and pbkdf2-sha1 (PBKDF2WithHmacSHA1); a password not starting with $ is
+ * plain text, kept for the existing files. Passwords are always compared in constant time. Run the class with a password as argument to print its
+ * hash.
+ */
+public final class PasswordHash {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PasswordHash.class);
+
+	public static final String PBKDF2_SHA256 = "pbkdf2-sha256";
+
+	public static final String PBKDF2_SHA1 = "pbkdf2-sha1";
+
+	public static final int DEFAULT_ITERATIONS = 10000;
+
+	private static final int SALT_LENGTH = 16;
+
+	private static final int HASH_LENGTH = 32;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private PasswordHash() {
+	}
+
+	/**
+	 * @return the PBKDF2 hash of the password with a random salt
+	 */
+	public static String hash(String password, String scheme, int iterations) throws GeneralSecurityException {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		byte[] hash = pbkdf2(scheme, password, salt, iterations, HASH_LENGTH);
+		return "$" + scheme + "$" + iterations + "$" + toHex(salt) + "$" + toHex(hash);
+	}
+
+	/**
+	 * @param stored
+	 *            the hash of the password file or a plain text password
+	 * @return true if the password matches, false as well when the stored hash is malformed or its scheme unsupported
+	 */
+	public static boolean verify(String stored, String password) {
+		if (stored == null || password == null) {
+			return false;
+		}
+		if (!stored.startsWith("$")) {
+			return MessageDigest.isEqual(stored.getBytes(UTF8), password.getBytes(UTF8));
+		}
+		//"", scheme, iterations, salt, hash
+		String[] parts = stored.split("\\$");
+		if (parts.length != 5) {
+			LOG.warn("Malformed password hash, expected $scheme$iterations$salt$hash");
+			return false;
+		}
+		try {
+			byte[] expected = fromHex(parts[4]);
+			byte[] actual = pbkdf2(parts[1], password, fromHex(parts[3]), Integer.parseInt(parts[2]), expected.length);
+			return MessageDigest.isEqual(expected, actual);
+		} catch (NumberFormatException e) {
+			LOG.warn("Malformed password hash: {}", e.getMessage());
+		} catch (GeneralSecurityException e) {
+			LOG.warn("Unsupported password hash {}: {}", parts[1], e.getMessage());
+		}
+		return false;
+	}
+
+	private static byte[] pbkdf2(String scheme, String password, byte[] salt, int iterations, int length) throws GeneralSecurityException {
+		String algorithm;
+		if (PBKDF2_SHA256.equals(scheme)) {
+			algorithm = "PBKDF2WithHmacSHA256";
+		} else if (PBKDF2_SHA1.equals(scheme)) {
+			algorithm = "PBKDF2WithHmacSHA1";
+		} else {
+			throw new GeneralSecurityException("Unknown scheme " + scheme);
+		}
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+		try {
+			return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			throw new NumberFormatException("Odd length hex " + hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Prints the hash of a password for the password file.
+	 *
+	 * @param args
+	 *            the password, then optionally the scheme and the iterations
+	 */
+	public static void main(String[] args) throws GeneralSecurityException {
+		if (args.length == 0) {
+			System.err.println("Usage: PasswordHash <password> [" + PBKDF2_SHA256 + "|" + PBKDF2_SHA1 + "] [iterations]");
+			System.exit(1);
+		}
+		String scheme = args.length > 1 ? args[1] : PBKDF2_SHA256;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+		System.out.println(hash(args[0], scheme, iterations));
+	}
+
+}
@@ -16,13 +16,19 @@
 package org.eclipse.moquette.spi.impl;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.moquette.proto.Utils;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
 import org.eclipse.moquette.proto.messages.ConnAckMessage;
@@ -37,21 +43,28 @@ import org.eclipse.moquette.proto.messages.SubAckMessage;
 import org.eclipse.moquette.proto.messages.SubscribeMessage;
 import org.eclipse.moquette.proto.messages.UnsubAckMessage;
 import org.eclipse.moquette.proto.messages.UnsubscribeMessage;
-import org.eclipse.moquette.spi.IMatchingCondition;
 import org.eclipse.moquette.spi.IMessagesStore;
 import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.events.AuthenticatedEvent;
+import org.eclipse.moquette.spi.impl.events.DrainedEvent;
 import org.eclipse.moquette.spi.impl.events.LostConnectionEvent;
 import org.eclipse.moquette.spi.impl.events.MessagingEvent;
 import org.eclipse.moquette.spi.impl.events.OutputMessagingEvent;
 import org.eclipse.moquette.spi.impl.events.PubAckEvent;
 import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.events.RedeliveryEvent;
+import org.eclipse.moquette.spi.impl.events.SubscriberPublishEvent;
 import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
 import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
 import org.red5.server.mqtt.ConnectionDescriptor;
 import org.red5.server.mqtt.Constants;
 import org.red5.server.mqtt.IAuthenticator;
+import org.red5.server.mqtt.OutboundMetrics;
 import org.red5.server.mqtt.ServerChannel;
+import org.red5.server.mqtt.SlowConsumerPolicy;
 import org.red5.server.mqtt.codec.MQTTProtocol;
+import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
+import org.red5.server.mqtt.codec.parser.PublishEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +75,7 @@ import com.lmax.disruptor.dsl.Disruptor;
 /**
  * Class responsible to handle the logic of MQTT protocol it's the director of the protocol execution.
  * 
- * Used by the front facing class SimpleMessaging.
+ * Used by the front facing class SimpleMessaging, one instance for each processing shard; the state kept per client is only accessed from the thread of the owning shard.
  * 
  * @author andrea
  */
@@ -110,6 +123,119 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 
 	}
 
+	/**
+	 * A CONNECT waiting for its credentials to be verified on the authentication pool, with the messages the client sent meanwhile; kept on the
+	 * session and only touched by the shard thread.
+	 */
+	static final class PendingConnect {
+
+		//messages a client can send before its CONNACK, beyond it's closed
+		private static final int MAX_QUEUED = 256;
+
+		private final ConnectMessage m_connect;
+
+		private final List<AbstractMessage> m_queued = new ArrayList<>();
+
+		PendingConnect(ConnectMessage connect) {
+			m_connect = connect;
+		}
+
+		/**
+		 * @return false if the message is refused, a second CONNECT or one too many
+		 */
+		boolean queue(AbstractMessage msg) {
+			if (msg.getMessageType() == AbstractMessage.CONNECT || m_queued.size() >= MAX_QUEUED) {
+				return false;
+			}
+			m_queued.add(msg);
+			return true;
+		}
+
+	}
+
+	/**
+	 * Closes the channel of a client silent for longer than its keep alive timeout. As long as the client sends something the expiry reschedules itself
+	 * for the rest of the period, so there's only one timeout per client whatever its traffic.
+	 */
+	static final class KeepAliveTask implements TimerWheel.Task {
+
+		private final ServerChannel m_channel;
+
+		private final long m_timeout;
+
+		private final TimerWheel m_timer;
+
+		private final OutboundMetrics m_metrics;
+
+		private volatile TimerWheel.Timeout m_scheduled;
+
+		private volatile boolean m_cancelled;
+
+		KeepAliveTask(ServerChannel channel, long timeout, TimerWheel timer, OutboundMetrics metrics) {
+			m_channel = channel;
+			m_timeout = timeout;
+			m_timer = timer;
+			m_metrics = metrics;
+		}
+
+		void schedule(long delay) {
+			m_scheduled = m_timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		void cancel() {
+			m_cancelled = true;
+			TimerWheel.Timeout scheduled = m_scheduled;
+			if (scheduled != null) {
+				scheduled.cancel();
+			}
+		}
+
+		boolean isCancelled() {
+			return m_cancelled;
+		}
+
+		@Override
+		public void expired(TimerWheel.Timeout timeout) {
+			if (m_cancelled) {
+				return;
+			}
+			long idle = System.currentTimeMillis() - m_channel.getLastReadTime();
+			if (idle < m_timeout) {
+				schedule(m_timeout - idle);
+				return;
+			}
+			LOG.info("Closing channel {} silent for {} ms, past its keep alive", m_channel, idle);
+			m_metrics.keepAliveExpired();
+			m_channel.close(true);
+		}
+	}
+
+	/**
+	 * Hands over the redelivery of an in flight message to the shard owning the client.
+	 */
+	static final class RedeliveryTask implements TimerWheel.Task {
+
+		private final MessagingShard m_shard;
+
+		private final String m_clientID;
+
+		private final int m_packetID;
+
+		private final boolean m_release;
+
+		RedeliveryTask(MessagingShard shard, String clientID, int packetID, boolean release) {
+			m_shard = shard;
+			m_clientID = clientID;
+			m_packetID = packetID;
+			m_release = release;
+		}
+
+		@Override
+		public void expired(TimerWheel.Timeout timeout) {
+			m_shard.route(m_clientID, new RedeliveryEvent(m_clientID, m_packetID, m_release, timeout));
+		}
+	}
+
 	private static final Logger LOG = LoggerFactory.getLogger(ProtocolProcessor.class);
 
 	private Map<String, ConnectionDescriptor> m_clientIDs = new HashMap<>();
@@ -122,13 +248,49 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 
 	private IAuthenticator m_authenticator;
 
+	//verifies the credentials off the shard thread, null to verify them inline
+	private AuthenticationService m_authentication;
+
 	//maps clientID to Will testament, if specified on CONNECT
 	private Map<String, WillMessage> m_willStore = new HashMap<>();
 
 	private ExecutorService m_executor;
 
+	private Disruptor<ValueEvent> m_disruptor;
+
 	private RingBuffer<ValueEvent> m_ringBuffer;
 
+	//channels with messages queued in the current batch of the output ring, only touched by its consumer thread
+	private final List<ServerChannel> m_batchChannels = new ArrayList<>();
+
+	//the shard running this processor, used to route deliveries to clients owned by other shards
+	private MessagingShard m_shard;
+
+	//reused on every publish to collect the matching subscriptions, only touched by the shard thread
+	private final List<Subscription> m_matchingSubs = new ArrayList<>();
+
+	//payload of the fan-out in progress and its encoded headers, one per QoS level
+	private ByteBuffer m_fanoutPayload;
+
+	private final byte[][] m_fanoutHeaders = new byte[AbstractMessage.QOSType.values().length][];
+
+	//copy of the fan-out payload handed to the stores, made on first need
+	private byte[] m_fanoutStoredPayload;
+
+	private SlowConsumerPolicy m_slowConsumerPolicy;
+
+	private OutboundMetrics m_outboundMetrics;
+
+	//clients with publishes spilled to their session by the slow consumer policy, written once they drain
+	private final Set<String> m_spilledClients = new HashSet<>();
+
+	private TimerWheel m_timer;
+
+	private long m_redeliveryInterval;
+
+	//pending redelivery of the in flight messages, by client ID and packet ID
+	private final Map<String, Map<Integer, TimerWheel.Timeout>> m_redeliveries = new HashMap<>();
+
 	ProtocolProcessor() {
 	}
 
@@ -141,24 +303,89 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 	 *            the clients sessions store, used to persist subscriptions.
 	 * @param authenticator
 	 *            the authenticator used in connect messages
+	 * @param shard
+	 *            the processing shard this processor belongs to
 	 */
-	void init(SubscriptionsStore subscriptions, IMessagesStore storageService, ISessionsStore sessionsStore, IAuthenticator authenticator) {
+	void init(SubscriptionsStore subscriptions, IMessagesStore storageService, ISessionsStore sessionsStore, IAuthenticator authenticator, MessagingShard shard) {
 		//m_clientIDs = clientIDs;
 		this.subscriptions = subscriptions;
 		LOG.debug("subscription tree on init {}", subscriptions.dumpTree());
 		m_authenticator = authenticator;
+		m_authentication = shard.getMessaging().getAuthentication();
 		m_messagesStore = storageService;
 		m_sessionsStore = sessionsStore;
+		m_shard = shard;
+		m_slowConsumerPolicy = shard.getMessaging().getSlowConsumerPolicy();
+		m_outboundMetrics = shard.getMessaging().getOutboundMetrics();
+		m_timer = shard.getMessaging().getTimerWheel();
+		m_redeliveryInterval = shard.getMessaging().getRedeliveryInterval();
 
 		//init the output ringbuffer
 		m_executor = Executors.newFixedThreadPool(1);
 
-		Disruptor<ValueEvent> disruptor = new Disruptor<>(ValueEvent.EVENT_FACTORY, 1024 * 32, m_executor);
-		disruptor.handleEventsWith(this);
-		disruptor.start();
+		m_disruptor = new Disruptor<>(ValueEvent.EVENT_FACTORY, 1024 * 32, m_executor);
+		m_disruptor.handleEventsWith(this);
+		m_disruptor.start();
 
 		// Get the ring buffer from the Disruptor to be used for publishing.
-		m_ringBuffer = disruptor.getRingBuffer();
+		m_ringBuffer = m_disruptor.getRingBuffer();
+	}
+
+	/**
+	 * Stops the output ring once the messages published to it are written.
+	 */
+	void shutdown() {
+		m_disruptor.shutdown();
+		m_executor.shutdown();
+	}
+
+	/**
+	 * Invoke the handler of the message, switching on the message type so the call is direct and can be inlined.
+	 * 
+	 * @throws RuntimeException
+	 *             if the message type has no handler.
+	 */
+	void dispatch(ServerChannel session, AbstractMessage msg) throws InterruptedException {
+		PendingConnect pending = (PendingConnect) session.getAttribute(Constants.ATTR_PENDING_CONNECT);
+		if (pending != null) {
+			//dispatched once the connect completes
+			if (!pending.queue(msg)) {
+				LOG.warn("Closing session <{}> sending {} while authenticating", session, msg);
+				session.close(false);
+			}
+			return;
+		}
+		switch (msg.getMessageType()) {
+			case AbstractMessage.CONNECT:
+				processConnect(session, (ConnectMessage) msg);
+				break;
+			case AbstractMessage.PUBLISH:
+				processPublish(session, (PublishMessage) msg);
+				break;
+			case AbstractMessage.PUBACK:
+				processPubAck(session, (PubAckMessage) msg);
+				break;
+			case AbstractMessage.PUBREC:
+				processPubRec(session, (PubRecMessage) msg);
+				break;
+			case AbstractMessage.PUBREL:
+				processPubRel(session, (PubRelMessage) msg);
+				break;
+			case AbstractMessage.PUBCOMP:
+				processPubComp(session, (PubCompMessage) msg);
+				break;
+			case AbstractMessage.SUBSCRIBE:
+				processSubscribe(session, (SubscribeMessage) msg);
+				break;
+			case AbstractMessage.UNSUBSCRIBE:
+				processUnsubscribe(session, (UnsubscribeMessage) msg);
+				break;
+			case AbstractMessage.DISCONNECT:
+				processDisconnect(session, (DisconnectMessage) msg);
+				break;
+			default:
+				throw new RuntimeException("Can't dispatch to any @MQTTMessage marked the message: " + msg);
+		}
 	}
 
 	@MQTTMessage(message = ConnectMessage.class)
@@ -180,6 +407,68 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			return;
 		}
 
+		//handle user authentication, before touching the connection of the client ID if any
+		if (msg.isUserFlag()) {
+			String pwd = null;
+			if (msg.isPasswordFlag()) {
+				pwd = msg.getPassword();
+			}
+			if (m_authentication != null && !m_authentication.isCached(msg.getUsername(), pwd)) {
+				authenticate(session, msg, pwd);
+				return;
+			}
+			if (m_authentication == null && !m_authenticator.checkValid(msg.getUsername(), pwd)) {
+				refuseConnect(session, ConnAckMessage.BAD_USERNAME_OR_PASSWORD);
+				return;
+			}
+		}
+		completeConnect(session, msg);
+	}
+
+	/**
+	 * Verifies the credentials on the authentication pool, the connect is completed by the AuthenticatedEvent routed back to this shard.
+	 */
+	private void authenticate(final ServerChannel session, ConnectMessage msg, String pwd) {
+		final String clientID = msg.getClientID();
+		boolean submitted = m_authentication.verify(msg.getUsername(), pwd, new AuthenticationService.Callback() {
+			public void verified(boolean valid) {
+				m_shard.route(clientID, new AuthenticatedEvent(session, valid));
+			}
+		});
+		if (submitted) {
+			//the event can't be handled before this one is done
+			session.setAttribute(Constants.ATTR_PENDING_CONNECT, new PendingConnect(msg));
+		} else {
+			refuseConnect(session, ConnAckMessage.SERVER_UNAVAILABLE);
+		}
+	}
+
+	void processAuthenticated(AuthenticatedEvent evt) throws InterruptedException {
+		ServerChannel session = evt.getSession();
+		PendingConnect pending = (PendingConnect) session.getAttribute(Constants.ATTR_PENDING_CONNECT);
+		if (pending == null) {
+			LOG.debug("Session <{}> lost while authenticating", session);
+			return;
+		}
+		session.setAttribute(Constants.ATTR_PENDING_CONNECT, null);
+		if (!evt.isValid()) {
+			refuseConnect(session, ConnAckMessage.BAD_USERNAME_OR_PASSWORD);
+			return;
+		}
+		completeConnect(session, pending.m_connect);
+		for (AbstractMessage msg : pending.m_queued) {
+			dispatch(session, msg);
+		}
+	}
+
+	private void refuseConnect(ServerChannel session, byte returnCode) {
+		ConnAckMessage koResp = new ConnAckMessage();
+		koResp.setReturnCode(returnCode);
+		session.write(koResp);
+		session.close(false);
+	}
+
+	private void completeConnect(ServerChannel session, ConnectMessage msg) {
 		//if an old client with the same ID already exists close its session.
 		if (m_clientIDs.containsKey(msg.getClientID())) {
 			LOG.info("Found an existing connection with same client ID <{}>, forcing to close", msg.getClientID());
@@ -192,11 +481,14 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			}
 
 			oldSession.close(false);
+			//the lost connection of the old session is ignored as not matching the new one, it can't cancel its keep alive
+			cancelKeepAlive(oldSession);
 			LOG.debug("Existing connection with same client ID <{}>, forced to close", msg.getClientID());
 		}
 
 		ConnectionDescriptor connDescr = new ConnectionDescriptor(msg.getClientID(), session, msg.isCleanSession());
 		m_clientIDs.put(msg.getClientID(), connDescr);
+		m_spilledClients.remove(msg.getClientID());
 
 		int keepAlive = msg.getKeepAlive();
 		LOG.debug("Connect with keepAlive {} s", keepAlive);
@@ -206,7 +498,12 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		session.setAttribute(Constants.ATTR_CLIENTID, msg.getClientID());
 		LOG.debug("Connect create session <{}>", session);
 
-		session.setIdleTime(Math.round(keepAlive * 1.5f));
+		if (keepAlive > 0) {
+			//the client is disconnected when nothing is read from it for one and a half times the keep alive
+			KeepAliveTask keepAliveTask = new KeepAliveTask(session, keepAlive * 1500L, m_timer, m_outboundMetrics);
+			session.setAttribute(Constants.ATTR_KEEP_ALIVE_TIMER, keepAliveTask);
+			keepAliveTask.schedule(keepAlive * 1500L);
+		}
 
 		//Handle will flag
 		if (msg.isWillFlag()) {
@@ -218,20 +515,6 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			m_willStore.put(msg.getClientID(), will);
 		}
 
-		//handle user authentication
-		if (msg.isUserFlag()) {
-			String pwd = null;
-			if (msg.isPasswordFlag()) {
-				pwd = msg.getPassword();
-			}
-			if (!m_authenticator.checkValid(msg.getUsername(), pwd)) {
-				ConnAckMessage okResp = new ConnAckMessage();
-				okResp.setReturnCode(ConnAckMessage.BAD_USERNAME_OR_PASSWORD);
-				session.write(okResp);
-				return;
-			}
-		}
-
 		subscriptions.activate(msg.getClientID());
 
 		//handle clean session flag
@@ -252,35 +535,74 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		m_sessionsStore.addNewSubscription(Subscription.createEmptySubscription(msg.getClientID(), true), msg.getClientID()); //null means EmptySubscription
 		LOG.info("Connected client ID <{}> with clean session {}", msg.getClientID(), msg.isCleanSession());
 		if (!msg.isCleanSession()) {
+			resumeInFlight(msg.getClientID(), session);
 			//force the republish of stored QoS1 and QoS2
 			republishStoredInSession(msg.getClientID());
 		}
 	}
 
+	/**
+	 * Sends again the in flight messages of a persistent session that no redelivery is waiting for: all of them when the redelivery is off, the
+	 * ones stored before a restart of the broker and the PUBRELs waiting for the client. The QoS 2 publishes the client already received get their
+	 * PUBREL, the others the publish with the DUP flag.
+	 */
+	private void resumeInFlight(String clientID, ServerChannel channel) {
+		Map<Integer, TimerWheel.Timeout> timeouts = m_redeliveries.get(clientID);
+		for (int packetID : m_messagesStore.inFlightPacketIDs(clientID)) {
+			if (timeouts != null && timeouts.containsKey(packetID)) {
+				continue;
+			}
+			boolean received = m_messagesStore.isReceived(clientID, packetID);
+			if (received) {
+				writePubRel(channel, packetID);
+			} else {
+				PublishEvent inFlight = m_messagesStore.getInFlight(clientID, packetID);
+				writePublish(channel, inFlight.getTopic(), inFlight.getQos(), ByteBuffer.wrap(inFlight.getMessage()), inFlight.isRetain(), packetID, true);
+			}
+			m_outboundMetrics.redelivered();
+			scheduleRedelivery(clientID, packetID, received);
+		}
+	}
+
 	/**
 	 * Republish QoS1 and QoS2 messages stored into the session for the clientID.
+	 * 
+	 * @return false if the client became a slow consumer before all were written
 	 * */
-	private void republishStoredInSession(String clientID) {
+	private boolean republishStoredInSession(String clientID) {
 		LOG.trace("republishStoredInSession for client <{}>", clientID);
 		List<PublishEvent> publishedEvents = m_messagesStore.listMessagesInSession(clientID);
 		if (publishedEvents.isEmpty()) {
 			LOG.info("No stored messages for client <{}>", clientID);
-			return;
+			return true;
 		}
 
 		LOG.info("republishing stored messages to client <{}>", clientID);
+		ServerChannel channel = m_clientIDs.get(clientID).getSession();
 		for (PublishEvent pubEvt : publishedEvents) {
-			sendPublish(pubEvt.getClientID(), pubEvt.getTopic(), pubEvt.getQos(), pubEvt.getMessage(), false, pubEvt.getMessageID());
+			if (!channel.isWritable()) {
+				//the rest stays in the session until the client drains
+				m_spilledClients.add(clientID);
+				return false;
+			}
+			ByteBuffer message = ByteBuffer.wrap(pubEvt.getMessage());
+			//stored without a packet ID, one is taken now among the ones the client has in flight
+			Integer packetID = pubEvt.getQos() == AbstractMessage.QOSType.MOST_ONE ? null : m_messagesStore.nextPacketID(clientID);
+			writePublish(channel, pubEvt.getTopic(), pubEvt.getQos(), message, false, packetID, false);
 			m_messagesStore.removeMessageInSession(clientID, pubEvt.getMessageID());
+			if (packetID != null) {
+				addInFlight(clientID, pubEvt.getTopic(), pubEvt.getQos(), message, false, packetID);
+			}
 		}
+		return true;
 	}
 
 	@MQTTMessage(message = PubAckMessage.class)
 	void processPubAck(ServerChannel session, PubAckMessage msg) {
 		String clientID = (String) session.getAttribute(Constants.ATTR_CLIENTID);
 		int messageID = msg.getMessageID();
-		//Remove the message from message store
-		m_messagesStore.removeMessageInSession(clientID, messageID);
+		m_messagesStore.cleanInFlight(clientID, messageID);
+		cancelRedelivery(clientID, messageID);
 	}
 
 	private void cleanSession(String clientID) {
@@ -291,6 +613,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 
 		//remove also the messages stored of type QoS1/2
 		m_messagesStore.dropMessagesInSession(clientID);
+		dropInFlight(clientID);
 	}
 
 	@MQTTMessage(message = PublishMessage.class)
@@ -299,29 +622,30 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		String clientID = (String) session.getAttribute(Constants.ATTR_CLIENTID);
 		final String topic = msg.getTopicName();
 		final AbstractMessage.QOSType qos = msg.getQos();
-		final byte[] message = msg.getPayload();
+		final ByteBuffer message = msg.getPayloadBuffer();
 		boolean retain = msg.isRetainFlag();
 		processPublish(clientID, topic, qos, message, retain, msg.getMessageID());
 	}
 
-	private void processPublish(String clientID, String topic, QOSType qos, byte[] message, boolean retain, Integer messageID) {
-		LOG.info("PUBLISH from clientID <{}> on topic <{}> with QoS {}", clientID, topic, qos);
+	private void processPublish(String clientID, String topic, QOSType qos, ByteBuffer message, boolean retain, Integer messageID) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("PUBLISH from clientID <{}> on topic <{}> with QoS {}", clientID, topic, qos);
+		}
+		//the stores keep an array of their own, the payload may be a slice of the receive buffer
+		boolean stored = qos == AbstractMessage.QOSType.EXACTLY_ONCE || (retain && qos == AbstractMessage.QOSType.LEAST_ONE);
+		byte[] storedMessage = stored ? Utils.toArray(message) : null;
 
 		if (qos == AbstractMessage.QOSType.MOST_ONE) { //QoS0
-			forward2Subscribers(topic, qos, message, retain, messageID);
+			forward2Subscribers(topic, qos, message, retain);
 		} else if (qos == AbstractMessage.QOSType.LEAST_ONE) {
-			PublishEvent inFlightEvt = new PublishEvent(topic, qos, message, retain, clientID, messageID);
-			//TODO use a message store for TO PUBLISH MESSAGES it has nothing to do with inFlight!!
-			m_messagesStore.addInFlight(inFlightEvt, clientID, messageID);
-			forward2Subscribers(topic, qos, message, retain, messageID);
-			m_messagesStore.cleanInFlight(clientID, messageID);
-			//NB the PUB_ACK could be sent also after the addInFlight
+			//the in flight store holds the publishes sent to the client, the deliveries are tracked there per subscriber
+			forward2Subscribers(topic, qos, message, retain);
 			sendPubAck(new PubAckEvent(messageID, clientID));
 			LOG.debug("replying with PubAck to MSG ID {}", messageID);
 		} else if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) {
 			String publishKey = String.format("%s%d", clientID, messageID);
 			//store the message in temp store
-			PublishEvent qos2Persistent = new PublishEvent(topic, qos, message, retain, clientID, messageID);
+			PublishEvent qos2Persistent = new PublishEvent(topic, qos, storedMessage, retain, clientID, messageID);
 			m_messagesStore.persistQoS2Message(publishKey, qos2Persistent);
 			sendPubRec(clientID, messageID);
 			//Next the client will send us a pub rel
@@ -333,7 +657,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 				//QoS == 0 && retain => clean old retained 
 				m_messagesStore.cleanRetained(topic);
 			} else {
-				m_messagesStore.storeRetained(topic, message, qos);
+				m_messagesStore.storeRetained(topic, storedMessage, qos);
 			}
 		}
 	}
@@ -341,78 +665,119 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 	/**
 	 * Specialized version to publish will testament message.
 	 */
-	private void forwardPublishWill(WillMessage will, String clientID) {
+	private void forwardPublishWill(WillMessage will) {
 		//it has just to publish the message downstream to the subscribers
 		final String topic = will.getTopic();
 		final AbstractMessage.QOSType qos = will.getQos();
 		final ByteBuffer message = will.getPayload();
 		boolean retain = will.isRetained();
-		//NB it's a will publish, it needs a PacketIdentifier for this conn, default to 1
-		if (qos == AbstractMessage.QOSType.MOST_ONE) {
-			forward2Subscribers(topic, qos, message.array(), retain, null);
-		} else {
-			int messageId = m_messagesStore.nextPacketID(clientID);
-			forward2Subscribers(topic, qos, message.array(), retain, messageId);
-		}
-
+		//each subscriber gets the packet ID of its own session
+		forward2Subscribers(topic, qos, message, retain);
 	}
 
 	/**
-	 * Flood the subscribers with the message to notify. MessageID is optional and should only used for QoS 1 and 2
+	 * Flood the subscribers with the message to notify, each one with a packet ID of its session for QoS 1 and 2.
 	 * */
-	private void forward2Subscribers(String topic, AbstractMessage.QOSType qos, byte[] origMessage, boolean retain, Integer messageID) {
+	private void forward2Subscribers(String topic, AbstractMessage.QOSType qos, ByteBuffer origMessage, boolean retain) {
 		LOG.debug("forward2Subscribers republishing to existing subscribers that matches the topic {}", topic);
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("content <{}>", DebugUtils.payload2Str(origMessage));
-			LOG.debug("subscription tree {}", subscriptions.dumpTree());
+		if (LOG.isTraceEnabled()) {
+			LOG.trace("content <{}>", DebugUtils.payload2Str(origMessage));
+			//visits the whole tree
+			LOG.trace("subscription tree {}", subscriptions.dumpTree());
 		}
-		for (final Subscription sub : subscriptions.matches(topic)) {
-			if (qos.ordinal() > sub.getRequestedQos().ordinal()) {
-				qos = sub.getRequestedQos();
+		subscriptions.matches(topic, m_matchingSubs);
+		m_fanoutPayload = origMessage;
+		try {
+			for (final Subscription sub : m_matchingSubs) {
+				if (m_shard.isLocal(sub.getClientId())) {
+					forward2Subscriber(sub, topic, qos, origMessage, retain);
+				} else {
+					//the subscriber's state lives on another shard, let it do the delivery
+					m_shard.route(sub.getClientId(), new SubscriberPublishEvent(sub, topic, qos, origMessage, retain));
+				}
 			}
+		} finally {
+			m_matchingSubs.clear();
+			m_fanoutPayload = null;
+			m_fanoutStoredPayload = null;
+			Arrays.fill(m_fanoutHeaders, null);
+		}
+	}
 
+	/**
+	 * Delivery of a publish coming from a client owned by another shard.
+	 */
+	void processSubscriberPublish(SubscriberPublishEvent evt) {
+		forward2Subscriber(evt.getSubscription(), evt.getTopic(), evt.getQos(), evt.getMessage(), evt.isRetain());
+	}
+
+	/**
+	 * Deliver, or store for later, the message to a single subscriber; the subscriber's client ID must be owned by this shard.
+	 */
+	private void forward2Subscriber(Subscription sub, String topic, AbstractMessage.QOSType publishQos, ByteBuffer origMessage, boolean retain) {
+		AbstractMessage.QOSType qos = publishQos;
+		if (qos.ordinal() > sub.getRequestedQos().ordinal()) {
+			qos = sub.getRequestedQos();
+		}
+
+		if (LOG.isDebugEnabled()) {
 			LOG.debug("Broker republishing to client <{}> topic <{}> qos <{}>, active {}", sub.getClientId(), sub.getTopicFilter(), qos, sub.isActive());
-			byte[] message = new byte[origMessage.length];
-			System.arraycopy(origMessage, 0, message, 0, origMessage.length);
-			if (qos == AbstractMessage.QOSType.MOST_ONE && sub.isActive()) {
-				//QoS 0
-				//forwardPublishQoS0(sub.getClientId(), topic, qos, message, false);
-				sendPublish(sub.getClientId(), topic, qos, message, false, null);
-			} else {
-				//QoS 1 or 2
-				//if the target subscription is not clean session and is not connected => store it
-				if (!sub.isCleanSession() && !sub.isActive()) {
-					//clone the event with matching clientID
-					PublishEvent newPublishEvt = new PublishEvent(topic, qos, message, retain, sub.getClientId(), messageID != null ? messageID : 0);
-					m_messagesStore.storePublishForFuture(newPublishEvt);
-				} else {
-					//TODO also QoS 1 has to be stored in Flight Zone
-					//if QoS 2 then store it in temp memory
-					if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) {
-						PublishEvent newPublishEvt = new PublishEvent(topic, qos, message, retain, sub.getClientId(), messageID != null ? messageID : 0);
-						m_messagesStore.addInFlight(newPublishEvt, sub.getClientId(), messageID);
-					}
-					//publish
-					if (sub.isActive()) {
-						int messageId = m_messagesStore.nextPacketID(sub.getClientId());
-						sendPublish(sub.getClientId(), topic, qos, message, false, messageId);
-					}
-				}
+		}
+		//the payload is shared by all the subscribers, never modified
+		ByteBuffer message = origMessage;
+		if (qos == AbstractMessage.QOSType.MOST_ONE && sub.isActive()) {
+			//QoS 0
+			//forwardPublishQoS0(sub.getClientId(), topic, qos, message, false);
+			sendPublish(sub.getClientId(), topic, qos, message, false, null);
+		} else {
+			//QoS 1 or 2
+			//if the target subscription is not clean session and is not connected => store it
+			if (!sub.isCleanSession() && !sub.isActive()) {
+				//clone the event with matching clientID, the packet ID is taken when it's sent
+				PublishEvent newPublishEvt = new PublishEvent(topic, qos, storedPayload(message), retain, sub.getClientId(), 0);
+				m_messagesStore.storePublishForFuture(newPublishEvt);
+			} else if (sub.isActive()) {
+				//publish, kept in flight until acknowledged
+				int messageId = m_messagesStore.nextPacketID(sub.getClientId());
+				sendPublish(sub.getClientId(), topic, qos, message, false, messageId);
 			}
 		}
 	}
 
-	private void sendPublish(String clientId, String topic, AbstractMessage.QOSType qos, byte[] message, boolean retained, Integer messageID) {
-		LOG.debug("sendPublish invoked clientId <{}> on topic <{}> QoS {} retained {} messageID {}", clientId, topic, qos, retained, messageID);
+	private void sendPublish(String clientId, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, Integer messageID) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("sendPublish invoked clientId <{}> on topic <{}> QoS {} retained {} messageID {}", clientId, topic, qos, retained, messageID);
+		}
+		if (m_clientIDs == null) {
+			throw new RuntimeException("Internal bad error, found m_clientIDs to null while it should be initialized, somewhere it's overwritten!!");
+		}
+		ConnectionDescriptor descriptor = m_clientIDs.get(clientId);
+		if (descriptor == null) {
+			throw new RuntimeException(String.format("Can't find a ConnectionDescriptor for client <%s> in cache <%s>", clientId, m_clientIDs));
+		}
+		ServerChannel channel = descriptor.getSession();
+		if ((!channel.isWritable() || m_spilledClients.contains(clientId)) && holdBack(channel, clientId, topic, qos, message, retained, messageID)) {
+			return;
+		}
+		writePublish(channel, topic, qos, message, retained, messageID, false);
+		if (qos != AbstractMessage.QOSType.MOST_ONE) {
+			addInFlight(clientId, topic, qos, message, retained, messageID);
+		}
+	}
+
+	private void writePublish(ServerChannel channel, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, Integer messageID, boolean dup) {
 		PublishMessage pubMessage = new PublishMessage();
 		pubMessage.setRetainFlag(retained);
+		pubMessage.setDupFlag(dup);
 		pubMessage.setTopicName(topic);
 		pubMessage.setQos(qos);
 		pubMessage.setPayload(message);
+		if (!retained && !dup && message == m_fanoutPayload) {
+			pubMessage.setEncodedHeader(fanoutHeader(topic, qos, message.remaining()));
+		}
 
-		LOG.info("send publish message to <{}> on topic <{}>", clientId, topic);
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("content <{}>", DebugUtils.payload2Str(message));
+		if (LOG.isTraceEnabled()) {
+			LOG.trace("content <{}>", DebugUtils.payload2Str(message));
 		}
 		//set the PacketIdentifier only for QoS > 0
 		if (pubMessage.getQos() != AbstractMessage.QOSType.MOST_ONE) {
@@ -422,16 +787,214 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 				throw new RuntimeException("Internal bad error, trying to forwardPublish a QoS 0 message with PacketIdentifier: " + messageID);
 			}
 		}
+		disruptorPublish(new OutputMessagingEvent(channel, pubMessage));
+	}
 
-		if (m_clientIDs == null) {
-			throw new RuntimeException("Internal bad error, found m_clientIDs to null while it should be initialized, somewhere it's overwritten!!");
+	/**
+	 * Applies the slow consumer policy to a publish for a client over its write high watermark; while publishes of the client are spilled the QoS 1 and 2
+	 * ones keep being spilled behind them, so they are written in order once the client has drained.
+	 * 
+	 * @return true if the publish must not be written
+	 */
+	private boolean holdBack(ServerChannel channel, String clientId, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, Integer messageID) {
+		if (qos != AbstractMessage.QOSType.MOST_ONE && m_spilledClients.contains(clientId)) {
+			spill(clientId, topic, qos, message, retained, messageID);
+			return true;
 		}
-		LOG.debug("clientIDs are {}", m_clientIDs);
-		if (m_clientIDs.get(clientId) == null) {
-			throw new RuntimeException(String.format("Can't find a ConnectionDescriptor for client <%s> in cache <%s>", clientId, m_clientIDs));
+		if (channel.isWritable()) {
+			return false;
+		}
+		switch (m_slowConsumerPolicy) {
+			case DISCONNECT:
+				if (channel.getAttribute(Constants.ATTR_CLOSING) == null) {
+					channel.setAttribute(Constants.ATTR_CLOSING, Boolean.TRUE);
+					LOG.warn("Disconnecting slow consumer <{}>", clientId);
+					m_outboundMetrics.disconnected();
+					channel.close(true);
+				}
+				if (qos != AbstractMessage.QOSType.MOST_ONE) {
+					//a persistent session gets the publish on reconnect, its packet ID is released either way
+					if (Boolean.FALSE.equals(channel.getAttribute(Constants.ATTR_CLEAN_SESSION))) {
+						spill(clientId, topic, qos, message, retained, messageID);
+					} else {
+						m_messagesStore.cleanInFlight(clientId, messageID);
+					}
+				}
+				return true;
+			case SPILL:
+				if (qos != AbstractMessage.QOSType.MOST_ONE) {
+					LOG.info("Spilling the publishes of slow consumer <{}> to its session", clientId);
+					m_spilledClients.add(clientId);
+					spill(clientId, topic, qos, message, retained, messageID);
+					return true;
+				}
+				m_outboundMetrics.dropped();
+				return true;
+			default:
+				if (qos == AbstractMessage.QOSType.MOST_ONE) {
+					m_outboundMetrics.dropped();
+					return true;
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Stores the publish to the session of the client, releasing the packet ID it was given: another one is taken when it's sent.
+	 */
+	private void spill(String clientId, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, Integer messageID) {
+		if (messageID != null) {
+			m_messagesStore.cleanInFlight(clientId, messageID);
+		}
+		m_messagesStore.storePublishForFuture(new PublishEvent(topic, qos, storedPayload(message), retained, clientId, 0));
+		m_outboundMetrics.spilled();
+	}
+
+	/**
+	 * The channel of a slow consumer is writable again, write the publishes spilled meanwhile.
+	 */
+	void processDrained(DrainedEvent evt) {
+		String clientID = evt.getClientID();
+		ConnectionDescriptor descriptor = m_clientIDs.get(clientID);
+		if (descriptor == null || descriptor.getSession() != evt.getSession() || !m_spilledClients.contains(clientID)) {
+			return;
+		}
+		if (republishStoredInSession(clientID)) {
+			LOG.info("Slow consumer <{}> caught up with its spilled publishes", clientID);
+			m_spilledClients.remove(clientID);
 		}
-		LOG.debug("Session for clientId {} is {}", clientId, m_clientIDs.get(clientId).getSession());
-		disruptorPublish(new OutputMessagingEvent(m_clientIDs.get(clientId).getSession(), pubMessage));
+	}
+
+	/**
+	 * Keeps a QoS 1 or 2 publish just written in the in flight store until acknowledged, sending it again if the acknowledgement doesn't arrive in the
+	 * redelivery interval.
+	 */
+	private void addInFlight(String clientId, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, int messageID) {
+		m_messagesStore.addInFlight(new PublishEvent(topic, qos, storedPayload(message), retained, clientId, messageID), clientId, messageID);
+		scheduleRedelivery(clientId, messageID, false);
+	}
+
+	private void scheduleRedelivery(String clientID, int packetID, boolean release) {
+		if (m_redeliveryInterval <= 0) {
+			return;
+		}
+		Map<Integer, TimerWheel.Timeout> timeouts = m_redeliveries.get(clientID);
+		if (timeouts == null) {
+			timeouts = new HashMap<>();
+			m_redeliveries.put(clientID, timeouts);
+		}
+		TimerWheel.Timeout timeout = m_timer.schedule(new RedeliveryTask(m_shard, clientID, packetID, release), m_redeliveryInterval, TimeUnit.MILLISECONDS);
+		TimerWheel.Timeout previous = timeouts.put(packetID, timeout);
+		if (previous != null) {
+			previous.cancel();
+		}
+	}
+
+	private void cancelRedelivery(String clientID, int packetID) {
+		Map<Integer, TimerWheel.Timeout> timeouts = m_redeliveries.get(clientID);
+		if (timeouts == null) {
+			return;
+		}
+		TimerWheel.Timeout timeout = timeouts.remove(packetID);
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		if (timeouts.isEmpty()) {
+			m_redeliveries.remove(clientID);
+		}
+	}
+
+	/**
+	 * Forgets the in flight messages of a client, their redeliveries and its packet IDs.
+	 */
+	private void dropInFlight(String clientID) {
+		Map<Integer, TimerWheel.Timeout> timeouts = m_redeliveries.remove(clientID);
+		if (timeouts != null) {
+			for (TimerWheel.Timeout timeout : timeouts.values()) {
+				timeout.cancel();
+			}
+		}
+		m_messagesStore.dropPacketIDs(clientID);
+	}
+
+	/**
+	 * An in flight message wasn't acknowledged in time: the publish is sent again with the DUP flag, or the PUBREL if the client already received it.
+	 * The publish of a disconnected client goes back to its session and its PUBREL waits, both are sent on reconnect.
+	 */
+	void processRedelivery(RedeliveryEvent evt) {
+		String clientID = evt.getClientID();
+		int packetID = evt.getPacketID();
+		Map<Integer, TimerWheel.Timeout> timeouts = m_redeliveries.get(clientID);
+		if (timeouts == null || timeouts.get(packetID) != evt.getTimeout()) {
+			//acknowledged or rescheduled meanwhile
+			return;
+		}
+		timeouts.remove(packetID);
+		if (timeouts.isEmpty()) {
+			m_redeliveries.remove(clientID);
+		}
+		PublishEvent inFlight = m_messagesStore.getInFlight(clientID, packetID);
+		if (inFlight == null) {
+			return;
+		}
+		ConnectionDescriptor descriptor = m_clientIDs.get(clientID);
+		if (descriptor == null) {
+			if (!evt.isRelease()) {
+				//stored without its packet ID, released now and possibly taken by another message by the time the client is back
+				m_messagesStore.cleanInFlight(clientID, packetID);
+				m_messagesStore.storePublishForFuture(new PublishEvent(inFlight.getTopic(), inFlight.getQos(), inFlight.getMessage(), inFlight.isRetain(), clientID, 0));
+			}
+			//a PUBREL stays in flight without a timer, resumeInFlight sends it again on reconnect
+			return;
+		}
+		if (descriptor.getSession().isWritable()) {
+			ServerChannel channel = descriptor.getSession();
+			if (evt.isRelease()) {
+				writePubRel(channel, packetID);
+			} else {
+				writePublish(channel, inFlight.getTopic(), inFlight.getQos(), ByteBuffer.wrap(inFlight.getMessage()), inFlight.isRetain(), packetID, true);
+			}
+			m_outboundMetrics.redelivered();
+		}
+		//again in an interval, a slow consumer may be writable by then
+		scheduleRedelivery(clientID, packetID, evt.isRelease());
+	}
+
+	private void cancelKeepAlive(ServerChannel session) {
+		KeepAliveTask keepAliveTask = (KeepAliveTask) session.getAttribute(Constants.ATTR_KEEP_ALIVE_TIMER);
+		if (keepAliveTask != null) {
+			keepAliveTask.cancel();
+		}
+	}
+
+	/**
+	 * The array handed to the stores; a fan-out copies the payload once, whatever the number of subscribers storing it.
+	 */
+	private byte[] storedPayload(ByteBuffer message) {
+		if (message != m_fanoutPayload) {
+			return Utils.toArray(message);
+		}
+		if (m_fanoutStoredPayload == null) {
+			m_fanoutStoredPayload = Utils.toArray(message);
+		}
+		return m_fanoutStoredPayload;
+	}
+
+	/**
+	 * Headers of a fan-out are encoded once per QoS level and shared by all the subscribers receiving it at that level.
+	 */
+	private byte[] fanoutHeader(String topic, AbstractMessage.QOSType qos, int payloadLength) {
+		byte[] header = m_fanoutHeaders[qos.ordinal()];
+		if (header == null) {
+			try {
+				header = PublishEncoder.encodeHeader(topic, qos, false, false, payloadLength);
+				m_fanoutHeaders[qos.ordinal()] = header;
+			} catch (CorruptedFrameException e) {
+				//leave it to the encoder to fail on this message
+				LOG.warn("Unable to encode publish header for topic {}", topic, e);
+			}
+		}
+		return header;
 	}
 
 	private void sendPubRec(String clientID, int messageID) {
@@ -453,7 +1016,6 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			if (m_clientIDs == null) {
 				throw new RuntimeException("Internal bad error, found m_clientIDs to null while it should be initialized, somewhere it's overwritten!!");
 			}
-			LOG.debug("clientIDs are {}", m_clientIDs);
 			if (m_clientIDs.get(clientId) == null) {
 				throw new RuntimeException(String.format("Can't find a ConnectionDescriptor for client %s in cache %s", clientId, m_clientIDs));
 			}
@@ -477,7 +1039,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		final String topic = evt.getTopic();
 		final AbstractMessage.QOSType qos = evt.getQos();
 
-		forward2Subscribers(topic, qos, evt.getMessage(), evt.isRetain(), evt.getMessageID());
+		forward2Subscribers(topic, qos, ByteBuffer.wrap(evt.getMessage()), evt.isRetain());
 
 		m_messagesStore.removeQoS2Message(publishKey);
 
@@ -502,11 +1064,17 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		int messageID = msg.getMessageID();
 		//once received a PUBREC reply with a PUBREL(messageID)
 		LOG.debug("\t\tSRV <--PUBREC-- SUB processPubRec invoked for clientID {} ad messageID {}", clientID, messageID);
+		writePubRel(session, messageID);
+		//from now on it's the PUBREL waiting for the PUBCOMP, after a restart too
+		m_messagesStore.markReceived(clientID, messageID);
+		scheduleRedelivery(clientID, messageID, true);
+	}
+
+	private void writePubRel(ServerChannel channel, int messageID) {
 		PubRelMessage pubRelMessage = new PubRelMessage();
 		pubRelMessage.setMessageID(messageID);
 		pubRelMessage.setQos(AbstractMessage.QOSType.LEAST_ONE);
-
-		session.write(pubRelMessage);
+		channel.write(pubRelMessage);
 	}
 
 	@MQTTMessage(message = PubCompMessage.class)
@@ -516,6 +1084,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		LOG.debug("\t\tSRV <--PUBCOMP-- SUB processPubComp invoked for clientID {} ad messageID {}", clientID, messageID);
 		//once received the PUBCOMP then remove the message from the temp memory
 		m_messagesStore.cleanInFlight(clientID, messageID);
+		cancelRedelivery(clientID, messageID);
 	}
 
 	@MQTTMessage(message = DisconnectMessage.class)
@@ -527,6 +1096,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			cleanSession(clientID);
 		}
 		m_clientIDs.remove(clientID);
+		cancelKeepAlive(session);
 		session.close(true);
 
 		//de-activate the subscriptions for this ClientID
@@ -539,6 +1109,8 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 
 	void processConnectionLost(LostConnectionEvent evt) {
 		String clientID = evt.clientID;
+		//a connect still authenticating is dropped when verified
+		evt.session.setAttribute(Constants.ATTR_PENDING_CONNECT, null);
 		if (m_clientIDs.containsKey(clientID)) {
 			if (!m_clientIDs.get(clientID).getSession().equals(evt.session)) {
 				LOG.info("Received a lost connection with client <{}> for a not matching session", clientID);
@@ -546,17 +1118,24 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 			}
 		}
 
+		cancelKeepAlive(evt.session);
 		//If already removed a disconnect message was already processed for this clientID
-		if (m_clientIDs.remove(clientID) != null) {
+		ConnectionDescriptor descriptor = m_clientIDs.remove(clientID);
+		if (descriptor != null) {
 
 			//de-activate the subscriptions for this ClientID
 			subscriptions.deactivate(clientID);
+			m_spilledClients.remove(clientID);
+			if (descriptor.isCleanSession()) {
+				//nothing is sent again to a clean session
+				dropInFlight(clientID);
+			}
 			LOG.info("Lost connection with client <{}>", clientID);
 		}
 		//publish the Will message (if any) for the clientID
 		if (m_willStore.containsKey(clientID)) {
 			WillMessage will = m_willStore.get(clientID);
-			forwardPublishWill(will, clientID);
+			forwardPublishWill(will);
 			m_willStore.remove(clientID);
 		}
 	}
@@ -578,7 +1157,7 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		UnsubAckMessage ackMessage = new UnsubAckMessage();
 		ackMessage.setMessageID(messageID);
 
-		LOG.info("replying with UnsubAck to MSG ID {}", messageID);
+		LOG.debug("replying with UnsubAck to MSG ID {}", messageID);
 		session.write(ackMessage);
 	}
 
@@ -613,20 +1192,20 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		String clientID = newSubscription.getClientId();
 		m_sessionsStore.addNewSubscription(newSubscription, clientID);
 		subscriptions.add(newSubscription);
+		if (newSubscription.isShared()) {
+			//the retained messages aren't sent to a share group, its members would all get them
+			return;
+		}
 
-		//scans retained messages to be published to the new subscription
-		Collection<IMessagesStore.StoredMessage> messages = m_messagesStore.searchMatching(new IMatchingCondition() {
-			public boolean match(String key) {
-				return SubscriptionsStore.matchTopics(key, topic);
-			}
-		});
+		//looks up the retained messages to be published to the new subscription
+		Collection<IMessagesStore.StoredMessage> messages = m_messagesStore.searchMatching(topic);
 
 		for (IMessagesStore.StoredMessage storedMsg : messages) {
 			//fire the as retained the message
 			LOG.debug("send publish message for topic {}", topic);
 			//forwardPublishQoS0(newSubscription.getClientId(), storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(), true);
 			Integer packetID = storedMsg.getQos() == QOSType.MOST_ONE ? null : m_messagesStore.nextPacketID(newSubscription.getClientId());
-			sendPublish(newSubscription.getClientId(), storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(), true, packetID);
+			sendPublish(newSubscription.getClientId(), storedMsg.getTopic(), storedMsg.getQos(), ByteBuffer.wrap(storedMsg.getPayload()), true, packetID);
 		}
 	}
 
@@ -640,12 +1219,26 @@ class ProtocolProcessor implements EventHandler<ValueEvent> {
 		m_ringBuffer.publish(sequence);
 	}
 
-	public void onEvent(ValueEvent t, long l, boolean bln) throws Exception {
+	/**
+	 * Queues the message on its channel; at the end of the batch every channel that got messages writes them at once.
+	 */
+	public void onEvent(ValueEvent t, long sequence, boolean endOfBatch) throws Exception {
 		MessagingEvent evt = t.getEvent();
 		//It's always of type OutputMessagingEvent
 		OutputMessagingEvent outEvent = (OutputMessagingEvent) evt;
-		LOG.debug("Output event, sending {}", outEvent.getMessage());
-		outEvent.getChannel().write(outEvent.getMessage());
+		try {
+			if (outEvent.getChannel().enqueue(outEvent.getMessage())) {
+				m_batchChannels.add(outEvent.getChannel());
+			}
+		} catch (Exception e) {
+			LOG.error("Unable to encode {}", outEvent.getMessage(), e);
+		}
+		if (endOfBatch) {
+			for (ServerChannel channel : m_batchChannels) {
+				channel.flush();
+			}
+			m_batchChannels.clear();
+		}
 	}
 
 }
@@ -16,62 +16,80 @@
 package org.eclipse.moquette.spi.impl;
 
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.ConnectMessage;
 import org.eclipse.moquette.spi.IMessagesStore;
 import org.eclipse.moquette.spi.IMessaging;
 import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.events.DrainedEvent;
 import org.eclipse.moquette.spi.impl.events.LostConnectionEvent;
 import org.eclipse.moquette.spi.impl.events.MessagingEvent;
 import org.eclipse.moquette.spi.impl.events.ProtocolEvent;
-import org.eclipse.moquette.spi.impl.events.StopEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.SharedSubscriptionPolicy;
 import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
 import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.red5.server.mqtt.Constants;
 import org.red5.server.mqtt.IAuthenticator;
+import org.red5.server.mqtt.OutboundMetrics;
 import org.red5.server.mqtt.ServerChannel;
+import org.red5.server.mqtt.SlowConsumerPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.lmax.disruptor.EventHandler;
-import com.lmax.disruptor.RingBuffer;
-import com.lmax.disruptor.dsl.Disruptor;
-
 /**
  * Singleton class that orchestrate the execution of the protocol.
  *
  * Uses the LMAX Disruptor to serialize the incoming, requests, because it work in a evented fashion; the requests come from connectors and are dispatched to the ProtocolProcessor.
+ * 
+ * The processing can be split in a number of shards, each one with its own Disruptor and thread; client IDs are partitioned by hash across the shards so all the events of a client are serialized
+ * on the same thread, while publishes matching subscribers of other shards are handed over to the owning shard.
  *
  * @author andrea
  */
-public class SimpleMessaging implements IMessaging, EventHandler<ValueEvent> {
+public class SimpleMessaging implements IMessaging {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SimpleMessaging.class);
 	
 	private static SimpleMessaging INSTANCE;
 
-	private final ProtocolProcessor processor = new ProtocolProcessor();
-
-	private final AnnotationSupport annotationSupport = new AnnotationSupport();
-	
 	private SubscriptionsStore subscriptions;
 
-	private RingBuffer<ValueEvent> ringBuffer;
-
 	private IMessagesStore storageService;
 
 	private ISessionsStore sessionsStore;
 
-	private ExecutorService executor;
-
-	private Disruptor<ValueEvent> disruptor;
-	
 	private IAuthenticator authenticator;
 
 	private MapDBPersistentStore mapStorage;
 
+	private int shardCount = 1;
+
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.SPILL;
+
+	private OutboundMetrics outboundMetrics = new OutboundMetrics();
+
+	private long redeliveryInterval = 20000;
+
+	private SharedSubscriptionPolicy sharedPolicy = SharedSubscriptionPolicy.ROUND_ROBIN;
+
+	//keep alive and redelivery timeouts of all the shards
+	private TimerWheel timer;
+
+	private int authenticationThreads = 2;
+
+	private int authenticationQueueSize = 1024;
+
+	private long authenticationCacheTtl = 30000;
+
+	private int authenticationCacheSize = 10000;
+
+	//verifies the credentials off the shard threads, null when accepting all
+	private AuthenticationService authentication;
+
+	private MessagingShard[] shards;
+
 	CountDownLatch stopLatch;
 
 	private SimpleMessaging() {
@@ -86,94 +104,242 @@ public class SimpleMessaging implements IMessaging, EventHandler<ValueEvent> {
 
 	public void init() {
 		subscriptions = new SubscriptionsStore();
-		executor = Executors.newFixedThreadPool(1);
-		disruptor = new Disruptor<>(ValueEvent.EVENT_FACTORY, 1024 * 32, executor);
-		/*Disruptor<ValueEvent> m_disruptor = new Disruptor<ValueEvent>(ValueEvent.EVENT_FACTORY, 1024 * 32, m_executor, ProducerType.MULTI, new BusySpinWaitStrategy());*/
-		disruptor.handleEventsWith(this);
-		disruptor.start();
-		// Get the ring buffer from the Disruptor to be used for publishing
-		ringBuffer = disruptor.getRingBuffer();
-		// 
-		annotationSupport.processAnnotations(processor);
 		// link to storage
 		storageService = mapStorage;
 		sessionsStore = mapStorage;
 		// init storage
 		storageService.initStore();
 		// init subscriptions
-		subscriptions.init(sessionsStore);
-		// init processor
-		processor.init(subscriptions, storageService, sessionsStore, authenticator);
-		//        disruptorPublish(new InitEvent(configProps));
+		subscriptions.setSharedPolicy(sharedPolicy);
+		subscriptions.init(sessionsStore, storageService);
+		timer = new TimerWheel("MQTTTimer", 100, TimeUnit.MILLISECONDS, 512);
+		timer.start();
+		//accepting all is cheaper than a hop to the pool
+		if (authenticationThreads > 0 && !(authenticator instanceof AcceptAllAuthenticator)) {
+			authentication = new AuthenticationService(authenticator, authenticationThreads, authenticationQueueSize, authenticationCacheTtl, authenticationCacheSize);
+			LOG.info("Authentication on {} thread(s), verified credentials cached {} ms", authenticationThreads, authenticationCacheTtl);
+		}
+		// init the processing shards
+		shards = new MessagingShard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new MessagingShard(i, this);
+			shards[i].init(subscriptions, storageService, sessionsStore, authenticator);
+		}
+		LOG.info("Protocol processing started with {} shard(s)", shardCount);
+	}
+
+	/**
+	 * Returns the index of the shard owning the given client ID; the mapping is stable for a given number of shards.
+	 */
+	int shardFor(String clientID) {
+		if (shards.length == 1 || clientID == null) {
+			return 0;
+		}
+		int h = clientID.hashCode();
+		// spread the higher bits, the low ones of String hashes are poorly distributed for sequential ids
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	/**
+	 * Returns the index of the shard handling the given channel. The shard is pinned on the channel when the CONNECT is received, so the following messages are routed before the processor
+	 * has stored the client ID on the session.
+	 */
+	private int shardFor(ServerChannel session, AbstractMessage msg) {
+		if (msg instanceof ConnectMessage) {
+			int shard = shardFor(((ConnectMessage) msg).getClientID());
+			session.setAttribute(Constants.ATTR_SHARD, shard);
+			return shard;
+		}
+		Integer shard = (Integer) session.getAttribute(Constants.ATTR_SHARD);
+		return shard != null ? shard : 0;
 	}
 
-	private void disruptorPublish(MessagingEvent msgEvent) {
-		LOG.debug("disruptorPublish publishing event {}", msgEvent);
-		long sequence = ringBuffer.next();
-		ValueEvent event = ringBuffer.get(sequence);
-		event.setEvent(msgEvent);
-		ringBuffer.publish(sequence);
+	void publish(int shard, MessagingEvent msgEvent) {
+		shards[shard].publish(msgEvent);
+	}
+
+	void handOff(int shard, MessagingEvent msgEvent) {
+		shards[shard].handOff(msgEvent);
 	}
 
 	@Override
 	public void lostConnection(ServerChannel session, String clientID) {
-		disruptorPublish(new LostConnectionEvent(session, clientID));
+		Integer shard = (Integer) session.getAttribute(Constants.ATTR_SHARD);
+		publish(shard != null ? shard : shardFor(clientID), new LostConnectionEvent(session, clientID));
+	}
+
+	@Override
+	public void drained(ServerChannel session, String clientID) {
+		if (clientID == null) {
+			return;
+		}
+		Integer shard = (Integer) session.getAttribute(Constants.ATTR_SHARD);
+		publish(shard != null ? shard : shardFor(clientID), new DrainedEvent(session, clientID));
 	}
 
 	@Override
 	public void handleProtocolMessage(ServerChannel session, AbstractMessage msg) {
-		disruptorPublish(new ProtocolEvent(session, msg));
+		publish(shardFor(session, msg), new ProtocolEvent(session, msg));
 	}
 
 	@Override
 	public void stop() {
-		stopLatch = new CountDownLatch(1);
-		disruptorPublish(new StopEvent());
+		stopLatch = new CountDownLatch(shards.length);
+		for (MessagingShard shard : shards) {
+			shard.stop(stopLatch);
+		}
 		try {
-			//wait the callback notification from the protocol processor thread
+			//wait the callback notification from the protocol processor threads
 			LOG.debug("waiting 10 sec to m_stopLatch");
 			boolean elapsed = !stopLatch.await(10, TimeUnit.SECONDS);
 			LOG.debug("after m_stopLatch");
-			executor.shutdown();
-			disruptor.shutdown();
 			if (elapsed) {
 				LOG.error("Can't stop the server in 10 seconds");
+			} else {
+				processStop();
+			}
+			timer.stop();
+			if (authentication != null) {
+				LOG.info("{}", authentication);
+				authentication.stop();
+			}
+			for (MessagingShard shard : shards) {
+				shard.shutdown();
 			}
 		} catch (InterruptedException ex) {
 			LOG.error(null, ex);
 		}
 	}
 
-	@Override
-	public void onEvent(ValueEvent t, long l, boolean bln) throws Exception {
-		MessagingEvent evt = t.getEvent();
-		LOG.info("onEvent processing messaging event from input ringbuffer {}", evt);
-		if (evt instanceof StopEvent) {
-			processStop();
-			return;
-		}
-		if (evt instanceof LostConnectionEvent) {
-			LostConnectionEvent lostEvt = (LostConnectionEvent) evt;
-			processor.processConnectionLost(lostEvt);
-			return;
-		}
-		if (evt instanceof ProtocolEvent) {
-			ServerChannel session = ((ProtocolEvent) evt).getSession();
-			AbstractMessage message = ((ProtocolEvent) evt).getMessage();
-			try {
-				annotationSupport.dispatch(session, message);
-			} catch (Throwable th) {
-				LOG.error("Grave error processing the message {} for {}", message, session, th);
-			}
-		}
-	}
-
 	private void processStop() {
 		LOG.debug("processStop invoked");
 		storageService.close();
 		LOG.debug("subscription tree {}", subscriptions.dumpTree());
 		subscriptions = null;
-		stopLatch.countDown();
+	}
+
+	/**
+	 * Sets the number of processing shards, defaults to 1 which serializes the whole protocol on a single thread.
+	 * 
+	 * @param shardCount
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("Shard count must be at least 1, found " + shardCount);
+		}
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * Sets what is done with the publishes for the clients not keeping up with their writes, defaults to SPILL.
+	 * 
+	 * @param slowConsumerPolicy
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * Sets the time in milliseconds a QoS 1 or 2 publish waits for its acknowledgement before being sent again with the DUP flag, defaults to 20000;
+	 * 0 disables the redelivery, unacknowledged publishes are then only sent again on reconnect.
+	 * 
+	 * @param redeliveryInterval
+	 */
+	public void setRedeliveryInterval(long redeliveryInterval) {
+		if (redeliveryInterval < 0) {
+			throw new IllegalArgumentException("Redelivery interval can't be negative, found " + redeliveryInterval);
+		}
+		this.redeliveryInterval = redeliveryInterval;
+	}
+
+	public long getRedeliveryInterval() {
+		return redeliveryInterval;
+	}
+
+	/**
+	 * Sets how the messages matching a share group ($share/group/filter) are assigned to its members, defaults to ROUND_ROBIN.
+	 * 
+	 * @param sharedPolicy
+	 */
+	public void setSharedPolicy(SharedSubscriptionPolicy sharedPolicy) {
+		this.sharedPolicy = sharedPolicy;
+	}
+
+	public SharedSubscriptionPolicy getSharedPolicy() {
+		return sharedPolicy;
+	}
+
+	TimerWheel getTimerWheel() {
+		return timer;
+	}
+
+	/**
+	 * Sets the threads verifying the credentials of the connects, defaults to 2; 0 verifies them on the processing shards.
+	 * 
+	 * @param authenticationThreads
+	 */
+	public void setAuthenticationThreads(int authenticationThreads) {
+		if (authenticationThreads < 0) {
+			throw new IllegalArgumentException("Authentication threads can't be negative, found " + authenticationThreads);
+		}
+		this.authenticationThreads = authenticationThreads;
+	}
+
+	public int getAuthenticationThreads() {
+		return authenticationThreads;
+	}
+
+	/**
+	 * Sets the connects waiting for an authentication thread, the ones beyond are refused as server unavailable; defaults to 1024.
+	 * 
+	 * @param authenticationQueueSize
+	 */
+	public void setAuthenticationQueueSize(int authenticationQueueSize) {
+		this.authenticationQueueSize = authenticationQueueSize;
+	}
+
+	public int getAuthenticationQueueSize() {
+		return authenticationQueueSize;
+	}
+
+	/**
+	 * Sets the milliseconds verified credentials are cached, defaults to 30000; 0 verifies every connect.
+	 * 
+	 * @param authenticationCacheTtl
+	 */
+	public void setAuthenticationCacheTtl(long authenticationCacheTtl) {
+		this.authenticationCacheTtl = authenticationCacheTtl;
+	}
+
+	public long getAuthenticationCacheTtl() {
+		return authenticationCacheTtl;
+	}
+
+	public void setAuthenticationCacheSize(int authenticationCacheSize) {
+		this.authenticationCacheSize = authenticationCacheSize;
+	}
+
+	public int getAuthenticationCacheSize() {
+		return authenticationCacheSize;
+	}
+
+	/**
+	 * @return the service verifying the credentials, null before init or when verified on the processing shards
+	 */
+	public AuthenticationService getAuthentication() {
+		return authentication;
+	}
+
+	/**
+	 * @return the metrics of the outbound flow control, shared with the transports
+	 */
+	public OutboundMetrics getOutboundMetrics() {
+		return outboundMetrics;
 	}
 
 	public void setAuthenticator(IAuthenticator authenticator) {
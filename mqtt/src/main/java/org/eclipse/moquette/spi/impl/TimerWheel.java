@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel: a ring of buckets, each a doubly linked list of the timeouts expiring at that tick, with the number of remaining revolutions for
+ * the ones further away than a whole wheel.
+ *
+ * Scheduling and cancelling only enqueue the timeout in a lock free queue, the single worker thread links it in its bucket or unlinks it on the next
+ * tick, so both are O(1) whatever the number of timeouts and no task or thread exists per timeout. Timeouts expire on the worker thread within one tick
+ * of their deadline; tasks must be short, handing over real work to the thread owning the state.
+ */
+public class TimerWheel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+	//timeouts moved from the pending queue to the buckets on each tick, so a burst of schedules doesn't delay the expiry
+	private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+	/**
+	 * Work to do when a timeout expires, run on the worker thread.
+	 */
+	public interface Task {
+
+		void expired(Timeout timeout);
+
+	}
+
+	public static final class Timeout {
+
+		private static final int ST_INIT = 0;
+
+		private static final int ST_CANCELLED = 1;
+
+		private static final int ST_EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final TimerWheel timer;
+
+		private final Task task;
+
+		//nanoseconds from the start of the wheel
+		private final long deadline;
+
+		private volatile int state = ST_INIT;
+
+		//only touched by the worker thread
+		private long remainingRounds;
+
+		private Timeout next;
+
+		private Timeout prev;
+
+		private Bucket bucket;
+
+		private Timeout(TimerWheel timer, Task task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public Task getTask() {
+			return task;
+		}
+
+		/**
+		 * @return false if the timeout had already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == ST_EXPIRED;
+		}
+
+		/**
+		 * @return false if cancelled meanwhile, the cancellation takes care of the count
+		 */
+		private boolean expire() {
+			if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+				return false;
+			}
+			try {
+				task.expired(this);
+			} catch (Throwable t) {
+				LOG.warn("Timer task {} failed", task, t);
+			}
+			return true;
+		}
+
+	}
+
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Expires the timeouts of the current round, the others are one round closer.
+		 */
+		int expire(long deadline) {
+			int expired = 0;
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					if (timeout.expire()) {
+						expired++;
+					}
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+			return expired;
+		}
+
+	}
+
+	private final String name;
+
+	private final long tickNanos;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	//timeouts scheduled and neither expired nor cancelled
+	private final AtomicInteger size = new AtomicInteger();
+
+	//origin of the deadlines
+	private final long startTime = System.nanoTime();
+
+	private volatile boolean running;
+
+	private Thread worker;
+
+	/**
+	 * @param name name of the worker thread
+	 * @param tick duration of a tick, the resolution of the timeouts
+	 * @param unit unit of the tick
+	 * @param ticksPerWheel number of buckets, rounded up to a power of 2
+	 */
+	public TimerWheel(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+		if (tick <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("Tick and wheel size must be positive");
+		}
+		this.name = name;
+		this.tickNanos = unit.toNanos(tick);
+		int buckets = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+		wheel = new Bucket[Math.max(buckets, 1)];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = wheel.length - 1;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWorker();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stops the worker, the timeouts not expired yet are dropped.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+			try {
+				worker.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			worker = null;
+		}
+	}
+
+	/**
+	 * Schedules the task to run after the delay; may be called from any thread.
+	 */
+	public Timeout schedule(Task task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+		size.incrementAndGet();
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timeouts waiting to expire
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	private void runWorker() {
+		long tick = 0;
+		while (running) {
+			long deadline = waitForTick(tick);
+			if (deadline < 0) {
+				break;
+			}
+			unlinkCancelled();
+			transferPending(tick);
+			size.addAndGet(-wheel[(int) (tick & mask)].expire(deadline));
+			tick++;
+		}
+		pending.clear();
+		cancelled.clear();
+	}
+
+	/**
+	 * Sleeps until the end of the tick.
+	 * 
+	 * @return the time of the end of the tick from the start of the wheel, -1 if stopped
+	 */
+	private long waitForTick(long tick) {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long sleepMillis = (deadline - (System.nanoTime() - startTime) + 999999) / 1000000;
+			if (sleepMillis <= 0) {
+				return deadline;
+			}
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if (!running) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void unlinkCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+			size.decrementAndGet();
+		}
+	}
+
+	private void transferPending(long tick) {
+		for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+			Timeout timeout = pending.poll();
+			if (timeout == null) {
+				break;
+			}
+			if (timeout.isCancelled()) {
+				//counted when unlinked
+				continue;
+			}
+			long expiryTick = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			//already late ones expire on the current tick
+			wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+		}
+	}
+
+}
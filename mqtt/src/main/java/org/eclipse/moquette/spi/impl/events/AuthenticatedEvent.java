@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.events;
+
+import org.red5.server.mqtt.ServerChannel;
+
+/**
+ * Sent by the authentication pool once the credentials of a pending CONNECT are verified, to complete it on the shard owning the client ID.
+ */
+public class AuthenticatedEvent extends MessagingEvent {
+
+	private final ServerChannel m_session;
+
+	private final boolean m_valid;
+
+	public AuthenticatedEvent(ServerChannel session, boolean valid) {
+		m_session = session;
+		m_valid = valid;
+	}
+
+	public ServerChannel getSession() {
+		return m_session;
+	}
+
+	public boolean isValid() {
+		return m_valid;
+	}
+
+	@Override
+	public String toString() {
+		return "AuthenticatedEvent{" + "m_session=" + m_session + ", m_valid=" + m_valid + '}';
+	}
+}
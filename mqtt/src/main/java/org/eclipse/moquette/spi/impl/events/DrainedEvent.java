@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.events;
+
+import org.red5.server.mqtt.ServerChannel;
+
+/**
+ * Sent when the channel of a slow consumer is writable again.
+ */
+public class DrainedEvent extends MessagingEvent {
+
+	private final ServerChannel m_session;
+
+	private final String m_clientID;
+
+	public DrainedEvent(ServerChannel session, String clientID) {
+		m_session = session;
+		m_clientID = clientID;
+	}
+
+	public ServerChannel getSession() {
+		return m_session;
+	}
+
+	public String getClientID() {
+		return m_clientID;
+	}
+
+	@Override
+	public String toString() {
+		return "DrainedEvent{" + "m_clientID='" + m_clientID + '\'' + '}';
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.events;
+
+import org.eclipse.moquette.spi.impl.TimerWheel;
+
+/**
+ * Sent by the timer when an in flight message of a client waited its acknowledgement for the whole redelivery interval; for a QoS 2 publish already
+ * received by the client it's the PUBREL to send again.
+ */
+public class RedeliveryEvent extends MessagingEvent {
+
+	private final String m_clientID;
+
+	private final int m_packetID;
+
+	private final boolean m_release;
+
+	private final TimerWheel.Timeout m_timeout;
+
+	public RedeliveryEvent(String clientID, int packetID, boolean release, TimerWheel.Timeout timeout) {
+		m_clientID = clientID;
+		m_packetID = packetID;
+		m_release = release;
+		m_timeout = timeout;
+	}
+
+	public String getClientID() {
+		return m_clientID;
+	}
+
+	public int getPacketID() {
+		return m_packetID;
+	}
+
+	public boolean isRelease() {
+		return m_release;
+	}
+
+	public TimerWheel.Timeout getTimeout() {
+		return m_timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "RedeliveryEvent{" + "m_clientID='" + m_clientID + '\'' + ", m_packetID=" + m_packetID + ", m_release=" + m_release + '}';
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.events;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+
+/**
+ * Used to hand over the delivery of a publish to the processing shard that owns the subscriber's client ID.
+ */
+public class SubscriberPublishEvent extends MessagingEvent {
+
+	private final Subscription m_subscription;
+
+	private final String m_topic;
+
+	private final QOSType m_qos;
+
+	private final ByteBuffer m_message;
+
+	private final boolean m_retain;
+
+	public SubscriberPublishEvent(Subscription subscription, String topic, QOSType qos, ByteBuffer message, boolean retain) {
+		m_subscription = subscription;
+		m_topic = topic;
+		m_qos = qos;
+		m_message = message;
+		m_retain = retain;
+	}
+
+	public Subscription getSubscription() {
+		return m_subscription;
+	}
+
+	public String getTopic() {
+		return m_topic;
+	}
+
+	public QOSType getQos() {
+		return m_qos;
+	}
+
+	public ByteBuffer getMessage() {
+		return m_message;
+	}
+
+	public boolean isRetain() {
+		return m_retain;
+	}
+
+	@Override
+	public String toString() {
+		return "SubscriberPublishEvent{" + "m_clientID='" + m_subscription.getClientId() + '\'' + ", m_qos=" + m_qos + ", m_topic='" + m_topic + '\'' + '}';
+	}
+}
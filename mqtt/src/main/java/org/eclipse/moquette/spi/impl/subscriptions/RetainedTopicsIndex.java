@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trie of the topics holding a retained message, one node per topic level.
+ *
+ * Stores keep the messages in their own map and use the index to find the topics matching a subscription filter, so a wildcard subscribe visits only the
+ * matching branches instead of every retained topic. Shared by the processing shards, lookups run under a read lock and updates under the write lock.
+ */
+public class RetainedTopicsIndex {
+
+    private static class Node {
+        //children by level name, created on first use as most nodes are leaves
+        Map<String, Node> m_children;
+        //the full topic name when a retained message is stored at this level
+        String m_topic;
+
+        Node child(String level) {
+            return m_children == null ? null : m_children.get(level);
+        }
+
+        boolean isEmpty() {
+            return m_topic == null && (m_children == null || m_children.isEmpty());
+        }
+    }
+
+    private final Node m_root = new Node();
+
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    private int m_size;
+
+    public void add(String topic) {
+        String[] levels = SubscriptionsStore.splitLevels(topic);
+        m_lock.writeLock().lock();
+        try {
+            Node current = m_root;
+            for (String level : levels) {
+                Node child = current.child(level);
+                if (child == null) {
+                    child = new Node();
+                    if (current.m_children == null) {
+                        current.m_children = new HashMap<String, Node>();
+                    }
+                    current.m_children.put(level, child);
+                }
+                current = child;
+            }
+            if (current.m_topic == null) {
+                current.m_topic = topic;
+                m_size++;
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String topic) {
+        String[] levels = SubscriptionsStore.splitLevels(topic);
+        m_lock.writeLock().lock();
+        try {
+            Deque<Node> path = new ArrayDeque<Node>(levels.length + 1);
+            Node current = m_root;
+            path.push(current);
+            for (String level : levels) {
+                current = current.child(level);
+                if (current == null) {
+                    return;
+                }
+                path.push(current);
+            }
+            if (current.m_topic == null) {
+                return;
+            }
+            current.m_topic = null;
+            m_size--;
+            //prune the levels left without retained topics
+            for (int i = levels.length - 1; i >= 0; i--) {
+                Node node = path.pop();
+                if (!node.isEmpty()) {
+                    break;
+                }
+                path.peek().m_children.remove(levels[i]);
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Collect the retained topics matched by the topic filter, with the same rules of SubscriptionsStore.matchTopics.
+     */
+    public void matches(String topicFilter, Collection<String> matchingTopics) {
+        String[] levels = SubscriptionsStore.splitLevels(topicFilter);
+        m_lock.readLock().lock();
+        try {
+            matches(m_root, levels, 0, matchingTopics);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    public List<String> matches(String topicFilter) {
+        List<String> matchingTopics = new ArrayList<String>();
+        matches(topicFilter, matchingTopics);
+        return matchingTopics;
+    }
+
+    public void clear() {
+        m_lock.writeLock().lock();
+        try {
+            m_root.m_children = null;
+            m_size = 0;
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        m_lock.readLock().lock();
+        try {
+            return m_size;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    private static void matches(Node node, String[] levels, int index, Collection<String> matchingTopics) {
+        if (index == levels.length) {
+            if (node.m_topic != null) {
+                matchingTopics.add(node.m_topic);
+            }
+            return;
+        }
+        String level = levels[index];
+        if ("#".equals(level)) {
+            //matches the parent level too, as matchTopics does
+            collectAll(node, matchingTopics);
+        } else if ("+".equals(level)) {
+            if (node.m_children != null) {
+                for (Node child : node.m_children.values()) {
+                    matches(child, levels, index + 1, matchingTopics);
+                }
+            }
+        } else {
+            Node child = node.child(level);
+            if (child != null) {
+                matches(child, levels, index + 1, matchingTopics);
+            }
+        }
+    }
+
+    private static void collectAll(Node node, Collection<String> matchingTopics) {
+        if (node.m_topic != null) {
+            matchingTopics.add(node.m_topic);
+        }
+        if (node.m_children != null) {
+            for (Node child : node.m_children.values()) {
+                collectAll(child, matchingTopics);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.moquette.spi.IMessagesStore;
+
+/**
+ * The subscriptions of a share group to one topic filter, kept on the tree node of the filter.
+ *
+ * Members change under the write lock of the tree while the selection runs under the read lock from any shard, hence the atomic cursor.
+ */
+class SharedGroup {
+
+    private final String m_name;
+    //one subscription per client, in subscription order
+    private final List<Subscription> m_members = new ArrayList<Subscription>();
+    //start of the next selection
+    private final AtomicInteger m_cursor = new AtomicInteger();
+
+    SharedGroup(String name) {
+        m_name = name;
+    }
+
+    String getName() {
+        return m_name;
+    }
+
+    void add(Subscription s) {
+        for (int i = 0; i < m_members.size(); i++) {
+            if (m_members.get(i).clientId.equals(s.clientId)) {
+                //replaces the subscription with a different QoS
+                m_members.set(i, s);
+                return;
+            }
+        }
+        m_members.add(s);
+    }
+
+    Subscription remove(String clientID) {
+        for (int i = 0; i < m_members.size(); i++) {
+            if (m_members.get(i).clientId.equals(clientID)) {
+                return m_members.remove(i);
+            }
+        }
+        return null;
+    }
+
+    Subscription memberFor(String clientID) {
+        for (Subscription s : m_members) {
+            if (s.clientId.equals(clientID)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    List<Subscription> members() {
+        return m_members;
+    }
+
+    boolean isEmpty() {
+        return m_members.isEmpty();
+    }
+
+    /**
+     * @param inFlight
+     *            the store counting the messages in flight of each client, used by LEAST_IN_FLIGHT
+     * @return the member receiving the next message: a connected one by the policy, otherwise the next persistent one in turn to store it in
+     *         its session; null if no member can take it
+     */
+    Subscription select(SharedSubscriptionPolicy policy, IMessagesStore inFlight) {
+        int count = m_members.size();
+        if (count == 0) {
+            return null;
+        }
+        int start = (m_cursor.getAndIncrement() & 0x7fffffff) % count;
+        Subscription selected = null;
+        int selectedOffset = 0;
+        int least = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            Subscription s = m_members.get((start + i) % count);
+            if (!s.isActive()) {
+                continue;
+            }
+            if (policy == SharedSubscriptionPolicy.ROUND_ROBIN || inFlight == null) {
+                selected = s;
+                selectedOffset = i;
+                break;
+            }
+            int pending = inFlight.inFlightCount(s.clientId);
+            if (pending < least) {
+                selected = s;
+                selectedOffset = i;
+                least = pending;
+                if (pending == 0) {
+                    break;
+                }
+            }
+        }
+        if (selected != null) {
+            //the next selection starts after the selected member, not on the ones skipped
+            if (selectedOffset > 0) {
+                m_cursor.addAndGet(selectedOffset);
+            }
+            return selected;
+        }
+        for (int i = 0; i < count; i++) {
+            Subscription s = m_members.get((start + i) % count);
+            if (!s.isCleanSession()) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+/**
+ * How a message matching a share group is assigned to one of its subscribers.
+ */
+public enum SharedSubscriptionPolicy {
+
+    /**
+     * The connected subscribers in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The connected subscriber with the fewest messages waiting for an acknowledgement, in turn among equals.
+     */
+    LEAST_IN_FLIGHT
+
+}
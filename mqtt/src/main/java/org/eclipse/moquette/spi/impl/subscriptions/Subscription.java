@@ -28,6 +28,11 @@ public class Subscription implements Serializable {
 
 	private static final long serialVersionUID = -6938984018096424762L;
 
+	/**
+	 * Prefix of the shared subscriptions, <code>$share/group/filter</code>: each message matching the filter is delivered to one subscriber of the group.
+	 */
+	public static final String SHARE_PREFIX = "$share/";
+
 	QOSType requestedQos; //max QoS acceptable
 
 	String clientId;
@@ -36,7 +41,8 @@ public class Subscription implements Serializable {
 
 	boolean cleanSession;
 
-	boolean active = true;
+	//written by the shard owning the client, read by the shards matching publishes
+	volatile boolean active = true;
 
 	public Subscription(String clientId, String topicFilter, QOSType requestedQos, boolean cleanSession) {
 		this.requestedQos = requestedQos;
@@ -64,6 +70,37 @@ public class Subscription implements Serializable {
 		return topicFilter;
 	}
 
+	/**
+	 * @return true for a subscription of a share group
+	 */
+	public boolean isShared() {
+		return shareGroupOf(topicFilter) != null;
+	}
+
+	/**
+	 * @return the group of a shared topic filter, null if the filter isn't shared
+	 */
+	public static String shareGroupOf(String topicFilter) {
+		if (topicFilter == null || !topicFilter.startsWith(SHARE_PREFIX)) {
+			return null;
+		}
+		int end = topicFilter.indexOf('/', SHARE_PREFIX.length());
+		if (end <= SHARE_PREFIX.length() || end == topicFilter.length() - 1) {
+			//no group or no filter, a plain topic filter starting with $share
+			return null;
+		}
+		String group = topicFilter.substring(SHARE_PREFIX.length(), end);
+		return group.indexOf('+') < 0 && group.indexOf('#') < 0 ? group : null;
+	}
+
+	/**
+	 * @return the filter matched against the topics, without the share group prefix
+	 */
+	public static String matchedFilterOf(String topicFilter) {
+		String group = shareGroupOf(topicFilter);
+		return group == null ? topicFilter : topicFilter.substring(SHARE_PREFIX.length() + group.length() + 1);
+	}
+
 	public boolean isCleanSession() {
 		return this.cleanSession;
 	}
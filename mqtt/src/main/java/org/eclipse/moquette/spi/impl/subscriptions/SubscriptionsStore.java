@@ -17,14 +17,23 @@ package org.eclipse.moquette.spi.impl.subscriptions;
 
 import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.eclipse.moquette.spi.IMessagesStore;
 import org.eclipse.moquette.spi.ISessionsStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Represents a tree of topics subscriptions.
+ * 
+ * The tree is shared by all the processing shards, matching runs under a read lock while any change to the tree
+ * runs under the write lock. A secondary index from client ID to the nodes holding its subscriptions lets the
+ * per client operations (activate, deactivate, remove) avoid a full tree visit.
+ *
+ * Shared subscriptions ($share/group/filter) are kept in share groups on the node of their filter; matching a topic
+ * picks one member of each matching group, by the shared subscription policy.
  *
  * @author andrea
  */
@@ -42,7 +51,7 @@ public class SubscriptionsStore {
 
         public void visit(TreeNode node) {
             String subScriptionsStr = "";
-            for (Subscription sub : node.m_subscriptions) {
+            for (Subscription sub : node.subscriptions()) {
                 subScriptionsStr += sub.toString();
             }
             s += node.getToken() == null ? "" : node.getToken().toString();
@@ -68,14 +77,29 @@ public class SubscriptionsStore {
     }
 
     private TreeNode subscriptions = new TreeNode(null);
+    //clientID -> nodes where the client has a subscription
+    private final Map<String, Set<TreeNode>> m_clientNodes = new HashMap<String, Set<TreeNode>>();
     private ISessionsStore m_sessionsStore;
+    //counts the messages in flight of the clients for LEAST_IN_FLIGHT, may be null
+    private IMessagesStore m_inFlight;
+    private SharedSubscriptionPolicy m_sharedPolicy = SharedSubscriptionPolicy.ROUND_ROBIN;
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
     private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsStore.class);
 
     /**
      * Initialize the subscription tree with the list of subscriptions.
      */
     public void init(ISessionsStore sessionsStore) {
+        init(sessionsStore, null);
+    }
+
+    /**
+     * Initialize the subscription tree with the list of subscriptions, the messages store counting the in flight
+     * messages used to select the members of the share groups.
+     */
+    public void init(ISessionsStore sessionsStore, IMessagesStore messagesStore) {
         LOG.debug("init invoked");
+        m_inFlight = messagesStore;
         m_sessionsStore = sessionsStore;
         List<Subscription> subscriptions = sessionsStore.listAllSubscriptions();
         //reload any subscriptions persisted
@@ -92,9 +116,31 @@ public class SubscriptionsStore {
         }
     }
     
+    /**
+     * Sets how the messages matching a share group are assigned to its members, defaults to ROUND_ROBIN.
+     */
+    public void setSharedPolicy(SharedSubscriptionPolicy sharedPolicy) {
+        m_sharedPolicy = sharedPolicy;
+    }
+
+    public SharedSubscriptionPolicy getSharedPolicy() {
+        return m_sharedPolicy;
+    }
+
     protected void addDirect(Subscription newSubscription) {
-        TreeNode current = findMatchingNode(newSubscription.topicFilter);
-        current.addSubscription(newSubscription);
+        String group = Subscription.shareGroupOf(newSubscription.topicFilter);
+        TreeNode current = findMatchingNode(Subscription.matchedFilterOf(newSubscription.topicFilter));
+        if (group == null) {
+            current.addSubscription(newSubscription);
+        } else {
+            current.addSharedSubscription(group, newSubscription);
+        }
+        Set<TreeNode> clientNodes = m_clientNodes.get(newSubscription.clientId);
+        if (clientNodes == null) {
+            clientNodes = new HashSet<TreeNode>();
+            m_clientNodes.put(newSubscription.clientId, clientNodes);
+        }
+        clientNodes.add(current);
     }
     
     private TreeNode findMatchingNode(String topic) {
@@ -126,7 +172,12 @@ public class SubscriptionsStore {
     }
 
     public void add(Subscription newSubscription) {
-        addDirect(newSubscription);
+        m_lock.writeLock().lock();
+        try {
+            addDirect(newSubscription);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
 
         //log the subscription
 //        String clientID = newSubscription.getClientId();
@@ -135,19 +186,21 @@ public class SubscriptionsStore {
 
 
     public void removeSubscription(String topic, String clientID) {
-        TreeNode matchNode = findMatchingNode(topic);
-        
-        //search for the subscription to remove
-        Subscription toBeRemoved = null;
-        for (Subscription sub : matchNode.subscriptions()) {
-            if (sub.topicFilter.equals(topic) && sub.getClientId().equals(clientID)) {
-                toBeRemoved = sub;
-                break;
+        m_lock.writeLock().lock();
+        try {
+            String group = Subscription.shareGroupOf(topic);
+            TreeNode matchNode = findMatchingNode(Subscription.matchedFilterOf(topic));
+            Subscription removed = group == null ? matchNode.removeSubscription(clientID) : matchNode.removeSharedSubscription(group, clientID);
+            //the client can still have a plain and shared subscriptions on the node
+            if (removed != null && !matchNode.hasSubscriptionsOf(clientID)) {
+                Set<TreeNode> clientNodes = m_clientNodes.get(clientID);
+                clientNodes.remove(matchNode);
+                if (clientNodes.isEmpty()) {
+                    m_clientNodes.remove(clientID);
+                }
             }
-        }
-        
-        if (toBeRemoved != null) {
-            matchNode.subscriptions().remove(toBeRemoved);
+        } finally {
+            m_lock.writeLock().unlock();
         }
     }
     
@@ -156,8 +209,13 @@ public class SubscriptionsStore {
      */
     public void clearAllSubscriptions() {
         SubscriptionTreeCollector subsCollector = new SubscriptionTreeCollector();
-        bfsVisit(subscriptions, subsCollector);
-        
+        m_lock.readLock().lock();
+        try {
+            bfsVisit(subscriptions, subsCollector);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+
         List<Subscription> allSubscriptions = subsCollector.getResult();
         for (Subscription subscription : allSubscriptions) {
             removeSubscription(subscription.getTopicFilter(), subscription.getClientId());
@@ -165,61 +223,125 @@ public class SubscriptionsStore {
     }
 
     /**
-     * Visit the topics tree to remove matching subscriptions with clientID
+     * Remove all the subscriptions of the clientID, only the nodes it subscribed to are visited
      */
     public void removeForClient(String clientID) {
-        subscriptions.removeClientSubscriptions(clientID);
+        m_lock.writeLock().lock();
+        try {
+            Set<TreeNode> clientNodes = m_clientNodes.remove(clientID);
+            if (clientNodes != null) {
+                for (TreeNode node : clientNodes) {
+                    node.removeSubscriptionsOf(clientID);
+                }
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
         //persist the update
         m_sessionsStore.wipeSubscriptions(clientID);
     }
 
     public void deactivate(String clientID) {
-        subscriptions.deactivate(clientID);
         //persist the update
-        Set<Subscription> subs = subscriptions.findAllByClientID(clientID);
-        m_sessionsStore.updateSubscriptions(clientID, subs);
+        m_sessionsStore.updateSubscriptions(clientID, setActive(clientID, false));
     }
 
     public void activate(String clientID) {
         LOG.debug("Activating subscriptions for clientID <{}>", clientID);
-        subscriptions.activate(clientID);
         //persist the update
-        Set<Subscription> subs = subscriptions.findAllByClientID(clientID);
-        m_sessionsStore.updateSubscriptions(clientID, subs);
+        m_sessionsStore.updateSubscriptions(clientID, setActive(clientID, true));
     }
 
     /**
-     * Given a topic string return the clients subscriptions that matches it.
-     * Topic string can't contain character # and + because they are reserved to
-     * listeners subscriptions, and not topic publishing.
+     * Flip the active flag of all the subscriptions of the clientID; the flag is volatile so the
+     * tree itself is only read.
+     * 
+     * @return the set of subscriptions for the given client.
      */
-    public List<Subscription> matches(String topic) {
-        List<Token> tokens;
+    private Set<Subscription> setActive(String clientID, boolean active) {
+        Set<Subscription> subs = new HashSet<Subscription>();
+        m_lock.readLock().lock();
         try {
-            tokens = parseTopic(topic);
-        } catch (ParseException ex) {
-            //TODO handle the parse exception
-            LOG.error(null, ex);
-            return Collections.emptyList();
+            Set<TreeNode> clientNodes = m_clientNodes.get(clientID);
+            if (clientNodes != null) {
+                for (TreeNode node : clientNodes) {
+                    node.subscriptionsOf(clientID, subs);
+                }
+                for (Subscription sub : subs) {
+                    sub.setActive(active);
+                }
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+        return subs;
+    }
+
+    /**
+     * @return the set of subscriptions for the given client.
+     */
+    public Set<Subscription> findAllByClientID(String clientID) {
+        Set<Subscription> subs = new HashSet<Subscription>();
+        m_lock.readLock().lock();
+        try {
+            Set<TreeNode> clientNodes = m_clientNodes.get(clientID);
+            if (clientNodes != null) {
+                for (TreeNode node : clientNodes) {
+                    node.subscriptionsOf(clientID, subs);
+                }
+            }
+        } finally {
+            m_lock.readLock().unlock();
         }
+        return subs;
+    }
 
-        Queue<Token> tokenQueue = new LinkedBlockingDeque<Token>(tokens);
+    /**
+     * Given a topic string return the clients subscriptions that matches it, with one member of each matching share group.
+     * Topic string can't contain character # and + because they are reserved to
+     * listeners subscriptions, and not topic publishing.
+     */
+    public List<Subscription> matches(String topic) {
         List<Subscription> matchingSubs = new ArrayList<Subscription>();
-        subscriptions.matches(tokenQueue, matchingSubs);
+        matches(topic, matchingSubs);
         return matchingSubs;
     }
 
+    /**
+     * Same as {@link #matches(String)} but adds the matching subscriptions to the given collector, so callers
+     * on the publish path can reuse it.
+     */
+    public void matches(String topic, Collection<Subscription> matchingSubs) {
+        String[] levels = splitLevels(topic);
+        m_lock.readLock().lock();
+        try {
+            subscriptions.matches(levels, 0, matchingSubs, m_sharedPolicy, m_inFlight);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
     public boolean contains(Subscription sub) {
         return !matches(sub.topicFilter).isEmpty();
     }
 
     public int size() {
-        return subscriptions.size();
+        m_lock.readLock().lock();
+        try {
+            return subscriptions.size();
+        } finally {
+            m_lock.readLock().unlock();
+        }
     }
     
     public String dumpTree() {
         DumpTreeVisitor visitor = new DumpTreeVisitor();
-        bfsVisit(subscriptions, visitor);
+        m_lock.readLock().lock();
+        try {
+            bfsVisit(subscriptions, visitor);
+        } finally {
+            m_lock.readLock().unlock();
+        }
         return visitor.getResult();
     }
     
@@ -228,7 +350,7 @@ public class SubscriptionsStore {
             return;
         }
         visitor.visit(node);
-        for (TreeNode child : node.m_children) {
+        for (TreeNode child : node.children()) {
             bfsVisit(child, visitor);
         }
     }
@@ -273,22 +395,31 @@ public class SubscriptionsStore {
         }
     }
     
+    /**
+     * Split the topic in its levels, empty levels (leading, trailing or between two separators) are kept.
+     */
+    static String[] splitLevels(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = topic.indexOf('/', start);
+            levels[i] = topic.substring(start, end);
+            start = end + 1;
+        }
+        levels[count - 1] = topic.substring(start);
+        return levels;
+    }
+
     protected static List<Token> parseTopic(String topic) throws ParseException {
         List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
+        String[] splitted = splitLevels(topic);
 
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
-        }
-        
-        if (topic.endsWith("/")) {
-            //Add a fictious space 
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length); 
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
-        }
-        
         for (int i = 0; i < splitted.length; i++) {
             String s = splitted[i];
             if (s.isEmpty()) {
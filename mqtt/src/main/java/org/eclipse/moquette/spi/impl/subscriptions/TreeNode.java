@@ -16,22 +16,25 @@
 package org.eclipse.moquette.spi.impl.subscriptions;
 
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
-class TreeNode {
-
-    private class ClientIDComparator implements Comparator<Subscription> {
+import org.eclipse.moquette.spi.IMessagesStore;
 
-        public int compare(Subscription o1, Subscription o2) {
-            return o1.getClientId().compareTo(o2.getClientId());
-        }
-        
-    }
+/**
+ * Node of the topics trie. Children with a literal token are indexed by name, the single level (+) and multi level (#) wildcards have dedicated slots so matching a topic level costs one
+ * hash lookup plus two field reads.
+ */
+class TreeNode {
 
     TreeNode m_parent;
     Token m_token;
-    List<TreeNode> m_children = new ArrayList<TreeNode>();
-    List<Subscription> m_subscriptions = new ArrayList<Subscription>();
+    //literal children by token name, created on first use as most nodes are leaves
+    Map<String, TreeNode> m_children;
+    TreeNode m_singleChild;
+    TreeNode m_multiChild;
+    //a client has at most one subscription for a topic filter, keyed by client ID
+    Map<String, Subscription> m_subscriptions = new LinkedHashMap<String, Subscription>();
+    //share groups subscribed to this filter by group name, created on first use
+    Map<String, SharedGroup> m_sharedGroups;
 
     TreeNode(TreeNode parent) {
         this.m_parent = parent;
@@ -47,152 +50,209 @@ class TreeNode {
 
     void addSubscription(Subscription s) {
         //avoid double registering for same clientID, topic and QoS
-        if (m_subscriptions.contains(s)) {
+        if (s.equals(m_subscriptions.get(s.clientId))) {
             return;
         }
-        //remove existing subscription for same client and topic but different QoS
-        int existingSubIdx = Collections.binarySearch(m_subscriptions, s, new ClientIDComparator());
-        if (existingSubIdx >= 0) {
-            m_subscriptions.remove(existingSubIdx);
-        }
-        
-        m_subscriptions.add(s);
+        //replaces existing subscription for same client and topic but different QoS
+        m_subscriptions.put(s.clientId, s);
     }
 
-    void addChild(TreeNode child) {
-        m_children.add(child);
+    Subscription subscriptionFor(String clientID) {
+        return m_subscriptions.get(clientID);
     }
 
-    boolean isLeaf() {
-        return m_children.isEmpty();
+    Subscription removeSubscription(String clientID) {
+        return m_subscriptions.remove(clientID);
     }
 
-    /**
-     * Search for children that has the specified token, if not found return
-     * null;
-     */
-    TreeNode childWithToken(Token token) {
-        for (TreeNode child : m_children) {
-            if (child.getToken().equals(token)) {
-                return child;
-            }
+    void addSharedSubscription(String group, Subscription s) {
+        if (m_sharedGroups == null) {
+            m_sharedGroups = new HashMap<String, SharedGroup>();
         }
-
-        return null;
+        SharedGroup sharedGroup = m_sharedGroups.get(group);
+        if (sharedGroup == null) {
+            sharedGroup = new SharedGroup(group);
+            m_sharedGroups.put(group, sharedGroup);
+        }
+        sharedGroup.add(s);
     }
 
-    List<Subscription> subscriptions() {
-        return m_subscriptions;
+    Subscription removeSharedSubscription(String group, String clientID) {
+        SharedGroup sharedGroup = m_sharedGroups == null ? null : m_sharedGroups.get(group);
+        if (sharedGroup == null) {
+            return null;
+        }
+        Subscription removed = sharedGroup.remove(clientID);
+        if (sharedGroup.isEmpty()) {
+            m_sharedGroups.remove(group);
+        }
+        return removed;
     }
 
-    void matches(Queue<Token> tokens, List<Subscription> matchingSubs) {
-        Token t = tokens.poll();
-
-        //check if t is null <=> tokens finished
-        if (t == null) {
-            matchingSubs.addAll(m_subscriptions);
-            //check if it has got a MULTI child and add its subscriptions
-            for (TreeNode n : m_children) {
-                if (n.getToken() == Token.MULTI || n.getToken() == Token.SINGLE) {
-                    matchingSubs.addAll(n.subscriptions());
+    /**
+     * Removes the subscriptions of the client, plain and shared ones.
+     */
+    void removeSubscriptionsOf(String clientID) {
+        m_subscriptions.remove(clientID);
+        if (m_sharedGroups != null) {
+            for (Iterator<SharedGroup> it = m_sharedGroups.values().iterator(); it.hasNext();) {
+                SharedGroup sharedGroup = it.next();
+                sharedGroup.remove(clientID);
+                if (sharedGroup.isEmpty()) {
+                    it.remove();
                 }
             }
+        }
+    }
 
-            return;
+    /**
+     * Collect the subscriptions of the client, plain and shared ones.
+     */
+    void subscriptionsOf(String clientID, Collection<Subscription> subs) {
+        Subscription sub = m_subscriptions.get(clientID);
+        if (sub != null) {
+            subs.add(sub);
         }
+        if (m_sharedGroups != null) {
+            for (SharedGroup sharedGroup : m_sharedGroups.values()) {
+                Subscription member = sharedGroup.memberFor(clientID);
+                if (member != null) {
+                    subs.add(member);
+                }
+            }
+        }
+    }
 
-        //we are on MULTI, than add subscriptions and return
-        if (m_token == Token.MULTI) {
-            matchingSubs.addAll(m_subscriptions);
-            return;
+    boolean hasSubscriptionsOf(String clientID) {
+        if (m_subscriptions.containsKey(clientID)) {
+            return true;
         }
+        if (m_sharedGroups != null) {
+            for (SharedGroup sharedGroup : m_sharedGroups.values()) {
+                if (sharedGroup.memberFor(clientID) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        for (TreeNode n : m_children) {
-            if (n.getToken().match(t)) {
-                //Create a copy of token, else if navigate 2 sibling it
-                //consumes 2 elements on the queue instead of one
-                n.matches(new LinkedBlockingQueue<Token>(tokens), matchingSubs);
-                //TODO don't create a copy n.matches(tokens, matchingSubs);
+    void addChild(TreeNode child) {
+        Token token = child.getToken();
+        if (token == Token.MULTI) {
+            m_multiChild = child;
+        } else if (token == Token.SINGLE) {
+            m_singleChild = child;
+        } else {
+            if (m_children == null) {
+                m_children = new HashMap<String, TreeNode>();
             }
+            m_children.put(token.name(), child);
         }
     }
 
+    boolean isLeaf() {
+        return (m_children == null || m_children.isEmpty()) && m_singleChild == null && m_multiChild == null;
+    }
+
     /**
-     * Return the number of registered subscriptions
+     * Search for children that has the specified token, if not found return
+     * null;
      */
-    int size() {
-        int res = m_subscriptions.size();
-        for (TreeNode child : m_children) {
-            res += child.size();
+    TreeNode childWithToken(Token token) {
+        if (token == Token.MULTI) {
+            return m_multiChild;
         }
-        return res;
+        if (token == Token.SINGLE) {
+            return m_singleChild;
+        }
+        return m_children == null ? null : m_children.get(token.name());
     }
 
-    void removeClientSubscriptions(String clientID) {
-        //collect what to delete and then delete to avoid ConcurrentModification
-        List<Subscription> subsToRemove = new ArrayList<Subscription>();
-        for (Subscription s : m_subscriptions) {
-            if (s.clientId.equals(clientID)) {
-                subsToRemove.add(s);
-            }
+    /**
+     * @return all the children, literal ones first and then the wildcards
+     */
+    List<TreeNode> children() {
+        List<TreeNode> children = new ArrayList<TreeNode>();
+        if (m_children != null) {
+            children.addAll(m_children.values());
         }
-
-        for (Subscription s : subsToRemove) {
-            m_subscriptions.remove(s);
+        if (m_singleChild != null) {
+            children.add(m_singleChild);
         }
-
-        //go deep
-        for (TreeNode child : m_children) {
-            child.removeClientSubscriptions(clientID);
+        if (m_multiChild != null) {
+            children.add(m_multiChild);
         }
+        return children;
     }
 
     /**
-     * Deactivate all topic subscriptions for the given clientID.
-     * */
-    void deactivate(String clientID) {
-        for (Subscription s : m_subscriptions) {
-            if (s.clientId.equals(clientID)) {
-                s.setActive(false);
-            }
+     * @return the plain subscriptions followed by the members of the share groups
+     */
+    Collection<Subscription> subscriptions() {
+        if (m_sharedGroups == null || m_sharedGroups.isEmpty()) {
+            return m_subscriptions.values();
         }
-
-        //go deep
-        for (TreeNode child : m_children) {
-            child.deactivate(clientID);
+        List<Subscription> subs = new ArrayList<Subscription>(m_subscriptions.values());
+        for (SharedGroup sharedGroup : m_sharedGroups.values()) {
+            subs.addAll(sharedGroup.members());
         }
+        return subs;
     }
 
     /**
-     * Activate all topic subscriptions for the given clientID.
-     * */
-    public void activate(String clientID) {
-        for (Subscription s : m_subscriptions) {
-            if (s.clientId.equals(clientID)) {
-                s.setActive(true);
+     * Collect the subscriptions matching the topic levels starting from the given index, the levels are never copied
+     * while descending the tree. Each share group adds the one member selected by the policy.
+     */
+    void matches(String[] levels, int index, Collection<Subscription> matchingSubs, SharedSubscriptionPolicy policy, IMessagesStore inFlight) {
+        //a multi level wildcard child matches the remaining levels, also when none is left
+        if (m_multiChild != null) {
+            m_multiChild.collect(matchingSubs, policy, inFlight);
+        }
+
+        //levels finished, this node is the exact match
+        if (index == levels.length) {
+            collect(matchingSubs, policy, inFlight);
+            return;
+        }
+
+        if (m_children != null) {
+            TreeNode literal = m_children.get(levels[index]);
+            if (literal != null) {
+                literal.matches(levels, index + 1, matchingSubs, policy, inFlight);
             }
         }
+        //single level wildcard matches exactly one level, empty ones included
+        if (m_singleChild != null) {
+            m_singleChild.matches(levels, index + 1, matchingSubs, policy, inFlight);
+        }
+    }
 
-        //go deep
-        for (TreeNode child : m_children) {
-            child.activate(clientID);
+    private void collect(Collection<Subscription> matchingSubs, SharedSubscriptionPolicy policy, IMessagesStore inFlight) {
+        matchingSubs.addAll(m_subscriptions.values());
+        if (m_sharedGroups != null) {
+            for (SharedGroup sharedGroup : m_sharedGroups.values()) {
+                Subscription selected = sharedGroup.select(policy, inFlight);
+                if (selected != null) {
+                    matchingSubs.add(selected);
+                }
+            }
         }
     }
 
     /**
-     * @return the set of subscriptions for the given client.
-     * */
-    Set<Subscription> findAllByClientID(String clientID) {
-        Set<Subscription> subs = new HashSet<Subscription>();
-        for (Subscription s : m_subscriptions) {
-            if (s.clientId.equals(clientID)) {
-                subs.add(s);
+     * Return the number of registered subscriptions
+     */
+    int size() {
+        int res = m_subscriptions.size();
+        if (m_sharedGroups != null) {
+            for (SharedGroup sharedGroup : m_sharedGroups.values()) {
+                res += sharedGroup.members().size();
             }
         }
-        //go deep
-        for (TreeNode child : m_children) {
-            subs.addAll(child.findAllByClientID(clientID));
+        for (TreeNode child : children()) {
+            res += child.size();
         }
-        return subs;
+        return res;
     }
 }
@@ -20,15 +20,19 @@ import org.eclipse.moquette.proto.MQTTException;
 import org.eclipse.moquette.spi.IMatchingCondition;
 import org.eclipse.moquette.spi.IMessagesStore;
 import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.OffHeapRetainedStore;
+import org.eclipse.moquette.spi.impl.PacketIDAllocator;
 import org.eclipse.moquette.spi.impl.events.PublishEvent;
 import org.eclipse.moquette.spi.impl.storage.StoredPublishEvent;
 import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 
-import static org.eclipse.moquette.spi.impl.Utils.defaultGet;
-
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,7 +40,15 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * MapDB main persistence implementation
@@ -45,16 +57,44 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MapDBPersistentStore.class);
 
-	private ConcurrentMap<String, StoredMessage> m_retainedStore;
+	//durable copy of the retained messages, written through and only read at startup
+	private ConcurrentMap<String, StoredMessage> m_retainedDurable;
 
-	//maps clientID to the list of pending messages stored
-	private ConcurrentMap<String, List<StoredPublishEvent>> m_persistentMessageStore;
+	//the retained messages served to the subscribers, reloaded from the durable copy at startup
+	private OffHeapRetainedStore m_retainedStore;
 
-	//bind clientID+MsgID -> evt message published
-	private ConcurrentMap<String, StoredPublishEvent> m_inflightStore;
+	private long m_retainedBudget = OffHeapRetainedStore.DEFAULT_BUDGET;
+
+	private int m_retainedBlockSize = OffHeapRetainedStore.DEFAULT_BLOCK_SIZE;
+
+	private long m_retainedTtl;
+
+	private Map<String, Long> m_retainedTopicTtls = Collections.emptyMap();
+
+	//per client queue of the messages stored while offline, (clientID, sequence) -> evt so a client's messages are contiguous and in arrival order
+	private BTreeMap<Fun.Tuple2<String, Long>, StoredPublishEvent> m_sessionQueue;
+
+	//(clientID, messageID, sequence) to find the queued message acknowledged by the client
+	private NavigableSet<Fun.Tuple3<String, Integer, Long>> m_sessionQueueIds;
+
+	private Atomic.Long m_sessionQueueSeq;
+
+	//bind (client handle, packet ID) -> evt message published
+	private ConcurrentMap<Long, StoredPublishEvent> m_inflightStore;
+
+	//keys of the in flight QoS 2 publishes the client received, waiting for the PUBCOMP of their PUBREL
+	private Set<Long> m_receivedInFlight;
+
+	//numeric handle of each client, used to build the in flight keys
+	private ConcurrentMap<String, Integer> m_clientHandles;
 
-	//map clientID <-> set of currently in flight packet identifiers
-	Map<String, Set<Integer>> m_inFlightIds;
+	private Atomic.Integer m_clientHandleSeq;
+
+	//handles of the clients whose session ended, reused before new ones
+	private NavigableSet<Integer> m_freeClientHandles;
+
+	//packet IDs in use by the connected clients, not persisted
+	private final ConcurrentMap<String, PacketIDAllocator> m_packetIDs = new ConcurrentHashMap<String, PacketIDAllocator>();
 
 	//bind clientID+MsgID -> evt message published
 	private ConcurrentMap<String, StoredPublishEvent> m_qos2Store;
@@ -66,6 +106,25 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 
 	private String m_storePath;
 
+	//group commit: 0 commits on every change, otherwise the pending changes are committed at most every interval
+	private long m_commitIntervalMillis;
+
+	//group commit: number of pending changes forcing a commit before the interval elapses
+	private int m_commitBatchSize = 1000;
+
+	private final AtomicInteger m_pendingChanges = new AtomicInteger();
+
+	private final Object m_commitLock = new Object();
+
+	private ScheduledExecutorService m_committer;
+
+	//commit latency metrics
+	private final AtomicLong m_commitCount = new AtomicLong();
+
+	private final AtomicLong m_commitTotalNanos = new AtomicLong();
+
+	private volatile long m_commitMaxNanos;
+
 	/*
 	 * The default constructor will create an in memory store as no file path was specified
 	 */
@@ -93,64 +152,151 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 			}
 			m_db = DBMaker.newFileDB(tmpFile).make();
 		}
-		m_retainedStore = m_db.getHashMap("retained");
-		m_persistentMessageStore = m_db.getHashMap("persistedMessages");
-		m_inflightStore = m_db.getHashMap("inflight");
-		m_inFlightIds = m_db.getHashMap("inflightPacketIDs");
+		initRetained();
+		m_sessionQueue = m_db.createTreeMap("sessionQueue").keySerializer(BTreeKeySerializer.TUPLE2).makeOrGet();
+		m_sessionQueueIds = m_db.createTreeSet("sessionQueueIds").serializer(BTreeKeySerializer.TUPLE3).makeOrGet();
+		m_sessionQueueSeq = m_db.getAtomicLong("sessionQueueSeq");
+		migratePersistedMessages();
+		//in flight maps of former versions, keyed by formatted strings
+		for (String legacy : new String[] { "inflight", "inflightPacketIDs" }) {
+			if (m_db.exists(legacy)) {
+				m_db.delete(legacy);
+			}
+		}
+		m_inflightStore = m_db.getHashMap("inflightPackets");
+		m_receivedInFlight = m_db.getHashSet("receivedInflightPackets");
+		m_clientHandles = m_db.getHashMap("clientHandles");
+		m_clientHandleSeq = m_db.getAtomicInteger("clientHandleSeq");
+		m_freeClientHandles = m_db.getTreeSet("freeClientHandles");
+		restoreInFlight();
 		m_persistentSubscriptions = m_db.getHashMap("subscriptions");
 		m_qos2Store = m_db.getHashMap("qos2Store");
+		if (m_commitIntervalMillis > 0) {
+			m_committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MapDBGroupCommit");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			m_committer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						if (m_pendingChanges.get() > 0) {
+							flush();
+						}
+					} catch (Throwable th) {
+						LOG.error("Group commit failed", th);
+					}
+				}
+			}, m_commitIntervalMillis, m_commitIntervalMillis, TimeUnit.MILLISECONDS);
+			LOG.info("Group commit every {} ms or {} changes", m_commitIntervalMillis, m_commitBatchSize);
+		}
+	}
+
+	private void initRetained() {
+		m_retainedDurable = m_db.getHashMap("retained");
+		m_retainedStore = new OffHeapRetainedStore(m_retainedBudget, m_retainedBlockSize);
+		m_retainedStore.setDefaultTtl(m_retainedTtl);
+		m_retainedStore.setTopicTtls(m_retainedTopicTtls);
+		List<String> overBudget = new ArrayList<String>();
+		for (StoredMessage stored : m_retainedDurable.values()) {
+			m_retainedStore.put(stored.getTopic(), stored.getPayload(), stored.getQos());
+		}
+		//rejected or evicted while loading
+		for (String topic : m_retainedDurable.keySet()) {
+			if (m_retainedStore.get(topic) == null) {
+				overBudget.add(topic);
+			}
+		}
+		for (String topic : overBudget) {
+			m_retainedDurable.remove(topic);
+		}
+		m_retainedStore.resetCounts();
+		//from now on the store drops the evicted and expired topics from the durable copy too
+		m_retainedStore.setListener(new OffHeapRetainedStore.Listener() {
+			public void dropped(String topic) {
+				m_retainedDurable.remove(topic);
+				commit();
+			}
+		});
+		LOG.info("Loaded {} retained messages, {} dropped over the budget of {} bytes", m_retainedStore.size(), overBudget.size(), m_retainedBudget);
+	}
+
+	/**
+	 * Commits now or, in group commit mode, when the interval elapses or the batch is full.
+	 */
+	private void commit() {
+		if (m_commitIntervalMillis <= 0 || m_pendingChanges.incrementAndGet() >= m_commitBatchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Commits all the pending changes to the DB.
+	 */
+	public void flush() {
+		synchronized (m_commitLock) {
+			m_pendingChanges.set(0);
+			long start = System.nanoTime();
+			m_db.commit();
+			long elapsed = System.nanoTime() - start;
+			m_commitCount.incrementAndGet();
+			m_commitTotalNanos.addAndGet(elapsed);
+			if (elapsed > m_commitMaxNanos) {
+				m_commitMaxNanos = elapsed;
+			}
+		}
 	}
 
 	@Override
 	public void cleanRetained(String topic) {
 		m_retainedStore.remove(topic);
+		m_retainedDurable.remove(topic);
 	}
 
 	@Override
 	public void storeRetained(String topic, byte[] message, AbstractMessage.QOSType qos) {
-		//store the message to the topic
-		m_retainedStore.put(topic, new StoredMessage(message, qos, topic));
-		m_db.commit();
+		//store the message to the topic, not kept at all if over the budget
+		if (m_retainedStore.put(topic, message, qos)) {
+			m_retainedDurable.put(topic, new StoredMessage(message, qos, topic));
+		} else {
+			m_retainedDurable.remove(topic);
+		}
+		commit();
 	}
 
 	@Override
 	public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
 		LOG.debug("searchMatching scanning all retained messages, presents are {}", m_retainedStore.size());
+		return m_retainedStore.matching(condition);
+	}
 
-		List<StoredMessage> results = new ArrayList<StoredMessage>();
-
-		for (Map.Entry<String, StoredMessage> entry : m_retainedStore.entrySet()) {
-			StoredMessage storedMsg = entry.getValue();
-			if (condition.match(entry.getKey())) {
-				results.add(storedMsg);
-			}
-		}
-
+	@Override
+	public Collection<StoredMessage> searchMatching(String topicFilter) {
+		List<StoredMessage> results = m_retainedStore.matching(topicFilter);
+		LOG.debug("searchMatching found {} retained messages for {}", results.size(), topicFilter);
 		return results;
 	}
 
 	@Override
 	public void storePublishForFuture(PublishEvent evt) {
-		List<StoredPublishEvent> storedEvents;
 		String clientID = evt.getClientID();
-		if (!m_persistentMessageStore.containsKey(clientID)) {
-			storedEvents = new ArrayList<>();
-		} else {
-			storedEvents = m_persistentMessageStore.get(clientID);
-		}
-		storedEvents.add(convertToStored(evt));
-		m_persistentMessageStore.put(clientID, storedEvents);
-		m_db.commit();
-		//NB rewind the evt message content
+		enqueue(convertToStored(evt));
+		commit();
 		LOG.debug("Stored published message for client <{}> on topic <{}>", clientID, evt.getTopic());
 	}
 
+	private void enqueue(StoredPublishEvent storedEvt) {
+		long sequence = m_sessionQueueSeq.incrementAndGet();
+		m_sessionQueue.put(Fun.t2(storedEvt.getClientID(), sequence), storedEvt);
+		m_sessionQueueIds.add(Fun.t3(storedEvt.getClientID(), storedEvt.getMessageID(), sequence));
+	}
+
 	@Override
 	public List<PublishEvent> listMessagesInSession(String clientID) {
 		List<PublishEvent> liveEvts = new ArrayList<>();
-		List<StoredPublishEvent> storedEvts = defaultGet(m_persistentMessageStore, clientID, Collections.<StoredPublishEvent> emptyList());
-
-		for (StoredPublishEvent storedEvt : storedEvts) {
+		for (StoredPublishEvent storedEvt : clientQueue(clientID).values()) {
 			liveEvts.add(convertFromStored(storedEvt));
 		}
 		return liveEvts;
@@ -158,44 +304,87 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 
 	@Override
 	public void removeMessageInSession(String clientID, int messageID) {
-		List<StoredPublishEvent> events = m_persistentMessageStore.get(clientID);
-		if (events == null) {
+		NavigableSet<Fun.Tuple3<String, Integer, Long>> ids = m_sessionQueueIds.subSet(Fun.t3(clientID, messageID, 0L), true, Fun.t3(clientID, messageID, Long.MAX_VALUE), true);
+		if (ids.isEmpty()) {
 			return;
 		}
-		StoredPublishEvent toRemoveEvt = null;
-		for (StoredPublishEvent evt : events) {
-			if (evt.getMessageID() == messageID) {
-				toRemoveEvt = evt;
-			}
-		}
-		events.remove(toRemoveEvt);
-		m_persistentMessageStore.put(clientID, events);
-		m_db.commit();
+		//the oldest stored with this ID, the first one listed
+		Fun.Tuple3<String, Integer, Long> id = ids.first();
+		m_sessionQueueIds.remove(id);
+		m_sessionQueue.remove(Fun.t2(clientID, id.c));
+		commit();
 	}
 
 	public void dropMessagesInSession(String clientID) {
-		m_persistentMessageStore.remove(clientID);
+		clientQueue(clientID).clear();
+		m_sessionQueueIds.subSet(Fun.t3(clientID, Integer.MIN_VALUE, 0L), true, Fun.t3(clientID, Integer.MAX_VALUE, Long.MAX_VALUE), true).clear();
+		commit();
+	}
+
+	/**
+	 * @return the view of the queued messages of the client, in arrival order
+	 */
+	private ConcurrentNavigableMap<Fun.Tuple2<String, Long>, StoredPublishEvent> clientQueue(String clientID) {
+		return m_sessionQueue.subMap(Fun.t2(clientID, 0L), true, Fun.t2(clientID, Long.MAX_VALUE), true);
+	}
+
+	/**
+	 * Moves the messages stored by former versions as a list per client into the queue.
+	 */
+	private void migratePersistedMessages() {
+		if (!m_db.exists("persistedMessages")) {
+			return;
+		}
+		Map<String, List<StoredPublishEvent>> persistedMessages = m_db.getHashMap("persistedMessages");
+		int clients = persistedMessages.size();
+		for (List<StoredPublishEvent> storedEvts : persistedMessages.values()) {
+			for (StoredPublishEvent storedEvt : storedEvts) {
+				enqueue(storedEvt);
+			}
+		}
+		m_db.delete("persistedMessages");
 		m_db.commit();
+		LOG.info("Migrated the stored messages of {} clients to the session queue", clients);
 	}
 
 	//----------------- In flight methods -----------------
 	@Override
 	public void cleanInFlight(String clientID, int packetID) {
-		String publishKey = String.format("%s%d", clientID, packetID);
-		m_inflightStore.remove(publishKey);
-		Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-		if (inFlightForClient != null) {
-			inFlightForClient.remove(packetID);
-		}
-		m_db.commit();
+		PacketIDAllocator packetIDs = packetIDsFor(clientID);
+		long key = packetIDs.inFlightKey(packetID);
+		m_inflightStore.remove(key);
+		m_receivedInFlight.remove(key);
+		packetIDs.release(packetID);
+		commit();
 	}
 
 	@Override
 	public void addInFlight(PublishEvent evt, String clientID, int packetID) {
-		String publishKey = String.format("%s%d", clientID, packetID);
 		StoredPublishEvent storedEvt = convertToStored(evt);
-		m_inflightStore.put(publishKey, storedEvt);
-		m_db.commit();
+		PacketIDAllocator packetIDs = packetIDsFor(clientID);
+		packetIDs.markInUse(packetID);
+		m_inflightStore.put(packetIDs.inFlightKey(packetID), storedEvt);
+		commit();
+	}
+
+	@Override
+	public void markReceived(String clientID, int packetID) {
+		long key = packetIDsFor(clientID).inFlightKey(packetID);
+		if (m_inflightStore.containsKey(key)) {
+			m_receivedInFlight.add(key);
+			commit();
+		}
+	}
+
+	@Override
+	public boolean isReceived(String clientID, int packetID) {
+		return m_receivedInFlight.contains(packetIDsFor(clientID).inFlightKey(packetID));
+	}
+
+	@Override
+	public PublishEvent getInFlight(String clientID, int packetID) {
+		StoredPublishEvent storedEvt = m_inflightStore.get(packetIDsFor(clientID).inFlightKey(packetID));
+		return storedEvt == null ? null : convertFromStored(storedEvt);
 	}
 
 	/**
@@ -203,18 +392,105 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 	 * */
 	@Override
 	public int nextPacketID(String clientID) {
-		Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-		if (inFlightForClient == null) {
-			int nextPacketId = 1;
-			inFlightForClient = new HashSet<>();
-			inFlightForClient.add(nextPacketId);
-			this.m_inFlightIds.put(clientID, inFlightForClient);
-			return nextPacketId;
+		return packetIDsFor(clientID).acquire();
+	}
+
+	/**
+	 * The allocators aren't persisted: marks the IDs of the in flight messages stored by the former run in use again, and removes the messages left
+	 * by clients without a handle.
+	 */
+	private void restoreInFlight() {
+		Map<Integer, String> clients = new HashMap<>();
+		for (Map.Entry<String, Integer> entry : m_clientHandles.entrySet()) {
+			clients.put(entry.getValue(), entry.getKey());
+		}
+		List<Long> orphans = new ArrayList<>();
+		for (Long key : m_inflightStore.keySet()) {
+			String clientID = clients.get((int) (key >>> 16));
+			if (clientID == null) {
+				orphans.add(key);
+			} else {
+				packetIDsFor(clientID).markInUse((int) (key & PacketIDAllocator.MAX_PACKET_ID));
+			}
+		}
+		for (Long key : m_receivedInFlight) {
+			if (!m_inflightStore.containsKey(key)) {
+				orphans.add(key);
+			}
+		}
+		for (Long key : orphans) {
+			m_inflightStore.remove(key);
+			m_receivedInFlight.remove(key);
+		}
+		if (!orphans.isEmpty()) {
+			m_db.commit();
+		}
+		LOG.info("Restored the packet IDs of {} clients, removed {} orphaned in flight messages", m_packetIDs.size(), orphans.size());
+	}
+
+	@Override
+	public List<Integer> inFlightPacketIDs(String clientID) {
+		PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+		if (packetIDs == null) {
+			return Collections.emptyList();
+		}
+		List<Integer> inFlight = new ArrayList<>();
+		for (int packetID = packetIDs.nextInUse(1); packetID > 0; packetID = packetIDs.nextInUse(packetID + 1)) {
+			if (m_inflightStore.containsKey(packetIDs.inFlightKey(packetID))) {
+				inFlight.add(packetID);
+			}
+		}
+		return inFlight;
+	}
+
+	@Override
+	public void dropPacketIDs(String clientID) {
+		PacketIDAllocator packetIDs = m_packetIDs.remove(clientID);
+		if (packetIDs != null) {
+			for (int packetID = packetIDs.nextInUse(1); packetID > 0; packetID = packetIDs.nextInUse(packetID + 1)) {
+				m_inflightStore.remove(packetIDs.inFlightKey(packetID));
+				m_receivedInFlight.remove(packetIDs.inFlightKey(packetID));
+			}
+		}
+		//reclaimed once none of its in flight keys is left
+		Integer handle = m_clientHandles.remove(clientID);
+		if (handle != null) {
+			m_freeClientHandles.add(handle);
 		}
-		int maxId = Collections.max(inFlightForClient);
-		int nextPacketId = (maxId + 1) % 0xFFFF;
-		inFlightForClient.add(nextPacketId);
-		return nextPacketId;
+		commit();
+	}
+
+	@Override
+	public int inFlightCount(String clientID) {
+		PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+		return packetIDs == null ? 0 : packetIDs.inUseCount();
+	}
+
+	/**
+	 * The allocator of the client, created on first use with the client's persistent handle.
+	 */
+	private PacketIDAllocator packetIDsFor(String clientID) {
+		PacketIDAllocator packetIDs = m_packetIDs.get(clientID);
+		if (packetIDs == null) {
+			Integer handle = m_clientHandles.get(clientID);
+			if (handle == null) {
+				handle = m_freeClientHandles.pollFirst();
+				if (handle == null) {
+					handle = m_clientHandleSeq.incrementAndGet();
+				}
+				Integer existing = m_clientHandles.putIfAbsent(clientID, handle);
+				if (existing != null) {
+					m_freeClientHandles.add(handle);
+					handle = existing;
+				}
+			}
+			packetIDs = new PacketIDAllocator(handle);
+			PacketIDAllocator existing = m_packetIDs.putIfAbsent(clientID, packetIDs);
+			if (existing != null) {
+				packetIDs = existing;
+			}
+		}
+		return packetIDs;
 	}
 
 	public void addNewSubscription(Subscription newSubscription, String clientID) {
@@ -242,18 +518,18 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 			m_persistentSubscriptions.put(clientID, subs);
 			LOG.debug("clientID {} subscriptions set now is {}", clientID, subs);
 		}
-		m_db.commit();
+		commit();
 	}
 
 	public void wipeSubscriptions(String clientID) {
 		m_persistentSubscriptions.remove(clientID);
-		m_db.commit();
+		commit();
 	}
 
 	@Override
 	public void updateSubscriptions(String clientID, Set<Subscription> subscriptions) {
 		m_persistentSubscriptions.put(clientID, subscriptions);
-		m_db.commit();
+		commit();
 	}
 
 	public List<Subscription> listAllSubscriptions() {
@@ -271,9 +547,15 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 	}
 
 	public void close() {
-		this.m_db.commit();
+		if (m_committer != null) {
+			m_committer.shutdown();
+		}
+		flush();
+		LOG.info("Store commits {}, average latency {} us, max latency {} us", getCommitCount(), getAverageCommitLatencyMicros(), getMaxCommitLatencyMicros());
 		LOG.debug("persisted subscriptions {}", m_persistentSubscriptions);
 		this.m_db.close();
+		LOG.info("Retained {}", m_retainedStore);
+		m_retainedStore.close();
 		LOG.debug("closed disk storage");
 	}
 
@@ -303,4 +585,109 @@ public class MapDBPersistentStore implements IMessagesStore, ISessionsStore {
 		PublishEvent liveEvt = new PublishEvent(evt.getTopic(), evt.getQos(), message, evt.isRetain(), evt.getClientID(), evt.getMessageID());
 		return liveEvt;
 	}
+
+	public long getCommitIntervalMillis() {
+		return m_commitIntervalMillis;
+	}
+
+	/**
+	 * Enables group commit when greater than 0: changes are committed together at most every interval, so a crash can lose up to the interval
+	 * (or commitBatchSize changes) of acknowledged messages. Must be set before initStore.
+	 * 
+	 * @param commitIntervalMillis
+	 */
+	public void setCommitIntervalMillis(long commitIntervalMillis) {
+		this.m_commitIntervalMillis = commitIntervalMillis;
+	}
+
+	public int getCommitBatchSize() {
+		return m_commitBatchSize;
+	}
+
+	/**
+	 * Number of pending changes committing the group before the interval elapses.
+	 * 
+	 * @param commitBatchSize
+	 */
+	public void setCommitBatchSize(int commitBatchSize) {
+		if (commitBatchSize < 1) {
+			throw new IllegalArgumentException("Commit batch size must be at least 1, found " + commitBatchSize);
+		}
+		this.m_commitBatchSize = commitBatchSize;
+	}
+
+	/**
+	 * @return the store of the retained messages, null before initStore
+	 */
+	public OffHeapRetainedStore getRetainedStore() {
+		return m_retainedStore;
+	}
+
+	public long getRetainedBudget() {
+		return m_retainedBudget;
+	}
+
+	/**
+	 * Off heap bytes available to the retained payloads, the least recently used messages are evicted beyond. Must be set before initStore.
+	 * 
+	 * @param retainedBudget
+	 */
+	public void setRetainedBudget(long retainedBudget) {
+		this.m_retainedBudget = retainedBudget;
+	}
+
+	public int getRetainedBlockSize() {
+		return m_retainedBlockSize;
+	}
+
+	/**
+	 * Allocation unit of the retained payloads. Must be set before initStore.
+	 * 
+	 * @param retainedBlockSize
+	 */
+	public void setRetainedBlockSize(int retainedBlockSize) {
+		this.m_retainedBlockSize = retainedBlockSize;
+	}
+
+	public long getRetainedTtl() {
+		return m_retainedTtl;
+	}
+
+	/**
+	 * Time to live in milliseconds of the retained messages, 0 keeps them until evicted. Must be set before initStore; after a restart the time to
+	 * live of the stored messages starts over.
+	 * 
+	 * @param retainedTtl
+	 */
+	public void setRetainedTtl(long retainedTtl) {
+		this.m_retainedTtl = retainedTtl;
+	}
+
+	public Map<String, Long> getRetainedTopicTtls() {
+		return m_retainedTopicTtls;
+	}
+
+	/**
+	 * Time to live in milliseconds of the retained messages by topic filter, the first matching in iteration order wins over retainedTtl. Must be
+	 * set before initStore.
+	 * 
+	 * @param retainedTopicTtls
+	 */
+	public void setRetainedTopicTtls(Map<String, Long> retainedTopicTtls) {
+		this.m_retainedTopicTtls = retainedTopicTtls;
+	}
+
+	public long getCommitCount() {
+		return m_commitCount.get();
+	}
+
+	public long getAverageCommitLatencyMicros() {
+		long count = m_commitCount.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(m_commitTotalNanos.get() / count);
+	}
+
+	public long getMaxCommitLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(m_commitMaxNanos);
+	}
+
 }
@@ -24,6 +24,10 @@ public class Constants {
     public static final String ATTR_CLIENTID = "ClientID";
     public static final String ATTR_CLEAN_SESSION = "cleanSession";
     public static final String ATTR_KEEP_ALIVE = "keepAlive";
+    public static final String ATTR_SHARD = "shard";
+    public static final String ATTR_CLOSING = "closing";
+    public static final String ATTR_KEEP_ALIVE_TIMER = "keepAliveTimer";
+    public static final String ATTR_PENDING_CONNECT = "pendingConnect";
     
     public static final int DEFAULT_CONNECT_TIMEOUT = 10;
     
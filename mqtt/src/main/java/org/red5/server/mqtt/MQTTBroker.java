@@ -1,11 +1,14 @@
 package org.red5.server.mqtt;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Map;
 
 import org.eclipse.moquette.spi.impl.AcceptAllAuthenticator;
 import org.eclipse.moquette.spi.impl.FileAuthenticator;
+import org.eclipse.moquette.spi.impl.OffHeapRetainedStore;
 import org.eclipse.moquette.spi.impl.SimpleMessaging;
+import org.eclipse.moquette.spi.impl.subscriptions.SharedSubscriptionPolicy;
 import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
 import org.red5.logging.Red5LoggerFactory;
 import org.red5.server.mqtt.net.MQTTTransport;
@@ -71,15 +74,46 @@ public class MQTTBroker implements ApplicationContextAware, InitializingBean, Di
 	
 	private SimpleMessaging messaging;
 
+	private MapDBPersistentStore mapStorage;
+
 	private String dbStorePath = System.getProperty("user.home") + File.separator + "mqtt_store.mapdb";
 	
 	private String passwdFileName;
+
+	private int processingShards = 1;
+
+	private long storeCommitInterval;
+
+	private int storeCommitBatchSize = 1000;
+
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.SPILL;
+
+	private long redeliveryInterval = 20000;
+
+	private SharedSubscriptionPolicy sharedSubscriptionPolicy = SharedSubscriptionPolicy.ROUND_ROBIN;
+
+	private long passwdReloadInterval = FileAuthenticator.DEFAULT_RELOAD_INTERVAL;
+
+	private int authenticationThreads = 2;
+
+	private long authenticationCacheTtl = 30000;
+
+	private long retainedBudget = OffHeapRetainedStore.DEFAULT_BUDGET;
+
+	private long retainedTtl;
+
+	private Map<String, Long> retainedTopicTtls = Collections.emptyMap();
 	
 	@Override
     public void afterPropertiesSet() throws Exception {
 		messaging = SimpleMessaging.getInstance();
 		// setup storage
-		MapDBPersistentStore mapStorage = new MapDBPersistentStore(dbStorePath);
+		mapStorage = new MapDBPersistentStore(dbStorePath);
+		mapStorage.setCommitIntervalMillis(storeCommitInterval);
+		mapStorage.setCommitBatchSize(storeCommitBatchSize);
+		mapStorage.setRetainedBudget(retainedBudget);
+		mapStorage.setRetainedTtl(retainedTtl);
+		mapStorage.setRetainedTopicTtls(retainedTopicTtls);
 		messaging.setMapStorage(mapStorage);
 		// setup auth
 		IAuthenticator authenticator;
@@ -87,16 +121,26 @@ public class MQTTBroker implements ApplicationContextAware, InitializingBean, Di
 			authenticator = new AcceptAllAuthenticator();
 			log.trace("Authentication accepting all");
 		} else {
-			authenticator = new FileAuthenticator(System.getProperty("user.home"), passwdFileName);
+			FileAuthenticator fileAuthenticator = new FileAuthenticator(System.getProperty("user.home"), passwdFileName);
+			fileAuthenticator.setReloadInterval(passwdReloadInterval);
+			authenticator = fileAuthenticator;
 			log.trace("Authentication using File: {}", passwdFileName);
 		}
 		messaging.setAuthenticator(authenticator);
+		messaging.setAuthenticationThreads(authenticationThreads);
+		messaging.setAuthenticationCacheTtl(authenticationCacheTtl);
+		// setup the protocol processing partitions
+		messaging.setShardCount(processingShards);
+		messaging.setSlowConsumerPolicy(slowConsumerPolicy);
+		messaging.setRedeliveryInterval(redeliveryInterval);
+		messaging.setSharedPolicy(sharedSubscriptionPolicy);
 		// initialize messaging
 	    messaging.init();	    
 	    // get mqtt handler and set the messaging instance
 	    Map<String, MQTTTransport> transports = applicationContext.getBeansOfType(MQTTTransport.class);
 	    for (MQTTTransport transport : transports.values()) {
 	    	transport.getHandler().setMessaging(messaging);
+	    	transport.getHandler().setOutboundMetrics(messaging.getOutboundMetrics());
 	    }
     }
 
@@ -121,6 +165,176 @@ public class MQTTBroker implements ApplicationContextAware, InitializingBean, Di
 		this.passwdFileName = passwdFileName;
 	}
 
+	public long getPasswdReloadInterval() {
+		return passwdReloadInterval;
+	}
+
+	/**
+	 * Sets the milliseconds between the checks for changes of the password file, 0 reads it only at startup.
+	 * 
+	 * @param passwdReloadInterval
+	 */
+	public void setPasswdReloadInterval(long passwdReloadInterval) {
+		this.passwdReloadInterval = passwdReloadInterval;
+	}
+
+	public int getAuthenticationThreads() {
+		return authenticationThreads;
+	}
+
+	/**
+	 * Sets the threads verifying the passwords, 0 verifies them on the processing shards.
+	 * 
+	 * @param authenticationThreads
+	 */
+	public void setAuthenticationThreads(int authenticationThreads) {
+		this.authenticationThreads = authenticationThreads;
+	}
+
+	public long getAuthenticationCacheTtl() {
+		return authenticationCacheTtl;
+	}
+
+	/**
+	 * Sets the milliseconds verified credentials are cached, a password changed or removed is still accepted until its entry expires.
+	 * 
+	 * @param authenticationCacheTtl
+	 */
+	public void setAuthenticationCacheTtl(long authenticationCacheTtl) {
+		this.authenticationCacheTtl = authenticationCacheTtl;
+	}
+
+	public int getProcessingShards() {
+		return processingShards;
+	}
+
+	/**
+	 * Sets the number of threads processing the protocol, client IDs are partitioned across them.
+	 * 
+	 * @param processingShards
+	 */
+	public void setProcessingShards(int processingShards) {
+		this.processingShards = processingShards;
+	}
+
+	public long getStoreCommitInterval() {
+		return storeCommitInterval;
+	}
+
+	/**
+	 * Sets the group commit interval of the store in milliseconds, 0 (default) commits every change before going on.
+	 * 
+	 * @param storeCommitInterval
+	 */
+	public void setStoreCommitInterval(long storeCommitInterval) {
+		this.storeCommitInterval = storeCommitInterval;
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * Sets what is done with the publishes for a client over its write high watermark: DROP_QOS0, SPILL (the default) or DISCONNECT.
+	 * 
+	 * @param slowConsumerPolicy
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	public long getRedeliveryInterval() {
+		return redeliveryInterval;
+	}
+
+	/**
+	 * Sets the milliseconds a QoS 1 or 2 publish waits for its acknowledgement before being sent again, 0 only sends it again on reconnect.
+	 * 
+	 * @param redeliveryInterval
+	 */
+	public void setRedeliveryInterval(long redeliveryInterval) {
+		this.redeliveryInterval = redeliveryInterval;
+	}
+
+	public SharedSubscriptionPolicy getSharedSubscriptionPolicy() {
+		return sharedSubscriptionPolicy;
+	}
+
+	/**
+	 * Sets how the messages of a share group ($share/group/filter) are spread over its subscribers: ROUND_ROBIN (default) or LEAST_IN_FLIGHT.
+	 * 
+	 * @param sharedSubscriptionPolicy
+	 */
+	public void setSharedSubscriptionPolicy(SharedSubscriptionPolicy sharedSubscriptionPolicy) {
+		this.sharedSubscriptionPolicy = sharedSubscriptionPolicy;
+	}
+
+	public long getRetainedBudget() {
+		return retainedBudget;
+	}
+
+	/**
+	 * Sets the off heap bytes holding the retained messages, the least recently used ones are evicted beyond it.
+	 * 
+	 * @param retainedBudget
+	 */
+	public void setRetainedBudget(long retainedBudget) {
+		this.retainedBudget = retainedBudget;
+	}
+
+	public long getRetainedTtl() {
+		return retainedTtl;
+	}
+
+	/**
+	 * Sets the milliseconds a retained message is kept, 0 (default) keeps it until replaced, cleared or evicted.
+	 * 
+	 * @param retainedTtl
+	 */
+	public void setRetainedTtl(long retainedTtl) {
+		this.retainedTtl = retainedTtl;
+	}
+
+	public Map<String, Long> getRetainedTopicTtls() {
+		return retainedTopicTtls;
+	}
+
+	/**
+	 * Sets the milliseconds the retained messages are kept by topic filter, the first matching filter overrides retainedTtl.
+	 * 
+	 * @param retainedTopicTtls
+	 */
+	public void setRetainedTopicTtls(Map<String, Long> retainedTopicTtls) {
+		this.retainedTopicTtls = retainedTopicTtls;
+	}
+
+	/**
+	 * @return the retained messages store, with its hit, miss, eviction and expiration counts
+	 */
+	public OffHeapRetainedStore getRetainedStore() {
+		return mapStorage.getRetainedStore();
+	}
+
+	/**
+	 * @return the metrics of the outbound flow control
+	 */
+	public OutboundMetrics getOutboundMetrics() {
+		return messaging.getOutboundMetrics();
+	}
+
+	public int getStoreCommitBatchSize() {
+		return storeCommitBatchSize;
+	}
+
+	/**
+	 * Sets the number of changes forcing a group commit before the interval elapses.
+	 * 
+	 * @param storeCommitBatchSize
+	 */
+	public void setStoreCommitBatchSize(int storeCommitBatchSize) {
+		this.storeCommitBatchSize = storeCommitBatchSize;
+	}
+
 	@Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
 		this.applicationContext = applicationContext; 
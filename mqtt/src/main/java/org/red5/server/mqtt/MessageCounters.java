@@ -0,0 +1,74 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.moquette.proto.Utils;
+
+/**
+ * Received and sent message counts per MQTT message type, the cheap replacement of a log line per message.
+ */
+public class MessageCounters {
+
+	//message types are 4 bits
+	private final AtomicLongArray received = new AtomicLongArray(16);
+
+	private final AtomicLongArray sent = new AtomicLongArray(16);
+
+	public void received(byte messageType) {
+		received.incrementAndGet(messageType & 0x0F);
+	}
+
+	public void sent(byte messageType) {
+		sent.incrementAndGet(messageType & 0x0F);
+	}
+
+	public long getReceived(byte messageType) {
+		return received.get(messageType & 0x0F);
+	}
+
+	public long getSent(byte messageType) {
+		return sent.get(messageType & 0x0F);
+	}
+
+	/**
+	 * Resets all the counts to 0.
+	 */
+	public void reset() {
+		for (int i = 0; i < 16; i++) {
+			received.set(i, 0);
+			sent.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MessageCounters [");
+		//types 0 and 15 are reserved
+		for (int i = 1; i < 15; i++) {
+			if (i > 1) {
+				sb.append(", ");
+			}
+			sb.append(Utils.msgType2String(i)).append(" in: ").append(received.get(i)).append(" out: ").append(sent.get(i));
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the outbound flow control: sessions turning into slow consumers and back, publishes dropped or spilled to the store, sessions disconnected
+ * for exceeding their write budget, and the peak of bytes seen waiting in a session write queue; along with the QoS 1 and 2 publishes redelivered for
+ * lack of acknowledgement and the sessions closed by the keep alive timer.
+ */
+public class OutboundMetrics {
+
+	private final AtomicLong slowConsumers = new AtomicLong();
+
+	private final AtomicLong drained = new AtomicLong();
+
+	private final AtomicLong disconnected = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong spilled = new AtomicLong();
+
+	private final AtomicLong peakScheduledBytes = new AtomicLong();
+
+	private final AtomicLong redelivered = new AtomicLong();
+
+	private final AtomicLong keepAliveExpired = new AtomicLong();
+
+	public void slowConsumer() {
+		slowConsumers.incrementAndGet();
+	}
+
+	public void drained() {
+		drained.incrementAndGet();
+	}
+
+	public void disconnected() {
+		disconnected.incrementAndGet();
+	}
+
+	public void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	public void spilled() {
+		spilled.incrementAndGet();
+	}
+
+	public void redelivered() {
+		redelivered.incrementAndGet();
+	}
+
+	public void keepAliveExpired() {
+		keepAliveExpired.incrementAndGet();
+	}
+
+	/**
+	 * Records the bytes waiting to be written in a session, keeping the highest value.
+	 */
+	public void scheduled(long bytes) {
+		long peak = peakScheduledBytes.get();
+		while (bytes > peak && !peakScheduledBytes.compareAndSet(peak, bytes)) {
+			peak = peakScheduledBytes.get();
+		}
+	}
+
+	public long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+
+	public long getDrained() {
+		return drained.get();
+	}
+
+	public long getDisconnected() {
+		return disconnected.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	public long getPeakScheduledBytes() {
+		return peakScheduledBytes.get();
+	}
+
+	public long getRedelivered() {
+		return redelivered.get();
+	}
+
+	public long getKeepAliveExpired() {
+		return keepAliveExpired.get();
+	}
+
+	/**
+	 * Resets all the counts to 0.
+	 */
+	public void reset() {
+		slowConsumers.set(0);
+		drained.set(0);
+		disconnected.set(0);
+		dropped.set(0);
+		spilled.set(0);
+		peakScheduledBytes.set(0);
+		redelivered.set(0);
+		keepAliveExpired.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundMetrics [slowConsumers=" + slowConsumers + ", drained=" + drained + ", disconnected=" + disconnected + ", dropped=" + dropped + ", spilled=" + spilled + ", peakScheduledBytes=" + peakScheduledBytes + ", redelivered=" + redelivered + ", keepAliveExpired=" + keepAliveExpired + "]";
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package org.red5.server.mqtt;
 
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+
 /**
  * Represents connection channel.
  * 
@@ -32,5 +34,27 @@ public interface ServerChannel {
     void close(boolean immediately);
     
     void write(Object value);
+
+    /**
+     * Queues the message for the next flush, so the messages sent to a client in a burst are written together.
+     * 
+     * @return true if it's the first message queued since the last flush
+     */
+    boolean enqueue(AbstractMessage message) throws Exception;
+
+    /**
+     * Writes the messages queued since the last flush.
+     */
+    void flush();
+
+    /**
+     * @return false while the client is not keeping up with the messages written to it
+     */
+    boolean isWritable();
+
+    /**
+     * @return the time in milliseconds of the last read from the client
+     */
+    long getLastReadTime();
     
 }
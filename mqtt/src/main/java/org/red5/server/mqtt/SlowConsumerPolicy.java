@@ -0,0 +1,41 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt;
+
+/**
+ * What the broker does with the publishes for a client whose session is over the write high watermark.
+ */
+public enum SlowConsumerPolicy {
+
+	/**
+	 * QoS 0 publishes are dropped, QoS 1 and 2 are still written.
+	 */
+	DROP_QOS0,
+
+	/**
+	 * QoS 0 publishes are dropped, QoS 1 and 2 are stored in the session of the client and written once it has drained.
+	 */
+	SPILL,
+
+	/**
+	 * The client is disconnected.
+	 */
+	DISCONNECT
+
+}
@@ -35,8 +35,15 @@ public class MQTTCodecFactory implements ProtocolCodecFactory {
 	private final ProtocolDecoder decoder;
 
 	public MQTTCodecFactory() {
+		this(-1);
+	}
+
+	/**
+	 * @param payloadSliceThreshold size from which PUBLISH payloads are sliced from the received buffers instead of copied, negative to always copy
+	 */
+	public MQTTCodecFactory(int payloadSliceThreshold) {
 		encoder = new MQTTEncoder();
-		decoder = new MQTTDecoder();
+		decoder = new MQTTDecoder(payloadSliceThreshold);
 	}
 
 	@Override
@@ -18,12 +18,10 @@
 
 package org.red5.server.mqtt.codec;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
 import org.apache.mina.core.session.IoSession;
-import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderAdapter;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
@@ -50,51 +48,173 @@ import org.slf4j.LoggerFactory;
  * 
  * @author Paul Gregoire
  */
-public class MQTTDecoder extends CumulativeProtocolDecoder {
+public class MQTTDecoder extends ProtocolDecoderAdapter {
 
 	private static final Logger log = LoggerFactory.getLogger(MQTTDecoder.class);
 
-	private final Map<Byte, DemuxDecoder> decoderMap = new HashMap<Byte, DemuxDecoder>();
+	//start of a frame split across reads
+	private static final AttributeKey PARTIAL_FRAME = new AttributeKey(MQTTDecoder.class, "partialFrame");
+
+	//type and flags byte plus the longest remaining length
+	private static final int MAX_FIXED_HEADER_SIZE = 5;
+
+	//initial capacity of a partial frame buffer, larger frames grow with the data actually received
+	private static final int MAX_PARTIAL_FRAME_ALLOCATION = 64 * 1024;
+
+	//decoders indexed by message type, the 4 high bits of the first byte
+	private final DemuxDecoder[] decoders = new DemuxDecoder[16];
 
 	public static final String PROTOCOL_VERSION = "version";
 
 	public MQTTDecoder() {
-		decoderMap.put(AbstractMessage.CONNECT, new ConnectDecoder());
-		decoderMap.put(AbstractMessage.CONNACK, new ConnAckDecoder());
-		decoderMap.put(AbstractMessage.PUBLISH, new PublishDecoder());
-		decoderMap.put(AbstractMessage.PUBACK, new PubAckDecoder());
-		decoderMap.put(AbstractMessage.SUBSCRIBE, new SubscribeDecoder());
-		decoderMap.put(AbstractMessage.SUBACK, new SubAckDecoder());
-		decoderMap.put(AbstractMessage.UNSUBSCRIBE, new UnsubscribeDecoder());
-		decoderMap.put(AbstractMessage.DISCONNECT, new DisconnectDecoder());
-		decoderMap.put(AbstractMessage.PINGREQ, new PingReqDecoder());
-		decoderMap.put(AbstractMessage.PINGRESP, new PingRespDecoder());
-		decoderMap.put(AbstractMessage.UNSUBACK, new UnsubAckDecoder());
-		decoderMap.put(AbstractMessage.PUBCOMP, new PubCompDecoder());
-		decoderMap.put(AbstractMessage.PUBREC, new PubRecDecoder());
-		decoderMap.put(AbstractMessage.PUBREL, new PubRelDecoder());
+		this(-1);
+	}
+
+	/**
+	 * @param payloadSliceThreshold size from which PUBLISH payloads are sliced from the received buffers instead of copied, negative to always copy
+	 */
+	public MQTTDecoder(int payloadSliceThreshold) {
+		decoders[AbstractMessage.CONNECT] = new ConnectDecoder();
+		decoders[AbstractMessage.CONNACK] = new ConnAckDecoder();
+		decoders[AbstractMessage.PUBLISH] = new PublishDecoder(payloadSliceThreshold);
+		decoders[AbstractMessage.PUBACK] = new PubAckDecoder();
+		decoders[AbstractMessage.SUBSCRIBE] = new SubscribeDecoder();
+		decoders[AbstractMessage.SUBACK] = new SubAckDecoder();
+		decoders[AbstractMessage.UNSUBSCRIBE] = new UnsubscribeDecoder();
+		decoders[AbstractMessage.DISCONNECT] = new DisconnectDecoder();
+		decoders[AbstractMessage.PINGREQ] = new PingReqDecoder();
+		decoders[AbstractMessage.PINGRESP] = new PingRespDecoder();
+		decoders[AbstractMessage.UNSUBACK] = new UnsubAckDecoder();
+		decoders[AbstractMessage.PUBCOMP] = new PubCompDecoder();
+		decoders[AbstractMessage.PUBREC] = new PubRecDecoder();
+		decoders[AbstractMessage.PUBREL] = new PubRelDecoder();
+	}
+
+	/**
+	 * Decodes the frames of a received buffer. Complete frames are decoded in place; the bytes of a frame split across reads are gathered in a buffer
+	 * holding only that frame, which is decoded once complete and then dropped. Neither kind of buffer is written again after decoding (MINA allocates a
+	 * new one for every read), so the decoders may keep slices of them.
+	 */
+	@Override
+	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+		IoBuffer partial = (IoBuffer) session.getAttribute(PARTIAL_FRAME);
+		if (partial != null) {
+			if (!fill(partial, in)) {
+				return;
+			}
+			session.removeAttribute(PARTIAL_FRAME);
+			partial.flip();
+			decodeFrame(session, partial, out);
+		}
+		while (in.hasRemaining() && decodeFrame(session, in, out)) {
+			//next frame
+		}
+		if (in.hasRemaining()) {
+			int frameLength = frameLength(in, in.position(), in.limit());
+			partial = IoBuffer.allocate(frameLength < 0 ? MAX_FIXED_HEADER_SIZE : Math.min(frameLength, MAX_PARTIAL_FRAME_ALLOCATION));
+			partial.setAutoExpand(true);
+			partial.put(in);
+			session.setAttribute(PARTIAL_FRAME, partial);
+			if (log.isTraceEnabled()) {
+				log.trace("Partial frame of {} bytes, expected {}", partial.position(), frameLength);
+			}
+		}
 	}
 
 	@Override
-	protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//ConnectionDescriptor conn = (ConnectionDescriptor) session.getAttribute(Constants.CONNECTION);
-		// set position mark
-		in.mark();
-		// look for an expected header
-		if (!MQTTProtocol.checkHeaderAvailability(in)) {
-			// reset position to the mark
-			in.reset();
+	public void dispose(IoSession session) throws Exception {
+		session.removeAttribute(PARTIAL_FRAME);
+	}
+
+	/**
+	 * Decodes the frame starting at the position of the buffer, the decoder of the message type parses it with the buffer limit set to the end of the
+	 * frame.
+	 * 
+	 * @return false, consuming nothing, if the frame is not complete
+	 */
+	private boolean decodeFrame(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+		int start = in.position();
+		int limit = in.limit();
+		int lengthFieldSize = lengthFieldSize(in, start, limit);
+		if (lengthFieldSize < 0) {
 			return false;
 		}
-		// reset position to the mark
-		in.reset();
-		byte messageType = MQTTProtocol.readMessageType(in);
-		DemuxDecoder decoder = decoderMap.get(messageType);
+		int remainingLength = remainingLength(in, start, lengthFieldSize);
+		int frameEnd = start + 1 + lengthFieldSize + remainingLength;
+		if (frameEnd > limit) {
+			return false;
+		}
+		byte header = in.get(start);
+		DemuxDecoder decoder = decoders[(header >> 4) & 0x0F];
 		if (decoder == null) {
-			throw new CorruptedFrameException("Can't find any suitable decoder for message type: " + messageType);
+			throw new CorruptedFrameException("Can't find any suitable decoder for message type: " + ((header >> 4) & 0x0F));
+		}
+		in.position(start + 1 + lengthFieldSize);
+		in.limit(frameEnd);
+		try {
+			decoder.decode(session, header, remainingLength, in, out);
+		} finally {
+			//whatever the decoder read, go on with the next frame
+			in.limit(limit);
+			in.position(frameEnd);
 		}
-		decoder.decode(session, in, out);
 		return true;
 	}
-	
-}
\ No newline at end of file
+
+	/**
+	 * Moves the bytes of the partial frame from in, up to the end of the frame.
+	 * 
+	 * @return true if the frame is complete
+	 */
+	private static boolean fill(IoBuffer partial, IoBuffer in) throws CorruptedFrameException {
+		int frameLength;
+		//a byte at a time until the remaining length is known
+		while ((frameLength = frameLength(partial, 0, partial.position())) < 0) {
+			if (!in.hasRemaining()) {
+				return false;
+			}
+			partial.put(in.get());
+		}
+		int count = Math.min(frameLength - partial.position(), in.remaining());
+		int limit = in.limit();
+		in.limit(in.position() + count);
+		partial.put(in);
+		in.limit(limit);
+		return partial.position() == frameLength;
+	}
+
+	/**
+	 * @return the length of the whole frame starting at start, -1 if its fixed header is not complete
+	 */
+	private static int frameLength(IoBuffer in, int start, int limit) throws CorruptedFrameException {
+		int lengthFieldSize = lengthFieldSize(in, start, limit);
+		return lengthFieldSize < 0 ? -1 : 1 + lengthFieldSize + remainingLength(in, start, lengthFieldSize);
+	}
+
+	/**
+	 * The remaining length takes 1 to 4 bytes of 7 bits, the high bit set when another follows.
+	 * 
+	 * @return the number of bytes of the remaining length of the frame starting at start, -1 if they are not all available
+	 */
+	private static int lengthFieldSize(IoBuffer in, int start, int limit) throws CorruptedFrameException {
+		int pos = start + 1;
+		do {
+			if (pos - start > 4) {
+				throw new CorruptedFrameException("Remaining length exceeding 4 bytes");
+			}
+			if (pos >= limit) {
+				return -1;
+			}
+		} while ((in.get(pos++) & 0x80) != 0);
+		return pos - start - 1;
+	}
+
+	private static int remainingLength(IoBuffer in, int start, int lengthFieldSize) {
+		int remainingLength = 0;
+		for (int i = 0; i < lengthFieldSize; i++) {
+			remainingLength |= (in.get(start + 1 + i) & 0x7F) << (7 * i);
+		}
+		return remainingLength;
+	}
+
+}
@@ -18,10 +18,6 @@
 
 package org.red5.server.mqtt.codec;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
@@ -54,33 +50,33 @@ public class MQTTEncoder extends ProtocolEncoderAdapter {
 
 	private static final Logger log = LoggerFactory.getLogger(MQTTEncoder.class);
     
-    private Map<Byte, DemuxEncoder<?>> encoderMap = new HashMap<Byte, DemuxEncoder<? extends AbstractMessage>>();
+	//encoders indexed by message type
+    private final DemuxEncoder<?>[] encoders = new DemuxEncoder<?>[16];
     
 	public MQTTEncoder() {
-		encoderMap.put(AbstractMessage.CONNECT, new ConnectEncoder());
-        encoderMap.put(AbstractMessage.CONNACK, new ConnAckEncoder());
-        encoderMap.put(AbstractMessage.PUBLISH, new PublishEncoder());
-        encoderMap.put(AbstractMessage.PUBACK, new PubAckEncoder());
-        encoderMap.put(AbstractMessage.SUBSCRIBE, new SubscribeEncoder());
-        encoderMap.put(AbstractMessage.SUBACK, new SubAckEncoder());
-        encoderMap.put(AbstractMessage.UNSUBSCRIBE, new UnsubscribeEncoder());
-        encoderMap.put(AbstractMessage.DISCONNECT, new DisconnectEncoder());
-        encoderMap.put(AbstractMessage.PINGREQ, new PingReqEncoder());
-        encoderMap.put(AbstractMessage.PINGRESP, new PingRespEncoder());
-        encoderMap.put(AbstractMessage.UNSUBACK, new UnsubAckEncoder());
-        encoderMap.put(AbstractMessage.PUBCOMP, new PubCompEncoder());
-        encoderMap.put(AbstractMessage.PUBREC, new PubRecEncoder());
-        encoderMap.put(AbstractMessage.PUBREL, new PubRelEncoder());
+		encoders[AbstractMessage.CONNECT] = new ConnectEncoder();
+        encoders[AbstractMessage.CONNACK] = new ConnAckEncoder();
+        encoders[AbstractMessage.PUBLISH] = new PublishEncoder();
+        encoders[AbstractMessage.PUBACK] = new PubAckEncoder();
+        encoders[AbstractMessage.SUBSCRIBE] = new SubscribeEncoder();
+        encoders[AbstractMessage.SUBACK] = new SubAckEncoder();
+        encoders[AbstractMessage.UNSUBSCRIBE] = new UnsubscribeEncoder();
+        encoders[AbstractMessage.DISCONNECT] = new DisconnectEncoder();
+        encoders[AbstractMessage.PINGREQ] = new PingReqEncoder();
+        encoders[AbstractMessage.PINGRESP] = new PingRespEncoder();
+        encoders[AbstractMessage.UNSUBACK] = new UnsubAckEncoder();
+        encoders[AbstractMessage.PUBCOMP] = new PubCompEncoder();
+        encoders[AbstractMessage.PUBREC] = new PubRecEncoder();
+        encoders[AbstractMessage.PUBREL] = new PubRelEncoder();
      }
      
 	@SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
 	public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
 		AbstractMessage msg = (AbstractMessage) message;
-        DemuxEncoder encoder = encoderMap.get(msg.getMessageType());
+        DemuxEncoder encoder = encoders[msg.getMessageType() & 0x0F];
         if (encoder != null) {
-            IoBuffer bb = encoder.encode(session, msg);
-            out.write(bb);
+            encoder.encode(session, msg, out);
             out.flush();
         } else {
             throw new CorruptedFrameException("Can't find any suitable decoder for message type: " + msg.getMessageType());
@@ -41,28 +41,6 @@ public class MQTTProtocol {
 
 	public static final byte VERSION_3_1_1 = 4;
 	
-	public static byte readMessageType(IoBuffer in) {
-		byte h1 = in.get();
-		byte messageType = (byte) ((h1 & 0x00F0) >> 4);
-		return messageType;
-	}
-
-	public static boolean checkHeaderAvailability(IoBuffer in) {
-		if (in.remaining() < 1) {
-			return false;
-		}
-		in.skip(1); //skip the messageType byte
-		int remainingLength = decodeRemainingLength(in);
-		if (remainingLength == -1) {
-			return false;
-		}
-		//check remaining length
-		if (in.remaining() < remainingLength) {
-			return false;
-		}
-		return true;
-	}
-
 	/**
 	 * Decode the variable remaining length as defined in MQTT v3.1 specification (section 2.1).
 	 *  
@@ -105,7 +83,9 @@ public class MQTTProtocol {
 			baos.write(digit);
 		} while (value > 0);
 		byte[] encoded = baos.toByteArray();
-		log.trace("Encoded remaining length: {}", Arrays.toString(encoded));
+		if (log.isTraceEnabled()) {
+			log.trace("Encoded remaining length: {}", Arrays.toString(encoded));
+		}
 		return encoded;
 	}
 
@@ -139,7 +119,9 @@ public class MQTTProtocol {
 			out[0] = (byte) ((raw.length >>> 8) & 0xFF);
 			out[1] = (byte) ((raw.length >>> 0) & 0xFF);
 			System.arraycopy(raw, 0, out, 2, raw.length);
-			log.trace("Encode string: {}", Arrays.toString(out));
+			if (log.isTraceEnabled()) {
+				log.trace("Encode string: {}", Arrays.toString(out));
+			}
 		} catch (UnsupportedEncodingException ex) {
 			log.error(null, ex);
 			return null;
@@ -14,14 +14,9 @@ import org.eclipse.moquette.proto.messages.ConnAckMessage;
 public class ConnAckDecoder extends DemuxDecoder {
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		in.reset();
-		//Common decoding part
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		ConnAckMessage message = new ConnAckMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		// skip reserved byte
 		in.skip(1);
 
@@ -26,7 +26,6 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.ConnectMessage;
 import org.red5.server.mqtt.codec.MQTTDecoder;
-import org.red5.server.mqtt.codec.MQTTProtocol;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,17 +43,11 @@ public class ConnectDecoder extends DemuxDecoder {
 	public static final String CONNECT_STATUS = "connected";
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws UnsupportedEncodingException, CorruptedFrameException {
-		in.reset();
-		//Common decoding part
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws UnsupportedEncodingException, CorruptedFrameException {
 		ConnectMessage message = new ConnectMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
-		int remainingLength = message.getRemainingLength();
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		log.trace("remainingLength: {}", remainingLength);
-		int start = in.markValue();
+		int start = in.position();
 		int protocolNameLen = in.getUnsignedShort();
 		log.trace("protocolNameLen: {}", protocolNameLen);
 		byte[] encProtoName;
@@ -64,14 +57,12 @@ public class ConnectDecoder extends DemuxDecoder {
 				//MQTT version 3.1 "MQIsdp"
 				//ProtocolName 8 bytes or 6 bytes
 				if (in.remaining() < 10) {
-					in.reset();
-					return;
+					throw new CorruptedFrameException("Truncated CONNECT variable header");
 				}
 				encProtoName = new byte[6];
 				in.get(encProtoName);
 				protoName = new String(encProtoName, "UTF-8");
 				if (!"MQIsdp".equals(protoName)) {
-					in.remaining();
 					throw new CorruptedFrameException("Invalid protoName: " + protoName);
 				}
 				message.setProtocolName(protoName);
@@ -81,14 +72,12 @@ public class ConnectDecoder extends DemuxDecoder {
 				//MQTT version 3.1.1 "MQTT"
 				//ProtocolName 6 bytes
 				if (in.remaining() < 8) {
-					in.reset();
-					return;
+					throw new CorruptedFrameException("Truncated CONNECT variable header");
 				}
 				encProtoName = new byte[4];
 				in.get(encProtoName);
 				protoName = new String(encProtoName, "UTF-8");
 				if (!"MQTT".equals(protoName)) {
-					in.reset();
 					throw new CorruptedFrameException("Invalid protoName: " + protoName);
 				}
 				message.setProtocolName(protoName);
@@ -129,7 +118,6 @@ public class ConnectDecoder extends DemuxDecoder {
 		boolean willFlag = ((connFlags & 0x04) >> 2) == 1;
 		byte willQos = (byte) ((connFlags & 0x18) >> 3);
 		if (willQos > 2) {
-			in.reset();
 			throw new CorruptedFrameException("Expected will QoS in range 0..2 but found: " + willQos);
 		}
 		boolean willRetain = ((connFlags & 0x20) >> 5) == 1;
@@ -137,7 +125,6 @@ public class ConnectDecoder extends DemuxDecoder {
 		boolean userFlag = ((connFlags & 0x80) >> 7) == 1;
 		//a password is true iff user is true
 		if (!userFlag && passwordFlag) {
-			in.reset();
 			throw new CorruptedFrameException("Expected password flag to true if the user flag is true but was: " + passwordFlag);
 		}
 		message.setCleanSession(cleanSession);
@@ -158,36 +145,24 @@ public class ConnectDecoder extends DemuxDecoder {
 		}
 
 		//Decode the ClientID
-		String clientID = MQTTProtocol.decodeString(in);
-		if (clientID == null) {
-			in.reset();
-			return;
-		}
+		String clientID = decodeString(in);
 		message.setClientID(clientID);
 
 		//Decode willTopic
 		if (willFlag) {
-			String willTopic = MQTTProtocol.decodeString(in);
-			if (willTopic == null) {
-				in.reset();
-				return;
-			}
+			String willTopic = decodeString(in);
 			message.setWillTopic(willTopic);
 		}
 
 		//Decode willMessage
 		if (willFlag) {
-			String willMessage = MQTTProtocol.decodeString(in);
-			if (willMessage == null) {
-				in.reset();
-				return;
-			}
+			String willMessage = decodeString(in);
 			message.setWillMessage(willMessage);
 		}
 
 		//Compatibility check with v3.0, remaining length has precedence over
 		//the user and password flags
-		int readed = in.markValue() - start;
+		int readed = in.position() - start;
 		if (readed == remainingLength) {
 			out.write(message);
 			return;
@@ -195,11 +170,7 @@ public class ConnectDecoder extends DemuxDecoder {
 
 		//Decode username
 		if (userFlag) {
-			String userName = MQTTProtocol.decodeString(in);
-			if (userName == null) {
-				in.reset();
-				return;
-			}
+			String userName = decodeString(in);
 			message.setUsername(userName);
 		}
 
@@ -211,11 +182,7 @@ public class ConnectDecoder extends DemuxDecoder {
 
 		//Decode password
 		if (passwordFlag) {
-			String password = MQTTProtocol.decodeString(in);
-			if (password == null) {
-				in.reset();
-				return;
-			}
+			String password = decodeString(in);
 			message.setPassword(password);
 		}
 
@@ -34,7 +34,7 @@ public class ConnectEncoder extends DemuxEncoder<ConnectMessage> {
 	public IoBuffer encode(IoSession session, ConnectMessage message) throws CorruptedFrameException {
 		IoBuffer out = IoBuffer.allocate(0).setAutoExpand(true);
 		IoBuffer staticHeaderBuff = IoBuffer.allocate(12);
-		IoBuffer variableHeaderBuff = IoBuffer.allocate(12);
+		IoBuffer variableHeaderBuff = IoBuffer.allocate(12).setAutoExpand(true);
         try {
             staticHeaderBuff.put(MQTTProtocol.encodeString("MQIsdp"));
             //version 
@@ -74,13 +74,13 @@ public class ConnectEncoder extends DemuxEncoder<ConnectMessage> {
                     }
                 }
             }
+            variableHeaderBuff.flip();
             int variableHeaderSize = variableHeaderBuff.remaining();
             out.put((byte) (AbstractMessage.CONNECT << 4));
             out.put(MQTTProtocol.encodeRemainingLength(12 + variableHeaderSize));
             staticHeaderBuff.flip();
-            out.put(staticHeaderBuff.array());
-            variableHeaderBuff.flip();
-            out.put(variableHeaderBuff.array());
+            out.put(staticHeaderBuff);
+            out.put(variableHeaderBuff);
             out.flip();
             return out;
         } finally {
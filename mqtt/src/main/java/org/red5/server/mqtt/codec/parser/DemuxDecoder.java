@@ -15,14 +15,14 @@
  */
 package org.red5.server.mqtt.codec.parser;
 
+import java.io.UnsupportedEncodingException;
+
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.red5.server.mqtt.codec.MQTTProtocol;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Base demux decoder.
@@ -32,17 +32,21 @@ import org.slf4j.LoggerFactory;
  */
 public abstract class DemuxDecoder {
 
-	private static final Logger log = LoggerFactory.getLogger(DemuxDecoder.class);
-
-	public abstract void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception;
+	/**
+	 * Decodes the variable header and the payload of a frame. The fixed header has already been parsed by MQTTDecoder, which only calls this once the whole frame
+	 * has been received: the buffer is positioned after the fixed header and its limit is the end of the frame.
+	 */
+	public abstract void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception;
 
 	/**
-	 * Decodes the first 2 bytes of the MQTT packet. The first byte contain the packet operation code and the flags, the second byte and more contains the overall packet length.
-	 * 
-	 * @throws CorruptedFrameException
+	 * Sets the fields of the fixed header on the message. The first byte contain the packet operation code and the flags, the following ones the overall packet length.
 	 */
-	protected boolean decodeCommonHeader(AbstractMessage message, IoBuffer in) throws CorruptedFrameException {
-		return genericDecodeCommonHeader(message, null, in);
+	protected void decodeCommonHeader(AbstractMessage message, byte header, int remainingLength) {
+		message.setMessageType((byte) ((header & 0x00F0) >> 4));
+		message.setDupFlag((header & 0x0008) != 0);
+		message.setQos(AbstractMessage.QOSType.values()[(header & 0x0006) >> 1]);
+		message.setRetainFlag((header & 0x0001) != 0);
+		message.setRemainingLength(remainingLength);
 	}
 
 	/**
@@ -50,40 +54,27 @@ public abstract class DemuxDecoder {
 	 * 
 	 * @throws CorruptedFrameException
 	 */
-	protected boolean decodeCommonHeader(AbstractMessage message, int expectedFlags, IoBuffer in) throws CorruptedFrameException {
-		return genericDecodeCommonHeader(message, expectedFlags, in);
+	protected void decodeCommonHeader(AbstractMessage message, int expectedFlags, byte header, int remainingLength) throws CorruptedFrameException {
+		byte flags = (byte) (header & 0x0F);
+		if ((byte) expectedFlags != flags) {
+			String hexExpected = Integer.toHexString(expectedFlags);
+			String hexReceived = Integer.toHexString(flags);
+			throw new CorruptedFrameException(String.format("Received a message with fixed header flags (%s) != expected (%s)", hexReceived, hexExpected));
+		}
+		decodeCommonHeader(message, header, remainingLength);
 	}
 
-	private boolean genericDecodeCommonHeader(AbstractMessage message, Integer expectedFlagsOpt, IoBuffer in) throws CorruptedFrameException {
-		// common decoding part 
-		if (in.remaining() < 2) {
-			return false;
-		}
-		byte h1 = in.get();
-		byte messageType = (byte) ((h1 & 0x00F0) >> 4);
-		byte flags = (byte) (h1 & 0x0F);
-		if (expectedFlagsOpt != null) {
-			int expectedFlags = expectedFlagsOpt;
-			if ((byte) expectedFlags != flags) {
-				String hexExpected = Integer.toHexString(expectedFlags);
-				String hexReceived = Integer.toHexString(flags);
-				throw new CorruptedFrameException(String.format("Received a message with fixed header flags (%s) != expected (%s)", hexReceived, hexExpected));
-			}
-		}
-		boolean dupFlag = ((byte) ((h1 & 0x0008) >> 3) == 1);
-		byte qosLevel = (byte) ((h1 & 0x0006) >> 1);
-		log.trace("Message - qos level: {}", qosLevel);
-		boolean retainFlag = ((byte) (h1 & 0x0001) == 1);
-		int remainingLength = MQTTProtocol.decodeRemainingLength(in);
-		if (remainingLength == -1) {
-			return false;
+	/**
+	 * Reads a length prefixed string; the frame is complete so a string running past its end means the frame is corrupted.
+	 * 
+	 * @throws CorruptedFrameException
+	 */
+	protected static String decodeString(IoBuffer in) throws UnsupportedEncodingException, CorruptedFrameException {
+		String str = MQTTProtocol.decodeString(in);
+		if (str == null) {
+			throw new CorruptedFrameException("String exceeding the frame length");
 		}
-		message.setMessageType(messageType);
-		message.setDupFlag(dupFlag);
-		message.setQos(AbstractMessage.QOSType.values()[qosLevel]);
-		message.setRetainFlag(retainFlag);
-		message.setRemainingLength(remainingLength);
-		return true;
+		return str;
 	}
 
 }
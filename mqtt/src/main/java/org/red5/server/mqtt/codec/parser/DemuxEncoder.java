@@ -17,6 +17,7 @@ package org.red5.server.mqtt.codec.parser;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 
@@ -29,5 +30,12 @@ import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 public abstract class DemuxEncoder<T extends AbstractMessage> {
 	
 	public abstract IoBuffer encode(IoSession session, T msg) throws CorruptedFrameException;
+
+	/**
+	 * Writes the encoded message to the output; encoders able to emit the frame as several buffers override this to avoid copying into a single one.
+	 */
+	public void encode(IoSession session, T msg, ProtocolEncoderOutput out) throws CorruptedFrameException {
+		out.write(encode(session, msg));
+	}
 	
 }
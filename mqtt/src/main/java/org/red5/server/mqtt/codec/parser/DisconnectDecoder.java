@@ -29,14 +29,9 @@ import org.eclipse.moquette.proto.messages.DisconnectMessage;
 public class DisconnectDecoder extends DemuxDecoder {
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//Common decoding part
-		in.reset();
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		DisconnectMessage message = new DisconnectMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		out.write(message);
 	}
 
@@ -29,14 +29,9 @@ public abstract class MessageIDDecoder extends DemuxDecoder {
 	protected abstract MessageIDMessage createMessage();
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		in.reset();
-		//Common decoding part
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		MessageIDMessage message = createMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		//read  messageIDs
 		message.setMessageID(in.getUnsignedShort());
 		out.write(message);
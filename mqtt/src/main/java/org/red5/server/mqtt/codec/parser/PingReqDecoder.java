@@ -29,14 +29,10 @@ import org.eclipse.moquette.proto.messages.PingReqMessage;
 public class PingReqDecoder extends DemuxDecoder {
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//Common decoding part
-		in.reset();
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		PingReqMessage message = new PingReqMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		out.write(message);
 	}
+
 }
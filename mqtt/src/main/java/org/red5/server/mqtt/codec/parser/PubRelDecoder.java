@@ -15,8 +15,6 @@
  */
 package org.red5.server.mqtt.codec.parser;
 
-import java.io.UnsupportedEncodingException;
-
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
@@ -29,20 +27,14 @@ import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
  * @author andrea
  */
 public class PubRelDecoder extends DemuxDecoder {
-    
-    @Override
-    public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws UnsupportedEncodingException, CorruptedFrameException {
-        in.reset();
-        //Common decoding part
-        MessageIDMessage message = new PubRelMessage();
-        if (!decodeCommonHeader(message, 0x02, in)) {
-            in.reset();
-            return;
-        }        
-        //read  messageIDs
-        message.setMessageID(in.getUnsignedShort());
-        out.write(message);
-    }
 
-}
+	@Override
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws CorruptedFrameException {
+		MessageIDMessage message = new PubRelMessage();
+		decodeCommonHeader(message, 0x02, header, remainingLength);
+		//read  messageIDs
+		message.setMessageID(in.getUnsignedShort());
+		out.write(message);
+	}
 
+}
@@ -33,7 +33,8 @@ public class PubRelEncoder extends DemuxEncoder<PubRelMessage> {
 	@Override
 	public IoBuffer encode(IoSession session, PubRelMessage message) throws CorruptedFrameException {
 		IoBuffer out = IoBuffer.allocate(4);
-		out.put((byte) (AbstractMessage.PUBREL << 4));
+		//the flags of PUBREL are reserved as 0010
+		out.put((byte) (AbstractMessage.PUBREL << 4 | 0x02));
 		out.put(MQTTProtocol.encodeRemainingLength(2));
 		out.putShort((short) message.getMessageID());
 		out.flip();
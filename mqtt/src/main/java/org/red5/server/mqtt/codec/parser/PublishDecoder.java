@@ -36,18 +36,21 @@ public class PublishDecoder extends DemuxDecoder {
 
 	private static Logger LOG = LoggerFactory.getLogger(PublishDecoder.class);
 
+	//payloads of at least this size are sliced from the frame instead of copied, negative to always copy
+	private final int m_sliceThreshold;
+
+	public PublishDecoder() {
+		this(-1);
+	}
+
+	public PublishDecoder(int sliceThreshold) {
+		m_sliceThreshold = sliceThreshold;
+	}
+
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		LOG.info("decode invoked with buffer {}", in);
-		in.reset();
-		int startPos = in.markValue();
-		//Common decoding part
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		PublishMessage message = new PublishMessage();
-		if (!decodeCommonHeader(message, in)) {
-			LOG.info("decode ask for more data after {}", in);
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, header, remainingLength);
 		if (((int) session.getAttribute(MQTTDecoder.PROTOCOL_VERSION)) == MQTTProtocol.VERSION_3_1_1) {
 			if (message.getQos() == AbstractMessage.QOSType.MOST_ONE && message.isDupFlag()) {
 				//bad protocol, if QoS=0 => DUP = 0
@@ -57,13 +60,8 @@ public class PublishDecoder extends DemuxDecoder {
 				throw new CorruptedFrameException("Received a PUBLISH with QoS flags setted 10 b11, MQTT 3.1.1 violation");
 			}
 		}
-		int remainingLength = message.getRemainingLength();
 		//Topic name
-		String topic = MQTTProtocol.decodeString(in);
-		if (topic == null) {
-			in.reset();
-			return;
-		}
+		String topic = decodeString(in);
 		if (topic.contains("+") || topic.contains("#")) {
 			throw new CorruptedFrameException("Received a PUBLISH with topic containting wild card chars, topic: " + topic);
 		}
@@ -71,17 +69,20 @@ public class PublishDecoder extends DemuxDecoder {
 		if (message.getQos() == AbstractMessage.QOSType.LEAST_ONE || message.getQos() == AbstractMessage.QOSType.EXACTLY_ONCE) {
 			message.setMessageID(in.getUnsignedShort());
 		}
-		int stopPos = in.position();
-		//read the payload
-		int payloadSize = remainingLength - (stopPos - startPos - 2) + (MQTTProtocol.numBytesToEncode(remainingLength) - 1);
-		LOG.info("payload size: {}", payloadSize);
-		if (in.remaining() < payloadSize) {
-			in.reset();
-			return;
+		//the payload is the rest of the frame
+		int payloadSize = in.remaining();
+		if (LOG.isTraceEnabled()) {
+			LOG.trace("payload size: {}", payloadSize);
+		}
+		if (m_sliceThreshold >= 0 && payloadSize >= m_sliceThreshold) {
+			//MQTTDecoder never writes a buffer it decoded from, the slice keeps the frame until the last subscriber has been written
+			message.setPayload(in.buf());
+			in.skip(payloadSize);
+		} else {
+			byte[] payload = new byte[payloadSize];
+			in.get(payload);
+			message.setPayload(payload);
 		}
-		byte[] payload = new byte[payloadSize];
-		in.get(payload);
-		message.setPayload(payload);
 		out.write(message);
 	}
 
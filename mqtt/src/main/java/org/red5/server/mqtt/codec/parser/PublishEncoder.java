@@ -17,6 +17,7 @@ package org.red5.server.mqtt.codec.parser;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.PublishMessage;
 import org.red5.server.mqtt.codec.MQTTProtocol;
@@ -36,41 +37,75 @@ public class PublishEncoder extends DemuxEncoder<PublishMessage> {
 
 	@Override
 	public IoBuffer encode(IoSession session, PublishMessage message) throws CorruptedFrameException {
-		if (message.getQos() == AbstractMessage.QOSType.RESERVED) {
+		IoBuffer header = encodeHeader(message);
+		IoBuffer out = IoBuffer.allocate(header.remaining() + message.getPayloadLength());
+		out.put(header);
+		out.put(message.getPayloadBuffer());
+		out.flip();
+		log.trace("Publish out: {}", out);
+		return out;
+	}
+
+	/**
+	 * Writes the headers and the payload as two buffers, the payload is wrapped read-only so the buffer shared by all the subscribers of a publish is never copied.
+	 */
+	@Override
+	public void encode(IoSession session, PublishMessage message, ProtocolEncoderOutput out) throws CorruptedFrameException {
+		out.write(encodeHeader(message));
+		//MINA refuses empty buffers
+		if (message.getPayloadLength() > 0) {
+			out.write(IoBuffer.wrap(message.getPayloadBuffer()).asReadOnlyBuffer());
+		}
+	}
+
+	/**
+	 * Encodes the fixed header and the topic name, the part of a publish which depends only on topic, QoS, flags and payload length; the messages of a fan-out
+	 * sharing the same QoS and retain flag can then reuse the returned bytes.
+	 */
+	public static byte[] encodeHeader(String topicName, AbstractMessage.QOSType qos, boolean dup, boolean retain, int payloadLength) throws CorruptedFrameException {
+		if (qos == AbstractMessage.QOSType.RESERVED) {
 			throw new IllegalArgumentException("Found a message with RESERVED Qos");
 		}
-		if (message.getTopicName() == null || message.getTopicName().isEmpty()) {
+		if (topicName == null || topicName.isEmpty()) {
 			throw new IllegalArgumentException("Found a message with empty or null topic name");
 		}
-		IoBuffer variableHeaderBuff = IoBuffer.allocate(2).setAutoExpand(true);
-		try {
-			variableHeaderBuff.put(MQTTProtocol.encodeString(message.getTopicName()));
-			if (message.getQos() == AbstractMessage.QOSType.LEAST_ONE || message.getQos() == AbstractMessage.QOSType.EXACTLY_ONCE) {
-				if (message.getMessageID() == -1) {
-					throw new IllegalArgumentException("Found a message with QOS 1 or 2 and not MessageID setted");
-				}
-				variableHeaderBuff.putShort((short) message.getMessageID());
-			}
-			//int lengthInBytes = MQTTProtocol.numBytesToEncode(variableHeaderBuff.limit());
-			//log.trace("lengthInBytes: {}", lengthInBytes);			
-			variableHeaderBuff.flip();
-			log.trace("Publish variableBuf: {}", variableHeaderBuff);
-			int variableHeaderSize = variableHeaderBuff.limit();
-			log.trace("Publish variableHeaderSize: {}", variableHeaderSize);
-
-			byte flags = MQTTProtocol.encodeFlags(message);
+		byte[] topic = MQTTProtocol.encodeString(topicName);
+		int variableHeaderSize = topic.length;
+		if (qos == AbstractMessage.QOSType.LEAST_ONE || qos == AbstractMessage.QOSType.EXACTLY_ONCE) {
+			//room for the message ID, appended per message
+			variableHeaderSize += 2;
+		}
+		byte flags = (byte) ((qos.ordinal() & 0x03) << 1);
+		if (dup) {
+			flags |= 0x08;
+		}
+		if (retain) {
+			flags |= 0x01;
+		}
+		byte[] remainingLength = MQTTProtocol.encodeRemainingLength(variableHeaderSize + payloadLength);
+		byte[] header = new byte[1 + remainingLength.length + topic.length];
+		header[0] = (byte) (AbstractMessage.PUBLISH << 4 | flags);
+		System.arraycopy(remainingLength, 0, header, 1, remainingLength.length);
+		System.arraycopy(topic, 0, header, 1 + remainingLength.length, topic.length);
+		return header;
+	}
 
-			IoBuffer out = IoBuffer.allocate(2 + variableHeaderSize).setAutoExpand(true);
-			out.put((byte) (AbstractMessage.PUBLISH << 4 | flags));
-			out.put(MQTTProtocol.encodeRemainingLength(variableHeaderSize + message.getPayload().length));
-			out.put(variableHeaderBuff);
-			out.put(message.getPayload());
-			out.flip();
-			log.trace("Publish out: {}", out);
-			return out;
-		} finally {
-			variableHeaderBuff.free();
+	private IoBuffer encodeHeader(PublishMessage message) throws CorruptedFrameException {
+		byte[] header = message.getEncodedHeader();
+		if (header == null) {
+			header = encodeHeader(message.getTopicName(), message.getQos(), message.isDupFlag(), message.isRetainFlag(), message.getPayloadLength());
+		}
+		IoBuffer out = IoBuffer.allocate(header.length + 2);
+		out.put(header);
+		if (message.getQos() == AbstractMessage.QOSType.LEAST_ONE || message.getQos() == AbstractMessage.QOSType.EXACTLY_ONCE) {
+			if (message.getMessageID() == -1) {
+				throw new IllegalArgumentException("Found a message with QOS 1 or 2 and not MessageID setted");
+			}
+			out.putShort((short) message.getMessageID());
 		}
+		out.flip();
+		log.trace("Publish header: {}", out);
+		return out;
 	}
 
 }
@@ -30,24 +30,13 @@ import org.eclipse.moquette.proto.messages.SubAckMessage;
 public class SubAckDecoder extends DemuxDecoder {
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//Common decoding part
-		in.reset();
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		SubAckMessage message = new SubAckMessage();
-		if (!decodeCommonHeader(message, 0x00, in)) {
-			in.reset();
-			return;
-		}
-		int remainingLength = message.getRemainingLength();
+		decodeCommonHeader(message, 0x00, header, remainingLength);
 		//MessageID
 		message.setMessageID(in.getUnsignedShort());
-		remainingLength -= 2;
-		//Qos array
-		if (in.remaining() < remainingLength) {
-			in.reset();
-			return;
-		}
-		for (int i = 0; i < remainingLength; i++) {
+		//Qos array, up to the end of the frame
+		while (in.hasRemaining()) {
 			byte qos = in.get();
 			message.addType(AbstractMessage.QOSType.values()[qos]);
 		}
@@ -22,7 +22,6 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
 import org.eclipse.moquette.proto.messages.SubscribeMessage;
-import org.red5.server.mqtt.codec.MQTTProtocol;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,27 +37,18 @@ public class SubscribeDecoder extends DemuxDecoder {
 	private static final Logger log = LoggerFactory.getLogger(SubscribeDecoder.class);
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//Common decoding part
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		SubscribeMessage message = new SubscribeMessage();
-		in.reset();
-		if (!decodeCommonHeader(message, 0x02, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x02, header, remainingLength);
 		//check qos level
 		if (message.getQos() != QOSType.LEAST_ONE) {
 			throw new CorruptedFrameException("Received Subscribe message with QoS other than LEAST_ONE, was: " + message.getQos());
 		}
-		int start = in.markValue();
 		//read  messageIDs
 		message.setMessageID(in.getUnsignedShort());
-		int readed = in.position() - start;
-		log.trace("Subscribe start: {} readed: {}", start, readed);
-		while (readed < message.getRemainingLength()) {
+		//couples of topic and QoS up to the end of the frame
+		while (in.hasRemaining()) {
 			decodeSubscription(in, message);
-			readed = in.position() - start;
-			log.trace("Subscribe readed: {}", readed);
 		}
 		if (message.subscriptions().isEmpty()) {
 			throw new CorruptedFrameException("subscribe MUST have got at least 1 couple topic/QoS");
@@ -72,8 +62,11 @@ public class SubscribeDecoder extends DemuxDecoder {
 	 * @throws CorruptedFrameException
 	 */
 	private void decodeSubscription(IoBuffer in, SubscribeMessage message) throws UnsupportedEncodingException, CorruptedFrameException {
-		String topic = MQTTProtocol.decodeString(in);
+		String topic = decodeString(in);
 		log.trace("Subscribe topic: {}", topic);
+		if (!in.hasRemaining()) {
+			throw new CorruptedFrameException("subscribe topic without QoS byte: " + topic);
+		}
 		byte qosByte = in.get();
 		log.trace("QoS byte: {}", qosByte);
 		if ((qosByte & 0xFC) > 0) { //the first 6 bits is reserved => has to be 0
@@ -39,19 +39,19 @@ public class SubscribeEncoder extends DemuxEncoder<SubscribeMessage> {
 			throw new IllegalArgumentException("Expected a message with QOS 1, found " + message.getQos());
 		}
 		IoBuffer out = null;
-		IoBuffer variableHeaderBuff = IoBuffer.allocate(4);
+		IoBuffer variableHeaderBuff = IoBuffer.allocate(4).setAutoExpand(true);
 		try {
 			variableHeaderBuff.putShort((short) message.getMessageID());
 			for (SubscribeMessage.Couple c : message.subscriptions()) {
 				variableHeaderBuff.put(MQTTProtocol.encodeString(c.getTopicFilter()));
 				variableHeaderBuff.put(c.getQos());
 			}
-			int variableHeaderSize = variableHeaderBuff.limit();
+			variableHeaderBuff.flip();
+			int variableHeaderSize = variableHeaderBuff.remaining();
 			byte flags = MQTTProtocol.encodeFlags(message);
 			out = IoBuffer.allocate(2 + variableHeaderSize);
 			out.put((byte) (AbstractMessage.SUBSCRIBE << 4 | flags));
 			out.put(MQTTProtocol.encodeRemainingLength(variableHeaderSize));
-			variableHeaderBuff.flip();
 			out.put(variableHeaderBuff);
 			out.flip();
 			return out;
@@ -20,7 +20,6 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.UnsubscribeMessage;
-import org.red5.server.mqtt.codec.MQTTProtocol;
 import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 
 /**
@@ -32,25 +31,17 @@ import org.red5.server.mqtt.codec.exception.CorruptedFrameException;
 public class UnsubscribeDecoder extends DemuxDecoder {
 
 	@Override
-	public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-		//Common decoding part
-		in.reset();
+	public void decode(IoSession session, byte header, int remainingLength, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
 		UnsubscribeMessage message = new UnsubscribeMessage();
-		if (!decodeCommonHeader(message, 0x02, in)) {
-			in.reset();
-			return;
-		}
+		decodeCommonHeader(message, 0x02, header, remainingLength);
 		//check qos level
 		if (message.getQos() != AbstractMessage.QOSType.LEAST_ONE) {
 			throw new CorruptedFrameException("Found an Usubscribe message with qos other than LEAST_ONE, was: " + message.getQos());
 		}
-		int start = in.markValue();
 		//read  messageIDs
 		message.setMessageID(in.getUnsignedShort());
-		int readed = in.markValue() - start;
-		while (readed < message.getRemainingLength()) {
-			message.addTopicFilter(MQTTProtocol.decodeString(in));
-			readed = in.position() - start;
+		while (in.hasRemaining()) {
+			message.addTopicFilter(decodeString(in));
 		}
 		if (message.topicFilters().isEmpty()) {
 			throw new CorruptedFrameException("unsubscribe MUST have got at least 1 topic");
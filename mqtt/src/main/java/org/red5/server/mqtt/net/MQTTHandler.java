@@ -34,11 +34,14 @@ import java.util.concurrent.ConcurrentMap;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
-import org.eclipse.moquette.proto.Utils;
+import org.apache.mina.filter.codec.ProtocolEncoder;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.PingRespMessage;
 import org.eclipse.moquette.spi.IMessaging;
 import org.red5.server.mqtt.Constants;
+import org.red5.server.mqtt.MessageCounters;
+import org.red5.server.mqtt.OutboundMetrics;
+import org.red5.server.mqtt.codec.MQTTEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,7 +54,23 @@ public class MQTTHandler extends IoHandlerAdapter {
 
 	private static final Logger log = LoggerFactory.getLogger(MQTTHandler.class);
 
-    private ConcurrentMap<String, MinaChannel> channelMapper = new ConcurrentHashMap<String, MinaChannel>();
+	//channels by MINA session id, ids are unique for the whole process
+    private ConcurrentMap<Long, MinaChannel> channelMapper = new ConcurrentHashMap<Long, MinaChannel>();
+
+    private final MessageCounters counters = new MessageCounters();
+
+    //encodes the batches of the channels, the codec filter only sees their bytes
+    private final ProtocolEncoder encoder = new MQTTEncoder();
+
+    private int writeHighWatermark = 256 * 1024;
+
+    private int writeLowWatermark = 64 * 1024;
+
+    private long maxQueuedBytes = 4 * 1024 * 1024;
+
+    private int maxQueuedMessages = 16 * 1024;
+
+    private OutboundMetrics metrics = new OutboundMetrics();
 	
     private IMessaging messaging;
 	
@@ -60,11 +79,12 @@ public class MQTTHandler extends IoHandlerAdapter {
 	 */
 	@Override
 	public void messageReceived(IoSession session, Object message) throws Exception {
-		log.trace("Message received on session: {}", session.getId());
+		if (log.isTraceEnabled()) {
+			log.trace("Message received on session: {}", session.getId());
+		}
 		if (message instanceof AbstractMessage) {
 			AbstractMessage msg = (AbstractMessage) message;
-			log.info("Received a message of type {}", Utils.msgType2String(msg.getMessageType()));
-			String sessionId = String.format("%d-%d", session.getCreationTime(), session.getId());
+			counters.received(msg.getMessageType());
 	        try {
 	            switch (msg.getMessageType()) {
 	                case CONNECT:
@@ -77,10 +97,15 @@ public class MQTTHandler extends IoHandlerAdapter {
 	                case DISCONNECT:
 	                case PUBACK:
 	                	// lookup the channel based on the session or create a new one
-                        if (!channelMapper.containsKey(sessionId)) {
-                            channelMapper.put(sessionId, new MinaChannel(session));
+                        MinaChannel channel = channelMapper.get(session.getId());
+                        if (channel == null) {
+                            channel = new MinaChannel(session, encoder, counters, metrics);
+                            channel.setWriteHighWatermark(writeHighWatermark);
+                            channel.setWriteLowWatermark(writeLowWatermark);
+                            channel.setMaxQueuedBytes(maxQueuedBytes);
+                            channel.setMaxQueuedMessages(maxQueuedMessages);
+                            channelMapper.put(session.getId(), channel);
                         }
-                        MinaChannel channel = channelMapper.get(sessionId);
 	                    // pass to messaging for handling
 	                    messaging.handleProtocolMessage(channel, msg);
 	                    break;
@@ -100,11 +125,17 @@ public class MQTTHandler extends IoHandlerAdapter {
 	 */
 	@Override
     public void messageSent(IoSession session, Object message) throws Exception {
-		log.trace("Message sent on session: {}", session.getId());
-		log.trace("Session read: {} write: {}", session.getReadBytes(), session.getWrittenBytes());
+		if (log.isTraceEnabled()) {
+			log.trace("Message sent on session: {}", session.getId());
+			log.trace("Session read: {} write: {}", session.getReadBytes(), session.getWrittenBytes());
+		}
 		if (message instanceof AbstractMessage) {
-			AbstractMessage msg = (AbstractMessage) message;
-			log.info("Sent a message of type {}", Utils.msgType2String(msg.getMessageType()));
+			counters.sent(((AbstractMessage) message).getMessageType());
+		}
+		//a slow consumer may be back under the low watermark, let the processing resume its writes
+		MinaChannel channel = channelMapper.get(session.getId());
+		if (channel != null && !channel.isWritable() && channel.checkDrained()) {
+			messaging.drained(channel, (String) channel.getAttribute(Constants.ATTR_CLIENTID));
 		}
     }
 	
@@ -114,12 +145,12 @@ public class MQTTHandler extends IoHandlerAdapter {
 	@Override
 	public void sessionClosed(IoSession session) throws Exception {
 		log.trace("Session closed");		
-		String sessionId = String.format("%d-%d", session.getCreationTime(), session.getId());
-		MinaChannel channel = channelMapper.get(sessionId);
-        String clientID = (String) channel.getAttribute(Constants.ATTR_CLIENTID);
-        messaging.lostConnection(channel, clientID);
+		MinaChannel channel = channelMapper.remove(session.getId());
+		if (channel != null) {
+			String clientID = (String) channel.getAttribute(Constants.ATTR_CLIENTID);
+			messaging.lostConnection(channel, clientID);
+		}
         session.close(false);
-        channelMapper.remove(sessionId);
 		super.sessionClosed(session);
 	}
 
@@ -139,5 +170,82 @@ public class MQTTHandler extends IoHandlerAdapter {
     public void setMessaging(IMessaging messaging) {
     	this.messaging = messaging;
     }
+
+    /**
+     * Sets the bytes waiting to be written above which a session is a slow consumer, and below which it's back to normal.
+     * 
+     * @param writeLowWatermark
+     * @param writeHighWatermark
+     */
+    public void setWriteWatermarks(int writeLowWatermark, int writeHighWatermark) {
+    	this.writeLowWatermark = writeLowWatermark;
+    	this.writeHighWatermark = writeHighWatermark;
+    }
+
+    /**
+     * Sets the write budget of a session, it's closed when more bytes or messages than these are waiting to be written.
+     * 
+     * @param maxQueuedBytes
+     * @param maxQueuedMessages
+     */
+    public void setWriteBudget(long maxQueuedBytes, int maxQueuedMessages) {
+    	this.maxQueuedBytes = maxQueuedBytes;
+    	this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    /**
+     * Sets the metrics updated by the channels, shared with the protocol processing.
+     * 
+     * @param metrics
+     */
+    public void setOutboundMetrics(OutboundMetrics metrics) {
+    	this.metrics = metrics;
+    }
+
+    public OutboundMetrics getOutboundMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * @return received and sent message counts per message type of this transport
+     */
+    public MessageCounters getCounters() {
+    	return counters;
+    }
+
+    /**
+     * @return the bytes waiting to be written over all the sessions
+     */
+    public long getScheduledWriteBytes() {
+    	long bytes = 0;
+    	for (MinaChannel channel : channelMapper.values()) {
+    		bytes += channel.getScheduledWriteBytes();
+    	}
+    	return bytes;
+    }
+
+    /**
+     * @return the messages waiting to be written over all the sessions
+     */
+    public long getScheduledWriteMessages() {
+    	long messages = 0;
+    	for (MinaChannel channel : channelMapper.values()) {
+    		messages += channel.getScheduledWriteMessages();
+    	}
+    	return messages;
+    }
+
+    /**
+     * @return the number of sessions currently over the write high watermark
+     */
+    public int getSlowConsumerCount() {
+    	int count = 0;
+    	for (MinaChannel channel : channelMapper.values()) {
+    		if (!channel.isWritable()) {
+    			count++;
+    		}
+    	}
+    	return count;
+    }
     
 }
@@ -54,6 +54,16 @@ public class MQTTTransport implements InitializingBean, DisposableBean {
 	private int ioThreads = 16;
 
 	private int port = 1883; // tls/ssl 8883
+
+	private int payloadSliceThreshold = 1024;
+
+	private int writeHighWatermark = 256 * 1024;
+
+	private int writeLowWatermark = 64 * 1024;
+
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+
+	private int maxQueuedMessages = 16 * 1024;
 	
 	private Set<String> addresses = new HashSet<String>();
 
@@ -76,6 +86,8 @@ public class MQTTTransport implements InitializingBean, DisposableBean {
 		if (handler == null) {
 			handler = new MQTTHandler();
 		}
+		handler.setWriteWatermarks(writeLowWatermark, writeHighWatermark);
+		handler.setWriteBudget(maxQueuedBytes, maxQueuedMessages);
 		log.trace("I/O handler: {}", handler);	
 		DefaultIoFilterChainBuilder chain = acceptor.getFilterChain();
 		// if handling wss init the config
@@ -87,7 +99,7 @@ public class MQTTTransport implements InitializingBean, DisposableBean {
 			chain.addLast("logger", new LoggingFilter());
 		}
 		// add the websocket codec factory
-		chain.addLast("protocol", new ProtocolCodecFilter(new MQTTCodecFactory()));
+		chain.addLast("protocol", new ProtocolCodecFilter(new MQTTCodecFactory(payloadSliceThreshold)));
 		// close sessions when the acceptor is stopped
 		acceptor.setCloseOnDeactivation(true);
 		acceptor.setHandler(handler);
@@ -167,6 +179,50 @@ public class MQTTTransport implements InitializingBean, DisposableBean {
 		this.ioThreads = ioThreads;
 	}
 
+	/**
+	 * Publish payloads of at least this many bytes are kept as slices of the received buffers, down to the encoding for the subscribers, and copied only
+	 * when stored; smaller payloads are copied so they don't hold on to a whole receive buffer. A negative value always copies.
+	 * 
+	 * @param payloadSliceThreshold the payloadSliceThreshold to set
+	 */
+	public void setPayloadSliceThreshold(int payloadSliceThreshold) {
+		this.payloadSliceThreshold = payloadSliceThreshold;
+	}
+
+	/**
+	 * A session with more than writeHighWatermark bytes waiting to be written is reported as a slow consumer, until it drains below writeLowWatermark.
+	 * 
+	 * @param writeHighWatermark the writeHighWatermark to set
+	 */
+	public void setWriteHighWatermark(int writeHighWatermark) {
+		this.writeHighWatermark = writeHighWatermark;
+	}
+
+	/**
+	 * @param writeLowWatermark the writeLowWatermark to set
+	 */
+	public void setWriteLowWatermark(int writeLowWatermark) {
+		this.writeLowWatermark = writeLowWatermark;
+	}
+
+	/**
+	 * A session with more bytes than this waiting to be written is closed.
+	 * 
+	 * @param maxQueuedBytes the maxQueuedBytes to set
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * A session with more messages than this waiting to be written is closed.
+	 * 
+	 * @param maxQueuedMessages the maxQueuedMessages to set
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
 	public boolean isSecure() {
 		return secureConfig != null;
 	}
@@ -0,0 +1,150 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.net;
+
+import static org.eclipse.moquette.proto.messages.AbstractMessage.CONNECT;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.DISCONNECT;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PINGREQ;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PUBACK;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PUBCOMP;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PUBLISH;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PUBREC;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.PUBREL;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.SUBSCRIBE;
+import static org.eclipse.moquette.proto.messages.AbstractMessage.UNSUBSCRIBE;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.PingRespMessage;
+import org.red5.server.mqtt.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Endpoint of one MQTT over WebSocket connection, created by MQTTWebSocketTransport.
+ *
+ * The binary frames are fed as they arrive to the MQTT decoder, which gathers the packets split across frames, and the decoded messages are handed to
+ * the messaging like MQTTHandler does for the TCP sessions. The frames are received as partial messages so a packet of any size goes through without
+ * the container buffering the whole frame.
+ */
+public class MQTTWebSocketEndpoint extends Endpoint {
+
+	private static final Logger log = LoggerFactory.getLogger(MQTTWebSocketEndpoint.class);
+
+	private final MQTTWebSocketTransport transport;
+
+	private final DecoderOutput decoderOutput = new DecoderOutput();
+
+	private WebSocketChannel channel;
+
+	public MQTTWebSocketEndpoint(MQTTWebSocketTransport transport) {
+		this.transport = transport;
+	}
+
+	@Override
+	public void onOpen(Session session, EndpointConfig config) {
+		log.debug("WebSocket session {} opened with subprotocol {}", session.getId(), session.getNegotiatedSubprotocol());
+		channel = transport.opened(session);
+		session.addMessageHandler(new MessageHandler.Partial<ByteBuffer>() {
+
+			@Override
+			public void onMessage(ByteBuffer data, boolean last) {
+				received(data);
+			}
+
+		});
+	}
+
+	@Override
+	public void onClose(Session session, CloseReason closeReason) {
+		log.debug("WebSocket session {} closed: {}", session.getId(), closeReason);
+		transport.closed(session, channel);
+	}
+
+	@Override
+	public void onError(Session session, Throwable cause) {
+		if (cause instanceof EOFException) {
+			log.debug("WebSocket session {} ended", session.getId());
+		} else {
+			log.warn("Error on WebSocket session {}", session.getId(), cause);
+		}
+		channel.close(true);
+	}
+
+	/**
+	 * Decodes the received bytes; the decoder copies what it keeps, as the container may reuse the buffer.
+	 */
+	private void received(ByteBuffer data) {
+		channel.received();
+		try {
+			transport.getDecoder().decode(channel.getCodecSession(), IoBuffer.wrap(data), decoderOutput);
+		} catch (Exception e) {
+			log.warn("Closing WebSocket channel {} on a bad frame", channel, e);
+			channel.close(true);
+		}
+	}
+
+	/**
+	 * Dispatches the decoded messages.
+	 */
+	private final class DecoderOutput implements ProtocolDecoderOutput {
+
+		@Override
+		public void write(Object message) {
+			AbstractMessage msg = (AbstractMessage) message;
+			transport.getCounters().received(msg.getMessageType());
+			switch (msg.getMessageType()) {
+				case CONNECT:
+				case SUBSCRIBE:
+				case UNSUBSCRIBE:
+				case PUBLISH:
+				case PUBREC:
+				case PUBCOMP:
+				case PUBREL:
+				case DISCONNECT:
+				case PUBACK:
+					transport.getMessaging().handleProtocolMessage(channel, msg);
+					break;
+				case PINGREQ:
+					channel.write(new PingRespMessage());
+					break;
+				default:
+					log.debug("Unexpected message {} from client {}", msg, channel.getAttribute(Constants.ATTR_CLIENTID));
+			}
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.net;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.websocket.DeploymentException;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.eclipse.moquette.spi.IMessaging;
+import org.eclipse.moquette.spi.impl.SimpleMessaging;
+import org.red5.server.mqtt.Constants;
+import org.red5.server.mqtt.MessageCounters;
+import org.red5.server.mqtt.OutboundMetrics;
+import org.red5.server.mqtt.codec.MQTTDecoder;
+import org.red5.server.mqtt.codec.MQTTEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MQTT over WebSocket, for the browser clients, on the WebSocket container of the web application (the tomcat plugin implements the standard
+ * javax.websocket API).
+ *
+ * The connections go to the same messaging as the TCP transport, so they share the broker, its store and subscriptions. Registered as a listener in
+ * the web.xml of an application the endpoint is deployed on its context at "/mqtt", negotiating the "mqtt" subprotocol; the path is read from the
+ * mqtt.ws.path context parameter. It may also be registered on a container with {@link #register(ServerContainer)}.
+ */
+public class MQTTWebSocketTransport implements ServletContextListener {
+
+	private static final Logger log = LoggerFactory.getLogger(MQTTWebSocketTransport.class);
+
+	public static final String PATH_PARAMETER = "mqtt.ws.path";
+
+	private static final String SERVER_CONTAINER_ATTRIBUTE = "javax.websocket.server.ServerContainer";
+
+	//channels by WebSocket session id
+	private final ConcurrentMap<String, WebSocketChannel> channels = new ConcurrentHashMap<String, WebSocketChannel>();
+
+	private final MessageCounters counters = new MessageCounters();
+
+	//payloads always copied, the container reuses its receive buffers
+	private final ProtocolDecoder decoder = new MQTTDecoder(-1);
+
+	private final ProtocolEncoder encoder = new MQTTEncoder();
+
+	private String path = "/mqtt";
+
+	private List<String> subprotocols = Arrays.asList("mqtt", "mqttv3.1");
+
+	private int writeHighWatermark = 256 * 1024;
+
+	private int writeLowWatermark = 64 * 1024;
+
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+
+	private int maxQueuedMessages = 16 * 1024;
+
+	private IMessaging messaging;
+
+	private OutboundMetrics metrics;
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		String contextPath = context.getInitParameter(PATH_PARAMETER);
+		if (contextPath != null) {
+			path = contextPath;
+		}
+		ServerContainer container = (ServerContainer) context.getAttribute(SERVER_CONTAINER_ATTRIBUTE);
+		if (container == null) {
+			log.warn("No WebSocket container in context {}, MQTT over WebSocket is not available", context.getContextPath());
+			return;
+		}
+		try {
+			register(container);
+		} catch (DeploymentException e) {
+			log.error("Could not deploy the MQTT WebSocket endpoint at {}", path, e);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		for (WebSocketChannel channel : channels.values()) {
+			channel.close(true);
+		}
+	}
+
+	/**
+	 * Deploys the MQTT endpoint on the container, at the path of the transport.
+	 *
+	 * @param container
+	 * @throws DeploymentException
+	 */
+	public void register(ServerContainer container) throws DeploymentException {
+		if (messaging == null) {
+			SimpleMessaging simpleMessaging = SimpleMessaging.getInstance();
+			messaging = simpleMessaging;
+			if (metrics == null) {
+				metrics = simpleMessaging.getOutboundMetrics();
+			}
+		}
+		if (metrics == null) {
+			metrics = new OutboundMetrics();
+		}
+		ServerEndpointConfig config = ServerEndpointConfig.Builder.create(MQTTWebSocketEndpoint.class, path).subprotocols(subprotocols).configurator(new ServerEndpointConfig.Configurator() {
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
+				return (T) new MQTTWebSocketEndpoint(MQTTWebSocketTransport.this);
+			}
+
+		}).build();
+		container.addEndpoint(config);
+		log.info("started MQTT WebSocket transport at {} subprotocols {}", path, subprotocols);
+	}
+
+	WebSocketChannel opened(Session session) {
+		WebSocketChannel channel = new WebSocketChannel(session, encoder, counters, metrics, messaging);
+		channel.setWriteHighWatermark(writeHighWatermark);
+		channel.setWriteLowWatermark(writeLowWatermark);
+		channel.setMaxQueuedBytes(maxQueuedBytes);
+		channel.setMaxQueuedMessages(maxQueuedMessages);
+		channels.put(session.getId(), channel);
+		return channel;
+	}
+
+	void closed(Session session, WebSocketChannel channel) {
+		if (channels.remove(session.getId()) != null) {
+			messaging.lostConnection(channel, (String) channel.getAttribute(Constants.ATTR_CLIENTID));
+		}
+	}
+
+	ProtocolDecoder getDecoder() {
+		return decoder;
+	}
+
+	IMessaging getMessaging() {
+		return messaging;
+	}
+
+	/**
+	 * @param path the path of the endpoint in the application context
+	 */
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @param subprotocols the subprotocols accepted, in order of preference
+	 */
+	public void setSubprotocols(List<String> subprotocols) {
+		this.subprotocols = subprotocols;
+	}
+
+	/**
+	 * Sets the messaging the connections are handed to, the broker's one by default.
+	 *
+	 * @param messaging
+	 */
+	public void setMessaging(IMessaging messaging) {
+		this.messaging = messaging;
+	}
+
+	/**
+	 * Sets the metrics updated by the channels, those of the messaging by default.
+	 *
+	 * @param metrics
+	 */
+	public void setOutboundMetrics(OutboundMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * A connection with more than writeHighWatermark bytes waiting to be sent is reported as a slow consumer, until it drains below writeLowWatermark.
+	 *
+	 * @param writeHighWatermark the writeHighWatermark to set
+	 */
+	public void setWriteHighWatermark(int writeHighWatermark) {
+		this.writeHighWatermark = writeHighWatermark;
+	}
+
+	/**
+	 * @param writeLowWatermark the writeLowWatermark to set
+	 */
+	public void setWriteLowWatermark(int writeLowWatermark) {
+		this.writeLowWatermark = writeLowWatermark;
+	}
+
+	/**
+	 * A connection with more bytes than this waiting to be sent is closed.
+	 *
+	 * @param maxQueuedBytes the maxQueuedBytes to set
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * A connection with more frames than this waiting to be sent is closed.
+	 *
+	 * @param maxQueuedMessages the maxQueuedMessages to set
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	/**
+	 * @return received and sent message counts per message type of this transport
+	 */
+	public MessageCounters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount() {
+		return channels.size();
+	}
+
+	/**
+	 * @return the bytes waiting to be sent over all the connections
+	 */
+	public long getScheduledWriteBytes() {
+		long bytes = 0;
+		for (WebSocketChannel channel : channels.values()) {
+			bytes += channel.getScheduledWriteBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of connections currently over the write high watermark
+	 */
+	public int getSlowConsumerCount() {
+		int count = 0;
+		for (WebSocketChannel channel : channels.values()) {
+			if (!channel.isWritable()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -1,14 +1,68 @@
 package org.red5.server.mqtt.net;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.red5.server.mqtt.MessageCounters;
+import org.red5.server.mqtt.OutboundMetrics;
 import org.red5.server.mqtt.ServerChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Channel over a MINA session.
+ *
+ * Messages enqueued between two flushes are encoded into a single buffer and handed to MINA as one write, so a burst of small publishes for a session goes
+ * out in as few segments as possible; payloads of at least directWriteThreshold bytes are written as they are instead of being copied into the batch. The
+ * bytes MINA still has to send are checked against the high and low watermarks to detect the sessions not keeping up, and against the write budget of the
+ * session: a session exceeding it is closed, whatever the slow consumer policy, so a stalled client can't exhaust the heap.
+ */
 public class MinaChannel implements ServerChannel {
 
+	private static final Logger log = LoggerFactory.getLogger(MinaChannel.class);
+
+	private static final int BATCH_BUFFER_SIZE = 1024;
+
 	private final IoSession session;
-	
+
+	private final ProtocolEncoder encoder;
+
+	private final MessageCounters counters;
+
+	private final OutboundMetrics metrics;
+
+	private final BatchOutput batchOutput = new BatchOutput();
+
+	private int writeHighWatermark = 256 * 1024;
+
+	private int writeLowWatermark = 64 * 1024;
+
+	private int directWriteThreshold = 8 * 1024;
+
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+
+	private int maxQueuedMessages = 16 * 1024;
+
+	//encoded messages not yet handed to MINA, only touched by the thread flushing the channel
+	private IoBuffer batch;
+
+	//whether messages were enqueued since the last flush
+	private boolean enqueued;
+
+	private volatile boolean writable = true;
+
 	public MinaChannel(IoSession session) {
+		this(session, null, null, new OutboundMetrics());
+	}
+
+	public MinaChannel(IoSession session, ProtocolEncoder encoder, MessageCounters counters, OutboundMetrics metrics) {
 		this.session = session;
+		this.encoder = encoder;
+		this.counters = counters;
+		this.metrics = metrics;
 	}
 	
 	@Override
@@ -37,6 +91,11 @@ public class MinaChannel implements ServerChannel {
 //        m_channel.pipeline().addAfter("idleStateHandler", "idleEventHandler", new MoquetteIdleTimoutHandler());
     }
 
+	@Override
+	public long getLastReadTime() {
+		return session.getLastReadTime();
+	}
+
 	@Override
     public void close(boolean immediately) {
 		session.close(immediately);
@@ -47,4 +106,147 @@ public class MinaChannel implements ServerChannel {
 		session.write(value);
     }
 
+	/**
+	 * Encodes the message into the batch of the channel, written on the next flush; without an encoder the message is written at once.
+	 */
+	@Override
+	public boolean enqueue(AbstractMessage message) throws Exception {
+		if (encoder == null) {
+			session.write(message);
+			return false;
+		}
+		encoder.encode(session, message, batchOutput);
+		//only once encoded, else the channel is never added to the batch and never flushed
+		boolean first = !enqueued;
+		enqueued = true;
+		if (counters != null) {
+			//written as raw bytes, messageSent won't see the message
+			counters.sent(message.getMessageType());
+		}
+		return first;
+	}
+
+	@Override
+	public void flush() {
+		enqueued = false;
+		if (batch != null) {
+			batch.flip();
+			session.write(batch);
+			batch = null;
+		}
+		checkWriteQueue();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Checks the bytes and messages queued in the session after a write: above the budget the session is closed, above the high watermark it's no
+	 * longer writable.
+	 */
+	private void checkWriteQueue() {
+		long scheduledBytes = session.getScheduledWriteBytes();
+		int scheduledMessages = session.getScheduledWriteMessages();
+		metrics.scheduled(scheduledBytes);
+		if (scheduledBytes > maxQueuedBytes || scheduledMessages > maxQueuedMessages) {
+			if (!session.isClosing()) {
+				log.warn("Closing session {} over its write budget, {} bytes in {} messages waiting to be written", session.getId(), scheduledBytes, scheduledMessages);
+				metrics.disconnected();
+				session.close(true);
+			}
+			return;
+		}
+		if (writable && scheduledBytes > writeHighWatermark) {
+			writable = false;
+			metrics.slowConsumer();
+			log.warn("Slow consumer on session {}, {} bytes waiting to be written", session.getId(), scheduledBytes);
+		}
+	}
+
+	/**
+	 * Called as the session writes go out, a slow consumer becomes writable again below the low watermark.
+	 * 
+	 * @return true if the channel has just become writable
+	 */
+	public boolean checkDrained() {
+		if (!writable && session.getScheduledWriteBytes() <= writeLowWatermark) {
+			writable = true;
+			metrics.drained();
+			log.info("Session {} drained its writes", session.getId());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bytes waiting to be written to the socket
+	 */
+	public long getScheduledWriteBytes() {
+		return session.getScheduledWriteBytes();
+	}
+
+	/**
+	 * @return the messages waiting to be written to the socket
+	 */
+	public int getScheduledWriteMessages() {
+		return session.getScheduledWriteMessages();
+	}
+
+	public void setWriteHighWatermark(int writeHighWatermark) {
+		this.writeHighWatermark = writeHighWatermark;
+	}
+
+	public void setWriteLowWatermark(int writeLowWatermark) {
+		this.writeLowWatermark = writeLowWatermark;
+	}
+
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	public void setDirectWriteThreshold(int directWriteThreshold) {
+		this.directWriteThreshold = directWriteThreshold;
+	}
+
+	/**
+	 * Collects the encoder output into the batch, large buffers are written directly after the batch collected so far to keep the order.
+	 */
+	private final class BatchOutput implements ProtocolEncoderOutput {
+
+		@Override
+		public void write(Object encodedMessage) {
+			IoBuffer buf = (IoBuffer) encodedMessage;
+			if (buf.remaining() >= directWriteThreshold) {
+				if (batch != null) {
+					batch.flip();
+					session.write(batch);
+					batch = null;
+				}
+				session.write(buf);
+				return;
+			}
+			if (batch == null) {
+				batch = IoBuffer.allocate(Math.max(BATCH_BUFFER_SIZE, buf.remaining())).setAutoExpand(true);
+			}
+			batch.put(buf);
+		}
+
+		@Override
+		public void mergeAll() {
+		}
+
+		@Override
+		public WriteFuture flush() {
+			//the batch is written by MinaChannel.flush
+			return null;
+		}
+
+	}
+
 }
@@ -0,0 +1,403 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.mqtt.net;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IMessaging;
+import org.red5.server.mqtt.Constants;
+import org.red5.server.mqtt.MessageCounters;
+import org.red5.server.mqtt.OutboundMetrics;
+import org.red5.server.mqtt.ServerChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Channel over a WebSocket session, each encoded buffer going out as one binary frame.
+ *
+ * Batching and flow control follow MinaChannel: the messages enqueued between two flushes are encoded into a single buffer, large payloads are sent as
+ * they are, and the bytes not yet sent are checked against the watermarks and the write budget. The encoded buffers are handed to the container
+ * without being copied, one asynchronous send at a time as the WebSocket API allows; the next one is started on the completion of the previous one.
+ * The attributes of the channel and the codec state are held by a MINA DummySession, so the MQTT codec works unchanged.
+ */
+public class WebSocketChannel implements ServerChannel {
+
+	private static final Logger log = LoggerFactory.getLogger(WebSocketChannel.class);
+
+	private static final int BATCH_BUFFER_SIZE = 1024;
+
+	private final Session session;
+
+	//attributes of the channel and state of the codec
+	private final IoSession codecSession = new DummySession();
+
+	private final ProtocolEncoder encoder;
+
+	private final MessageCounters counters;
+
+	private final OutboundMetrics metrics;
+
+	private final IMessaging messaging;
+
+	private final BatchOutput batchOutput = new BatchOutput();
+
+	private final SendOutput sendOutput = new SendOutput();
+
+	private final SendHandler sendHandler = new SendHandler() {
+
+		@Override
+		public void onResult(SendResult result) {
+			sent(result);
+		}
+
+	};
+
+	//encoded buffers waiting for the send in progress to complete
+	private final Queue<IoBuffer> sendQueue = new ConcurrentLinkedQueue<IoBuffer>();
+
+	private final AtomicBoolean sending = new AtomicBoolean();
+
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	private final AtomicInteger queuedMessages = new AtomicInteger();
+
+	private int writeHighWatermark = 256 * 1024;
+
+	private int writeLowWatermark = 64 * 1024;
+
+	private int directWriteThreshold = 8 * 1024;
+
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+
+	private int maxQueuedMessages = 16 * 1024;
+
+	//encoded messages not yet sent, only touched by the thread flushing the channel
+	private IoBuffer batch;
+
+	//whether messages were enqueued since the last flush
+	private boolean enqueued;
+
+	//bytes of the send in progress
+	private volatile int inFlightBytes;
+
+	private volatile boolean writable = true;
+
+	private volatile boolean closing;
+
+	private volatile long lastReadTime = System.currentTimeMillis();
+
+	public WebSocketChannel(Session session, ProtocolEncoder encoder, MessageCounters counters, OutboundMetrics metrics, IMessaging messaging) {
+		this.session = session;
+		this.encoder = encoder;
+		this.counters = counters;
+		this.metrics = metrics;
+		this.messaging = messaging;
+	}
+
+	@Override
+	public Object getAttribute(String key) {
+		return codecSession.getAttribute(key);
+	}
+
+	@Override
+	public void setAttribute(String key, Object value) {
+		codecSession.setAttribute(key, value);
+	}
+
+	@Override
+	public void setIdleTime(int idleTime) {
+		//the keep alive timer of the processing closes the idle channels
+	}
+
+	@Override
+	public long getLastReadTime() {
+		return lastReadTime;
+	}
+
+	/**
+	 * Records a read from the client, for the keep alive.
+	 */
+	public void received() {
+		lastReadTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the session the codec runs on
+	 */
+	public IoSession getCodecSession() {
+		return codecSession;
+	}
+
+	/**
+	 * Closes the WebSocket session; the frames not sent yet are dropped either way.
+	 */
+	@Override
+	public void close(boolean immediately) {
+		closing = true;
+		sendQueue.clear();
+		try {
+			session.close();
+		} catch (IOException e) {
+			log.debug("Exception closing WebSocket session {}", session.getId(), e);
+		}
+	}
+
+	/**
+	 * Encodes and sends the message at once.
+	 */
+	@Override
+	public void write(Object value) {
+		AbstractMessage message = (AbstractMessage) value;
+		try {
+			encoder.encode(codecSession, message, sendOutput);
+		} catch (Exception e) {
+			log.warn("Could not encode {} for WebSocket session {}", message, session.getId(), e);
+			return;
+		}
+		counters.sent(message.getMessageType());
+		checkWriteQueue();
+	}
+
+	@Override
+	public boolean enqueue(AbstractMessage message) throws Exception {
+		encoder.encode(codecSession, message, batchOutput);
+		//only once encoded, else the channel is never added to the batch and never flushed
+		boolean first = !enqueued;
+		enqueued = true;
+		counters.sent(message.getMessageType());
+		return first;
+	}
+
+	@Override
+	public void flush() {
+		enqueued = false;
+		if (batch != null) {
+			batch.flip();
+			send(batch);
+			batch = null;
+		}
+		checkWriteQueue();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @return the bytes waiting to be sent
+	 */
+	public long getScheduledWriteBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return the frames waiting to be sent
+	 */
+	public int getScheduledWriteMessages() {
+		return queuedMessages.get();
+	}
+
+	/**
+	 * Queues a buffer as one binary frame.
+	 */
+	private void send(IoBuffer buf) {
+		if (closing) {
+			return;
+		}
+		queuedBytes.addAndGet(buf.remaining());
+		queuedMessages.incrementAndGet();
+		sendQueue.add(buf);
+		sendNext();
+	}
+
+	/**
+	 * Starts the send of the next queued buffer, unless one is in progress.
+	 */
+	private void sendNext() {
+		while (sending.compareAndSet(false, true)) {
+			IoBuffer next = sendQueue.poll();
+			if (next != null) {
+				inFlightBytes = next.remaining();
+				try {
+					session.getAsyncRemote().sendBinary(next.buf(), sendHandler);
+				} catch (RuntimeException e) {
+					//session closed meanwhile
+					log.debug("Send failed on WebSocket session {}", session.getId(), e);
+					close(true);
+				}
+				return;
+			}
+			sending.set(false);
+			//a buffer queued while the flag was still set would be left behind
+			if (sendQueue.isEmpty()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Completion of a send, from a container thread.
+	 */
+	private void sent(SendResult result) {
+		queuedBytes.addAndGet(-inFlightBytes);
+		queuedMessages.decrementAndGet();
+		if (!result.isOK()) {
+			log.debug("Send failed on WebSocket session {}", session.getId(), result.getException());
+			sending.set(false);
+			close(true);
+			return;
+		}
+		sending.set(false);
+		sendNext();
+		checkDrained();
+	}
+
+	/**
+	 * Checks the bytes and frames not sent yet: above the budget the session is closed, above the high watermark it's no longer writable.
+	 */
+	private void checkWriteQueue() {
+		long scheduledBytes = queuedBytes.get();
+		int scheduledMessages = queuedMessages.get();
+		metrics.scheduled(scheduledBytes);
+		if (scheduledBytes > maxQueuedBytes || scheduledMessages > maxQueuedMessages) {
+			if (!closing) {
+				log.warn("Closing WebSocket session {} over its write budget, {} bytes in {} frames waiting to be sent", session.getId(), scheduledBytes, scheduledMessages);
+				metrics.disconnected();
+				close(true);
+			}
+			return;
+		}
+		if (writable && scheduledBytes > writeHighWatermark) {
+			writable = false;
+			metrics.slowConsumer();
+			log.warn("Slow consumer on WebSocket session {}, {} bytes waiting to be sent", session.getId(), scheduledBytes);
+		}
+	}
+
+	/**
+	 * A slow consumer becomes writable again below the low watermark, the processing is told to resume its writes.
+	 */
+	private void checkDrained() {
+		if (!writable && queuedBytes.get() <= writeLowWatermark) {
+			writable = true;
+			metrics.drained();
+			log.info("WebSocket session {} drained its writes", session.getId());
+			messaging.drained(this, (String) getAttribute(Constants.ATTR_CLIENTID));
+		}
+	}
+
+	public void setWriteHighWatermark(int writeHighWatermark) {
+		this.writeHighWatermark = writeHighWatermark;
+	}
+
+	public void setWriteLowWatermark(int writeLowWatermark) {
+		this.writeLowWatermark = writeLowWatermark;
+	}
+
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	public void setDirectWriteThreshold(int directWriteThreshold) {
+		this.directWriteThreshold = directWriteThreshold;
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketChannel [session=" + session.getId() + ", queuedBytes=" + queuedBytes.get() + ", writable=" + writable + "]";
+	}
+
+	/**
+	 * Collects the encoder output into the batch, large buffers are sent directly after the batch collected so far to keep the order.
+	 */
+	private final class BatchOutput implements ProtocolEncoderOutput {
+
+		@Override
+		public void write(Object encodedMessage) {
+			IoBuffer buf = (IoBuffer) encodedMessage;
+			if (buf.remaining() >= directWriteThreshold) {
+				if (batch != null) {
+					batch.flip();
+					send(batch);
+					batch = null;
+				}
+				send(buf);
+				return;
+			}
+			if (batch == null) {
+				batch = IoBuffer.allocate(Math.max(BATCH_BUFFER_SIZE, buf.remaining())).setAutoExpand(true);
+			}
+			batch.put(buf);
+		}
+
+		@Override
+		public void mergeAll() {
+		}
+
+		@Override
+		public WriteFuture flush() {
+			//the batch is sent by WebSocketChannel.flush
+			return null;
+		}
+
+	}
+
+	/**
+	 * Sends each encoded buffer as it comes.
+	 */
+	private final class SendOutput implements ProtocolEncoderOutput {
+
+		@Override
+		public void write(Object encodedMessage) {
+			send((IoBuffer) encodedMessage);
+		}
+
+		@Override
+		public void mergeAll() {
+		}
+
+		@Override
+		public WriteFuture flush() {
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PacketIDAllocatorTest {
+
+	private final PacketIDAllocator allocator = new PacketIDAllocator(7);
+
+	@Test
+	public void handsOutIDsInSequenceFromOne() {
+		assertEquals(1, allocator.acquire());
+		assertEquals(2, allocator.acquire());
+		assertEquals(3, allocator.acquire());
+		assertEquals(3, allocator.inUseCount());
+	}
+
+	@Test
+	public void zeroIsNeverInUse() {
+		assertFalse(allocator.isInUse(0));
+		assertFalse(allocator.isInUse(PacketIDAllocator.MAX_PACKET_ID + 1));
+		allocator.release(0);
+		assertEquals(0, allocator.inUseCount());
+		assertEquals(1, allocator.acquire());
+	}
+
+	@Test
+	public void cursorMovesOnPastReleasedIDs() {
+		allocator.acquire();
+		allocator.acquire();
+		allocator.acquire();
+		allocator.release(2);
+		assertFalse(allocator.isInUse(2));
+		//the released ID comes back only once the cursor wraps around
+		assertEquals(4, allocator.acquire());
+		assertEquals(3, allocator.inUseCount());
+	}
+
+	@Test
+	public void releasingAFreeIDKeepsTheCount() {
+		allocator.acquire();
+		allocator.release(5);
+		allocator.release(1);
+		allocator.release(1);
+		assertEquals(0, allocator.inUseCount());
+	}
+
+	@Test
+	public void wrapsAroundToTheFreeIDs() {
+		for (int i = 1; i <= PacketIDAllocator.MAX_PACKET_ID; i++) {
+			assertEquals(i, allocator.acquire());
+		}
+		assertEquals(PacketIDAllocator.MAX_PACKET_ID, allocator.inUseCount());
+		allocator.release(10);
+		allocator.release(700);
+		assertEquals(10, allocator.acquire());
+		assertEquals(700, allocator.acquire());
+	}
+
+	@Test
+	public void reusesTheNextIDWhenFull() {
+		for (int i = 1; i <= PacketIDAllocator.MAX_PACKET_ID; i++) {
+			allocator.acquire();
+		}
+		assertEquals(1, allocator.acquire());
+		assertEquals(2, allocator.acquire());
+		assertEquals(PacketIDAllocator.MAX_PACKET_ID, allocator.inUseCount());
+	}
+
+	@Test
+	public void findsTheFreeIDsAcrossWords() {
+		//the cursor sits at the end of a 64 bit word, the next free ID is two words further
+		for (int i = 1; i <= 200; i++) {
+			allocator.acquire();
+		}
+		for (int i = 64; i < 192; i++) {
+			allocator.release(i);
+		}
+		allocator.release(200);
+		for (int i = 201; i <= PacketIDAllocator.MAX_PACKET_ID; i++) {
+			allocator.acquire();
+		}
+		assertEquals(64, allocator.acquire());
+		for (int i = 65; i < 192; i++) {
+			assertEquals(i, allocator.acquire());
+		}
+		assertEquals(200, allocator.acquire());
+	}
+
+	@Test
+	public void enumeratesTheIDsInUse() {
+		assertEquals(-1, allocator.nextInUse(1));
+		allocator.markInUse(3);
+		allocator.markInUse(64);
+		allocator.markInUse(PacketIDAllocator.MAX_PACKET_ID);
+		allocator.markInUse(64);
+		assertEquals(3, allocator.inUseCount());
+		assertEquals(3, allocator.nextInUse(0));
+		assertEquals(64, allocator.nextInUse(4));
+		assertEquals(PacketIDAllocator.MAX_PACKET_ID, allocator.nextInUse(65));
+		assertEquals(-1, allocator.nextInUse(PacketIDAllocator.MAX_PACKET_ID + 1));
+	}
+
+	@Test
+	public void markedIDsAreSkipped() {
+		allocator.markInUse(1);
+		allocator.markInUse(2);
+		assertEquals(3, allocator.acquire());
+		assertTrue(allocator.isInUse(1));
+	}
+
+	@Test
+	public void inFlightKeysDifferAcrossClients() {
+		PacketIDAllocator other = new PacketIDAllocator(8);
+		assertNotEquals(allocator.inFlightKey(1), other.inFlightKey(1));
+		assertEquals(PacketIDAllocator.inFlightKey(7, 1), allocator.inFlightKey(1));
+		assertEquals((7L << 16) | PacketIDAllocator.MAX_PACKET_ID, allocator.inFlightKey(PacketIDAllocator.MAX_PACKET_ID));
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.spi.impl.events.LostConnectionEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.mqtt.Constants;
+import org.red5.server.mqtt.codec.MQTTProtocol;
+
+public class ProtocolProcessorConnectTest {
+
+	private final SimpleMessaging messaging = SimpleMessaging.getInstance();
+
+	private final MemoryStorageService storage = new MemoryStorageService();
+
+	private final ProtocolProcessor processor = new ProtocolProcessor();
+
+	@Before
+	public void setUp() {
+		messaging.setMapStorage(new MapDBPersistentStore());
+		messaging.setAuthenticator(new AcceptAllAuthenticator());
+		messaging.init();
+		storage.initStore();
+		SubscriptionsStore subscriptions = new SubscriptionsStore();
+		subscriptions.init(storage, storage);
+		processor.init(subscriptions, storage, storage, null, new MessagingShard(0, messaging));
+	}
+
+	@After
+	public void tearDown() {
+		processor.shutdown();
+		messaging.stop();
+	}
+
+	private TestChannel connect(String clientID) throws Exception {
+		ConnectMessage connect = new ConnectMessage();
+		connect.setProcotolVersion(MQTTProtocol.VERSION_3_1_1);
+		connect.setClientID(clientID);
+		connect.setCleanSession(true);
+		connect.setKeepAlive(60);
+		TestChannel channel = new TestChannel(false);
+		processor.dispatch(channel, connect);
+		return channel;
+	}
+
+	private static ProtocolProcessor.KeepAliveTask keepAlive(TestChannel channel) {
+		return (ProtocolProcessor.KeepAliveTask) channel.getAttribute(Constants.ATTR_KEEP_ALIVE_TIMER);
+	}
+
+	@Test
+	public void cancelsTheKeepAliveOfTheReplacedSession() throws Exception {
+		TestChannel replaced = connect("client");
+		TestChannel current = connect("client");
+		//the lost connection of the replaced session is ignored
+		processor.processConnectionLost(new LostConnectionEvent(replaced, "client"));
+		assertTrue(keepAlive(replaced).isCancelled());
+		assertFalse(keepAlive(current).isCancelled());
+	}
+
+}
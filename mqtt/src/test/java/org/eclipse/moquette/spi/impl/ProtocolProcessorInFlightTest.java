@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.proto.messages.DisconnectMessage;
+import org.eclipse.moquette.proto.messages.PubRecMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.proto.messages.SubscribeMessage;
+import org.eclipse.moquette.spi.impl.events.DrainedEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.mqtt.codec.MQTTProtocol;
+
+public class ProtocolProcessorInFlightTest {
+
+	private static final String TOPIC = "news";
+
+	private final SimpleMessaging messaging = SimpleMessaging.getInstance();
+
+	private final MemoryStorageService storage = new MemoryStorageService();
+
+	private final SubscriptionsStore subscriptions = new SubscriptionsStore();
+
+	private final ProtocolProcessor processor = new ProtocolProcessor();
+
+	private final TestChannel publisher = new TestChannel(false);
+
+	//the publisher's own packet IDs, the same the subscriber gets first
+	private int publisherPacketID;
+
+	@Before
+	public void setUp() {
+		messaging.setMapStorage(new MapDBPersistentStore());
+		messaging.setAuthenticator(new AcceptAllAuthenticator());
+		messaging.init();
+		storage.initStore();
+		subscriptions.init(storage, storage);
+		processor.init(subscriptions, storage, storage, null, new MessagingShard(0, messaging));
+		connect(publisher, "publisher", true);
+	}
+
+	@After
+	public void tearDown() {
+		processor.shutdown();
+		messaging.stop();
+	}
+
+	private TestChannel connect(TestChannel channel, String clientID, boolean cleanSession) {
+		ConnectMessage connect = new ConnectMessage();
+		connect.setProcotolVersion(MQTTProtocol.VERSION_3_1_1);
+		connect.setClientID(clientID);
+		connect.setCleanSession(cleanSession);
+		dispatch(channel, connect);
+		return channel;
+	}
+
+	private void subscribe(TestChannel channel, AbstractMessage.QOSType qos) {
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.setMessageID(1);
+		subscribe.addSubscription(new SubscribeMessage.Couple((byte) qos.ordinal(), TOPIC));
+		dispatch(channel, subscribe);
+	}
+
+	private void publish(String payload) {
+		publish(payload, AbstractMessage.QOSType.LEAST_ONE);
+	}
+
+	private void publish(String payload, AbstractMessage.QOSType qos) {
+		PublishMessage publish = new PublishMessage();
+		publish.setTopicName(TOPIC);
+		publish.setQos(qos);
+		publish.setMessageID(++publisherPacketID);
+		publish.setPayload(ByteBuffer.wrap(payload.getBytes()));
+		dispatch(publisher, publish);
+		if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) {
+			PubRelMessage pubRel = new PubRelMessage();
+			pubRel.setMessageID(publisherPacketID);
+			dispatch(publisher, pubRel);
+		}
+	}
+
+	private void dispatch(TestChannel channel, AbstractMessage message) {
+		dispatch(processor, channel, message);
+	}
+
+	private static void dispatch(ProtocolProcessor processor, TestChannel channel, AbstractMessage message) {
+		try {
+			processor.dispatch(channel, message);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the payloads of the in flight messages of the client, checking each has a packet ID of its own
+	 */
+	private Set<String> inFlightPayloads(String clientID) {
+		List<Integer> packetIDs = storage.inFlightPacketIDs(clientID);
+		Set<String> payloads = new HashSet<>();
+		for (int packetID : packetIDs) {
+			payloads.add(new String(storage.getInFlight(clientID, packetID).getMessage()));
+		}
+		assertEquals("packet IDs in use", packetIDs.size(), storage.inFlightCount(clientID));
+		return payloads;
+	}
+
+	@Test
+	public void republishesTheStoredMessagesWithPacketIDsNotInFlight() {
+		TestChannel subscriber = connect(new TestChannel(false), "subscriber", false);
+		subscribe(subscriber, AbstractMessage.QOSType.LEAST_ONE);
+		dispatch(subscriber, new DisconnectMessage());
+		publish("stored-1");
+		publish("stored-2");
+		publish("stored-3");
+
+		connect(new TestChannel(false), "subscriber", false);
+		publish("live-1");
+		publish("live-2");
+		publish("live-3");
+		publish("live-4");
+
+		assertEquals(new HashSet<>(Arrays.asList("stored-1", "stored-2", "stored-3", "live-1", "live-2", "live-3", "live-4")), inFlightPayloads("subscriber"));
+	}
+
+	@Test
+	public void spilledMessagesTakeNewPacketIDsWhenDrained() {
+		TestChannel subscriber = connect(new TestChannel(false), "subscriber", false);
+		subscribe(subscriber, AbstractMessage.QOSType.LEAST_ONE);
+		publish("sent-1");
+		subscriber.setWritable(false);
+		publish("spilled-1");
+		publish("spilled-2");
+		assertEquals("spilled packet IDs released", 1, storage.inFlightCount("subscriber"));
+
+		subscriber.setWritable(true);
+		//spilled behind the others until the drain
+		publish("spilled-3");
+		processor.processDrained(new DrainedEvent(subscriber, "subscriber"));
+		publish("live-1");
+
+		assertEquals(new HashSet<>(Arrays.asList("sent-1", "spilled-1", "spilled-2", "spilled-3", "live-1")), inFlightPayloads("subscriber"));
+	}
+
+	@Test
+	public void resendsThePubRelOfTheReceivedMessagesAfterARestart() throws Exception {
+		TestChannel subscriber = connect(new TestChannel(false), "subscriber", false);
+		subscribe(subscriber, AbstractMessage.QOSType.EXACTLY_ONCE);
+		publish("received", AbstractMessage.QOSType.EXACTLY_ONCE);
+		PubRecMessage pubRec = new PubRecMessage();
+		pubRec.setMessageID(1);
+		dispatch(subscriber, pubRec);
+		publish("not-received");
+
+		//a new processor on the same stores, with none of the redeliveries of the former one
+		ProtocolProcessor restarted = new ProtocolProcessor();
+		restarted.init(subscriptions, storage, storage, null, new MessagingShard(0, messaging));
+		TestChannel reconnected = new TestChannel(true);
+		ConnectMessage connect = new ConnectMessage();
+		connect.setProcotolVersion(MQTTProtocol.VERSION_3_1_1);
+		connect.setClientID("subscriber");
+		connect.setCleanSession(false);
+		dispatch(restarted, reconnected, connect);
+		//the CONNACK, the PUBREL and the publish written by the output ring
+		assertTrue(reconnected.awaitWritten(3));
+		restarted.shutdown();
+
+		PubRelMessage pubRel = null;
+		PublishMessage publish = null;
+		for (AbstractMessage written : reconnected.written) {
+			if (written instanceof PubRelMessage) {
+				assertNull("a single PUBREL", pubRel);
+				pubRel = (PubRelMessage) written;
+			} else if (written instanceof PublishMessage) {
+				assertNull("a single PUBLISH", publish);
+				publish = (PublishMessage) written;
+			}
+		}
+		assertEquals(1, pubRel.getMessageID());
+		assertEquals(2, publish.getMessageID());
+		assertTrue(publish.isDupFlag());
+		assertEquals(AbstractMessage.QOSType.LEAST_ONE, publish.getQos());
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.proto.messages.PubAckMessage;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.proto.messages.SubscribeMessage;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import org.eclipse.moquette.spi.persistence.MapDBPersistentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.mqtt.codec.MQTTDecoder;
+import org.red5.server.mqtt.codec.MQTTEncoder;
+import org.red5.server.mqtt.codec.MQTTProtocol;
+
+/**
+ * Profiles the allocations of the PUBLISH hot path, decoding a QoS 1 frame and dispatching it to the processor, which writes it to a QoS 0 and a
+ * QoS 1 subscriber, with the logging at INFO as in production: what is allocated per message must stay bounded, the logging must not add its
+ * messages and varargs arrays. The QoS 1 subscriber acknowledges every message, so its packet IDs and in flight messages don't pile up.
+ */
+public class PublishAllocationTest {
+
+	private static final int WARMUP = 20000;
+
+	private static final int MESSAGES = 100000;
+
+	private static final String TOPIC = "sensors/building-1/floor-2/temperature";
+
+	//the message, its topic and payload copied out of the frame, the topic levels matched against the subscriptions, the publish headers
+	//encoded for the fan-out, the two publishes and the PUBACK queued to the output ring, the in flight message and its redelivery timeout:
+	//about 2100 bytes
+	private static final long MAX_BYTES_PER_MESSAGE = 3072;
+
+	private final IoSession ioSession = new DummySession();
+
+	private final MQTTDecoder decoder = new MQTTDecoder();
+
+	private final ProtocolProcessor processor = new ProtocolProcessor();
+
+	private final SimpleMessaging messaging = SimpleMessaging.getInstance();
+
+	private final MemoryStorageService storage = new MemoryStorageService();
+
+	private final TestChannel publisher = new TestChannel(false);
+
+	private final TestChannel qos1Subscriber = new TestChannel(false);
+
+	private final PubAckMessage pubAck = new PubAckMessage();
+
+	//the packet ID the processor gives next to the QoS 1 subscriber, every one is released before the next is taken
+	private int packetID;
+
+	private IoBuffer frame;
+
+	private final ProtocolDecoderOutput dispatcher = new ProtocolDecoderOutput() {
+
+		@Override
+		public void write(Object message) {
+			dispatch(publisher, (AbstractMessage) message);
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		messaging.setMapStorage(new MapDBPersistentStore());
+		messaging.setAuthenticator(new AcceptAllAuthenticator());
+		messaging.init();
+		storage.initStore();
+		SubscriptionsStore subscriptions = new SubscriptionsStore();
+		subscriptions.init(storage, storage);
+		processor.init(subscriptions, storage, storage, null, new MessagingShard(0, messaging));
+		ioSession.setAttribute(MQTTDecoder.PROTOCOL_VERSION, (int) MQTTProtocol.VERSION_3_1_1);
+
+		connect(publisher, "publisher");
+		subscribe(connect(new TestChannel(false), "qos0-subscriber"), AbstractMessage.QOSType.MOST_ONE);
+		subscribe(connect(qos1Subscriber, "qos1-subscriber"), AbstractMessage.QOSType.LEAST_ONE);
+
+		PublishMessage publish = new PublishMessage();
+		publish.setTopicName(TOPIC);
+		publish.setQos(AbstractMessage.QOSType.LEAST_ONE);
+		publish.setMessageID(1);
+		publish.setPayload(ByteBuffer.wrap(new byte[128]));
+		final IoBuffer encoded = IoBuffer.allocate(256).setAutoExpand(true);
+		new MQTTEncoder().encode(ioSession, publish, new ProtocolEncoderOutput() {
+
+			@Override
+			public void write(Object message) {
+				encoded.put(((IoBuffer) message).duplicate());
+			}
+
+			@Override
+			public void mergeAll() {
+			}
+
+			@Override
+			public WriteFuture flush() {
+				return null;
+			}
+		});
+		encoded.flip();
+		frame = encoded;
+	}
+
+	@After
+	public void tearDown() {
+		processor.shutdown();
+		messaging.stop();
+	}
+
+	private TestChannel connect(TestChannel channel, String clientID) {
+		ConnectMessage connect = new ConnectMessage();
+		connect.setProcotolVersion(MQTTProtocol.VERSION_3_1_1);
+		connect.setClientID(clientID);
+		connect.setCleanSession(true);
+		dispatch(channel, connect);
+		return channel;
+	}
+
+	private void subscribe(TestChannel channel, AbstractMessage.QOSType qos) {
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.setMessageID(1);
+		subscribe.addSubscription(new SubscribeMessage.Couple((byte) qos.ordinal(), TOPIC));
+		dispatch(channel, subscribe);
+	}
+
+	private void dispatch(TestChannel channel, AbstractMessage message) {
+		try {
+			processor.dispatch(channel, message);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void publishDecodeAndDispatchAllocationIsBounded() throws Exception {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		publish(WARMUP);
+		long before = threads.getThreadAllocatedBytes(thread);
+		publish(MESSAGES);
+		long perMessage = (threads.getThreadAllocatedBytes(thread) - before) / MESSAGES;
+		assertTrue(perMessage + " bytes allocated per PUBLISH decoded and dispatched", perMessage <= MAX_BYTES_PER_MESSAGE);
+		assertEquals("acknowledged in flight messages", 0, storage.inFlightCount("qos1-subscriber"));
+	}
+
+	private void publish(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			frame.rewind();
+			decoder.decode(ioSession, frame, dispatcher);
+			packetID = packetID % PacketIDAllocator.MAX_PACKET_ID + 1;
+			pubAck.setMessageID(packetID);
+			dispatch(qos1Subscriber, pubAck);
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.red5.server.mqtt.ServerChannel;
+
+/**
+ * A connected client for the processor tests; the messages written to it are dropped, or kept when recording.
+ */
+class TestChannel implements ServerChannel {
+
+	//written directly by the shard thread or queued by the output ring thread
+	final Queue<AbstractMessage> written = new ConcurrentLinkedQueue<>();
+
+	private final Map<String, Object> attributes = new HashMap<>();
+
+	private final boolean recording;
+
+	private volatile boolean writable = true;
+
+	TestChannel(boolean recording) {
+		this.recording = recording;
+	}
+
+	/**
+	 * @return true if the given number of messages were written within 5 seconds, the output ring writes from its own thread
+	 */
+	boolean awaitWritten(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (written.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		return written.size() >= count;
+	}
+
+	void setWritable(boolean writable) {
+		this.writable = writable;
+	}
+
+	@Override
+	public Object getAttribute(String key) {
+		return attributes.get(key);
+	}
+
+	@Override
+	public void setAttribute(String key, Object value) {
+		attributes.put(key, value);
+	}
+
+	@Override
+	public void setIdleTime(int idleTime) {
+	}
+
+	@Override
+	public void close(boolean immediately) {
+	}
+
+	@Override
+	public void write(Object value) {
+		if (recording) {
+			written.add((AbstractMessage) value);
+		}
+	}
+
+	@Override
+	public boolean enqueue(AbstractMessage message) {
+		if (recording) {
+			written.add(message);
+		}
+		return false;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable;
+	}
+
+	@Override
+	public long getLastReadTime() {
+		return System.currentTimeMillis();
+	}
+}
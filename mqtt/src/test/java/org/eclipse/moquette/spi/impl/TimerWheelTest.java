@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	//1 ms ticks on 8 buckets, a wheel turns every 8 ms so most delays take several rounds
+	private final TimerWheel timer = new TimerWheel("TimerWheelTest", 1, TimeUnit.MILLISECONDS, 8);
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void expiresNoEarlierThanTheDelay() throws Exception {
+		timer.start();
+		Recorder recorder = new Recorder(1);
+		long start = System.nanoTime();
+		TimerWheel.Timeout timeout = timer.schedule(recorder, 30, TimeUnit.MILLISECONDS);
+		assertTrue(recorder.await());
+		assertTrue(recorder.elapsedMillis(start) >= 30);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertEquals(0, awaitSize());
+	}
+
+	@Test
+	public void expiresInDeadlineOrderAcrossRounds() throws Exception {
+		timer.start();
+		Recorder recorder = new Recorder(4);
+		//the same bucket, 0 to 3 rounds away, scheduled out of order
+		timer.schedule(recorder.named(24), 24, TimeUnit.MILLISECONDS);
+		timer.schedule(recorder.named(8), 8, TimeUnit.MILLISECONDS);
+		timer.schedule(recorder.named(32), 32, TimeUnit.MILLISECONDS);
+		timer.schedule(recorder.named(16), 16, TimeUnit.MILLISECONDS);
+		assertTrue(recorder.await());
+		assertEquals("[8, 16, 24, 32]", recorder.expired.toString());
+	}
+
+	@Test
+	public void expiresALateTimeoutOnTheCurrentTick() throws Exception {
+		timer.start();
+		Recorder recorder = new Recorder(1);
+		timer.schedule(recorder, 0, TimeUnit.MILLISECONDS);
+		assertTrue(recorder.await());
+	}
+
+	@Test
+	public void cancelsBeforeTheTransferToTheWheel() throws Exception {
+		//not started, the timeout is still in the pending queue
+		Recorder recorder = new Recorder(1);
+		TimerWheel.Timeout timeout = timer.schedule(recorder, 5, TimeUnit.MILLISECONDS);
+		assertEquals(1, timer.size());
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		timer.start();
+		assertFalse(recorder.latch.await(50, TimeUnit.MILLISECONDS));
+		assertTrue(timeout.isCancelled());
+		assertEquals(0, timer.size());
+	}
+
+	@Test
+	public void cancelsInTheWheel() throws Exception {
+		timer.start();
+		Recorder recorder = new Recorder(1);
+		TimerWheel.Timeout cancelled = timer.schedule(recorder.named(1), 40, TimeUnit.MILLISECONDS);
+		TimerWheel.Timeout kept = timer.schedule(recorder.named(2), 60, TimeUnit.MILLISECONDS);
+		Thread.sleep(10);
+		assertTrue(cancelled.cancel());
+		assertTrue(recorder.await());
+		assertEquals("[2]", recorder.expired.toString());
+		assertTrue(kept.isExpired());
+		assertEquals(0, awaitSize());
+	}
+
+	@Test
+	public void keepsTurningAfterAFailedTask() throws Exception {
+		timer.start();
+		timer.schedule(new TimerWheel.Task() {
+			@Override
+			public void expired(TimerWheel.Timeout timeout) {
+				throw new IllegalStateException("expected");
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+		Recorder recorder = new Recorder(1);
+		timer.schedule(recorder, 10, TimeUnit.MILLISECONDS);
+		assertTrue(recorder.await());
+	}
+
+	@Test
+	public void dropsThePendingTimeoutsOnStop() throws Exception {
+		timer.start();
+		Recorder recorder = new Recorder(1);
+		timer.schedule(recorder, 50, TimeUnit.MILLISECONDS);
+		timer.stop();
+		assertFalse(recorder.latch.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	/** The size drops once the whole bucket expired, just after the tasks ran. */
+	private int awaitSize() throws InterruptedException {
+		for (int i = 0; i < 100 && timer.size() > 0; i++) {
+			Thread.sleep(1);
+		}
+		return timer.size();
+	}
+
+	private static final class Recorder implements TimerWheel.Task {
+
+		final CountDownLatch latch;
+
+		final List<Integer> expired = new CopyOnWriteArrayList<>();
+
+		volatile long expiredAt;
+
+		Recorder(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void expired(TimerWheel.Timeout timeout) {
+			expiredAt = System.nanoTime();
+			latch.countDown();
+		}
+
+		TimerWheel.Task named(final int name) {
+			return new TimerWheel.Task() {
+				@Override
+				public void expired(TimerWheel.Timeout timeout) {
+					expired.add(name);
+					Recorder.this.expired(timeout);
+				}
+			};
+		}
+
+		boolean await() throws InterruptedException {
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+
+		long elapsedMillis(long start) {
+			return TimeUnit.NANOSECONDS.toMillis(expiredAt - start);
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MapDBPersistentStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String storePath;
+
+	private MapDBPersistentStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		storePath = new File(folder.getRoot(), "moquette_store.mapdb").getAbsolutePath();
+		store = open();
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	private MapDBPersistentStore open() {
+		MapDBPersistentStore opened = new MapDBPersistentStore(storePath);
+		opened.initStore();
+		return opened;
+	}
+
+	private void reopen() {
+		store.close();
+		store = open();
+	}
+
+	private int sendInFlight(String clientID) {
+		int packetID = store.nextPacketID(clientID);
+		store.addInFlight(new PublishEvent("/topic", QOSType.LEAST_ONE, new byte[] { 1, 2, 3 }, false, clientID, packetID), clientID, packetID);
+		return packetID;
+	}
+
+	@Test
+	public void restoresTheInFlightPacketIDsAfterARestart() {
+		assertEquals(1, sendInFlight("client"));
+		assertEquals(2, sendInFlight("client"));
+		assertEquals(3, sendInFlight("client"));
+		store.cleanInFlight("client", 2);
+		reopen();
+		assertEquals(Arrays.asList(1, 3), store.inFlightPacketIDs("client"));
+		assertEquals(2, store.inFlightCount("client"));
+		assertNotNull(store.getInFlight("client", 3));
+		//the restored IDs aren't handed out again
+		int next = store.nextPacketID("client");
+		assertTrue(next != 1 && next != 3);
+	}
+
+	@Test
+	public void keepsTheReceivedStateAfterARestart() {
+		sendInFlight("client");
+		sendInFlight("client");
+		store.markReceived("client", 2);
+		reopen();
+		assertFalse(store.isReceived("client", 1));
+		assertTrue(store.isReceived("client", 2));
+		store.cleanInFlight("client", 2);
+		assertFalse(store.isReceived("client", 2));
+		//not in flight, nothing to release
+		store.markReceived("client", 3);
+		assertFalse(store.isReceived("client", 3));
+	}
+
+	@Test
+	public void dropsTheInFlightMessagesAndReusesTheHandle() {
+		sendInFlight("gone");
+		sendInFlight("kept");
+		store.dropPacketIDs("gone");
+		assertTrue(store.inFlightPacketIDs("gone").isEmpty());
+		assertEquals(0, store.inFlightCount("gone"));
+		//takes over the handle of the dropped session, but none of its messages
+		assertEquals(1, store.nextPacketID("new"));
+		assertNull(store.getInFlight("new", 1));
+		assertEquals(Arrays.asList(1), store.inFlightPacketIDs("kept"));
+		reopen();
+		assertTrue(store.inFlightPacketIDs("gone").isEmpty());
+		assertTrue(store.inFlightPacketIDs("new").isEmpty());
+		assertEquals(Arrays.asList(1), store.inFlightPacketIDs("kept"));
+	}
+
+	@Test
+	public void reservesThePacketIDOfAnInFlightMessage() {
+		store.addInFlight(new PublishEvent("/topic", QOSType.LEAST_ONE, new byte[] { 1 }, false, "client", 2), "client", 2);
+		assertEquals(1, store.nextPacketID("client"));
+		assertEquals(3, store.nextPacketID("client"));
+		assertEquals(Arrays.asList(2), store.inFlightPacketIDs("client"));
+	}
+
+	@Test
+	public void listsNoInFlightMessagesForAnUnknownClient() {
+		assertTrue(store.inFlightPacketIDs("unknown").isEmpty());
+		store.dropPacketIDs("unknown");
+		assertEquals(0, store.inFlightCount("unknown"));
+	}
+
+}
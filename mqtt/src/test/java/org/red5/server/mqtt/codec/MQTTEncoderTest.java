@@ -0,0 +1,144 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ * 
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.red5.server.mqtt.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
+import org.eclipse.moquette.proto.messages.SubscribeMessage;
+import org.junit.Test;
+
+public class MQTTEncoderTest {
+
+	private final IoSession session = new DummySession();
+
+	private final Output output = new Output();
+
+	@Test
+	public void connectWithWillAndCredentialsDecodesBack() throws Exception {
+		ConnectMessage connect = new ConnectMessage();
+		connect.setClientID("subscriber-with-a-long-id");
+		connect.setCleanSession(true);
+		connect.setKeepAlive(30);
+		connect.setWillFlag(true);
+		connect.setWillQos((byte) 1);
+		connect.setWillTopic("clients/subscriber-with-a-long-id/status");
+		connect.setWillMessage("gone");
+		connect.setUserFlag(true);
+		connect.setUsername("user");
+		connect.setPasswordFlag(true);
+		connect.setPassword("secret");
+		byte[] frame = encode(connect);
+		//header, remaining length, then the 12 bytes of the static part and the strings only
+		assertEquals(2 + 12 + 2 + 25 + 2 + 40 + 2 + 4 + 2 + 4 + 2 + 6, frame.length);
+		ConnectMessage decoded = (ConnectMessage) decode(frame);
+		assertEquals("subscriber-with-a-long-id", decoded.getClientID());
+		assertTrue(decoded.isCleanSession());
+		assertEquals(30, decoded.getKeepAlive());
+		assertEquals(1, decoded.getWillQos());
+		assertEquals("clients/subscriber-with-a-long-id/status", decoded.getWillTopic());
+		assertEquals("gone", decoded.getWillMessage());
+		assertEquals("user", decoded.getUsername());
+		assertEquals("secret", decoded.getPassword());
+	}
+
+	@Test
+	public void subscribeToSeveralFiltersDecodesBack() throws Exception {
+		session.setAttribute(MQTTDecoder.PROTOCOL_VERSION, (int) MQTTProtocol.VERSION_3_1_1);
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.setMessageID(513);
+		subscribe.addSubscription(new SubscribeMessage.Couple((byte) 0, "sensors/+/temperature"));
+		subscribe.addSubscription(new SubscribeMessage.Couple((byte) 2, "alerts/#"));
+		SubscribeMessage decoded = (SubscribeMessage) decode(encode(subscribe));
+		assertEquals(513, decoded.getMessageID());
+		assertEquals(2, decoded.subscriptions().size());
+		assertEquals("sensors/+/temperature", decoded.subscriptions().get(0).getTopicFilter());
+		assertEquals(0, decoded.subscriptions().get(0).getQos());
+		assertEquals("alerts/#", decoded.subscriptions().get(1).getTopicFilter());
+		assertEquals(2, decoded.subscriptions().get(1).getQos());
+	}
+
+	@Test
+	public void pubRelCarriesTheReservedFlags() throws Exception {
+		session.setAttribute(MQTTDecoder.PROTOCOL_VERSION, (int) MQTTProtocol.VERSION_3_1_1);
+		PubRelMessage pubRel = new PubRelMessage();
+		pubRel.setMessageID(65535);
+		byte[] frame = encode(pubRel);
+		assertEquals(AbstractMessage.PUBREL << 4 | 0x02, frame[0] & 0xFF);
+		assertEquals(65535, ((PubRelMessage) decode(frame)).getMessageID());
+	}
+
+	private byte[] encode(AbstractMessage message) throws Exception {
+		output.messages.clear();
+		new MQTTEncoder().encode(session, message, output);
+		IoBuffer frame = IoBuffer.allocate(256).setAutoExpand(true);
+		for (Object encoded : output.messages) {
+			frame.put((IoBuffer) encoded);
+		}
+		frame.flip();
+		byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		return bytes;
+	}
+
+	private AbstractMessage decode(byte[] frame) throws Exception {
+		output.messages.clear();
+		IoBuffer in = IoBuffer.wrap(frame);
+		new MQTTDecoder().decode(session, in, output);
+		assertEquals(0, in.remaining());
+		assertEquals(1, output.messages.size());
+		return (AbstractMessage) output.messages.get(0);
+	}
+
+	private static final class Output implements ProtocolEncoderOutput, ProtocolDecoderOutput {
+
+		final List<Object> messages = new ArrayList<Object>();
+
+		@Override
+		public void write(Object message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void mergeAll() {
+		}
+
+		@Override
+		public WriteFuture flush() {
+			return null;
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtsp.bench;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+
+/**
+ * The messages a camera client exchanges with the server, as sent on the wire, and the plumbing to decode them outside of a MINA session.
+ */
+public final class Messages {
+
+	static {
+		// rtsp:// URLs are handled by org.red5.server.net.rtsp.Handler
+		String pkgs = System.getProperty("java.protocol.handler.pkgs");
+		if (pkgs == null || !pkgs.contains("org.red5.server.net")) {
+			System.setProperty("java.protocol.handler.pkgs", pkgs == null ? "org.red5.server.net" : pkgs + "|org.red5.server.net");
+		}
+	}
+
+	public static final String DESCRIBE = "DESCRIBE rtsp://192.168.1.20:554/live/camera1 RTSP/1.0\r\n" //
+			+ "CSeq: 2\r\n" //
+			+ "Accept: application/sdp\r\n" //
+			+ "User-Agent: LibVLC/2.2.4 (LIVE555 Streaming Media v2016.02.22)\r\n" //
+			+ "Authorization: Digest username=\"admin\", realm=\"camera\", nonce=\"5d1e4a3b\", uri=\"rtsp://192.168.1.20:554/live/camera1\", response=\"0c8d7f1e2b3a\"\r\n" //
+			+ "\r\n";
+
+	public static final String SETUP = "SETUP rtsp://192.168.1.20:554/live/camera1/trackID=1 RTSP/1.0\r\n" //
+			+ "CSeq: 3\r\n" //
+			+ "User-Agent: LibVLC/2.2.4 (LIVE555 Streaming Media v2016.02.22)\r\n" //
+			+ "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n" //
+			+ "\r\n";
+
+	public static final String GET_PARAMETER = "GET_PARAMETER rtsp://192.168.1.20:554/live/camera1/ RTSP/1.0\r\n" //
+			+ "CSeq: 42\r\n" //
+			+ "User-Agent: LibVLC/2.2.4 (LIVE555 Streaming Media v2016.02.22)\r\n" //
+			+ "Session: 8453201764\r\n" //
+			+ "\r\n";
+
+	public static final String SDP = "v=0\r\n" //
+			+ "o=- 1451606400 1 IN IP4 192.168.1.20\r\n" //
+			+ "s=Session streamed by camera1\r\n" //
+			+ "t=0 0\r\n" //
+			+ "a=control:*\r\n" //
+			+ "a=range:npt=0-\r\n" //
+			+ "m=video 0 RTP/AVP 96\r\n" //
+			+ "c=IN IP4 0.0.0.0\r\n" //
+			+ "b=AS:4096\r\n" //
+			+ "a=rtpmap:96 H264/90000\r\n" //
+			+ "a=fmtp:96 packetization-mode=1;profile-level-id=640028;sprop-parameter-sets=Z2QAKKwsaoHgCJ+WbgICAgQ=,aO4xshs=\r\n" //
+			+ "a=control:trackID=1\r\n" //
+			+ "m=audio 0 RTP/AVP 97\r\n" //
+			+ "c=IN IP4 0.0.0.0\r\n" //
+			+ "a=rtpmap:97 MPEG4-GENERIC/16000/1\r\n" //
+			+ "a=fmtp:97 streamtype=5;profile-level-id=15;mode=AAC-hbr;config=1408;sizelength=13;indexlength=3;indexdeltalength=3\r\n" //
+			+ "a=control:trackID=2\r\n";
+
+	public static final String DESCRIBE_RESPONSE = "RTSP/1.0 200 OK\r\n" //
+			+ "CSeq: 2\r\n" //
+			+ "Date: Fri, Jan 01 2016 00:00:00 GMT\r\n" //
+			+ "Content-Base: rtsp://192.168.1.20:554/live/camera1/\r\n" //
+			+ "Content-Type: application/sdp\r\n" //
+			+ "Content-Length: " + SDP.length() + "\r\n" //
+			+ "\r\n" //
+			+ SDP;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private Messages() {
+	}
+
+	public static byte[] bytes(String message) {
+		return message.getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * @return the message by name: DESCRIBE, SETUP, GET_PARAMETER or DESCRIBE_RESPONSE
+	 */
+	public static String byName(String name) {
+		if ("DESCRIBE".equals(name)) {
+			return DESCRIBE;
+		} else if ("SETUP".equals(name)) {
+			return SETUP;
+		} else if ("GET_PARAMETER".equals(name)) {
+			return GET_PARAMETER;
+		} else if ("DESCRIBE_RESPONSE".equals(name)) {
+			return DESCRIBE_RESPONSE;
+		}
+		throw new IllegalArgumentException("Unknown message " + name);
+	}
+
+	/**
+	 * @return all the sample messages
+	 */
+	public static String[] all() {
+		return new String[] { DESCRIBE, SETUP, GET_PARAMETER, DESCRIBE_RESPONSE };
+	}
+
+	/**
+	 * Splits the bytes into reads of the given lengths, each in its own buffer like MINA hands them to the decoder.
+	 */
+	public static IoBuffer[] reads(byte[] bytes, int[] cuts) {
+		IoBuffer[] reads = new IoBuffer[cuts.length + 1];
+		int start = 0;
+		for (int i = 0; i <= cuts.length; i++) {
+			int end = i < cuts.length ? cuts[i] : bytes.length;
+			IoBuffer read = IoBuffer.allocate(end - start);
+			read.put(bytes, start, end - start);
+			read.flip();
+			reads[i] = read;
+			start = end;
+		}
+		return reads;
+	}
+
+	/**
+	 * Decodes the reads in order on a session of their own.
+	 *
+	 * @return the decoded messages
+	 * @throws Exception
+	 *             as thrown by the decoder, the messages decoded so far are lost
+	 */
+	public static List<Object> decode(ProtocolDecoder decoder, IoBuffer[] reads) throws Exception {
+		IoSession session = new DummySession();
+		Output out = new Output();
+		for (IoBuffer read : reads) {
+			decoder.decode(session, read, out);
+		}
+		decoder.dispose(session);
+		return out.messages;
+	}
+
+	/**
+	 * Collects the decoded messages.
+	 */
+	public static final class Output implements ProtocolDecoderOutput {
+
+		public final List<Object> messages = new ArrayList<Object>();
+
+		@Override
+		public void write(Object message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtsp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.io.object.UnsignedInt;
+import org.red5.io.object.UnsignedShort;
+import org.red5.server.net.rtp.RTPPacket;
+import org.red5.server.net.rtp.RTPPacketPool;
+import org.red5.server.net.rtp.RTPPacketView;
+
+/**
+ * Relaying of a received RTP packet with a new SSRC and sequence number, by RTPPacket which copies the fields and payload into objects and a new
+ * buffer, and by a pooled RTPPacketView which rewrites them in place. Run with -prof gc to compare the allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPPacketBenchmark {
+
+	/** Payload size: an audio frame and a full video packet */
+	@Param({ "160", "1400" })
+	int payload;
+
+	private final RTPPacketPool pool = new RTPPacketPool();
+
+	private IoBuffer received;
+
+	private int sequence;
+
+	@Setup
+	public void setup() {
+		RTPPacketView view = pool.acquire();
+		view.create(96, 1000, 90000L * 3600, 0x12345678L);
+		view.setMarker(true);
+		byte[] bytes = new byte[payload];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		view.appendPayload(IoBuffer.wrap(bytes));
+		IoBuffer packet = view.toByteBuffer();
+		received = IoBuffer.allocate(packet.remaining());
+		received.put(packet);
+		received.flip();
+		view.release();
+	}
+
+	@Benchmark
+	public Object relay() {
+		received.rewind();
+		RTPPacket packet = new RTPPacket(received);
+		packet.setSsrc(new UnsignedInt(0xCAFEL));
+		packet.setSequence(new UnsignedShort(sequence++));
+		return packet.toByteBuffer();
+	}
+
+	@Benchmark
+	public int relayView() {
+		received.rewind();
+		RTPPacketView view = pool.acquire();
+		IoBuffer buffer = view.getBuffer();
+		buffer.put(received);
+		buffer.flip();
+		view.wrap(buffer);
+		view.setSsrc(0xCAFEL);
+		view.setSequence(sequence++);
+		IoBuffer out = view.toByteBuffer();
+		int remaining = out.remaining();
+		view.release();
+		return remaining;
+	}
+
+}
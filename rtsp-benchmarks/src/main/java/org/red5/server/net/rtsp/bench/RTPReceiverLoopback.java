@@ -0,0 +1,391 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtsp.bench;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.net.rtp.RTPListener;
+import org.red5.server.net.rtp.RTPPacketPool;
+import org.red5.server.net.rtp.RTPPacketView;
+import org.red5.server.net.rtp.RTPReceiver;
+import org.red5.server.net.rtp.RTPSession;
+import org.red5.server.net.rtp.RTPStream;
+import org.red5.server.net.rtp.rtcp.ByeInfo;
+import org.red5.server.net.rtp.rtcp.ExtendedReportInfo;
+import org.red5.server.net.rtp.rtcp.RTCPInfo;
+import org.red5.server.net.rtp.rtcp.RTCPPacket;
+import org.red5.server.net.rtp.rtcp.ReceiverReportInfo;
+import org.red5.server.net.rtp.rtcp.ReportBlock;
+import org.red5.server.net.rtp.rtcp.SDESInfo;
+import org.red5.server.net.rtp.rtcp.SenderReportInfo;
+
+/**
+ * Streams RTP over loopback to a RTPReceiver, with packets lost, swapped and repeated and the sequence numbers wrapping around, and checks what is
+ * played out: in sequence order, each packet once with its own payload, and every number of the sequence either played out or reported lost. Then
+ * each sender exchanges RTCP with its session: a sender report and its CNAME, the receiver report on its stream checked against the statistics of
+ * the stream, an answer to the reference time of the session for the round trip, and a goodbye that removes the stream and its JMX bean. The
+ * streams, their statistics and the rate are printed, and the exit status is 1 on a failed check.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.red5.server.net.rtsp.bench.RTPReceiverLoopback --sessions=8 --packets=100000 --loss=1 --seed=1
+ * </pre>
+ */
+public class RTPReceiverLoopback {
+
+	private int sessions = 4;
+
+	private int packets = 100000;
+
+	private double loss = 1;
+
+	private double reorder = 2;
+
+	private double duplicate = 0.5;
+
+	private int threads = 2;
+
+	private long seed = System.nanoTime();
+
+	private final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		RTPReceiverLoopback loopback = new RTPReceiverLoopback();
+		for (String arg : args) {
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--sessions=")) {
+				loopback.sessions = Integer.parseInt(value);
+			} else if (arg.startsWith("--packets=")) {
+				loopback.packets = Integer.parseInt(value);
+			} else if (arg.startsWith("--loss=")) {
+				loopback.loss = Double.parseDouble(value);
+			} else if (arg.startsWith("--reorder=")) {
+				loopback.reorder = Double.parseDouble(value);
+			} else if (arg.startsWith("--duplicate=")) {
+				loopback.duplicate = Double.parseDouble(value);
+			} else if (arg.startsWith("--threads=")) {
+				loopback.threads = Integer.parseInt(value);
+			} else if (arg.startsWith("--seed=")) {
+				loopback.seed = Long.parseLong(value);
+			} else {
+				System.err.println("Unknown option " + arg
+						+ ", expected --sessions=n --packets=n --loss=% --reorder=% --duplicate=% --threads=n --seed=n");
+				System.exit(2);
+			}
+		}
+		loopback.run();
+		for (String failure : loopback.failures) {
+			System.out.println("FAILED " + failure);
+		}
+		System.exit(loopback.failures.isEmpty() ? 0 : 1);
+	}
+
+	private void run() throws Exception {
+		RTPReceiver receiver = new RTPReceiver();
+		receiver.setSelectorThreads(threads);
+		receiver.setJitterDelayMillis(50);
+		receiver.setRtcpIntervalMillis(200);
+		receiver.start();
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		Sink[] sinks = new Sink[sessions];
+		RTPSession[] opened = new RTPSession[sessions];
+		DatagramChannel[] senders = new DatagramChannel[sessions];
+		for (int i = 0; i < sessions; i++) {
+			sinks[i] = new Sink();
+			opened[i] = receiver.open(new InetSocketAddress(loopback, 0), 90000, sinks[i]);
+			senders[i] = DatagramChannel.open();
+			senders[i].connect(new InetSocketAddress(loopback, opened[i].getRtpPort()));
+		}
+		Random random = new Random(seed);
+		RTPPacketPool pool = new RTPPacketPool();
+		// numbers wrap around early on
+		int first = 65536 - 1000;
+		int[][] plans = new int[sessions][];
+		BitSet[] sent = new BitSet[sessions];
+		for (int i = 0; i < sessions; i++) {
+			sent[i] = new BitSet();
+			plans[i] = plan(random, sent[i]);
+		}
+		long start = System.nanoTime();
+		long datagrams = 0;
+		for (int k = 0;; k++) {
+			boolean any = false;
+			for (int i = 0; i < sessions; i++) {
+				if (k < plans[i].length) {
+					send(senders[i], pool, i, first + plans[i][k]);
+					datagrams++;
+					any = true;
+				}
+			}
+			if (!any) {
+				break;
+			}
+			if ((k & 127) == 0) {
+				// paced, the loopback drops what overflows the socket buffers
+				Thread.sleep(1);
+			}
+		}
+		Thread.sleep(500);
+		long elapsed = System.nanoTime() - start;
+		for (int i = 0; i < sessions; i++) {
+			check(i, opened[i], sinks[i], first, sent[i]);
+		}
+		for (int i = 0; i < sessions; i++) {
+			DatagramSocket socket = new DatagramSocket(new InetSocketAddress(loopback, 0));
+			try {
+				rtcp(i, opened[i], socket, new InetSocketAddress(loopback, opened[i].getRtcpPort()));
+			} finally {
+				socket.close();
+			}
+		}
+		System.out.printf("%d sessions, %d datagrams in %d ms (%.0f/s), seed %d, %d pooled packets created%n", sessions, datagrams, elapsed / 1000000,
+				datagrams * 1e9 / elapsed, seed, receiver.getPool().getCreatedCount());
+		receiver.stop();
+	}
+
+	/**
+	 * @return the indexes of the packets in the order they are sent: some missing, swapped with the next one or repeated, never the last one
+	 */
+	private int[] plan(Random random, BitSet sent) {
+		int[] order = new int[packets * 2];
+		int count = 0;
+		for (int n = 0; n < packets; n++) {
+			boolean last = n == packets - 1;
+			if (!last && n + 1 < packets - 1 && random.nextDouble() * 100 < reorder) {
+				order[count++] = n + 1;
+				order[count++] = n;
+				sent.set(n, n + 2);
+				n++;
+				continue;
+			}
+			if (!last && random.nextDouble() * 100 < loss) {
+				continue;
+			}
+			order[count++] = n;
+			if (random.nextDouble() * 100 < duplicate) {
+				order[count++] = n;
+			}
+			sent.set(n);
+		}
+		int[] plan = new int[count];
+		System.arraycopy(order, 0, plan, 0, count);
+		return plan;
+	}
+
+	private void send(DatagramChannel sender, RTPPacketPool pool, int session, int sequence) throws Exception {
+		RTPPacketView packet = pool.acquire();
+		IoBuffer payload = IoBuffer.allocate(200);
+		payload.putInt(sequence & 0xFFFF);
+		payload.position(payload.limit());
+		payload.flip();
+		packet.create(96, sequence & 0xFFFF, sequence * 3000L, 0x1000 + session).appendPayload(payload);
+		sender.write(packet.toByteBuffer().buf());
+		packet.release();
+	}
+
+	private void check(int i, RTPSession session, Sink sink, int first, BitSet sent) {
+		RTPStream stream = session.getStream(0x1000 + i);
+		if (stream == null) {
+			failures.add("session " + i + " received nothing");
+			return;
+		}
+		System.out.println(session + " " + stream + " reordered=" + stream.getReordered() + " skipped=" + stream.getSkipped() + " buffered="
+				+ stream.getBuffered());
+		if (sink.error != null) {
+			failures.add("session " + i + ": " + sink.error);
+		}
+		if (sink.playedOut == 0) {
+			failures.add("session " + i + " played out nothing");
+			return;
+		}
+		long range = sink.lastExtended - sink.firstExtended + 1;
+		if (sink.playedOut + sink.lost != range) {
+			failures.add("session " + i + ": " + sink.playedOut + " played out and " + sink.lost + " lost over " + range + " numbers");
+		}
+		// what was sent within the range played out is played out, unless late; repeats of played out packets count as late too
+		int from = (int) (sink.firstExtended - first);
+		int sentInRange = sent.get(from, (int) (from + range)).cardinality();
+		if (sink.playedOut > sentInRange || sink.playedOut < sentInRange - stream.getLate()) {
+			failures.add("session " + i + ": " + sink.playedOut + " played out of " + sentInRange + " sent, " + stream.getLate() + " late");
+		}
+		if (stream.getBuffered() != 0) {
+			failures.add("session " + i + ": " + stream.getBuffered() + " packets still buffered");
+		}
+	}
+
+	private void rtcp(int i, RTPSession session, DatagramSocket socket, InetSocketAddress destination) throws Exception {
+		long ssrc = 0x1000 + i;
+		RTPStream stream = session.getStream(ssrc);
+		if (stream == null) {
+			return;
+		}
+		SenderReportInfo senderReport = new SenderReportInfo(ssrc);
+		long ntp = ntpTimestamp(System.currentTimeMillis());
+		senderReport.setNtpTimestamp(ntp);
+		senderReport.setPacketCount(packets);
+		senderReport.setOctetCount(packets * 200L);
+		SDESInfo description = new SDESInfo();
+		description.addChunk(ssrc).setItem(SDESInfo.Type.CNAME, "sender-" + i);
+		send(socket, destination, new RTCPPacket(RTCPPacket.Type.SR, senderReport), new RTCPPacket(RTCPPacket.Type.SDES, description));
+		// the session reports to the address of the sender report
+		ReportBlock block = null;
+		long referenceTime = 0;
+		socket.setSoTimeout(2000);
+		byte[] datagram = new byte[1500];
+		long deadline = System.currentTimeMillis() + 2000;
+		while ((block == null || referenceTime == 0) && System.currentTimeMillis() < deadline) {
+			DatagramPacket received = new DatagramPacket(datagram, datagram.length);
+			try {
+				socket.receive(received);
+			} catch (SocketTimeoutException e) {
+				break;
+			}
+			for (RTCPPacket packet : RTCPPacket.decode(IoBuffer.wrap(datagram, 0, received.getLength()))) {
+				RTCPInfo info = packet.getInfo();
+				if (info instanceof ReceiverReportInfo) {
+					for (ReportBlock b : ((ReceiverReportInfo) info).getBlocks()) {
+						if (b.getSsrc() == ssrc && b.getLastSenderReport() != 0) {
+							block = b;
+						}
+					}
+				} else if (info instanceof ExtendedReportInfo) {
+					referenceTime = ((ExtendedReportInfo) info).getReferenceTime();
+				}
+			}
+		}
+		if (block == null || referenceTime == 0) {
+			failures.add("session " + i + ": no receiver report with a reference time on the stream");
+			return;
+		}
+		System.out.println(session + " " + block + " cname=" + stream.getCname());
+		if (block.getExtendedHighestSequence() != stream.getHighestSequence() || block.getCumulativeLost() != stream.getLost()
+				|| block.getLastSenderReport() != ((ntp >>> 16) & 0xFFFFFFFFL)) {
+			failures.add("session " + i + ": " + block + " does not match " + stream);
+		}
+		if (!("sender-" + i).equals(stream.getCname()) || stream.getSenderPacketCount() != packets) {
+			failures.add("session " + i + ": cname " + stream.getCname() + " and " + stream.getSenderPacketCount() + " packets sent");
+		}
+		// answers the reference time at once
+		ExtendedReportInfo answer = new ExtendedReportInfo(ssrc);
+		answer.addDelay(new ExtendedReportInfo.DelayBlock(session.getLocalSsrc(), (referenceTime >>> 16) & 0xFFFFFFFFL, 0));
+		ReceiverReportInfo empty = new ReceiverReportInfo(ssrc);
+		send(socket, destination, new RTCPPacket(RTCPPacket.Type.RR, empty), new RTCPPacket(RTCPPacket.Type.XR, answer));
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName pattern = new ObjectName("org.red5.server:type=RTPStream,port=" + session.getRtpPort() + ",ssrc=" + ssrc + ",*");
+		Thread.sleep(100);
+		Set<ObjectName> names = mbs.queryNames(pattern, null);
+		if (stream.getRoundTripMillis() < 0) {
+			failures.add("session " + i + ": no round trip");
+		}
+		if (names.size() != 1 || !("sender-" + i).equals(mbs.getAttribute(names.iterator().next(), "Cname"))) {
+			failures.add("session " + i + ": stream not in JMX " + names);
+		}
+		send(socket, destination, new RTCPPacket(RTCPPacket.Type.RR, empty), new RTCPPacket(RTCPPacket.Type.BYE, new ByeInfo(new long[] { ssrc },
+				"done")));
+		Thread.sleep(100);
+		if (session.getStream(ssrc) != null || !mbs.queryNames(pattern, null).equals(Collections.emptySet())) {
+			failures.add("session " + i + ": stream left after its goodbye");
+		}
+	}
+
+	private static void send(DatagramSocket socket, InetSocketAddress destination, RTCPPacket... packets) throws Exception {
+		List<RTCPPacket> compound = new ArrayList<RTCPPacket>();
+		Collections.addAll(compound, packets);
+		IoBuffer buffer = RTCPPacket.toByteBuffer(compound);
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		socket.send(new DatagramPacket(bytes, bytes.length, destination));
+	}
+
+	private static long ntpTimestamp(long millis) {
+		long seconds = millis / 1000 + 2208988800L;
+		return (seconds << 32) | (((millis % 1000) << 32) / 1000);
+	}
+
+	/**
+	 * Checks the packets played out, on the selector thread.
+	 */
+	private static final class Sink implements RTPListener {
+
+		long firstExtended = -1;
+
+		long lastExtended;
+
+		long playedOut;
+
+		long lost;
+
+		String error;
+
+		@Override
+		public void packetReceived(RTPStream stream, RTPPacketView packet) {
+			int sequence = packet.getSequence();
+			long extended;
+			if (firstExtended < 0) {
+				extended = sequence;
+				firstExtended = extended;
+			} else {
+				extended = lastExtended + (short) (sequence - (int) lastExtended);
+				if (extended != lastExtended + 1 + pendingLost && error == null) {
+					error = "played out " + extended + " after " + lastExtended + " and " + pendingLost + " lost";
+				}
+			}
+			pendingLost = 0;
+			lastExtended = extended;
+			playedOut++;
+			IoBuffer payload = packet.getPayload();
+			if (payload.remaining() != 200 || payload.getInt() != sequence) {
+				if (error == null) {
+					error = "payload of " + sequence + " does not match";
+				}
+			}
+		}
+
+		private long pendingLost;
+
+		@Override
+		public void packetsLost(RTPStream stream, int count) {
+			if (firstExtended >= 0) {
+				lost += count;
+				pendingLost += count;
+			}
+		}
+
+		@Override
+		public void rtcpReceived(RTPSession session, IoBuffer packet) {
+		}
+
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtsp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.server.net.rtsp.codec.RTSPDecoder;
+
+/**
+ * Decoding of the messages of a camera session by RTSPDecoder, whole and split across reads, against the former line reader and regular expressions
+ * decoder on the whole messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTSPDecoderBenchmark {
+
+	@Param({ "DESCRIBE", "SETUP", "GET_PARAMETER", "DESCRIBE_RESPONSE" })
+	String message;
+
+	@Param({ "1", "4" })
+	int reads;
+
+	private final RTSPDecoder decoder = new RTSPDecoder();
+
+	private final LegacyRTSPDecoder legacyDecoder = new LegacyRTSPDecoder();
+
+	private final IoSession session = new DummySession();
+
+	private final Messages.Output out = new Messages.Output();
+
+	private IoBuffer[] whole;
+
+	private IoBuffer[] split;
+
+	@Setup
+	public void setup() {
+		byte[] bytes = Messages.bytes(Messages.byName(message));
+		whole = Messages.reads(bytes, new int[0]);
+		// cuts evenly spread, so they fall inside lines
+		int[] cuts = new int[reads - 1];
+		for (int i = 0; i < cuts.length; i++) {
+			cuts[i] = bytes.length * (i + 1) / reads;
+		}
+		split = Messages.reads(bytes, cuts);
+	}
+
+	@Benchmark
+	public Object decode() throws Exception {
+		return decode(decoder, split);
+	}
+
+	@Benchmark
+	public Object decodeLegacy() throws Exception {
+		return decode(legacyDecoder, whole);
+	}
+
+	private Object decode(ProtocolDecoder decoder, IoBuffer[] buffers) throws Exception {
+		out.messages.clear();
+		for (IoBuffer buffer : buffers) {
+			buffer.rewind();
+			decoder.decode(session, buffer, out);
+		}
+		return out.messages.get(0);
+	}
+
+}
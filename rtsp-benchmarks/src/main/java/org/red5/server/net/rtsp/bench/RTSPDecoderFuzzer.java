@@ -0,0 +1,285 @@
+/*
+ * RED5 Open Source Flash Server - https://github.com/red5
+ *
+ * Copyright 2006-2015 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtsp.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.red5.server.net.rtsp.InterleavedChannels;
+import org.red5.server.net.rtsp.InterleavedHandler;
+import org.red5.server.net.rtsp.codec.RTSPDecoder;
+
+/**
+ * Randomized checks of RTSPDecoder.
+ *
+ * Each round pipelines a few sample messages and interleaved packets, on channels with and without handler, and feeds them in reads cut at random
+ * places, down to a byte at a time: the messages and packets decoded must be the same as from a single read. Then the bytes are mutated (bytes flipped, inserted, removed or repeated, Content-Length and line lengths forged) and
+ * decoded again: the decoder may reject them, but only with a ProtocolDecoderException, and must consume every read. A failing round is printed with
+ * its seed and bytes, and the exit status is 1.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.red5.server.net.rtsp.bench.RTSPDecoderFuzzer --rounds=100000 --seed=1
+ * </pre>
+ */
+public class RTSPDecoderFuzzer {
+
+	private static final byte[][] samples;
+
+	static {
+		String[] all = Messages.all();
+		samples = new byte[all.length][];
+		for (int i = 0; i < all.length; i++) {
+			samples[i] = Messages.bytes(all[i]);
+		}
+	}
+
+	private final RTSPDecoder decoder = new RTSPDecoder();
+
+	private int splitRounds;
+
+	private int rejected;
+
+	private int accepted;
+
+	private int failures;
+
+	public static void main(String[] args) throws Exception {
+		long rounds = 100000;
+		long seed = System.nanoTime();
+		for (String arg : args) {
+			if (arg.startsWith("--rounds=")) {
+				rounds = Long.parseLong(arg.substring(9));
+			} else if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(arg.substring(7));
+			} else {
+				System.err.println("Unknown option " + arg + ", expected --rounds=n --seed=n");
+				System.exit(2);
+			}
+		}
+		RTSPDecoderFuzzer fuzzer = new RTSPDecoderFuzzer();
+		for (long round = 0; round < rounds; round++) {
+			fuzzer.round(seed + round);
+		}
+		System.out.printf("%d rounds from seed %d: %d split, %d mutated accepted, %d mutated rejected, %d failures%n", rounds, seed, fuzzer.splitRounds,
+				fuzzer.accepted, fuzzer.rejected, fuzzer.failures);
+		System.exit(fuzzer.failures == 0 ? 0 : 1);
+	}
+
+	private void round(long seed) {
+		Random random = new Random(seed);
+		byte[] bytes = pipeline(random);
+		List<String> expected;
+		try {
+			expected = decode(bytes, new int[0]);
+		} catch (Throwable t) {
+			fail(seed, "sample rejected", bytes, t);
+			return;
+		}
+		try {
+			List<String> decoded = decode(bytes, cuts(random, bytes.length));
+			if (!decoded.equals(expected)) {
+				fail(seed, "split decoding differs: " + decoded + " expected " + expected, bytes, null);
+				return;
+			}
+			splitRounds++;
+		} catch (Throwable t) {
+			fail(seed, "split decoding failed", bytes, t);
+			return;
+		}
+		byte[] mutated = mutate(random, bytes);
+		try {
+			decode(mutated, cuts(random, mutated.length));
+			accepted++;
+		} catch (ProtocolDecoderException e) {
+			rejected++;
+		} catch (Throwable t) {
+			fail(seed, "mutated decoding failed", mutated, t);
+		}
+	}
+
+	/**
+	 * @return one to four sample messages, sometimes with keep alive line ends or interleaved packets in between
+	 */
+	private static byte[] pipeline(Random random) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int count = 1 + random.nextInt(4);
+		for (int i = 0; i < count; i++) {
+			if (random.nextInt(8) == 0) {
+				out.write('\r');
+				out.write('\n');
+			}
+			while (random.nextInt(3) == 0) {
+				// channels 0 and 1 have a handler, 2 has none
+				int length = random.nextInt(8) == 0 ? random.nextInt(4) : random.nextInt(3000);
+				out.write('$');
+				out.write(random.nextInt(3));
+				out.write(length >> 8);
+				out.write(length);
+				for (int j = 0; j < length; j++) {
+					out.write(random.nextInt(256));
+				}
+			}
+			byte[] sample = samples[random.nextInt(samples.length)];
+			out.write(sample, 0, sample.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return sorted read boundaries, one read a byte long at times
+	 */
+	private static int[] cuts(Random random, int length) {
+		if (length < 2) {
+			return new int[0];
+		}
+		int[] cuts;
+		if (random.nextInt(16) == 0) {
+			cuts = new int[length - 1];
+			for (int i = 0; i < cuts.length; i++) {
+				cuts[i] = i + 1;
+			}
+			return cuts;
+		}
+		cuts = new int[random.nextInt(Math.min(length - 1, 16)) + 1];
+		for (int i = 0; i < cuts.length; i++) {
+			cuts[i] = 1 + random.nextInt(length - 1);
+		}
+		Arrays.sort(cuts);
+		return cuts;
+	}
+
+	private static byte[] mutate(Random random, byte[] bytes) {
+		int mutations = 1 + random.nextInt(4);
+		for (int m = 0; m < mutations; m++) {
+			int pos = random.nextInt(bytes.length);
+			switch (random.nextInt(7)) {
+				case 0:
+					// flip a byte
+					bytes = bytes.clone();
+					bytes[pos] = (byte) random.nextInt(256);
+					break;
+				case 1:
+					// insert a byte, line ends and separators more likely
+					byte[] special = { '\r', '\n', ':', ' ', '$', '\t', 0 };
+					bytes = splice(bytes, pos, 0, new byte[] { random.nextBoolean() ? special[random.nextInt(special.length)] : (byte) random.nextInt(256) });
+					break;
+				case 2:
+					// remove a range
+					bytes = splice(bytes, pos, Math.min(1 + random.nextInt(16), bytes.length - pos), new byte[0]);
+					break;
+				case 3:
+					// repeat a range
+					int length = Math.min(1 + random.nextInt(64), bytes.length - pos);
+					bytes = splice(bytes, pos, 0, Arrays.copyOfRange(bytes, pos, pos + length));
+					break;
+				case 4:
+					// forge a Content-Length
+					String[] lengths = { "-1", "99999999999", "0x10", "", "2147483648", "70000", "3" };
+					bytes = splice(bytes, pos, 0, Messages.bytes("\r\nContent-Length: " + lengths[random.nextInt(lengths.length)] + "\r\n"));
+					break;
+				case 5:
+					// a very long line
+					byte[] line = new byte[4096 + random.nextInt(8192)];
+					Arrays.fill(line, (byte) 'a');
+					bytes = splice(bytes, pos, 0, line);
+					break;
+				default:
+					// truncate
+					bytes = Arrays.copyOf(bytes, pos);
+			}
+			if (bytes.length == 0) {
+				bytes = new byte[] { '\n' };
+			}
+		}
+		return bytes;
+	}
+
+	private static byte[] splice(byte[] bytes, int pos, int removed, byte[] inserted) {
+		byte[] result = new byte[bytes.length - removed + inserted.length];
+		System.arraycopy(bytes, 0, result, 0, pos);
+		System.arraycopy(inserted, 0, result, pos, inserted.length);
+		System.arraycopy(bytes, pos + removed, result, pos + inserted.length, bytes.length - pos - removed);
+		return result;
+	}
+
+	/**
+	 * Decodes the reads, checking each one is consumed; after a rejection the following reads are still fed, as MINA does, and must be dropped.
+	 *
+	 * @return the decoded messages as they would be sent back, and the packets received on the channels with a handler
+	 * @throws ProtocolDecoderException
+	 *             the first rejection
+	 */
+	private List<String> decode(byte[] bytes, int[] cuts) throws Exception {
+		IoBuffer[] reads = Messages.reads(bytes, cuts);
+		IoSession session = new DummySession();
+		final Messages.Output out = new Messages.Output();
+		InterleavedHandler handler = new InterleavedHandler() {
+			@Override
+			public void packetReceived(IoSession session, int channel, IoBuffer packet) {
+				out.messages.add("$" + channel + " " + (packet.hasRemaining() ? packet.getHexDump(packet.remaining()) : ""));
+				packet.position(packet.limit());
+			}
+		};
+		InterleavedChannels.get(session).bind(0, handler);
+		InterleavedChannels.get(session).bind(1, handler);
+		ProtocolDecoderException rejection = null;
+		for (IoBuffer read : reads) {
+			try {
+				decoder.decode(session, read, out);
+			} catch (ProtocolDecoderException e) {
+				if (rejection == null) {
+					rejection = e;
+				}
+				// MINA hands the rest of the read over again
+				if (read.hasRemaining()) {
+					decoder.decode(session, read, out);
+				}
+			}
+			if (read.hasRemaining()) {
+				throw new IllegalStateException(read.remaining() + " bytes of a read not consumed");
+			}
+		}
+		decoder.dispose(session);
+		if (rejection != null) {
+			throw rejection;
+		}
+		List<String> decoded = new ArrayList<String>(out.messages.size());
+		for (Object message : out.messages) {
+			decoded.add(message.toString());
+		}
+		return decoded;
+	}
+
+	private void fail(long seed, String reason, byte[] bytes, Throwable cause) {
+		failures++;
+		System.out.println("Round with seed " + seed + ": " + reason);
+		System.out.println(IoBuffer.wrap(bytes).getHexDump(4096));
+		if (cause != null) {
+			cause.printStackTrace(System.out);
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.red5.server.jmx.mxbeans;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import javax.management.MXBean;
+
+/**
+ * Statistics of the reception of a RTP stream, a synchronization source of a session.
+ */
+@MXBean
+public interface RTPStreamMXBean {
+
+	public long getSsrc();
+
+	public String getCname();
+
+	public long getHighestSequence();
+
+	public long getReceived();
+
+	public long getExpected();
+
+	public long getLost();
+
+	public int getFractionLost();
+
+	public long getSkipped();
+
+	public long getDuplicates();
+
+	public long getLate();
+
+	public long getReordered();
+
+	public long getDropped();
+
+	public int getBuffered();
+
+	public int getJitter();
+
+	public double getJitterMillis();
+
+	public int getRoundTripMillis();
+
+	public long getSenderPacketCount();
+
+	public long getSenderOctetCount();
+
+}
@@ -0,0 +1,52 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Receives the media of a {@link RTPSession}.
+ *
+ * The methods are called on the selector thread of the session, which serves many other sessions: they must not block.
+ */
+public interface RTPListener {
+
+	/**
+	 * A packet played out of the jitter buffer, in sequence order.
+	 *
+	 * @param packet
+	 *            the packet, released once the call returns: what is kept of it must be copied
+	 */
+	void packetReceived(RTPStream stream, RTPPacketView packet);
+
+	/**
+	 * Packets missing from the sequence, given up on to play out the packets after them.
+	 */
+	void packetsLost(RTPStream stream, int count);
+
+	/**
+	 * A RTCP packet received on the session.
+	 *
+	 * @param packet
+	 *            the compound packet, from its position to its limit, only valid during the call
+	 */
+	void rtcpReceived(RTPSession session, IoBuffer packet);
+
+}
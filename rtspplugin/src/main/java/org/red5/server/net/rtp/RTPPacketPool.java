@@ -0,0 +1,117 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Pool of {@link RTPPacketView}s, each with a buffer of its own sized for one packet.
+ *
+ * A view is acquired to receive or build a packet and released once the packet has been forwarded or dropped; the buffers are allocated once and
+ * reused. When the pool is empty a new view is created, and views released beyond the capacity of the pool are left to the garbage collector, so a
+ * burst never blocks nor keeps its memory forever. The pool may be shared between threads.
+ */
+public class RTPPacketPool {
+
+	/** Packet size that fits an Ethernet frame with the IP and UDP headers */
+	public static final int DEFAULT_PACKET_SIZE = 1472;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// an array, unlike a linked queue, takes the views back without allocating a node
+	private final ArrayBlockingQueue<RTPPacketView> free;
+
+	private final AtomicInteger created = new AtomicInteger();
+
+	private final int packetSize;
+
+	private final int capacity;
+
+	private final boolean direct;
+
+	public RTPPacketPool() {
+		this(DEFAULT_PACKET_SIZE, DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param packetSize
+	 *            size of the buffer of each view, the largest packet it can hold
+	 * @param capacity
+	 *            most views kept for reuse
+	 * @param direct
+	 *            allocates direct buffers, for packets read from and written to channels
+	 */
+	public RTPPacketPool(int packetSize, int capacity, boolean direct) {
+		if (packetSize < RTPPacketView.HEADER_LENGTH) {
+			throw new IllegalArgumentException("Packet size " + packetSize + " smaller than a RTP header");
+		}
+		this.packetSize = packetSize;
+		this.capacity = capacity;
+		this.direct = direct;
+		free = new ArrayBlockingQueue<RTPPacketView>(capacity);
+	}
+
+	/**
+	 * @return an empty view, its buffer cleared to receive a packet
+	 */
+	public RTPPacketView acquire() {
+		RTPPacketView view = free.poll();
+		if (view == null) {
+			created.incrementAndGet();
+			view = new RTPPacketView(this, IoBuffer.allocate(packetSize, direct));
+		}
+		view.getBuffer().clear();
+		return view;
+	}
+
+	/**
+	 * Takes the view back, called by {@link RTPPacketView#release()}.
+	 */
+	void release(RTPPacketView view) {
+		// dropped when the pool is full
+		free.offer(view);
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the views waiting in the pool
+	 */
+	public int getFreeCount() {
+		return free.size();
+	}
+
+	/**
+	 * @return the views created since the pool was built, a count that keeps growing tells the pool is too small or views are not released
+	 */
+	public int getCreatedCount() {
+		return created.get();
+	}
+
+}
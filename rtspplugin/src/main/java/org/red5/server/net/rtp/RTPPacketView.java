@@ -0,0 +1,336 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A RTP packet read and written in place, in the bytes of a buffer.
+ *
+ * Unlike {@link RTPPacket}, which copies every field into objects of its own, the view only remembers where the packet lies in the buffer: the fields
+ * are read and written there with primitive accessors and the payload is a slice of the same bytes. A view is reused for packet after packet, and the
+ * views handed out by a {@link RTPPacketPool} come with a buffer of their own, so receiving, rewriting and forwarding a packet allocates nothing.
+ *
+ * The view is not thread safe, and is valid only as long as the bytes it wraps are not overwritten.
+ */
+public final class RTPPacketView implements Packet {
+
+	/** Length of the fixed part of the header */
+	public static final int HEADER_LENGTH = 12;
+
+	public static final int VERSION = 2;
+
+	private final RTPPacketPool pool;
+
+	// buffer owned by the view when pooled, null otherwise
+	private final IoBuffer own;
+
+	private IoBuffer buffer;
+
+	private int offset;
+
+	private int length;
+
+	private IoBuffer payload;
+
+	/**
+	 * Creates a view wrapping the buffers it is given.
+	 */
+	public RTPPacketView() {
+		this(null, null);
+	}
+
+	RTPPacketView(RTPPacketPool pool, IoBuffer own) {
+		this.pool = pool;
+		this.own = own;
+	}
+
+	/**
+	 * Wraps the remaining bytes of the buffer as a packet, without moving its position. They must be a whole RTP version 2 packet: header, CSRC list,
+	 * header extension and padding within the bytes.
+	 *
+	 * @return false if the bytes are not a valid packet, the view is then empty
+	 */
+	public boolean wrap(IoBuffer buffer) {
+		return wrap(buffer, buffer.position(), buffer.remaining());
+	}
+
+	/**
+	 * Wraps length bytes of the buffer from offset as a packet.
+	 *
+	 * @return false if the bytes are not a valid packet, the view is then empty
+	 */
+	public boolean wrap(IoBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.payload = null;
+		if (length < HEADER_LENGTH || getVersion() != VERSION || getCsrcCount() * 4 + HEADER_LENGTH > length) {
+			clear();
+			return false;
+		}
+		int headerLength = getHeaderLength();
+		if (headerLength > length || (isPadding() && getPaddingLength() == 0) || headerLength + getPaddingLength() > length) {
+			clear();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a new packet in the buffer of the view: version 2, no padding, extension nor CSRC, and no payload yet.
+	 *
+	 * @throws IllegalStateException
+	 *             if the view has no buffer of its own
+	 */
+	public RTPPacketView create(int payloadType, int sequence, long timestamp, long ssrc) {
+		if (own == null) {
+			throw new IllegalStateException("Not a pooled packet");
+		}
+		buffer = own;
+		offset = 0;
+		length = HEADER_LENGTH;
+		payload = null;
+		buffer.clear();
+		buffer.put(0, (byte) (VERSION << 6));
+		buffer.put(1, (byte) 0);
+		setPayloadType(payloadType);
+		setSequence(sequence);
+		setTimestamp(timestamp);
+		setSsrc(ssrc);
+		return this;
+	}
+
+	/**
+	 * Appends the remaining bytes of the source to the payload of a packet started by
+	 * {@link #create(int, int, long, long)}.
+	 *
+	 * @throws IllegalStateException
+	 *             if the payload would not fit in the buffer of the view
+	 */
+	public RTPPacketView appendPayload(IoBuffer src) {
+		int count = src.remaining();
+		if (buffer != own || isPadding() || offset + length + count > own.capacity()) {
+			throw new IllegalStateException("Payload of " + count + " bytes does not fit");
+		}
+		own.limit(own.capacity());
+		own.position(offset + length);
+		own.put(src);
+		length += count;
+		payload = null;
+		return this;
+	}
+
+	/**
+	 * Empties the view; a pooled view keeps its buffer.
+	 */
+	public void clear() {
+		buffer = null;
+		offset = 0;
+		length = 0;
+		payload = null;
+	}
+
+	/**
+	 * Hands the view and its buffer back to the pool it came from. Neither may be used anymore, including the slices of the payload.
+	 */
+	public void release() {
+		clear();
+		if (pool != null) {
+			pool.release(this);
+		}
+	}
+
+	/**
+	 * @return the buffer a view of a pool reads into, or null
+	 */
+	public IoBuffer getBuffer() {
+		return own;
+	}
+
+	/**
+	 * @return true if the view wraps a packet
+	 */
+	public boolean isValid() {
+		return buffer != null;
+	}
+
+	/**
+	 * @return the length of the whole packet
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getVersion() {
+		return (buffer.get(offset) & 0xC0) >> 6;
+	}
+
+	public boolean isPadding() {
+		return (buffer.get(offset) & 0x20) != 0;
+	}
+
+	public boolean isExtension() {
+		return (buffer.get(offset) & 0x10) != 0;
+	}
+
+	public int getCsrcCount() {
+		return buffer.get(offset) & 0x0F;
+	}
+
+	public boolean isMarker() {
+		return (buffer.get(offset + 1) & 0x80) != 0;
+	}
+
+	public void setMarker(boolean marker) {
+		int b = buffer.get(offset + 1);
+		buffer.put(offset + 1, (byte) (marker ? b | 0x80 : b & 0x7F));
+	}
+
+	public int getPayloadType() {
+		return buffer.get(offset + 1) & 0x7F;
+	}
+
+	public void setPayloadType(int payloadType) {
+		buffer.put(offset + 1, (byte) ((buffer.get(offset + 1) & 0x80) | (payloadType & 0x7F)));
+	}
+
+	public int getSequence() {
+		return buffer.getUnsignedShort(offset + 2);
+	}
+
+	public void setSequence(int sequence) {
+		buffer.putShort(offset + 2, (short) sequence);
+	}
+
+	public long getTimestamp() {
+		return buffer.getUnsignedInt(offset + 4);
+	}
+
+	public void setTimestamp(long timestamp) {
+		buffer.putInt(offset + 4, (int) timestamp);
+	}
+
+	public long getSsrc() {
+		return buffer.getUnsignedInt(offset + 8);
+	}
+
+	public void setSsrc(long ssrc) {
+		buffer.putInt(offset + 8, (int) ssrc);
+	}
+
+	/**
+	 * @return the CSRC at the index, from 0 to {@link #getCsrcCount()} excluded
+	 */
+	public long getCsrc(int index) {
+		if (index < 0 || index >= getCsrcCount()) {
+			throw new IndexOutOfBoundsException("CSRC " + index + " of " + getCsrcCount());
+		}
+		return buffer.getUnsignedInt(offset + HEADER_LENGTH + index * 4);
+	}
+
+	/**
+	 * @return the profile defined value of the header extension, -1 without extension
+	 */
+	public int getExtensionProfile() {
+		return isExtension() ? buffer.getUnsignedShort(extensionOffset()) : -1;
+	}
+
+	/**
+	 * @return the length in bytes of the header extension, without its own 4 bytes header
+	 */
+	public int getExtensionLength() {
+		return isExtension() ? buffer.getUnsignedShort(extensionOffset() + 2) * 4 : 0;
+	}
+
+	/**
+	 * @return the length of the header: fixed part, CSRC list and header extension
+	 */
+	public int getHeaderLength() {
+		int headerLength = HEADER_LENGTH + getCsrcCount() * 4;
+		if (isExtension()) {
+			// extension length in 32 bits words, after the profile and length fields
+			headerLength += 4 + (headerLength + 4 <= length ? buffer.getUnsignedShort(offset + headerLength + 2) * 4 : 0);
+		}
+		return headerLength;
+	}
+
+	/**
+	 * @return the count of padding bytes at the end of the packet, the last one included
+	 */
+	public int getPaddingLength() {
+		return isPadding() ? buffer.get(offset + length - 1) & 0xFF : 0;
+	}
+
+	/**
+	 * @return the offset of the payload in the wrapped buffer
+	 */
+	public int getPayloadOffset() {
+		return offset + getHeaderLength();
+	}
+
+	/**
+	 * @return the length of the payload, without the padding
+	 */
+	public int getPayloadLength() {
+		return length - getHeaderLength() - getPaddingLength();
+	}
+
+	/**
+	 * @return the payload, without the padding, as a slice sharing the bytes of the packet; the same slice is returned until the packet changes
+	 */
+	public IoBuffer getPayload() {
+		if (payload == null) {
+			int position = buffer.position();
+			int limit = buffer.limit();
+			int start = getPayloadOffset();
+			buffer.limit(start + getPayloadLength()).position(start);
+			payload = buffer.slice();
+			buffer.limit(limit).position(position);
+		} else {
+			payload.rewind();
+		}
+		return payload;
+	}
+
+	/**
+	 * Sets the wrapped buffer position and limit to the bytes of the packet, ready to be written out; no copy is made.
+	 *
+	 * @return the wrapped buffer
+	 */
+	public IoBuffer toByteBuffer() {
+		buffer.limit(offset + length).position(offset);
+		return buffer;
+	}
+
+	private int extensionOffset() {
+		return offset + HEADER_LENGTH + getCsrcCount() * 4;
+	}
+
+	@Override
+	public String toString() {
+		if (buffer == null) {
+			return "RTPPacketView [empty]";
+		}
+		return "RTPPacketView [pt=" + getPayloadType() + ", seq=" + getSequence() + ", ts=" + getTimestamp() + ", ssrc=" + getSsrc() + ", marker="
+				+ isMarker() + ", payload=" + getPayloadLength() + "]";
+	}
+
+}
@@ -0,0 +1,660 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.jmx.mxbeans.RTPReceiverMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives RTP sessions over UDP.
+ *
+ * The sockets of all the sessions are shared out among a few selector threads; each one reads up to a batch of datagrams from every ready socket in
+ * turn, straight into pooled {@link RTPPacketView}s, and hands them to the jitter buffer of their {@link RTPStream}. Between the reads the threads
+ * wake up every tick to play out the packets whose missing predecessors are given up on.
+ *
+ * A single scheduler thread times the RTCP reports of all the sessions, at a randomized interval as RFC 3550 section 6.2 requires, and queues them
+ * to the selector thread of each session, which builds and sends them. The receiver and its streams are registered in JMX.
+ *
+ * <pre>
+ * RTPReceiver receiver = new RTPReceiver();
+ * receiver.start();
+ * RTPSession session = receiver.open(new InetSocketAddress(0), 90000, listener);
+ * // SETUP with client_port=session.getRtpPort()-session.getRtcpPort()
+ * </pre>
+ */
+public class RTPReceiver implements RTPReceiverMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(RTPReceiver.class);
+
+	private static final AtomicInteger receivers = new AtomicInteger();
+
+	private final RTPPacketPool pool;
+
+	private int selectorThreads = Math.min(2, Runtime.getRuntime().availableProcessors());
+
+	private int batchSize = 64;
+
+	private int tickMillis = 10;
+
+	private int jitterBufferSize = 256;
+
+	private int jitterDelayMillis = 100;
+
+	private int receiveBufferSize = 1024 * 1024;
+
+	private volatile int rtcpIntervalMillis = 5000;
+
+	// random and persistent for the receiver, RFC 7022
+	private String cname = UUID.randomUUID() + "@red5";
+
+	private boolean jmxEnabled = true;
+
+	private SelectorLoop[] loops;
+
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	private final Set<RTPSession> sessions = Collections.newSetFromMap(new ConcurrentHashMap<RTPSession, Boolean>());
+
+	private final Random random = new Random();
+
+	private ScheduledExecutorService scheduler;
+
+	private int id;
+
+	private ObjectName oName;
+
+	public RTPReceiver() {
+		this(new RTPPacketPool(RTPPacketPool.DEFAULT_PACKET_SIZE, RTPPacketPool.DEFAULT_CAPACITY, true));
+	}
+
+	/**
+	 * @param pool
+	 *            the pool of the packets read, its packet size bounds the datagrams: the bytes beyond are lost
+	 */
+	public RTPReceiver(RTPPacketPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Starts the selector threads.
+	 */
+	public synchronized void start() throws IOException {
+		if (loops != null) {
+			return;
+		}
+		id = receivers.incrementAndGet();
+		SelectorLoop[] started = new SelectorLoop[selectorThreads];
+		try {
+			for (int i = 0; i < started.length; i++) {
+				started[i] = new SelectorLoop(Selector.open());
+				Thread thread = new Thread(started[i], "RTPReceiver-" + id + "-" + i);
+				thread.setDaemon(true);
+				started[i].thread = thread;
+				thread.start();
+			}
+		} catch (IOException e) {
+			for (SelectorLoop loop : started) {
+				if (loop != null) {
+					loop.stop();
+				}
+			}
+			throw e;
+		}
+		loops = started;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "RTPReceiver-" + id + "-rtcp");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				scheduleReports();
+			}
+		}, 100, 100, TimeUnit.MILLISECONDS);
+		if (jmxEnabled) {
+			registerJMX();
+		}
+	}
+
+	/**
+	 * Stops the selector threads and closes the sessions.
+	 */
+	public synchronized void stop() {
+		if (loops == null) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+		for (SelectorLoop loop : loops) {
+			loop.stop();
+		}
+		loops = null;
+		sessions.clear();
+		if (oName != null) {
+			unregisterJMX();
+		}
+	}
+
+	/**
+	 * Queues the reports due to the selector threads of their sessions, on the scheduler thread.
+	 */
+	private void scheduleReports() {
+		long now = System.nanoTime();
+		for (Iterator<RTPSession> it = sessions.iterator(); it.hasNext();) {
+			RTPSession session = it.next();
+			if (session.isClosed()) {
+				it.remove();
+			} else if (now - session.nextReport >= 0) {
+				session.nextReport = now + reportInterval();
+				session.loop.execute(session.reportTask);
+			}
+		}
+	}
+
+	/**
+	 * @return the interval to the next report, randomized from half to one and a half times the setting so the reports of the sessions spread out
+	 */
+	private long reportInterval() {
+		return (long) (TimeUnit.MILLISECONDS.toNanos(rtcpIntervalMillis) * (0.5 + random.nextDouble()));
+	}
+
+	protected void registerJMX() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			oName = new ObjectName("org.red5.server:type=RTPReceiver,id=" + id);
+			// check for existing registration before registering
+			if (!mbs.isRegistered(oName)) {
+				mbs.registerMBean(this, oName);
+			} else {
+				log.debug("RTPReceiver is already registered in JMX");
+			}
+		} catch (Exception e) {
+			log.warn("Error on jmx registration", e);
+		}
+	}
+
+	protected void unregisterJMX() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.unregisterMBean(oName);
+		} catch (Exception e) {
+			log.warn("Exception unregistering", e);
+		}
+		oName = null;
+	}
+
+	private ObjectName streamName(RTPStream stream) throws Exception {
+		return new ObjectName("org.red5.server:type=RTPStream,receiver=" + id + ",port=" + stream.getSession().getRtpPort() + ",ssrc="
+				+ stream.getSsrc());
+	}
+
+	void registerStream(RTPStream stream) {
+		if (!jmxEnabled) {
+			return;
+		}
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = streamName(stream);
+			if (!mbs.isRegistered(name)) {
+				mbs.registerMBean(stream, name);
+			}
+		} catch (Exception e) {
+			log.warn("Error on jmx registration", e);
+		}
+	}
+
+	void unregisterStream(RTPStream stream) {
+		if (!jmxEnabled) {
+			return;
+		}
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = streamName(stream);
+			if (mbs.isRegistered(name)) {
+				mbs.unregisterMBean(name);
+			}
+		} catch (Exception e) {
+			log.warn("Exception unregistering", e);
+		}
+	}
+
+	/**
+	 * Opens a session on a pair of ports: the RTP one, even, at the address and the RTCP one next to it. With port 0 a free pair is found.
+	 *
+	 * @param clockRate
+	 *            rate of the clock of the timestamps, in Hz, e.g. 90000 for video
+	 * @throws IOException
+	 *             if the ports cannot be bound
+	 */
+	public RTPSession open(InetSocketAddress address, int clockRate, RTPListener listener) throws IOException {
+		SelectorLoop[] current;
+		synchronized (this) {
+			current = loops;
+		}
+		if (current == null) {
+			throw new IllegalStateException("Receiver not started");
+		}
+		DatagramChannel[] channels = bind(address);
+		SelectorLoop loop = current[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+		RTPSession session = new RTPSession(loop, channels[0], channels[1], listener, clockRate, jitterBufferSize, TimeUnit.MILLISECONDS
+				.toNanos(jitterDelayMillis), random.nextInt() & 0xFFFFFFFFL, cname);
+		// the first report after half the interval, RFC 3550 section 6.2
+		session.nextReport = System.nanoTime() + reportInterval() / 2;
+		loop.register(session);
+		sessions.add(session);
+		return session;
+	}
+
+	private DatagramChannel[] bind(InetSocketAddress address) throws IOException {
+		if (address.getPort() != 0) {
+			DatagramChannel rtp = channel(address);
+			try {
+				return new DatagramChannel[] { rtp, channel(new InetSocketAddress(address.getAddress(), address.getPort() + 1)) };
+			} catch (IOException e) {
+				rtp.close();
+				throw e;
+			}
+		}
+		// an even port with the next one free
+		for (int attempt = 0; attempt < 32; attempt++) {
+			DatagramChannel rtp = channel(address);
+			int port = rtp.socket().getLocalPort();
+			if ((port & 1) == 0 && port < 0xFFFF) {
+				try {
+					return new DatagramChannel[] { rtp, channel(new InetSocketAddress(address.getAddress(), port + 1)) };
+				} catch (IOException e) {
+					// taken, tries another pair
+				}
+			}
+			rtp.close();
+		}
+		throw new IOException("No free pair of ports on " + address.getAddress());
+	}
+
+	private DatagramChannel channel(InetSocketAddress address) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setReceiveBufferSize(receiveBufferSize);
+			channel.socket().bind(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	public RTPPacketPool getPool() {
+		return pool;
+	}
+
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * @param selectorThreads
+	 *            threads reading the sockets, set before the start
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = Math.max(1, selectorThreads);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            most datagrams read from a socket before moving on to the next ready one
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * @param tickMillis
+	 *            interval of the checks of the packets held up in the jitter buffers
+	 */
+	public void setTickMillis(int tickMillis) {
+		this.tickMillis = Math.max(1, tickMillis);
+	}
+
+	public int getJitterBufferSize() {
+		return jitterBufferSize;
+	}
+
+	/**
+	 * @param jitterBufferSize
+	 *            most packets a stream holds, rounded up to a power of two, for the sessions opened afterwards
+	 */
+	public void setJitterBufferSize(int jitterBufferSize) {
+		this.jitterBufferSize = jitterBufferSize;
+	}
+
+	public int getJitterDelayMillis() {
+		return jitterDelayMillis;
+	}
+
+	/**
+	 * @param jitterDelayMillis
+	 *            how long the packets after a missing one are held waiting for it, for the sessions opened afterwards
+	 */
+	public void setJitterDelayMillis(int jitterDelayMillis) {
+		this.jitterDelayMillis = jitterDelayMillis;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @param receiveBufferSize
+	 *            SO_RCVBUF of the sockets, which absorbs the bursts of the streams between two reads
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public int getRtcpIntervalMillis() {
+		return rtcpIntervalMillis;
+	}
+
+	/**
+	 * @param rtcpIntervalMillis
+	 *            mean interval of the RTCP reports of a session, 5 s by default
+	 */
+	public void setRtcpIntervalMillis(int rtcpIntervalMillis) {
+		this.rtcpIntervalMillis = Math.max(100, rtcpIntervalMillis);
+	}
+
+	public String getCname() {
+		return cname;
+	}
+
+	/**
+	 * @param cname
+	 *            canonical name of the reports of the sessions opened afterwards
+	 */
+	public void setCname(String cname) {
+		this.cname = cname;
+	}
+
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	/**
+	 * @param jmxEnabled
+	 *            whether the receiver and its streams are registered in JMX, set before the start
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public int getStreamCount() {
+		int count = 0;
+		for (RTPSession session : sessions) {
+			count += session.getStreams().size();
+		}
+		return count;
+	}
+
+	public int getPooledPackets() {
+		return pool.getCreatedCount();
+	}
+
+	public int getFreePackets() {
+		return pool.getFreeCount();
+	}
+
+	/**
+	 * A selector thread and the sessions it reads. The sessions are only touched by the thread: the other threads queue tasks for it.
+	 */
+	final class SelectorLoop implements Runnable {
+
+		private final Selector selector;
+
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private final List<RTPSession> sessions = new ArrayList<RTPSession>();
+
+		private final IoBuffer rtcpBuffer = IoBuffer.allocate(RTPPacketPool.DEFAULT_PACKET_SIZE);
+
+		private Thread thread;
+
+		private volatile boolean running = true;
+
+		// view taken from the pool for the next datagram
+		private RTPPacketView spare;
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void run() {
+			long tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+			long lastTick = System.nanoTime();
+			while (running) {
+				try {
+					selector.select(tickMillis);
+				} catch (IOException e) {
+					log.warn("Select failed", e);
+				}
+				runTasks();
+				long now = System.nanoTime();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					RTPSession session = (RTPSession) key.attachment();
+					try {
+						if (key.channel() == session.rtpChannel) {
+							readRtp(session, now);
+						} else {
+							readRtcp(session, now);
+						}
+					} catch (IOException e) {
+						// e.g. ICMP port unreachable on a connected socket
+						log.debug("Receive failed on {}", session, e);
+					}
+				}
+				if (now - lastTick >= tick) {
+					lastTick = now;
+					for (int i = 0; i < sessions.size(); i++) {
+						sessions.get(i).tick(now);
+					}
+				}
+			}
+			runTasks();
+			for (RTPSession session : sessions) {
+				session.closeChannels();
+			}
+			sessions.clear();
+			if (spare != null) {
+				spare.release();
+				spare = null;
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.debug("Selector close failed", e);
+			}
+		}
+
+		private void readRtp(RTPSession session, long now) throws IOException {
+			DatagramChannel channel = session.rtpChannel;
+			boolean connected = channel.isConnected();
+			for (int i = 0; i < batchSize; i++) {
+				if (spare == null) {
+					spare = pool.acquire();
+				}
+				IoBuffer buffer = spare.getBuffer();
+				buffer.clear();
+				if (connected) {
+					// no source address to allocate
+					if (channel.read(buffer.buf()) <= 0) {
+						return;
+					}
+				} else if (channel.receive(buffer.buf()) == null) {
+					return;
+				}
+				buffer.flip();
+				if (!spare.wrap(buffer)) {
+					session.invalidPacket();
+					continue;
+				}
+				RTPPacketView packet = spare;
+				spare = null;
+				session.rtpReceived(packet, now);
+			}
+		}
+
+		private void readRtcp(RTPSession session, long now) throws IOException {
+			DatagramChannel channel = session.rtcpChannel;
+			for (int i = 0; i < batchSize; i++) {
+				rtcpBuffer.clear();
+				SocketAddress from = channel.receive(rtcpBuffer.buf());
+				if (from == null) {
+					return;
+				}
+				rtcpBuffer.flip();
+				try {
+					session.rtcpReceived(rtcpBuffer, from, now);
+				} catch (RuntimeException e) {
+					log.warn("RTCP packet of {} not handled", session, e);
+				}
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void streamAdded(RTPStream stream) {
+			registerStream(stream);
+		}
+
+		void streamRemoved(RTPStream stream) {
+			unregisterStream(stream);
+		}
+
+		void register(final RTPSession session) {
+			execute(new Runnable() {
+				public void run() {
+					if (session.isClosed()) {
+						session.closeChannels();
+						return;
+					}
+					try {
+						session.rtpChannel.register(selector, SelectionKey.OP_READ, session);
+						session.rtcpChannel.register(selector, SelectionKey.OP_READ, session);
+						sessions.add(session);
+					} catch (ClosedChannelException e) {
+						log.debug("Session closed before its registration", e);
+						session.closeChannels();
+					}
+				}
+			});
+		}
+
+		void close(final RTPSession session) {
+			if (!running) {
+				session.closeChannels();
+				return;
+			}
+			execute(new Runnable() {
+				public void run() {
+					sessions.remove(session);
+					session.closeChannels();
+				}
+			});
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+			if (thread == null) {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					log.debug("Selector close failed", e);
+				}
+			} else if (thread != Thread.currentThread()) {
+				try {
+					thread.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	}
+
+}
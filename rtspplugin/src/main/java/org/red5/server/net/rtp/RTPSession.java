@@ -0,0 +1,413 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.net.rtp.rtcp.ByeInfo;
+import org.red5.server.net.rtp.rtcp.ExtendedReportInfo;
+import org.red5.server.net.rtp.rtcp.RTCPInfo;
+import org.red5.server.net.rtp.rtcp.RTCPPacket;
+import org.red5.server.net.rtp.rtcp.ReceiverReportInfo;
+import org.red5.server.net.rtp.rtcp.ReportBlock;
+import org.red5.server.net.rtp.rtcp.SDESInfo;
+import org.red5.server.net.rtp.rtcp.SenderReportInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A RTP session received by a {@link RTPReceiver}: the pair of UDP sockets of its RTP and RTCP packets, on consecutive ports, and a
+ * {@link RTPStream} for each synchronization source sending to them.
+ *
+ * The sockets are read by one of the selector threads of the receiver, which also plays out the jitter buffers of the streams. The RTCP packets
+ * of the senders update the statistics of their streams, and the session reports its reception to them in receiver reports, under a SSRC of
+ * its own, once it knows where to send them: the address it is connected to or the one of the last RTCP packet received. As the session sends
+ * no sender reports, the reports carry a receiver reference time (RFC 3611) for the sources supporting extended reports to give the round trip.
+ */
+public class RTPSession {
+
+	private static Logger log = LoggerFactory.getLogger(RTPSession.class);
+
+	// seconds from 1900, the NTP epoch, to 1970
+	private static final long NTP_OFFSET = 2208988800L;
+
+	final RTPReceiver.SelectorLoop loop;
+
+	final DatagramChannel rtpChannel;
+
+	final DatagramChannel rtcpChannel;
+
+	private final RTPListener listener;
+
+	private final int clockRate;
+
+	private final int bufferSize;
+
+	private final long delay;
+
+	private final Map<Long, RTPStream> streams = new ConcurrentHashMap<Long, RTPStream>();
+
+	// stream of the previous packet, most sessions have a single one
+	private RTPStream last;
+
+	private volatile long invalidPackets;
+
+	private volatile boolean closed;
+
+	private final long localSsrc;
+
+	private final String cname;
+
+	// where the reports go
+	private volatile SocketAddress rtcpDestination;
+
+	private volatile long reportsSent;
+
+	// time of the next report, only used by the RTCP scheduler of the receiver
+	long nextReport;
+
+	final Runnable reportTask = new Runnable() {
+		public void run() {
+			if (!closed) {
+				sendReport(System.nanoTime());
+			}
+		}
+	};
+
+	RTPSession(RTPReceiver.SelectorLoop loop, DatagramChannel rtpChannel, DatagramChannel rtcpChannel, RTPListener listener, int clockRate,
+			int bufferSize, long delay, long localSsrc, String cname) {
+		this.loop = loop;
+		this.rtpChannel = rtpChannel;
+		this.rtcpChannel = rtcpChannel;
+		this.listener = listener;
+		this.clockRate = clockRate;
+		this.bufferSize = bufferSize;
+		this.delay = delay;
+		this.localSsrc = localSsrc;
+		this.cname = cname;
+	}
+
+	/**
+	 * Hands the packet to the stream of its source.
+	 */
+	void rtpReceived(RTPPacketView packet, long now) {
+		long ssrc = packet.getSsrc();
+		RTPStream stream = last;
+		if (stream == null || stream.getSsrc() != ssrc) {
+			stream = streams.get(ssrc);
+			if (stream == null) {
+				stream = new RTPStream(this, ssrc, bufferSize, delay);
+				streams.put(ssrc, stream);
+				loop.streamAdded(stream);
+			}
+			last = stream;
+		}
+		stream.receive(packet, now);
+	}
+
+	void invalidPacket() {
+		invalidPackets++;
+	}
+
+	/**
+	 * Plays out the packets held up longer than the delay.
+	 */
+	void tick(long now) {
+		RTPStream stream = last;
+		if (streams.size() == 1 && stream != null) {
+			stream.drain(now);
+		} else {
+			for (RTPStream s : streams.values()) {
+				s.drain(now);
+			}
+		}
+	}
+
+	/**
+	 * Updates the streams from a compound RTCP packet, then hands it to the listener.
+	 *
+	 * @param from
+	 *            the address of the sender, where the reports go from now on
+	 */
+	void rtcpReceived(IoBuffer packet, SocketAddress from, long now) {
+		if (from != null) {
+			rtcpDestination = from;
+		}
+		int start = packet.position();
+		List<RTCPPacket> packets;
+		try {
+			packets = RTCPPacket.decode(packet);
+		} catch (RuntimeException e) {
+			log.debug("Invalid RTCP packet on {}", this, e);
+			packets = Collections.emptyList();
+		}
+		for (RTCPPacket rtcp : packets) {
+			RTCPInfo info = rtcp.getInfo();
+			if (info instanceof SenderReportInfo) {
+				RTPStream stream = streams.get(((SenderReportInfo) info).getSsrc());
+				if (stream != null) {
+					stream.senderReport((SenderReportInfo) info, now);
+				}
+			}
+			if (info instanceof ReceiverReportInfo) {
+				ReceiverReportInfo report = (ReceiverReportInfo) info;
+				for (ReportBlock block : report.getBlocks()) {
+					if (block.getSsrc() == localSsrc) {
+						roundTrip(report.getSsrc(), block.getLastSenderReport(), block.getDelaySinceLastSenderReport());
+					}
+				}
+			} else if (info instanceof SDESInfo) {
+				for (SDESInfo.Chunk chunk : ((SDESInfo) info).getChunks()) {
+					RTPStream stream = streams.get(chunk.getSsrc());
+					String name = chunk.getItem(SDESInfo.Type.CNAME);
+					if (stream != null && name != null) {
+						stream.setCname(name);
+					}
+				}
+			} else if (info instanceof ExtendedReportInfo) {
+				ExtendedReportInfo report = (ExtendedReportInfo) info;
+				for (ExtendedReportInfo.DelayBlock block : report.getDelays()) {
+					if (block.getSsrc() == localSsrc) {
+						roundTrip(report.getSsrc(), block.getLastReceiverReport(), block.getDelaySinceLastReceiverReport());
+					}
+				}
+			} else if (info instanceof ByeInfo) {
+				for (long ssrc : ((ByeInfo) info).getSources()) {
+					removeStream(ssrc);
+				}
+			}
+		}
+		packet.position(start);
+		listener.rtcpReceived(this, packet);
+	}
+
+	/**
+	 * The round trip to a source from its report on our SSRC, RFC 3550 section 6.4.1: now, less the time we sent the report it refers to and its
+	 * delay since, in 1/65536 seconds.
+	 */
+	private void roundTrip(long ssrc, long lastReport, long delaySince) {
+		RTPStream stream = streams.get(ssrc);
+		if (stream == null || lastReport == 0) {
+			return;
+		}
+		long rtt = (ntpMiddle(ntpTimestamp(System.currentTimeMillis())) - lastReport - delaySince) & 0xFFFFFFFFL;
+		if (rtt < 0x80000000L) {
+			stream.setRoundTrip((int) ((rtt * 1000) >> 16));
+		}
+	}
+
+	/**
+	 * @return the NTP timestamp of the time: seconds since 1900 and their fraction, in 32 bits each
+	 */
+	static long ntpTimestamp(long millis) {
+		long seconds = millis / 1000 + NTP_OFFSET;
+		return (seconds << 32) | (((millis % 1000) << 32) / 1000);
+	}
+
+	/**
+	 * @return the middle 32 bits of the NTP timestamp, in 1/65536 seconds
+	 */
+	static long ntpMiddle(long ntp) {
+		return (ntp >>> 16) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Sends a receiver report on the streams, with the CNAME and the reference time of the session, once the destination is known. Called on the selector thread.
+	 */
+	void sendReport(long now) {
+		SocketAddress destination = rtcpDestination;
+		if (destination == null) {
+			return;
+		}
+		List<RTCPPacket> packets = new ArrayList<RTCPPacket>(3);
+		ReceiverReportInfo report = new ReceiverReportInfo(localSsrc);
+		for (RTPStream stream : streams.values()) {
+			if (stream.getReceived() == 0) {
+				continue;
+			}
+			if (report.getCount() == ReceiverReportInfo.MAX_BLOCKS) {
+				packets.add(new RTCPPacket(RTCPPacket.Type.RR, report));
+				report = new ReceiverReportInfo(localSsrc);
+			}
+			report.addBlock(stream.report(now));
+		}
+		packets.add(new RTCPPacket(RTCPPacket.Type.RR, report));
+		SDESInfo description = new SDESInfo();
+		description.addChunk(localSsrc).setItem(SDESInfo.Type.CNAME, cname);
+		packets.add(new RTCPPacket(RTCPPacket.Type.SDES, description));
+		ExtendedReportInfo reference = new ExtendedReportInfo(localSsrc);
+		reference.setReferenceTime(ntpTimestamp(System.currentTimeMillis()));
+		packets.add(new RTCPPacket(RTCPPacket.Type.XR, reference));
+		send(packets, destination);
+		reportsSent++;
+	}
+
+	private void send(List<RTCPPacket> packets, SocketAddress destination) {
+		try {
+			rtcpChannel.send(RTCPPacket.toByteBuffer(packets).buf(), destination);
+		} catch (IOException e) {
+			log.debug("RTCP send failed on {}", this, e);
+		}
+	}
+
+	/**
+	 * Plays out what is left of a source that left the session, and forgets it.
+	 */
+	private void removeStream(long ssrc) {
+		RTPStream stream = streams.remove(ssrc);
+		if (stream != null) {
+			stream.flush();
+			stream.close();
+			if (last == stream) {
+				last = null;
+			}
+			loop.streamRemoved(stream);
+		}
+	}
+
+	/**
+	 * Only accepts the packets of the given addresses, the RTP and RTCP ports of the sender, and reads them without looking up their source.
+	 */
+	public void connect(InetSocketAddress rtp, InetSocketAddress rtcp) throws IOException {
+		rtpChannel.connect(rtp);
+		rtcpChannel.connect(rtcp);
+		rtcpDestination = rtcp;
+	}
+
+	/**
+	 * Closes the sockets and drops the packets not played out yet.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			loop.close(this);
+		}
+	}
+
+	/**
+	 * Called on the selector thread.
+	 */
+	void closeChannels() {
+		SocketAddress destination = rtcpDestination;
+		if (destination != null && rtcpChannel.isOpen()) {
+			// a goodbye goes in a compound packet after a report
+			List<RTCPPacket> packets = new ArrayList<RTCPPacket>(2);
+			packets.add(new RTCPPacket(RTCPPacket.Type.RR, new ReceiverReportInfo(localSsrc)));
+			packets.add(new RTCPPacket(RTCPPacket.Type.BYE, new ByeInfo(new long[] { localSsrc }, null)));
+			send(packets, destination);
+		}
+		// before the sockets, the JMX names of the streams carry the port
+		for (RTPStream stream : streams.values()) {
+			stream.close();
+			loop.streamRemoved(stream);
+		}
+		streams.clear();
+		try {
+			rtpChannel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		try {
+			rtcpChannel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		last = null;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getRtpPort() {
+		return rtpChannel.socket().getLocalPort();
+	}
+
+	public int getRtcpPort() {
+		return rtcpChannel.socket().getLocalPort();
+	}
+
+	public RTPListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the rate of the clock of the timestamps, in Hz
+	 */
+	public int getClockRate() {
+		return clockRate;
+	}
+
+	/**
+	 * @return the streams of the session, by SSRC
+	 */
+	public Collection<RTPStream> getStreams() {
+		return Collections.unmodifiableCollection(streams.values());
+	}
+
+	public RTPStream getStream(long ssrc) {
+		return streams.get(ssrc);
+	}
+
+	/**
+	 * @return the SSRC of the reports of the session
+	 */
+	public long getLocalSsrc() {
+		return localSsrc;
+	}
+
+	public String getCname() {
+		return cname;
+	}
+
+	/**
+	 * @return where the reports go, null until known
+	 */
+	public SocketAddress getRtcpDestination() {
+		return rtcpDestination;
+	}
+
+	public long getReportsSent() {
+		return reportsSent;
+	}
+
+	/**
+	 * @return the datagrams received on the RTP socket that were not RTP packets
+	 */
+	public long getInvalidPackets() {
+		return invalidPackets;
+	}
+
+	@Override
+	public String toString() {
+		return "RTPSession [rtp=" + rtpChannel.socket().getLocalSocketAddress() + ", streams=" + streams.size() + "]";
+	}
+
+}
@@ -0,0 +1,490 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.red5.server.jmx.mxbeans.RTPStreamMXBean;
+import org.red5.server.net.rtp.rtcp.ReportBlock;
+import org.red5.server.net.rtp.rtcp.SenderReportInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The packets of a synchronization source of a {@link RTPSession}, put back in sequence order.
+ *
+ * The 16 bits sequence numbers are extended with the count of their wraparounds, as in RFC 3550 appendix A.1: a packet more than 100 numbers behind
+ * or 3000 ahead of the highest one is dropped, unless the next one follows it, which tells the source restarted its sequence.
+ *
+ * The jitter buffer is a ring indexed by extended sequence number, so a packet is stored and found again without search. The packets are played out
+ * as soon as the ones before them are; when one is missing, the packets after it are held at most the delay of the buffer, from the arrival of the
+ * first one, then the missing ones are counted lost and skipped. A packet arriving after its turn is dropped as late, and a packet too far ahead for
+ * the ring forces the oldest ones out.
+ *
+ * The reception is reported in the RTCP receiver reports of the session, and the statistics are exposed through JMX.
+ *
+ * The stream is only used by the selector thread of its session; the statistics may be read from any thread.
+ */
+public final class RTPStream implements RTPStreamMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(RTPStream.class);
+
+	private static final int MAX_DROPOUT = 3000;
+
+	private static final int MAX_MISORDER = 100;
+
+	private final RTPSession session;
+
+	private final long ssrc;
+
+	private final RTPListener listener;
+
+	private final RTPPacketView[] packets;
+
+	private final long[] arrivals;
+
+	private final int mask;
+
+	private final long delay;
+
+	private final long created = System.nanoTime();
+
+	private boolean started;
+
+	// sequence number after a jump, a packet with it confirms the jump
+	private int badSequence = -1;
+
+	// first extended sequence number since the last restart
+	private long base;
+
+	private volatile long highest;
+
+	// extended sequence number to play out next
+	private long next;
+
+	private int buffered;
+
+	// transit time of the previous packet and interarrival jitter times 16, in timestamp units
+	private int transit;
+
+	private int jitter;
+
+	private volatile long received;
+
+	private volatile long duplicates;
+
+	private volatile long late;
+
+	private volatile long reordered;
+
+	private volatile long skipped;
+
+	private volatile long dropped;
+
+	private volatile long lastArrival;
+
+	// expected and received at the previous report, for the fraction lost since
+	private long expectedPrior;
+
+	private long receivedPrior;
+
+	private volatile int fractionLost;
+
+	// middle 32 bits of the NTP timestamp of the last sender report, and its arrival
+	private volatile long lastSenderReport;
+
+	private volatile long lastSenderReportArrival;
+
+	private volatile long senderPacketCount;
+
+	private volatile long senderOctetCount;
+
+	private volatile int roundTrip = -1;
+
+	private volatile String cname;
+
+	RTPStream(RTPSession session, long ssrc, int capacity, long delay) {
+		this.session = session;
+		this.ssrc = ssrc;
+		this.listener = session.getListener();
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.packets = new RTPPacketView[size];
+		this.arrivals = new long[size];
+		this.mask = size - 1;
+		this.delay = delay;
+	}
+
+	/**
+	 * Takes the packet in, and plays out the ones in order.
+	 */
+	void receive(RTPPacketView packet, long now) {
+		int sequence = packet.getSequence();
+		long extended;
+		if (!started) {
+			restart(sequence);
+			extended = sequence;
+		} else {
+			// signed distance from the highest sequence number, across a wraparound
+			int delta = (short) (sequence - (int) highest);
+			if (delta > MAX_DROPOUT || delta < -MAX_MISORDER) {
+				if (sequence != badSequence) {
+					badSequence = (sequence + 1) & 0xFFFF;
+					dropped++;
+					packet.release();
+					return;
+				}
+				log.debug("Sequence of SSRC {} restarted at {}", ssrc, sequence);
+				playOut(highest + 1);
+				restart(sequence);
+				extended = sequence;
+			} else {
+				extended = highest + delta;
+			}
+		}
+		badSequence = -1;
+		received++;
+		lastArrival = now;
+		updateJitter(packet, now);
+		if (extended > highest) {
+			highest = extended;
+		} else if (extended < highest) {
+			reordered++;
+		}
+		if (extended < next) {
+			late++;
+			packet.release();
+			return;
+		}
+		if (extended >= next + packets.length) {
+			// no room in the ring, gives up on the oldest packets
+			playOut(extended - packets.length + 1);
+		}
+		int index = (int) extended & mask;
+		if (packets[index] != null) {
+			duplicates++;
+			packet.release();
+			return;
+		}
+		packets[index] = packet;
+		arrivals[index] = now;
+		buffered++;
+		drain(now);
+	}
+
+	private void restart(int sequence) {
+		started = true;
+		base = sequence;
+		highest = sequence;
+		next = sequence;
+		received = 0;
+		expectedPrior = 0;
+		receivedPrior = 0;
+	}
+
+	/**
+	 * RFC 3550 appendix A.8, the arrival time converted to the clock of the timestamps.
+	 */
+	private void updateJitter(RTPPacketView packet, long now) {
+		// through a long, so it wraps around like the timestamps
+		int arrival = (int) (long) ((now - created) * (session.getClockRate() / 1e9));
+		int current = arrival - (int) packet.getTimestamp();
+		if (received > 1) {
+			int d = current - transit;
+			if (d < 0) {
+				d = -d;
+			}
+			jitter += d - ((jitter + 8) >> 4);
+		}
+		transit = current;
+	}
+
+	/**
+	 * Plays out the packets in order, skipping the missing ones held up longer than the delay.
+	 */
+	void drain(long now) {
+		while (buffered > 0) {
+			int index = (int) next & mask;
+			if (packets[index] != null) {
+				deliver(index);
+				next++;
+				continue;
+			}
+			long first = next + 1;
+			while (packets[(int) first & mask] == null) {
+				first++;
+			}
+			if (now - arrivals[(int) first & mask] < delay) {
+				return;
+			}
+			lost(first - next);
+			next = first;
+		}
+	}
+
+	/**
+	 * Plays out the packets up to the extended sequence number, whether some are missing or not.
+	 */
+	private void playOut(long until) {
+		long missing = 0;
+		while (next < until && buffered > 0) {
+			int index = (int) next & mask;
+			if (packets[index] != null) {
+				if (missing > 0) {
+					lost(missing);
+					missing = 0;
+				}
+				deliver(index);
+			} else {
+				missing++;
+			}
+			next++;
+		}
+		if (next < until) {
+			missing += until - next;
+			next = until;
+		}
+		if (missing > 0) {
+			lost(missing);
+		}
+	}
+
+	private void deliver(int index) {
+		RTPPacketView packet = packets[index];
+		packets[index] = null;
+		buffered--;
+		try {
+			listener.packetReceived(this, packet);
+		} catch (RuntimeException e) {
+			log.warn("Packet of SSRC {} not handled", ssrc, e);
+		} finally {
+			packet.release();
+		}
+	}
+
+	private void lost(long count) {
+		skipped += count;
+		try {
+			listener.packetsLost(this, (int) Math.min(count, Integer.MAX_VALUE));
+		} catch (RuntimeException e) {
+			log.warn("Loss of SSRC {} not handled", ssrc, e);
+		}
+	}
+
+	/**
+	 * Takes note of a sender report of the source.
+	 */
+	void senderReport(SenderReportInfo report, long now) {
+		lastSenderReport = RTPSession.ntpMiddle(report.getNtpTimestamp());
+		lastSenderReportArrival = now;
+		senderPacketCount = report.getPacketCount();
+		senderOctetCount = report.getOctetCount();
+	}
+
+	/**
+	 * @return the report block on the reception of the stream since the previous one, RFC 3550 appendix A.3
+	 */
+	ReportBlock report(long now) {
+		long expected = getExpected();
+		long expectedInterval = expected - expectedPrior;
+		long receivedInterval = received - receivedPrior;
+		expectedPrior = expected;
+		receivedPrior = received;
+		long lostInterval = expectedInterval - receivedInterval;
+		fractionLost = expectedInterval == 0 || lostInterval <= 0 ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+		ReportBlock block = new ReportBlock();
+		block.setSsrc(ssrc);
+		block.setFractionLost(fractionLost);
+		block.setCumulativeLost((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, getLost())));
+		block.setExtendedHighestSequence(highest & 0xFFFFFFFFL);
+		block.setJitter(getJitter());
+		if (lastSenderReportArrival != 0) {
+			block.setLastSenderReport(lastSenderReport);
+			// in 1/65536 seconds
+			block.setDelaySinceLastSenderReport(((now - lastSenderReportArrival) << 16) / 1000000000L);
+		}
+		return block;
+	}
+
+	void setRoundTrip(int roundTrip) {
+		this.roundTrip = roundTrip;
+	}
+
+	void setCname(String cname) {
+		this.cname = cname;
+	}
+
+	/**
+	 * Plays out the packets still buffered, the source left: the missing ones are given up on.
+	 */
+	void flush() {
+		if (buffered > 0) {
+			playOut(highest + 1);
+		}
+	}
+
+	/**
+	 * Releases the packets still buffered, without playing them out.
+	 */
+	void close() {
+		for (int i = 0; i < packets.length; i++) {
+			if (packets[i] != null) {
+				packets[i].release();
+				packets[i] = null;
+			}
+		}
+		buffered = 0;
+	}
+
+	public RTPSession getSession() {
+		return session;
+	}
+
+	public long getSsrc() {
+		return ssrc;
+	}
+
+	/**
+	 * @return the highest sequence number received, extended with the count of its wraparounds in the upper 16 bits
+	 */
+	public long getHighestSequence() {
+		return highest;
+	}
+
+	/**
+	 * @return the packets received since the sequence started, duplicates and late ones included
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return the packets expected since the sequence started
+	 */
+	public long getExpected() {
+		return started ? highest - base + 1 : 0;
+	}
+
+	/**
+	 * @return the cumulative number of packets lost, as defined by RFC 3550: expected less received, so duplicates may make it negative
+	 */
+	public long getLost() {
+		return getExpected() - received;
+	}
+
+	/**
+	 * @return the packets skipped at play out, late ones included
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the packets arrived after their turn to be played out, repeats of packets already played out included
+	 */
+	public long getLate() {
+		return late;
+	}
+
+	/**
+	 * @return the packets arrived after one with a higher sequence number
+	 */
+	public long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * @return the packets dropped for their sequence number being too far from the others
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the packets held in the jitter buffer
+	 */
+	public int getBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * @return the interarrival jitter, in timestamp units
+	 */
+	public int getJitter() {
+		return jitter >> 4;
+	}
+
+	/**
+	 * @return the interarrival jitter, in milliseconds
+	 */
+	public double getJitterMillis() {
+		return getJitter() * 1000.0 / session.getClockRate();
+	}
+
+	/**
+	 * @return the fraction of the packets lost in the interval of the last report, in 1/256
+	 */
+	public int getFractionLost() {
+		return fractionLost;
+	}
+
+	/**
+	 * @return the round trip time to the source, from a report of the source on the session, -1 if unknown
+	 */
+	public int getRoundTripMillis() {
+		return roundTrip;
+	}
+
+	/**
+	 * @return the canonical name of the source, from its source descriptions, or null
+	 */
+	public String getCname() {
+		return cname;
+	}
+
+	/**
+	 * @return the packets the source said it sent in its last sender report
+	 */
+	public long getSenderPacketCount() {
+		return senderPacketCount;
+	}
+
+	/**
+	 * @return the payload bytes the source said it sent in its last sender report
+	 */
+	public long getSenderOctetCount() {
+		return senderOctetCount;
+	}
+
+	/**
+	 * @return System.nanoTime() at the arrival of the last packet
+	 */
+	public long getLastArrival() {
+		return lastArrival;
+	}
+
+	@Override
+	public String toString() {
+		return "RTPStream [ssrc=" + ssrc + ", received=" + received + ", lost=" + getLost() + ", late=" + late + ", duplicates=" + duplicates
+				+ ", jitter=" + getJitter() + "]";
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.red5.server.net.rtp.rtcp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Body of a goodbye (RFC 3550, section 6.6): the sources leaving the session, and why.
+ */
+public class ByeInfo implements RTCPInfo {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final long[] sources;
+
+	private final String reason;
+
+	/**
+	 * @param reason
+	 *            null if none, else at most 255 bytes in UTF-8
+	 */
+	public ByeInfo(long[] sources, String reason) {
+		if (reason != null && reason.getBytes(UTF_8).length > 255) {
+			throw new IllegalArgumentException("Reason longer than 255 bytes: " + reason);
+		}
+		this.sources = sources;
+		this.reason = reason;
+	}
+
+	/**
+	 * Reads the body of a goodbye.
+	 *
+	 * @param count
+	 *            the count field of the header
+	 */
+	public ByeInfo(IoBuffer buffer, int count) {
+		int read = Math.min(count, buffer.remaining() / 4);
+		sources = new long[read];
+		for (int i = 0; i < read; i++) {
+			sources[i] = buffer.getUnsignedInt();
+		}
+		String text = null;
+		if (buffer.hasRemaining()) {
+			int length = Math.min(buffer.getUnsigned(), buffer.remaining());
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			text = new String(bytes, UTF_8);
+		}
+		reason = text;
+	}
+
+	public int getCount() {
+		return sources.length;
+	}
+
+	public int getLength() {
+		int length = sources.length * 4;
+		if (reason != null) {
+			length += (1 + reason.getBytes(UTF_8).length + 3) & ~3;
+		}
+		return length;
+	}
+
+	public void write(IoBuffer buffer) {
+		for (long ssrc : sources) {
+			buffer.putInt((int) ssrc);
+		}
+		if (reason != null) {
+			byte[] bytes = reason.getBytes(UTF_8);
+			buffer.put((byte) bytes.length);
+			buffer.put(bytes);
+			for (int i = (1 + bytes.length) % 4; i > 0 && i < 4; i++) {
+				buffer.put((byte) 0);
+			}
+		}
+	}
+
+	public long[] getSources() {
+		return sources;
+	}
+
+	/**
+	 * @return the reason for leaving, or null
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	@Override
+	public String toString() {
+		return "ByeInfo [sources=" + Arrays.toString(sources) + ", reason=" + reason + "]";
+	}
+
+}
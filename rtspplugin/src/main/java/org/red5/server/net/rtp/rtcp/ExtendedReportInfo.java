@@ -0,0 +1,185 @@
+package org.red5.server.net.rtp.rtcp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Body of an extended report (RFC 3611): the blocks giving the round trip to a receiver that sends no sender reports. The receiver sends its
+ * reference time, and the sources answer with the delay since they received it. The other block types are skipped.
+ */
+public class ExtendedReportInfo implements RTCPInfo {
+
+	/** Receiver reference time block */
+	public static final int RRTR = 4;
+
+	/** Delay since the last receiver report block */
+	public static final int DLRR = 5;
+
+	/**
+	 * The delay of a source since the last reference time of a receiver.
+	 */
+	public static class DelayBlock {
+
+		private final long ssrc;
+
+		private final long lastReceiverReport;
+
+		private final long delaySinceLastReceiverReport;
+
+		/**
+		 * @param ssrc
+		 *            the receiver
+		 * @param lastReceiverReport
+		 *            the middle 32 bits of its last reference time
+		 * @param delaySinceLastReceiverReport
+		 *            in 1/65536 seconds
+		 */
+		public DelayBlock(long ssrc, long lastReceiverReport, long delaySinceLastReceiverReport) {
+			this.ssrc = ssrc;
+			this.lastReceiverReport = lastReceiverReport;
+			this.delaySinceLastReceiverReport = delaySinceLastReceiverReport;
+		}
+
+		public long getSsrc() {
+			return ssrc;
+		}
+
+		public long getLastReceiverReport() {
+			return lastReceiverReport;
+		}
+
+		public long getDelaySinceLastReceiverReport() {
+			return delaySinceLastReceiverReport;
+		}
+
+		@Override
+		public String toString() {
+			return "DelayBlock [ssrc=" + ssrc + ", lrr=" + lastReceiverReport + ", dlrr=" + delaySinceLastReceiverReport + "]";
+		}
+
+	}
+
+	private long ssrc;
+
+	// NTP timestamp of the reference time block, 0 if none
+	private long referenceTime;
+
+	private final List<DelayBlock> delays = new ArrayList<DelayBlock>();
+
+	/**
+	 * @param ssrc
+	 *            the reporter
+	 */
+	public ExtendedReportInfo(long ssrc) {
+		this.ssrc = ssrc;
+	}
+
+	/**
+	 * Reads the body of an extended report.
+	 */
+	public ExtendedReportInfo(IoBuffer buffer) {
+		ssrc = buffer.getUnsignedInt();
+		while (buffer.remaining() >= 4) {
+			int type = buffer.getUnsigned();
+			buffer.get();
+			int size = Math.min(buffer.getUnsignedShort() * 4, buffer.remaining());
+			int end = buffer.position() + size;
+			if (type == RRTR && size >= 8) {
+				referenceTime = buffer.getLong();
+			} else if (type == DLRR) {
+				while (buffer.position() + 12 <= end) {
+					delays.add(new DelayBlock(buffer.getUnsignedInt(), buffer.getUnsignedInt(), buffer.getUnsignedInt()));
+				}
+			}
+			buffer.position(end);
+		}
+	}
+
+	/**
+	 * @return 0, the count field is reserved
+	 */
+	public int getCount() {
+		return 0;
+	}
+
+	public int getLength() {
+		int length = 4;
+		if (referenceTime != 0) {
+			length += 12;
+		}
+		if (!delays.isEmpty()) {
+			length += 4 + delays.size() * 12;
+		}
+		return length;
+	}
+
+	public void write(IoBuffer buffer) {
+		buffer.putInt((int) ssrc);
+		if (referenceTime != 0) {
+			buffer.put((byte) RRTR);
+			buffer.put((byte) 0);
+			buffer.putShort((short) 2);
+			buffer.putLong(referenceTime);
+		}
+		if (!delays.isEmpty()) {
+			buffer.put((byte) DLRR);
+			buffer.put((byte) 0);
+			buffer.putShort((short) (delays.size() * 3));
+			for (DelayBlock delay : delays) {
+				buffer.putInt((int) delay.ssrc);
+				buffer.putInt((int) delay.lastReceiverReport);
+				buffer.putInt((int) delay.delaySinceLastReceiverReport);
+			}
+		}
+	}
+
+	public long getSsrc() {
+		return ssrc;
+	}
+
+	/**
+	 * @return the NTP timestamp of the reference time of the reporter, 0 if none
+	 */
+	public long getReferenceTime() {
+		return referenceTime;
+	}
+
+	public void setReferenceTime(long referenceTime) {
+		this.referenceTime = referenceTime;
+	}
+
+	public List<DelayBlock> getDelays() {
+		return delays;
+	}
+
+	public void addDelay(DelayBlock delay) {
+		delays.add(delay);
+	}
+
+	@Override
+	public String toString() {
+		return "ExtendedReportInfo [ssrc=" + ssrc + ", referenceTime=" + referenceTime + ", delays=" + delays + "]";
+	}
+
+}
@@ -30,11 +30,28 @@ package org.red5.server.net.rtp.rtcp;
  *                                                                         *
  ***************************************************************************/
 
-import java.nio.ByteBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
 
 /**
- * Interface for all the RTCP types of packets.
+ * Interface for all the RTCP types of packets: the body of a
+ * {@link RTCPPacket}, after its first 4 bytes.
  */
 public interface RTCPInfo {
-	public ByteBuffer toBuffer();
+
+	/**
+	 * @return the count field of the header: report blocks, SDES chunks or BYE
+	 *         sources
+	 */
+	public int getCount();
+
+	/**
+	 * @return the length of the body, the SSRC following the header included,
+	 *         in bytes, a multiple of 4
+	 */
+	public int getLength();
+
+	/**
+	 * Writes the body, the SSRC following the header included.
+	 */
+	public void write(IoBuffer buffer);
 }
@@ -30,17 +30,30 @@ package org.red5.server.net.rtp.rtcp;
  *                                                                         *
  ***************************************************************************/
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.mina.core.buffer.IoBuffer;
 import org.red5.io.object.UnsignedByte;
 import org.red5.io.object.UnsignedInt;
 import org.red5.server.net.rtp.Packet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * A RTCP packet: a 4 bytes header, then a body of 32 bits words beginning
+ * with a SSRC. The bodies of the sender and receiver reports, source
+ * descriptions and goodbyes are parsed into a {@link RTCPInfo}; the others
+ * are kept as bytes.
+ * <p>
+ * The packets are sent and received in compound packets, see
+ * {@link #decode(IoBuffer)} and {@link #toByteBuffer(List)}.
+ * 
  * @author Matteo Merli (matteo.merli@gmail.com)
  */
 public class RTCPPacket implements Packet {
 
-	// private static Logger log = LoggerFactory.getLogger( RTCPPacket.class );
+	private static Logger log = LoggerFactory.getLogger(RTCPPacket.class);
 
 	public enum Type {
 		/** Sender Report */
@@ -53,6 +66,8 @@ public class RTCPPacket implements Packet {
 		BYE(203),
 		/** Application specific */
 		APP(204),
+		/** Extended report, RFC 3611 */
+		XR(207),
 
 		NONE(0);
 
@@ -65,6 +80,13 @@ public class RTCPPacket implements Packet {
 			return NONE;
 		}
 
+		public static Type valueOf(int value) {
+			for (Type t : Type.values())
+				if (t.value.intValue() == value)
+					return t;
+			return NONE;
+		}
+
 		private Type(int value) {
 			this.value = new UnsignedByte(value);
 		}
@@ -91,13 +113,13 @@ public class RTCPPacket implements Packet {
 
 	protected UnsignedInt ssrc;
 
-	// private RTCPInfo rtcpInfo;
+	/** the body after the SSRC */
 	protected byte[] packetBuffer;
 
+	protected RTCPInfo rtcpInfo;
+
 	/**
-	 * TODO: At this moment, the RTCP packet is not completely parsed, only some
-	 * informations are extracted such as the SSRC identificator. The rest of
-	 * the packet is saved but not processed nor validated (for now).
+	 * Reads a packet, the length of its header.
 	 */
 	public RTCPPacket(IoBuffer buffer) {
 		byte c = buffer.get();
@@ -108,43 +130,116 @@ public class RTCPPacket implements Packet {
 		packetType = new UnsignedByte(buffer.get());
 		length = buffer.getShort();
 
-		ssrc = new UnsignedInt(buffer.getInt());
-
-		// we have already read 2 * 4 = 8 bytes
-		// out of ( length + 1 ) * 4 totals
-		int size = Math.min(((length + 1) * 4 - 8), buffer.remaining());
-		packetBuffer = new byte[size];
-		buffer.get(packetBuffer);
-
-		/*
-		 * System.err.println( "version: " + version ); System.err.println(
-		 * "Padding: " + padding ); System.err.println( "count: " + count );
-		 * System.err.println( "packetType: " + Type.fromByte( packetType ) );
-		 * System.err.println( "length: " + length ); System.err.println(
-		 * "ssrc: " + Long.toHexString( (long) ssrc & 0xFFFFFFFFL ) );
-		 * System.err.println( "buffer: " + Arrays.toString( packetBuffer ) );
-		 */
-
-		/**
-		 * <pre>
-		 * switch (Type.fromByte(packetType)) {
-		 * 	case SR:
-		 * 	case RR:
-		 * 	case SDES:
-		 * 		rtcpInfo = new SDESInfo(this, buffer);
-		 * 		break;
-		 * 	case BYE:
-		 * 	case APP:
-		 * 	case NONE:
-		 * 		log.debug(&quot;Invalid RTCP	 packet.&quot;);
-		 * }
-		 * </pre>
-		 */
+		int size = Math.min((length & 0xFFFF) * 4, buffer.remaining());
+		IoBuffer body = buffer.getSlice(size);
+		if (padding && size > 0) {
+			// the last octet counts the padding, itself included
+			int pad = body.get(size - 1) & 0xFF;
+			body.limit(Math.max(0, size - pad));
+		}
+		ssrc = new UnsignedInt(body.remaining() >= 4 ? body.getInt(0) : 0);
+		packetBuffer = new byte[Math.max(0, body.remaining() - 4)];
+		if (body.remaining() >= 4) {
+			body.position(4);
+			body.get(packetBuffer);
+			body.position(0);
+		}
+
+		switch (getType()) {
+			case SR:
+				if (body.remaining() >= 24)
+					rtcpInfo = new SenderReportInfo(body, count);
+				break;
+			case RR:
+				if (body.remaining() >= 4)
+					rtcpInfo = new ReceiverReportInfo(body, count);
+				break;
+			case SDES:
+				rtcpInfo = new SDESInfo(body, count);
+				break;
+			case BYE:
+				rtcpInfo = new ByeInfo(body, count);
+				break;
+			case XR:
+				if (body.remaining() >= 4)
+					rtcpInfo = new ExtendedReportInfo(body);
+				break;
+			default:
+				// APP and unknown types are kept as bytes
+		}
+	}
+
+	/**
+	 * Creates a packet to send.
+	 */
+	public RTCPPacket(Type type, RTCPInfo info) {
+		version = 2;
+		packetType = type.getValue();
+		rtcpInfo = info;
+		count = (byte) info.getCount();
+		length = (short) (info.getLength() / 4);
+		packetBuffer = new byte[0];
+		ssrc = new UnsignedInt(firstSsrc(info));
+	}
+
+	/**
+	 * @return the SSRC the body begins with
+	 */
+	private static long firstSsrc(RTCPInfo info) {
+		if (info instanceof ReceiverReportInfo) {
+			return ((ReceiverReportInfo) info).getSsrc();
+		} else if (info instanceof SDESInfo && !((SDESInfo) info).getChunks().isEmpty()) {
+			return ((SDESInfo) info).getChunks().get(0).getSsrc();
+		} else if (info instanceof ByeInfo && ((ByeInfo) info).getSources().length > 0) {
+			return ((ByeInfo) info).getSources()[0];
+		} else if (info instanceof ExtendedReportInfo) {
+			return ((ExtendedReportInfo) info).getSsrc();
+		}
+		return 0;
 	}
 
 	protected RTCPPacket() {
 	}
 
+	/**
+	 * Reads the packets of a compound packet, up to the first one that is not
+	 * valid.
+	 * 
+	 * @return the packets, from the position of the buffer to its limit
+	 */
+	public static List<RTCPPacket> decode(IoBuffer buffer) {
+		List<RTCPPacket> packets = new ArrayList<RTCPPacket>(3);
+		while (buffer.remaining() >= 4) {
+			int first = buffer.get(buffer.position()) & 0xFF;
+			int words = buffer.getUnsignedShort(buffer.position() + 2);
+			if ((first >> 6) != 2 || 4 + words * 4 > buffer.remaining()) {
+				log.debug("Invalid RTCP packet, {} bytes ignored", buffer.remaining());
+				buffer.position(buffer.limit());
+				break;
+			}
+			packets.add(new RTCPPacket(buffer));
+		}
+		return packets;
+	}
+
+	/**
+	 * Writes the packets as a compound packet.
+	 * 
+	 * @return a new buffer, ready to be sent
+	 */
+	public static IoBuffer toByteBuffer(List<RTCPPacket> packets) {
+		int size = 0;
+		for (RTCPPacket packet : packets) {
+			size += packet.getEncodedLength();
+		}
+		IoBuffer buffer = IoBuffer.allocate(size);
+		for (RTCPPacket packet : packets) {
+			packet.write(buffer);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
 	/**
 	 * @return Returns the ssrc.
 	 */
@@ -164,28 +259,66 @@ public class RTCPPacket implements Packet {
 		return Type.valueOf(packetType);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see rtspproxy.rtp.Packet#toIoBuffer()
+	/**
+	 * @return the count field: report blocks, SDES chunks or BYE sources
 	 */
-	public IoBuffer toByteBuffer() {
-		int packetSize = (packetBuffer.length + 2) * 4; // content
-		IoBuffer buffer = IoBuffer.allocate(packetSize);
-		buffer.limit(packetSize);
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the parsed body: a {@link SenderReportInfo},
+	 *         {@link ReceiverReportInfo}, {@link SDESInfo} or {@link ByeInfo},
+	 *         null for the other types
+	 */
+	public RTCPInfo getInfo() {
+		return rtcpInfo;
+	}
 
+	/**
+	 * @return the length of the packet on the wire, in bytes
+	 */
+	public int getEncodedLength() {
+		return 4 + (rtcpInfo != null ? rtcpInfo.getLength() : 4 + packetBuffer.length);
+	}
+
+	/**
+	 * Writes the packet, without padding, at the position of the buffer.
+	 */
+	public void write(IoBuffer buffer) {
+		int bodyLength = getEncodedLength() - 4;
+		if (rtcpInfo != null) {
+			count = (byte) rtcpInfo.getCount();
+		}
 		// |V=2|P=1| SC=5 |
 		byte c;
 		c = (byte) ((version << 6) & 0xC0);
-		c |= (byte) (((padding ? 1 : 0) << 5) & 0x20);
 		c |= (byte) (count & 0x1F);
 		buffer.put(c);
 		buffer.put(packetType.getBytes());
-		buffer.putShort(length);
-		buffer.put(ssrc.getBytes());
+		buffer.putShort((short) (bodyLength / 4));
+		if (rtcpInfo != null) {
+			rtcpInfo.write(buffer);
+		} else {
+			buffer.put(ssrc.getBytes());
+			buffer.put(packetBuffer);
+		}
+	}
 
-		buffer.put(packetBuffer);
-		buffer.rewind();
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see rtspproxy.rtp.Packet#toIoBuffer()
+	 */
+	public IoBuffer toByteBuffer() {
+		IoBuffer buffer = IoBuffer.allocate(getEncodedLength());
+		write(buffer);
+		buffer.flip();
 		return buffer;
 	}
+
+	@Override
+	public String toString() {
+		return "RTCPPacket [type=" + getType() + ", count=" + count + ", info=" + rtcpInfo + "]";
+	}
 }
@@ -0,0 +1,110 @@
+package org.red5.server.net.rtp.rtcp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Body of a receiver report (RFC 3550, section 6.4.2): the SSRC of the reporter and a block for each source it receives.
+ */
+public class ReceiverReportInfo implements RTCPInfo {
+
+	/** Most blocks in a report, the count field is 5 bits */
+	public static final int MAX_BLOCKS = 31;
+
+	protected long ssrc;
+
+	protected final List<ReportBlock> blocks = new ArrayList<ReportBlock>();
+
+	/**
+	 * @param ssrc
+	 *            the reporter
+	 */
+	public ReceiverReportInfo(long ssrc) {
+		this.ssrc = ssrc;
+	}
+
+	/**
+	 * Reads the body of a report.
+	 *
+	 * @param count
+	 *            the count field of the header
+	 */
+	public ReceiverReportInfo(IoBuffer buffer, int count) {
+		ssrc = buffer.getUnsignedInt();
+		readBlocks(buffer, count);
+	}
+
+	protected ReceiverReportInfo() {
+	}
+
+	protected void readBlocks(IoBuffer buffer, int count) {
+		for (int i = 0; i < count && buffer.remaining() >= ReportBlock.LENGTH; i++) {
+			blocks.add(new ReportBlock(buffer));
+		}
+	}
+
+	public int getCount() {
+		return blocks.size();
+	}
+
+	public int getLength() {
+		return 4 + blocks.size() * ReportBlock.LENGTH;
+	}
+
+	public void write(IoBuffer buffer) {
+		buffer.putInt((int) ssrc);
+		writeBlocks(buffer);
+	}
+
+	protected void writeBlocks(IoBuffer buffer) {
+		for (ReportBlock block : blocks) {
+			block.write(buffer);
+		}
+	}
+
+	public long getSsrc() {
+		return ssrc;
+	}
+
+	public List<ReportBlock> getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the report is full
+	 */
+	public void addBlock(ReportBlock block) {
+		if (blocks.size() == MAX_BLOCKS) {
+			throw new IllegalStateException("More than " + MAX_BLOCKS + " report blocks");
+		}
+		blocks.add(block);
+	}
+
+	@Override
+	public String toString() {
+		return "ReceiverReportInfo [ssrc=" + ssrc + ", blocks=" + blocks + "]";
+	}
+
+}
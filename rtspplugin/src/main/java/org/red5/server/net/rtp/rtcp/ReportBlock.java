@@ -0,0 +1,157 @@
+package org.red5.server.net.rtp.rtcp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A reception report block of a sender or receiver report (RFC 3550, section 6.4.1): how a synchronization source is received.
+ */
+public class ReportBlock {
+
+	/** Length of a block, in bytes */
+	public static final int LENGTH = 24;
+
+	private long ssrc;
+
+	private int fractionLost;
+
+	private int cumulativeLost;
+
+	private long extendedHighestSequence;
+
+	private long jitter;
+
+	private long lastSenderReport;
+
+	private long delaySinceLastSenderReport;
+
+	public ReportBlock() {
+	}
+
+	/**
+	 * Reads a block from the buffer.
+	 */
+	public ReportBlock(IoBuffer buffer) {
+		ssrc = buffer.getUnsignedInt();
+		fractionLost = buffer.getUnsigned();
+		cumulativeLost = buffer.getMediumInt();
+		extendedHighestSequence = buffer.getUnsignedInt();
+		jitter = buffer.getUnsignedInt();
+		lastSenderReport = buffer.getUnsignedInt();
+		delaySinceLastSenderReport = buffer.getUnsignedInt();
+	}
+
+	public void write(IoBuffer buffer) {
+		buffer.putInt((int) ssrc);
+		buffer.put((byte) fractionLost);
+		// clamped to 24 bits
+		int lost = Math.max(-0x800000, Math.min(0x7FFFFF, cumulativeLost));
+		buffer.putMediumInt(lost);
+		buffer.putInt((int) extendedHighestSequence);
+		buffer.putInt((int) jitter);
+		buffer.putInt((int) lastSenderReport);
+		buffer.putInt((int) delaySinceLastSenderReport);
+	}
+
+	/**
+	 * @return the source the block reports on
+	 */
+	public long getSsrc() {
+		return ssrc;
+	}
+
+	public void setSsrc(long ssrc) {
+		this.ssrc = ssrc;
+	}
+
+	/**
+	 * @return the fraction of the packets lost since the previous report, in 1/256
+	 */
+	public int getFractionLost() {
+		return fractionLost;
+	}
+
+	public void setFractionLost(int fractionLost) {
+		this.fractionLost = fractionLost;
+	}
+
+	/**
+	 * @return the packets lost since the beginning of the reception, negative when duplicates outnumber them
+	 */
+	public int getCumulativeLost() {
+		return cumulativeLost;
+	}
+
+	public void setCumulativeLost(int cumulativeLost) {
+		this.cumulativeLost = cumulativeLost;
+	}
+
+	/**
+	 * @return the highest sequence number received, with the count of its wraparounds in the upper 16 bits
+	 */
+	public long getExtendedHighestSequence() {
+		return extendedHighestSequence;
+	}
+
+	public void setExtendedHighestSequence(long extendedHighestSequence) {
+		this.extendedHighestSequence = extendedHighestSequence;
+	}
+
+	/**
+	 * @return the interarrival jitter, in timestamp units
+	 */
+	public long getJitter() {
+		return jitter;
+	}
+
+	public void setJitter(long jitter) {
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @return the middle 32 bits of the NTP timestamp of the last sender report received from the source, 0 if none
+	 */
+	public long getLastSenderReport() {
+		return lastSenderReport;
+	}
+
+	public void setLastSenderReport(long lastSenderReport) {
+		this.lastSenderReport = lastSenderReport;
+	}
+
+	/**
+	 * @return the delay between the last sender report received from the source and this report, in 1/65536 seconds
+	 */
+	public long getDelaySinceLastSenderReport() {
+		return delaySinceLastSenderReport;
+	}
+
+	public void setDelaySinceLastSenderReport(long delaySinceLastSenderReport) {
+		this.delaySinceLastSenderReport = delaySinceLastSenderReport;
+	}
+
+	@Override
+	public String toString() {
+		return "ReportBlock [ssrc=" + ssrc + ", fractionLost=" + fractionLost + ", cumulativeLost=" + cumulativeLost + ", extendedHighestSequence="
+				+ extendedHighestSequence + ", jitter=" + jitter + ", lsr=" + lastSenderReport + ", dlsr=" + delaySinceLastSenderReport + "]";
+	}
+
+}
@@ -30,17 +30,27 @@ package org.red5.server.net.rtp.rtcp;
  *                                                                         *
  ***************************************************************************/
 
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Body of a source description (RFC 3550, section 6.5): a chunk of items,
+ * CNAME first, for each source.
+ * 
  * @author Matteo Merli (matteo.merli@gmail.com)
  */
 public class SDESInfo implements RTCPInfo {
 	static Logger log = LoggerFactory.getLogger(SDESInfo.class);
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	public enum Type {
 		END(0), CNAME(1), NAME(2), EMAIL(3), PHONE(4), LOC(5), TOOL(6), NOTE(7), PRIV(
 				8);
@@ -59,46 +69,148 @@ public class SDESInfo implements RTCPInfo {
 		}
 	}
 
-	private class Chunk {
-
-		@SuppressWarnings("unused")
-		public int ssrc;
+	/**
+	 * The items describing a source.
+	 */
+	public static class Chunk {
 
-		public Type type;
+		private final long ssrc;
 
-		@SuppressWarnings("unused")
-		public byte[] value;
-	}
+		private final Map<Type, String> items = new EnumMap<Type, String>(Type.class);
 
-	private Chunk[] chunkList;
+		public Chunk(long ssrc) {
+			this.ssrc = ssrc;
+		}
 
-	public SDESInfo(RTCPPacket packet, ByteBuffer buffer) {
-		// int totalBytesToRead = packet.length * 4;
-		byte sourceCount = packet.count;
+		public long getSsrc() {
+			return ssrc;
+		}
 
-		chunkList = new Chunk[sourceCount];
+		public String getItem(Type type) {
+			return items.get(type);
+		}
 
-		for (byte i = 0; i < sourceCount; i++) {
-			chunkList[i] = new Chunk();
-			Chunk c = chunkList[i];
+		/**
+		 * @param value
+		 *            at most 255 bytes in UTF-8
+		 */
+		public void setItem(Type type, String value) {
+			if (type == Type.END) {
+				throw new IllegalArgumentException("END is not an item");
+			}
+			if (value.getBytes(UTF_8).length > 255) {
+				throw new IllegalArgumentException("Item longer than 255 bytes: " + value);
+			}
+			items.put(type, value);
+		}
 
-			c.ssrc = buffer.getInt();
-			c.type = Type.fromByte(buffer.get());
+		public Map<Type, String> getItems() {
+			return items;
+		}
 
-			switch (c.type) {
-				case PRIV:
-					log.debug("Chunk private...");
+		/**
+		 * @return the length of the chunk, padded to 32 bits
+		 */
+		int getLength() {
+			int length = 4;
+			for (String value : items.values()) {
+				length += 2 + value.getBytes(UTF_8).length;
 			}
+			// at least one null octet ends the items
+			return (length + 4) & ~3;
+		}
+
+		@Override
+		public String toString() {
+			return "Chunk [ssrc=" + ssrc + ", items=" + items + "]";
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	private final List<Chunk> chunkList = new ArrayList<Chunk>();
+
+	public SDESInfo() {
+	}
+
+	/**
+	 * Reads the body of a source description.
 	 * 
-	 * @see rtspproxy.rtp.rtcp.RTCPInfo#toBuffer()
+	 * @param count
+	 *            the count field of the header
 	 */
-	public ByteBuffer toBuffer() {
-		return null;
+	public SDESInfo(IoBuffer buffer, int count) {
+		int start = buffer.position();
+		for (int i = 0; i < count && buffer.remaining() >= 4; i++) {
+			Chunk chunk = new Chunk(buffer.getUnsignedInt());
+			chunkList.add(chunk);
+			while (buffer.hasRemaining()) {
+				Type type = Type.fromByte(buffer.get());
+				if (type == Type.END) {
+					break;
+				}
+				if (!buffer.hasRemaining()) {
+					break;
+				}
+				int length = buffer.getUnsigned();
+				if (length > buffer.remaining()) {
+					log.debug("SDES item longer than the packet");
+					buffer.position(buffer.limit());
+					return;
+				}
+				byte[] value = new byte[length];
+				buffer.get(value);
+				if (type == Type.PRIV) {
+					log.debug("Chunk private...");
+				}
+				chunk.items.put(type, new String(value, UTF_8));
+			}
+			// the next chunk starts on a 32 bits boundary
+			int padding = (4 - (buffer.position() - start) % 4) % 4;
+			buffer.position(Math.min(buffer.position() + padding, buffer.limit()));
+		}
+	}
+
+	public List<Chunk> getChunks() {
+		return chunkList;
+	}
+
+	public Chunk addChunk(long ssrc) {
+		Chunk chunk = new Chunk(ssrc);
+		chunkList.add(chunk);
+		return chunk;
+	}
+
+	public int getCount() {
+		return chunkList.size();
+	}
+
+	public int getLength() {
+		int length = 0;
+		for (Chunk chunk : chunkList) {
+			length += chunk.getLength();
+		}
+		return length;
+	}
+
+	public void write(IoBuffer buffer) {
+		for (Chunk chunk : chunkList) {
+			int start = buffer.position();
+			buffer.putInt((int) chunk.ssrc);
+			for (Map.Entry<Type, String> item : chunk.items.entrySet()) {
+				byte[] value = item.getValue().getBytes(UTF_8);
+				buffer.put(item.getKey().value);
+				buffer.put((byte) value.length);
+				buffer.put(value);
+			}
+			int end = start + chunk.getLength();
+			while (buffer.position() < end) {
+				buffer.put((byte) 0);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SDESInfo [chunks=" + chunkList + "]";
 	}
 
 }
@@ -0,0 +1,126 @@
+package org.red5.server.net.rtp.rtcp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Body of a sender report (RFC 3550, section 6.4.1): a receiver report with the sender information first, which ties the RTP timestamps of the
+ * sender to the wall clock and counts what it sent.
+ */
+public class SenderReportInfo extends ReceiverReportInfo {
+
+	private long ntpTimestamp;
+
+	private long rtpTimestamp;
+
+	private long packetCount;
+
+	private long octetCount;
+
+	/**
+	 * @param ssrc
+	 *            the sender
+	 */
+	public SenderReportInfo(long ssrc) {
+		super(ssrc);
+	}
+
+	/**
+	 * Reads the body of a report.
+	 *
+	 * @param count
+	 *            the count field of the header
+	 */
+	public SenderReportInfo(IoBuffer buffer, int count) {
+		ssrc = buffer.getUnsignedInt();
+		ntpTimestamp = buffer.getLong();
+		rtpTimestamp = buffer.getUnsignedInt();
+		packetCount = buffer.getUnsignedInt();
+		octetCount = buffer.getUnsignedInt();
+		readBlocks(buffer, count);
+	}
+
+	@Override
+	public int getLength() {
+		return super.getLength() + 20;
+	}
+
+	@Override
+	public void write(IoBuffer buffer) {
+		buffer.putInt((int) ssrc);
+		buffer.putLong(ntpTimestamp);
+		buffer.putInt((int) rtpTimestamp);
+		buffer.putInt((int) packetCount);
+		buffer.putInt((int) octetCount);
+		writeBlocks(buffer);
+	}
+
+	/**
+	 * @return the wall clock time of the report, 64 bits NTP format: seconds since 1900 in the upper 32 bits, fraction of second in the lower ones
+	 */
+	public long getNtpTimestamp() {
+		return ntpTimestamp;
+	}
+
+	public void setNtpTimestamp(long ntpTimestamp) {
+		this.ntpTimestamp = ntpTimestamp;
+	}
+
+	/**
+	 * @return the same time as {@link #getNtpTimestamp()}, in the units of the RTP timestamps
+	 */
+	public long getRtpTimestamp() {
+		return rtpTimestamp;
+	}
+
+	public void setRtpTimestamp(long rtpTimestamp) {
+		this.rtpTimestamp = rtpTimestamp;
+	}
+
+	/**
+	 * @return the RTP packets sent since the beginning
+	 */
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	public void setPacketCount(long packetCount) {
+		this.packetCount = packetCount;
+	}
+
+	/**
+	 * @return the payload bytes sent since the beginning
+	 */
+	public long getOctetCount() {
+		return octetCount;
+	}
+
+	public void setOctetCount(long octetCount) {
+		this.octetCount = octetCount;
+	}
+
+	@Override
+	public String toString() {
+		return "SenderReportInfo [ssrc=" + ssrc + ", ntp=" + Long.toHexString(ntpTimestamp) + ", rtp=" + rtpTimestamp + ", packets=" + packetCount
+				+ ", octets=" + octetCount + ", blocks=" + blocks + "]";
+	}
+
+}
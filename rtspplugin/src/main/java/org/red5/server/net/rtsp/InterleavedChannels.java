@@ -0,0 +1,114 @@
+package org.red5.server.net.rtsp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * The handlers of the interleaved channels of a RTSP connection.
+ *
+ * A client asking for RTP over the RTSP connection names two channels in the Transport header of its SETUP, e.g. "RTP/AVP/TCP;interleaved=0-1":
+ * once the SETUP is accepted the handlers of its RTP and RTCP packets are bound to those channels, and the decoder routes the '$' framed packets
+ * received there to them. The packets of a channel without handler are skipped.
+ */
+public final class InterleavedChannels {
+
+	private static final AttributeKey CHANNELS = new AttributeKey(InterleavedChannels.class, "channels");
+
+	private final AtomicReferenceArray<InterleavedHandler> handlers = new AtomicReferenceArray<InterleavedHandler>(256);
+
+	private final AtomicLong droppedPackets = new AtomicLong();
+
+	private InterleavedChannels() {
+	}
+
+	/**
+	 * @return the channels of the connection, created on the first call
+	 */
+	public static InterleavedChannels get(IoSession session) {
+		InterleavedChannels channels = (InterleavedChannels) session.getAttribute(CHANNELS);
+		if (channels == null) {
+			channels = new InterleavedChannels();
+			InterleavedChannels previous = (InterleavedChannels) session.setAttributeIfAbsent(CHANNELS, channels);
+			if (previous != null) {
+				channels = previous;
+			}
+		}
+		return channels;
+	}
+
+	/**
+	 * @return the handler of the channel of the connection, or null
+	 */
+	public static InterleavedHandler getHandler(IoSession session, int channel) {
+		InterleavedChannels channels = (InterleavedChannels) session.getAttribute(CHANNELS);
+		if (channels == null) {
+			return null;
+		}
+		InterleavedHandler handler = channels.handlers.get(channel);
+		if (handler == null) {
+			channels.droppedPackets.incrementAndGet();
+		}
+		return handler;
+	}
+
+	/**
+	 * Binds the handlers to the channels of the transport.
+	 *
+	 * @return false if the transport has no valid interleaved channels
+	 */
+	public boolean bind(RTSPTransport transport, InterleavedHandler rtp, InterleavedHandler rtcp) {
+		int[] channels = transport.getInterleavedChannels();
+		if (channels == null) {
+			return false;
+		}
+		bind(channels[0], rtp);
+		bind(channels[1], rtcp);
+		return true;
+	}
+
+	/**
+	 * @param handler
+	 *            the handler of the channel, null to skip its packets
+	 */
+	public void bind(int channel, InterleavedHandler handler) {
+		handlers.set(channel, handler);
+	}
+
+	public void unbind(int channel) {
+		handlers.set(channel, null);
+	}
+
+	public InterleavedHandler getHandler(int channel) {
+		return handlers.get(channel);
+	}
+
+	/**
+	 * @return the packets skipped for want of a handler on their channel
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+
+}
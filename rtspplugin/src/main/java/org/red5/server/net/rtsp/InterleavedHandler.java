@@ -0,0 +1,41 @@
+package org.red5.server.net.rtsp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Receives the RTP or RTCP packets interleaved on a channel of a RTSP connection (RFC 2326, section 10.12).
+ *
+ * @see InterleavedChannels
+ */
+public interface InterleavedHandler {
+
+	/**
+	 * Called by the decoder, on the thread reading the connection, for each packet received on the channel.
+	 *
+	 * @param packet
+	 *            the packet, from its position to its limit; the bytes are those of the read buffer, or of a buffer reused for the packets split
+	 *            across reads, so they are only valid during the call and must be copied to be kept
+	 */
+	void packetReceived(IoSession session, int channel, IoBuffer packet);
+
+}
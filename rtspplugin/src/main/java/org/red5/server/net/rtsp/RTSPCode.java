@@ -65,6 +65,17 @@ public enum RTSPCode {
 
 	private final String description;
 
+	// codes by numeric value, status codes have 3 digits
+	private static final RTSPCode[] byValue = new RTSPCode[1000];
+
+	static {
+		for (RTSPCode code : values()) {
+			if (byValue[code.value] == null) {
+				byValue[code.value] = code;
+			}
+		}
+	}
+
 	private RTSPCode(int value, String description) {
 		this.value = value;
 		this.description = description;
@@ -101,11 +112,18 @@ public enum RTSPCode {
 	 * @return enum values
 	 */
 	public static RTSPCode fromString(String strCode) {
-		int intCode = Integer.valueOf(strCode);
-		for (RTSPCode code : RTSPCode.values()) {
-			if (code.value() == intCode)
-				return code;
-		}
-		return RTSPCode.BadRequest;
+		return fromValue(Integer.valueOf(strCode));
+	}
+
+	/**
+	 * Translates a numeric RTSP status code to the corresponding enum value.
+	 * 
+	 * @param intCode
+	 *            numeric code
+	 * @return enum value, BadRequest for an unknown code
+	 */
+	public static RTSPCode fromValue(int intCode) {
+		RTSPCode code = intCode >= 0 && intCode < byValue.length ? byValue[intCode] : null;
+		return code != null ? code : RTSPCode.BadRequest;
 	}
 }
@@ -305,6 +305,33 @@ public class RTSPTransport {
 		this.interleaved = interleaved;
 	}
 
+	/**
+	 * @return the RTP and RTCP channels of the interleaved parameter, the RTCP
+	 *         one following the RTP one when not given, or null if there is
+	 *         none or it is not valid
+	 */
+	public int[] getInterleavedChannels() {
+		if (interleaved == null)
+			return null;
+		try {
+			int dash = interleaved.indexOf('-');
+			int[] channels = new int[2];
+			if (dash < 0) {
+				channels[0] = Integer.parseInt(interleaved.trim());
+				channels[1] = channels[0] + 1;
+			} else {
+				channels[0] = Integer.parseInt(interleaved.substring(0, dash).trim());
+				channels[1] = Integer.parseInt(interleaved.substring(dash + 1).trim());
+			}
+			if (channels[0] < 0 || channels[0] > 255 || channels[1] < 0 || channels[1] > 255)
+				return null;
+			return channels;
+		} catch (NumberFormatException e) {
+			log.debug("Invalid interleaved channels: {}", interleaved);
+			return null;
+		}
+	}
+
 	/**
 	 * @return Returns the layers.
 	 */
@@ -30,29 +30,22 @@ package org.red5.server.net.rtsp.codec;
  *                                                                         *
  ***************************************************************************/
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.CharBuffer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
-import org.red5.server.net.rtsp.RTSPCode;
-import org.red5.server.net.rtsp.RTSPRequest;
-import org.red5.server.net.rtsp.RTSPResponse;
+import org.red5.server.net.rtsp.InterleavedChannels;
 import org.red5.server.net.rtsp.messages.RTSPMessage;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
+ * Decodes the RTSP messages of the sessions. The decoder is shared, the state of each session is kept in a RTSPMessageParser, which picks up a
+ * message where the previous read left it.
+ * <p>
+ * The RTP and RTCP packets interleaved on the connection are not written out as messages but handed to the handlers bound to their channel in the
+ * {@link InterleavedChannels} of the session.
+ * 
  * @author Matteo Merli (matteo.merli@gmail.com)
  */
 public class RTSPDecoder implements ProtocolDecoder {
@@ -80,16 +73,13 @@ public class RTSPDecoder implements ProtocolDecoder {
 		Dispatch
 	}
 
-	private static Logger log = LoggerFactory.getLogger(RTSPDecoder.class);
+	private static final AttributeKey PARSER = new AttributeKey(RTSPDecoder.class, "parser");
 
-	private static final Pattern rtspRequestPattern = Pattern
-			.compile("([A-Z_]+) ([^ ]+) RTSP/1.0");
+	private int maxLineLength = 8 * 1024;
 
-	private static final Pattern rtspResponsePattern = Pattern
-			.compile("RTSP/1.0 ([0-9]+) .+");
+	private int maxHeaders = 64;
 
-	private static final Pattern rtspHeaderPattern = Pattern
-			.compile("([a-zA-Z\\-]+[0-9]?):\\s?(.*)");
+	private int maxContentLength = 64 * 1024;
 
 	/**
 	 * Do the parsing on the incoming stream. If the stream does not contain the
@@ -99,166 +89,15 @@ public class RTSPDecoder implements ProtocolDecoder {
 	 */
 	public void decode(IoSession session, IoBuffer buffer,
 			ProtocolDecoderOutput out) throws ProtocolDecoderException {
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new InputStreamReader(buffer
-					.asInputStream(), "US-ASCII"));
-		} catch (UnsupportedEncodingException e1) {
+		RTSPMessageParser parser = (RTSPMessageParser) session.getAttribute(PARSER);
+		if (parser == null) {
+			parser = new RTSPMessageParser(maxLineLength, maxHeaders, maxContentLength);
+			session.setAttribute(PARSER, parser);
 		}
-
-		// Retrieve status from session
-		ReadState state = (ReadState) session.getAttribute("state");
-		if (state == null)
-			state = ReadState.Command;
-		RTSPMessage rtspMessage = (RTSPMessage) session
-				.getAttribute("rtspMessage");
-
-		try {
-
-			while (true) {
-
-				if (state != ReadState.Command && state != ReadState.Header)
-					// the "while" loop is only used to read commands and
-					// headers
-					break;
-
-				String line = reader.readLine();
-				if (line == null)
-					// there's no more data in the buffer
-					break;
-
-				if (line.length() == 0) {
-					// This is the empty line that marks the end
-					// of the headers section
-					state = ReadState.Body;
-					break;
-				}
-
-				switch (state) {
-
-					case Command:
-						// log.debug( "Command line: " + line );
-						if (line.startsWith("RTSP")) {
-							// this is a RTSP response
-							Matcher m = rtspResponsePattern.matcher(line);
-							if (!m.matches())
-								throw new ProtocolDecoderException(
-										"Malformed response line: " + line);
-
-							RTSPCode code = RTSPCode.fromString(m.group(1));
-							rtspMessage = new RTSPResponse();
-							((RTSPResponse) (rtspMessage)).setCode(code);
-							RTSPRequest.Verb verb = (RTSPRequest.Verb) session
-									.getAttribute("lastRequestVerb");
-							((RTSPResponse) (rtspMessage)).setRequestVerb(verb);
-
-						} else {
-							// this is a RTSP request
-							Matcher m = rtspRequestPattern.matcher(line);
-							if (!m.matches())
-								throw new ProtocolDecoderException(
-										"Malformed request line: " + line);
-
-							String verb = m.group(1);
-							String strUrl = m.group(2);
-							URL url = null;
-							if (!strUrl.equalsIgnoreCase("*")) {
-								try {
-									url = new URL(strUrl);
-								} catch (MalformedURLException e) {
-									log.error("", e);
-									url = null;
-									session.setAttribute("state",
-											ReadState.Failed);
-									throw new ProtocolDecoderException(
-											"Invalid URL");
-								}
-							}
-							rtspMessage = new RTSPRequest();
-							((RTSPRequest) rtspMessage).setVerb(verb);
-
-							if (((RTSPRequest) rtspMessage).getVerb() == RTSPRequest.Verb.None) {
-								session.setAttribute("state", ReadState.Failed);
-								throw new ProtocolDecoderException(
-										"Invalid method: " + verb);
-							}
-
-							((RTSPRequest) rtspMessage).setUrl(url);
-						}
-						state = ReadState.Header;
-						break;
-
-					case Header:
-						// this is an header
-						Matcher m = rtspHeaderPattern.matcher(line);
-
-						if (!m.matches())
-							throw new ProtocolDecoderException(
-									"RTSP header not valid");
-
-						rtspMessage.setHeader(m.group(1), m.group(2));
-						break;
-
-				}
-			}
-
-			if (state == ReadState.Body) {
-				// Read the message body
-				int bufferLen = Integer.parseInt(rtspMessage.getHeader(
-						"Content-Length", "0"));
-				if (bufferLen == 0) {
-					// there's no buffer to be read
-					state = ReadState.Dispatch;
-
-				} else {
-					// we have a content buffer to read
-					int bytesToRead = bufferLen - rtspMessage.getBufferSize();
-
-					// if ( bytesToRead < reader. decodeBuf.length() ) {
-					// log.warn( "We are reading more bytes than
-					// Content-Length." );
-					// }
-
-					// read the content buffer
-					CharBuffer bufferContent = CharBuffer.allocate(bytesToRead);
-					reader.read(bufferContent);
-					bufferContent.flip();
-					rtspMessage.appendToBuffer(bufferContent);
-					if (rtspMessage.getBufferSize() >= bufferLen) {
-						// The RTSP message parsing is completed
-						state = ReadState.Dispatch;
-					}
-				}
-			}
-		} catch (IOException e) {
-			/*
-			 * error on input stream should not happen since the input stream is
-			 * coming from a bytebuffer.
-			 */
-			log.error("", e);
-			return;
-
-		} finally {
-			try {
-				reader.close();
-			} catch (Exception e) {
-			}
-		}
-
-		if (state == ReadState.Dispatch) {
-			// The message is already formed
-			// send it
-			session.removeAttribute("state");
-			session.removeAttribute("rtspMessage");
+		RTSPMessage rtspMessage;
+		while ((rtspMessage = parser.parse(session, buffer)) != null) {
 			out.write(rtspMessage);
-			return;
 		}
-
-		// log.debug( "INCOMPLETE MESSAGE \n" + rtspMessage );
-
-		// Save attributes in session
-		session.setAttribute("state", state);
-		session.setAttribute("rtspMessage", rtspMessage);
 	}
 
 	/*
@@ -267,12 +106,36 @@ public class RTSPDecoder implements ProtocolDecoder {
 	 * @see org.apache.mina.filter.codec.ProtocolDecoder#dispose(org.apache.mina.common.IoSession)
 	 */
 	public void dispose(IoSession session) throws Exception {
-		// Do nothing
+		session.removeAttribute(PARSER);
 	}
 
 	/** {@inheritDoc} */
-    public void finishDecode(IoSession session, ProtocolDecoderOutput out)
+	public void finishDecode(IoSession session, ProtocolDecoderOutput out)
 			throws Exception {
-		// TODO Auto-generated method stub	
-	}	
+		// a message not complete when the session closes is dropped
+	}
+
+	/**
+	 * @param maxLineLength
+	 *            longest request, status or header line accepted, in bytes
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * @param maxHeaders
+	 *            most headers accepted in a message
+	 */
+	public void setMaxHeaders(int maxHeaders) {
+		this.maxHeaders = maxHeaders;
+	}
+
+	/**
+	 * @param maxContentLength
+	 *            largest body accepted, in bytes
+	 */
+	public void setMaxContentLength(int maxContentLength) {
+		this.maxContentLength = maxContentLength;
+	}
 }
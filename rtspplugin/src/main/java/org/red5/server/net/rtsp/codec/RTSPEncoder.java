@@ -35,10 +35,14 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoder;
 import org.apache.mina.filter.codec.ProtocolEncoderException;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.red5.server.net.rtsp.messages.InterleavedFrame;
 import org.red5.server.net.rtsp.messages.RTSPMessage;
 
 /**
  * Encode a RTSP message into a buffer for sending.
+ * <p>
+ * An {@link InterleavedFrame} is written as its 4 bytes header followed by
+ * the buffer of the packet itself, without copying the packet.
  * 
  * @author Matteo Merli (matteo.merli@gmail.com)
  */
@@ -52,6 +56,10 @@ public class RTSPEncoder implements ProtocolEncoder {
 	 */
 	public void encode(IoSession session, Object message,
 			ProtocolEncoderOutput out) throws ProtocolEncoderException {
+		if (message instanceof InterleavedFrame) {
+			encodeFrame((InterleavedFrame) message, out);
+			return;
+		}
 		// Serialization to string is already provided in RTSP messages.
 		String val = ((RTSPMessage) message).toString();
 		/*
@@ -69,6 +77,24 @@ public class RTSPEncoder implements ProtocolEncoder {
 		out.write(buf);
 	}
 
+	private void encodeFrame(InterleavedFrame frame, ProtocolEncoderOutput out)
+			throws ProtocolEncoderException {
+		IoBuffer packet = frame.getPacket();
+		int length = packet.remaining();
+		if (length > InterleavedFrame.MAX_LENGTH) {
+			throw new ProtocolEncoderException("Interleaved packet of " + length + " bytes too long");
+		}
+		IoBuffer header = IoBuffer.allocate(4);
+		header.put((byte) '$');
+		header.put((byte) frame.getChannel());
+		header.putShort((short) length);
+		header.flip();
+		// both buffers are queued on the session in turn, the write of the
+		// frame is complete once the packet is
+		out.write(header);
+		out.write(packet);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.apache.mina.filter.codec.ProtocolEncoder#dispose(org.apache.mina.common.IoSession)
 	 */
@@ -0,0 +1,487 @@
+package org.red5.server.net.rtsp.codec;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.red5.server.net.rtsp.InterleavedChannels;
+import org.red5.server.net.rtsp.InterleavedHandler;
+import org.red5.server.net.rtsp.RTSPCode;
+import org.red5.server.net.rtsp.RTSPRequest;
+import org.red5.server.net.rtsp.RTSPResponse;
+import org.red5.server.net.rtsp.codec.RTSPDecoder.ReadState;
+import org.red5.server.net.rtsp.messages.RTSPHeaders;
+import org.red5.server.net.rtsp.messages.RTSPMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoding state of the RTSP messages of one session.
+ *
+ * The bytes are scanned in the received buffers: the current line is gathered into a reused array, so a line split across reads simply resumes on the
+ * next read, then parsed in place. Methods, versions and well known header names are matched on the bytes; only the URL, the header values and the
+ * body become Strings.
+ *
+ * A '$' where a message would start begins a RTP or RTCP packet interleaved on the connection: '$', the channel and the 16 bits length of the packet.
+ * The packet goes to the handler of its channel as a window of the read buffer when it was read whole, else it is gathered into a buffer reused for
+ * the next ones; the packets of a channel without handler are skipped without being gathered.
+ */
+final class RTSPMessageParser {
+
+	private static Logger log = LoggerFactory.getLogger(RTSPMessageParser.class);
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] VERSION = { 'R', 'T', 'S', 'P', '/', '1', '.', '0' };
+
+	private static final RTSPRequest.Verb[] verbs = RTSPRequest.Verb.values();
+
+	private static final byte[][] verbNames = new byte[verbs.length][];
+
+	static {
+		for (int i = 0; i < verbs.length; i++) {
+			verbNames[i] = verbs[i].name().getBytes(ISO_8859_1);
+		}
+	}
+
+	private final int maxLineLength;
+
+	private final int maxHeaders;
+
+	private final int maxContentLength;
+
+	private ReadState state = ReadState.Command;
+
+	// current line, without its end
+	private byte[] line = new byte[256];
+
+	private int lineLength;
+
+	private RTSPMessage message;
+
+	private int headerCount;
+
+	// header a folded line continues
+	private String lastHeader;
+
+	private int contentLength;
+
+	private byte[] body;
+
+	private int bodyLength;
+
+	// bytes of the interleaved frame header read, up to 4
+	private int frameHeaderLength;
+
+	private int frameChannel;
+
+	private int frameLength;
+
+	// handler of the frame being read, null to skip it
+	private InterleavedHandler frameHandler;
+
+	// bytes of the frame read or skipped
+	private int frameRead;
+
+	// frame split across reads
+	private IoBuffer frame;
+
+	RTSPMessageParser(int maxLineLength, int maxHeaders, int maxContentLength) {
+		this.maxLineLength = maxLineLength;
+		this.maxHeaders = maxHeaders;
+		this.maxContentLength = maxContentLength;
+	}
+
+	/**
+	 * Parses the bytes of the buffer up to the end of a message.
+	 *
+	 * @return the message completed, or null if the whole buffer was consumed without completing one
+	 * @throws ProtocolDecoderException
+	 *             on a malformed message, the bytes received afterwards are dropped
+	 */
+	RTSPMessage parse(IoSession session, IoBuffer in) throws ProtocolDecoderException {
+		while (in.hasRemaining()) {
+			switch (state) {
+				case Command:
+					if (lineLength == 0 && in.get(in.position()) == '$') {
+						state = ReadState.Packet;
+						break;
+					}
+					// fall through
+				case Header:
+					if (!readLine(in)) {
+						return null;
+					}
+					if (state == ReadState.Command) {
+						command(session);
+					} else {
+						header();
+					}
+					lineLength = 0;
+					break;
+				case Body:
+					readBody(in);
+					break;
+				case Packet:
+					readPacket(session, in);
+					break;
+				default:
+					// Failed, nothing sensible can be read from the stream anymore
+					in.position(in.limit());
+					return null;
+			}
+			if (state == ReadState.Dispatch) {
+				RTSPMessage complete = message;
+				reset();
+				return complete;
+			}
+		}
+		return null;
+	}
+
+	ReadState getState() {
+		return state;
+	}
+
+	private void reset() {
+		state = ReadState.Command;
+		message = null;
+		headerCount = 0;
+		lastHeader = null;
+		contentLength = 0;
+		body = null;
+		bodyLength = 0;
+	}
+
+	/**
+	 * Reads an interleaved frame, and hands its packet over once complete.
+	 */
+	private void readPacket(IoSession session, IoBuffer in) {
+		while (frameHeaderLength < 4) {
+			if (!in.hasRemaining()) {
+				return;
+			}
+			int b = in.get() & 0xFF;
+			switch (frameHeaderLength++) {
+				case 1:
+					frameChannel = b;
+					break;
+				case 2:
+					frameLength = b << 8;
+					break;
+				case 3:
+					frameLength |= b;
+					frameHandler = InterleavedChannels.getHandler(session, frameChannel);
+					if (frameHandler == null) {
+						log.trace("Packet of {} bytes skipped on channel {}", frameLength, frameChannel);
+					}
+					break;
+				default:
+					// the '$'
+			}
+		}
+		if (frameHandler == null) {
+			int count = Math.min(in.remaining(), frameLength - frameRead);
+			in.skip(count);
+			frameRead += count;
+			if (frameRead == frameLength) {
+				endPacket();
+			}
+		} else if (frameRead == 0 && in.remaining() >= frameLength) {
+			// whole in the read, handed over in place
+			int limit = in.limit();
+			int end = in.position() + frameLength;
+			in.limit(end);
+			try {
+				frameHandler.packetReceived(session, frameChannel, in);
+			} finally {
+				in.limit(limit);
+				in.position(end);
+				endPacket();
+			}
+		} else {
+			if (frameRead == 0) {
+				if (frame == null || frame.capacity() < frameLength) {
+					frame = IoBuffer.allocate(Math.max(frameLength, 2048));
+				}
+				frame.clear();
+			}
+			int count = Math.min(in.remaining(), frameLength - frameRead);
+			int limit = in.limit();
+			in.limit(in.position() + count);
+			frame.put(in);
+			in.limit(limit);
+			frameRead += count;
+			if (frameRead == frameLength) {
+				frame.flip();
+				try {
+					frameHandler.packetReceived(session, frameChannel, frame);
+				} finally {
+					endPacket();
+				}
+			}
+		}
+	}
+
+	private void endPacket() {
+		state = ReadState.Command;
+		frameHeaderLength = 0;
+		frameHandler = null;
+		frameRead = 0;
+	}
+
+	/**
+	 * Moves the bytes of the buffer to the current line, up to its end.
+	 *
+	 * @return true if the line is complete
+	 */
+	private boolean readLine(IoBuffer in) throws ProtocolDecoderException {
+		int lf = in.indexOf((byte) '\n');
+		int count = (lf < 0 ? in.limit() : lf) - in.position();
+		if (lineLength + count > maxLineLength) {
+			throw fail("Line longer than " + maxLineLength + " bytes");
+		}
+		if (lineLength + count > line.length) {
+			byte[] grown = new byte[Math.min(Math.max(line.length * 2, lineLength + count), maxLineLength)];
+			System.arraycopy(line, 0, grown, 0, lineLength);
+			line = grown;
+		}
+		in.get(line, lineLength, count);
+		lineLength += count;
+		if (lf < 0) {
+			return false;
+		}
+		// skip the LF, the CR before it is not part of the line
+		in.get();
+		if (lineLength > 0 && line[lineLength - 1] == '\r') {
+			lineLength--;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the request or status line.
+	 */
+	private void command(IoSession session) throws ProtocolDecoderException {
+		if (lineLength == 0) {
+			// empty lines between the messages are keep alives
+			return;
+		}
+		if (lineLength > VERSION.length && line[VERSION.length] == ' ' && startsWith(VERSION, 0)) {
+			response(session);
+		} else {
+			request();
+		}
+		state = ReadState.Header;
+	}
+
+	/**
+	 * Parses the status line: "RTSP/1.0" SP code SP reason.
+	 */
+	private void response(IoSession session) throws ProtocolDecoderException {
+		int pos = VERSION.length + 1;
+		int code = 0;
+		int digits = 0;
+		while (pos < lineLength && line[pos] >= '0' && line[pos] <= '9') {
+			code = code * 10 + (line[pos++] - '0');
+			digits++;
+		}
+		if (digits != 3 || (pos < lineLength && line[pos] != ' ')) {
+			throw fail("Malformed response line: " + lineString());
+		}
+		RTSPResponse response = new RTSPResponse();
+		response.setCode(RTSPCode.fromValue(code));
+		response.setRequestVerb((RTSPRequest.Verb) session.getAttribute("lastRequestVerb"));
+		message = response;
+	}
+
+	/**
+	 * Parses the request line: method SP url SP "RTSP/1.0".
+	 */
+	private void request() throws ProtocolDecoderException {
+		int methodEnd = indexOf(' ', 0);
+		int urlEnd = methodEnd < 0 ? -1 : indexOf(' ', methodEnd + 1);
+		if (urlEnd < 0 || urlEnd == methodEnd + 1 || lineLength - urlEnd - 1 != VERSION.length || !startsWith(VERSION, urlEnd + 1)) {
+			throw fail("Malformed request line: " + lineString());
+		}
+		RTSPRequest.Verb verb = verb(methodEnd);
+		if (verb == null) {
+			throw fail("Invalid method: " + new String(line, 0, methodEnd, ISO_8859_1));
+		}
+		URL url = null;
+		int urlStart = methodEnd + 1;
+		if (urlEnd - urlStart != 1 || line[urlStart] != '*') {
+			String strUrl = new String(line, urlStart, urlEnd - urlStart, ISO_8859_1);
+			try {
+				url = new URL(strUrl);
+			} catch (MalformedURLException e) {
+				log.debug("Invalid URL {}", strUrl, e);
+				throw fail("Invalid URL");
+			}
+		}
+		RTSPRequest request = new RTSPRequest();
+		request.setVerb(verb);
+		request.setUrl(url);
+		message = request;
+	}
+
+	/**
+	 * @return the verb spelt by the first length bytes of the line, null if none
+	 */
+	private RTSPRequest.Verb verb(int length) {
+		// Verb.None is not a method
+		for (int i = 1; i < verbs.length; i++) {
+			byte[] name = verbNames[i];
+			if (name.length == length && startsWith(name, 0)) {
+				return verbs[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a header line, or the empty line ending the headers.
+	 */
+	private void header() throws ProtocolDecoderException {
+		if (lineLength == 0) {
+			if (contentLength > 0) {
+				body = new byte[contentLength];
+				state = ReadState.Body;
+			} else {
+				state = ReadState.Dispatch;
+			}
+			return;
+		}
+		if (line[0] == ' ' || line[0] == '\t') {
+			// folded line, continues the value of the previous header
+			if (lastHeader == null) {
+				throw fail("RTSP header not valid");
+			}
+			int start = skipSpaces(0);
+			int end = trimSpaces(start, lineLength);
+			if (end > start) {
+				message.setHeader(lastHeader, message.getHeader(lastHeader) + ' ' + new String(line, start, end - start, ISO_8859_1));
+			}
+			return;
+		}
+		int colon = indexOf(':', 0);
+		int nameEnd = colon < 0 ? -1 : trimSpaces(0, colon);
+		if (nameEnd <= 0) {
+			throw fail("RTSP header not valid");
+		}
+		if (++headerCount > maxHeaders) {
+			throw fail("More than " + maxHeaders + " headers");
+		}
+		String name = RTSPHeaders.intern(line, 0, nameEnd);
+		int valueStart = skipSpaces(colon + 1);
+		int valueEnd = trimSpaces(valueStart, lineLength);
+		if (name == RTSPHeaders.CONTENT_LENGTH) {
+			contentLength = contentLength(valueStart, valueEnd);
+		}
+		message.setHeader(name, new String(line, valueStart, valueEnd - valueStart, ISO_8859_1));
+		lastHeader = name;
+	}
+
+	private int contentLength(int start, int end) throws ProtocolDecoderException {
+		if (start == end) {
+			throw fail("Invalid Content-Length");
+		}
+		long length = 0;
+		for (int i = start; i < end; i++) {
+			byte b = line[i];
+			if (b < '0' || b > '9') {
+				throw fail("Invalid Content-Length");
+			}
+			length = length * 10 + (b - '0');
+			if (length > maxContentLength) {
+				throw fail("Content-Length over " + maxContentLength + " bytes");
+			}
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Moves the bytes of the buffer to the body, up to its length.
+	 */
+	private void readBody(IoBuffer in) {
+		int count = Math.min(in.remaining(), contentLength - bodyLength);
+		in.get(body, bodyLength, count);
+		bodyLength += count;
+		if (bodyLength == contentLength) {
+			message.getBuffer().append(new String(body, 0, bodyLength, UTF_8));
+			state = ReadState.Dispatch;
+		}
+	}
+
+	private boolean startsWith(byte[] prefix, int offset) {
+		if (offset + prefix.length > lineLength) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (line[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(char c, int from) {
+		for (int i = from; i < lineLength; i++) {
+			if (line[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int skipSpaces(int from) {
+		while (from < lineLength && (line[from] == ' ' || line[from] == '\t')) {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * @return the end of the bytes from start to end without their trailing spaces
+	 */
+	private int trimSpaces(int start, int end) {
+		while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	private String lineString() {
+		return new String(line, 0, Math.min(lineLength, 128), ISO_8859_1);
+	}
+
+	private ProtocolDecoderException fail(String reason) {
+		state = ReadState.Failed;
+		return new ProtocolDecoderException(reason);
+	}
+
+}
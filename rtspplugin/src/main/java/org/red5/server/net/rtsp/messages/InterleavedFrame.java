@@ -0,0 +1,64 @@
+package org.red5.server.net.rtsp.messages;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A RTP or RTCP packet to send interleaved on a channel of the RTSP connection, framed as '$', the channel and the 16 bits length of the packet.
+ *
+ * The encoder writes the frame header and the packet as two buffers, the packet is not copied: its bytes must not change until the frame is sent,
+ * which the handler of the connection learns in messageSent, e.g. to release a pooled packet then.
+ */
+public class InterleavedFrame {
+
+	/** Largest packet a frame can carry */
+	public static final int MAX_LENGTH = 0xFFFF;
+
+	private final int channel;
+
+	private final IoBuffer packet;
+
+	/**
+	 * @param packet
+	 *            the packet, from the position to the limit of the buffer
+	 */
+	public InterleavedFrame(int channel, IoBuffer packet) {
+		if (channel < 0 || channel > 255) {
+			throw new IllegalArgumentException("Invalid channel " + channel);
+		}
+		this.channel = channel;
+		this.packet = packet;
+	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	public IoBuffer getPacket() {
+		return packet;
+	}
+
+	@Override
+	public String toString() {
+		return "InterleavedFrame [channel=" + channel + ", length=" + packet.remaining() + "]";
+	}
+
+}
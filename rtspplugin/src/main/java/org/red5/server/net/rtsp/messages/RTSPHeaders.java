@@ -0,0 +1,196 @@
+package org.red5.server.net.rtsp.messages;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.nio.charset.Charset;
+
+/**
+ * Names of the RTSP headers (RFC 2326, section 12).
+ *
+ * The decoder looks up the received header names here straight from the bytes, ignoring their case, so the well known headers are stored under these
+ * instances whatever case the peer used, and cost no String allocation.
+ */
+public final class RTSPHeaders {
+
+	public static final String ACCEPT = "Accept";
+
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	public static final String ACCEPT_LANGUAGE = "Accept-Language";
+
+	public static final String ALLOW = "Allow";
+
+	public static final String AUTHORIZATION = "Authorization";
+
+	public static final String BANDWIDTH = "Bandwidth";
+
+	public static final String BLOCKSIZE = "Blocksize";
+
+	public static final String CACHE_CONTROL = "Cache-Control";
+
+	public static final String CONFERENCE = "Conference";
+
+	public static final String CONNECTION = "Connection";
+
+	public static final String CONTENT_BASE = "Content-Base";
+
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+
+	public static final String CONTENT_LANGUAGE = "Content-Language";
+
+	public static final String CONTENT_LENGTH = "Content-Length";
+
+	public static final String CONTENT_LOCATION = "Content-Location";
+
+	public static final String CONTENT_TYPE = "Content-Type";
+
+	public static final String CSEQ = "CSeq";
+
+	public static final String DATE = "Date";
+
+	public static final String EXPIRES = "Expires";
+
+	public static final String FROM = "From";
+
+	public static final String HOST = "Host";
+
+	public static final String IF_MATCH = "If-Match";
+
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	public static final String LAST_MODIFIED = "Last-Modified";
+
+	public static final String LOCATION = "Location";
+
+	public static final String PROXY_AUTHENTICATE = "Proxy-Authenticate";
+
+	public static final String PROXY_REQUIRE = "Proxy-Require";
+
+	public static final String PUBLIC = "Public";
+
+	public static final String RANGE = "Range";
+
+	public static final String REFERER = "Referer";
+
+	public static final String REQUIRE = "Require";
+
+	public static final String RETRY_AFTER = "Retry-After";
+
+	public static final String RTP_INFO = "RTP-Info";
+
+	public static final String SCALE = "Scale";
+
+	public static final String SERVER = "Server";
+
+	public static final String SESSION = "Session";
+
+	public static final String SPEED = "Speed";
+
+	public static final String TIMESTAMP = "Timestamp";
+
+	public static final String TRANSPORT = "Transport";
+
+	public static final String UNSUPPORTED = "Unsupported";
+
+	public static final String USER_AGENT = "User-Agent";
+
+	public static final String VARY = "Vary";
+
+	public static final String VIA = "Via";
+
+	public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String[] NAMES = { ACCEPT, ACCEPT_ENCODING, ACCEPT_LANGUAGE, ALLOW, AUTHORIZATION, BANDWIDTH, BLOCKSIZE, CACHE_CONTROL, CONFERENCE,
+			CONNECTION, CONTENT_BASE, CONTENT_ENCODING, CONTENT_LANGUAGE, CONTENT_LENGTH, CONTENT_LOCATION, CONTENT_TYPE, CSEQ, DATE, EXPIRES, FROM, HOST,
+			IF_MATCH, IF_MODIFIED_SINCE, LAST_MODIFIED, LOCATION, PROXY_AUTHENTICATE, PROXY_REQUIRE, PUBLIC, RANGE, REFERER, REQUIRE, RETRY_AFTER, RTP_INFO,
+			SCALE, SERVER, SESSION, SPEED, TIMESTAMP, TRANSPORT, UNSUPPORTED, USER_AGENT, VARY, VIA, WWW_AUTHENTICATE };
+
+	// open addressing table of the names by case insensitive hash, at most half full
+	private static final int TABLE_MASK = 127;
+
+	private static final String[] table = new String[TABLE_MASK + 1];
+
+	private static final byte[][] tableBytes = new byte[TABLE_MASK + 1][];
+
+	static {
+		for (String name : NAMES) {
+			byte[] bytes = name.getBytes(ISO_8859_1);
+			int i = hash(bytes, 0, bytes.length) & TABLE_MASK;
+			while (table[i] != null) {
+				i = (i + 1) & TABLE_MASK;
+			}
+			table[i] = name;
+			tableBytes[i] = bytes;
+		}
+	}
+
+	private RTSPHeaders() {
+	}
+
+	/**
+	 * Returns the header name held by the bytes.
+	 *
+	 * @param buf
+	 *            bytes of the name
+	 * @param offset
+	 *            start of the name
+	 * @param length
+	 *            length of the name
+	 * @return the constant of a well known header, matched ignoring case, or a new String
+	 */
+	public static String intern(byte[] buf, int offset, int length) {
+		int i = hash(buf, offset, length) & TABLE_MASK;
+		String name;
+		while ((name = table[i]) != null) {
+			if (equalsIgnoreCase(tableBytes[i], buf, offset, length)) {
+				return name;
+			}
+			i = (i + 1) & TABLE_MASK;
+		}
+		return new String(buf, offset, length, ISO_8859_1);
+	}
+
+	private static int hash(byte[] buf, int offset, int length) {
+		int h = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			h = 31 * h + toLowerCase(buf[i]);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equalsIgnoreCase(byte[] name, byte[] buf, int offset, int length) {
+		if (name.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (toLowerCase(name[i]) != toLowerCase(buf[offset + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+}
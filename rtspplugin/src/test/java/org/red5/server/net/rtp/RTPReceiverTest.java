@@ -0,0 +1,203 @@
+package org.red5.server.net.rtp;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streams RTP over loopback to a RTPReceiver, with packets lost, swapped and repeated and the sequence numbers wrapping around, and checks what is
+ * played out. The long runs, with several sessions and RTCP, are done by RTPReceiverLoopback of the benchmarks.
+ */
+public class RTPReceiverTest {
+
+	private static final long SSRC = 0x1000;
+
+	// numbers wrap around early on
+	private static final int FIRST = 65536 - 1000;
+
+	private static final int PACKETS = 5000;
+
+	private RTPReceiver receiver;
+
+	@Before
+	public void setUp() throws Exception {
+		receiver = new RTPReceiver();
+		receiver.setJitterDelayMillis(50);
+		receiver.setJmxEnabled(false);
+		receiver.start();
+	}
+
+	@After
+	public void tearDown() {
+		receiver.stop();
+	}
+
+	@Test
+	public void playsOutInSequenceOrderWithLossReorderingAndWraparound() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		Sink sink = new Sink();
+		RTPSession session = receiver.open(new InetSocketAddress(loopback, 0), 90000, sink);
+		BitSet sent = new BitSet();
+		int[] plan = plan(new Random(1), sent);
+		DatagramChannel sender = DatagramChannel.open();
+		try {
+			sender.connect(new InetSocketAddress(loopback, session.getRtpPort()));
+			RTPPacketPool pool = new RTPPacketPool();
+			for (int k = 0; k < plan.length; k++) {
+				send(sender, pool, FIRST + plan[k]);
+				if ((k & 63) == 0) {
+					// paced, the loopback drops what overflows the socket buffers
+					Thread.sleep(1);
+				}
+			}
+		} finally {
+			sender.close();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		RTPStream stream = session.getStream(SSRC);
+		// the last packet is always sent
+		while ((stream == null || stream.getBuffered() != 0 || sink.lastExtended < FIRST + PACKETS - 1) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			stream = session.getStream(SSRC);
+		}
+		assertNotNull("nothing received", stream);
+		assertNull(sink.error, sink.error);
+		assertEquals("packets still buffered", 0, stream.getBuffered());
+		assertTrue("the numbers did not wrap around", sink.lastExtended > 65535);
+		assertTrue("nothing reordered", stream.getReordered() > 0);
+		long range = sink.lastExtended - sink.firstExtended + 1;
+		assertEquals("numbers neither played out nor lost", range, sink.playedOut + sink.lost);
+		assertTrue("nothing lost", sink.lost > 0);
+		// what was sent within the range played out is played out, unless late; repeats of played out packets count as late too
+		int from = (int) (sink.firstExtended - FIRST);
+		int sentInRange = sent.get(from, (int) (from + range)).cardinality();
+		assertTrue(sink.playedOut + " played out of " + sentInRange + " sent, " + stream.getLate() + " late", sink.playedOut <= sentInRange
+				&& sink.playedOut >= sentInRange - stream.getLate());
+	}
+
+	/**
+	 * @return the indexes of the packets in the order they are sent: about 1% missing, 2% swapped with the next one and 0.5% repeated, never the
+	 *         last one
+	 */
+	private static int[] plan(Random random, BitSet sent) {
+		int[] order = new int[PACKETS * 2];
+		int count = 0;
+		for (int n = 0; n < PACKETS; n++) {
+			boolean last = n == PACKETS - 1;
+			if (!last && n + 1 < PACKETS - 1 && random.nextDouble() * 100 < 2) {
+				order[count++] = n + 1;
+				order[count++] = n;
+				sent.set(n, n + 2);
+				n++;
+				continue;
+			}
+			if (!last && random.nextDouble() * 100 < 1) {
+				continue;
+			}
+			order[count++] = n;
+			if (random.nextDouble() * 100 < 0.5) {
+				order[count++] = n;
+			}
+			sent.set(n);
+		}
+		int[] plan = new int[count];
+		System.arraycopy(order, 0, plan, 0, count);
+		return plan;
+	}
+
+	private static void send(DatagramChannel sender, RTPPacketPool pool, int sequence) throws Exception {
+		RTPPacketView packet = pool.acquire();
+		IoBuffer payload = IoBuffer.allocate(200);
+		payload.putInt(sequence & 0xFFFF);
+		payload.position(payload.limit());
+		payload.flip();
+		packet.create(96, sequence & 0xFFFF, sequence * 3000L, SSRC).appendPayload(payload);
+		sender.write(packet.toByteBuffer().buf());
+		packet.release();
+	}
+
+	/**
+	 * Checks the packets played out, on the selector thread: in sequence order, each once with its own payload, the gaps reported lost.
+	 */
+	private static final class Sink implements RTPListener {
+
+		volatile long firstExtended = -1;
+
+		volatile long lastExtended;
+
+		volatile long playedOut;
+
+		volatile long lost;
+
+		volatile String error;
+
+		private long pendingLost;
+
+		@Override
+		public void packetReceived(RTPStream stream, RTPPacketView packet) {
+			int sequence = packet.getSequence();
+			long extended;
+			if (firstExtended < 0) {
+				extended = sequence;
+				firstExtended = extended;
+			} else {
+				extended = lastExtended + (short) (sequence - (int) lastExtended);
+				if (extended != lastExtended + 1 + pendingLost && error == null) {
+					error = "played out " + extended + " after " + lastExtended + " and " + pendingLost + " lost";
+				}
+			}
+			pendingLost = 0;
+			lastExtended = extended;
+			playedOut++;
+			IoBuffer payload = packet.getPayload();
+			if ((payload.remaining() != 200 || payload.getInt() != sequence) && error == null) {
+				error = "payload of " + sequence + " does not match";
+			}
+		}
+
+		@Override
+		public void packetsLost(RTPStream stream, int count) {
+			if (firstExtended >= 0) {
+				lost += count;
+				pendingLost += count;
+			}
+		}
+
+		@Override
+		public void rtcpReceived(RTPSession session, IoBuffer packet) {
+		}
+
+	}
+
+}
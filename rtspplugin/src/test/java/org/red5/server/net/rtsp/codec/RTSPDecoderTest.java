@@ -0,0 +1,293 @@
+package org.red5.server.net.rtsp.codec;
+
+/*
+ * RED5 Open Source Flash Server - http://www.osflash.org/red5
+ *
+ * Copyright (c) 2006-2008 by respective authors (see below). All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation; either version 2.1 of the License, or (at your option) any later
+ * version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along
+ * with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.red5.server.net.rtsp.InterleavedChannels;
+import org.red5.server.net.rtsp.InterleavedHandler;
+
+/**
+ * Seeded randomized checks of RTSPDecoder: pipelined messages and interleaved packets decode the same whatever the reads they are split into, and
+ * mutated bytes are only ever rejected with a ProtocolDecoderException. The long runs are done by RTSPDecoderFuzzer of the benchmarks.
+ */
+public class RTSPDecoderTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String SDP = "v=0\r\n" //
+			+ "o=- 1451606400 1 IN IP4 192.168.1.20\r\n" //
+			+ "s=Session streamed by camera1\r\n" //
+			+ "t=0 0\r\n" //
+			+ "m=video 0 RTP/AVP 96\r\n" //
+			+ "a=rtpmap:96 H264/90000\r\n" //
+			+ "a=control:trackID=1\r\n";
+
+	private static final String[] SAMPLES = { "DESCRIBE rtsp://192.168.1.20:554/live/camera1 RTSP/1.0\r\n" //
+			+ "CSeq: 2\r\n" //
+			+ "Accept: application/sdp\r\n" //
+			+ "User-Agent: LibVLC/2.2.4 (LIVE555 Streaming Media v2016.02.22)\r\n" //
+			+ "\r\n", //
+			"SETUP rtsp://192.168.1.20:554/live/camera1/trackID=1 RTSP/1.0\r\n" //
+					+ "CSeq: 3\r\n" //
+					+ "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n" //
+					+ "\r\n", //
+			"RTSP/1.0 200 OK\r\n" //
+					+ "CSeq: 2\r\n" //
+					+ "Content-Base: rtsp://192.168.1.20:554/live/camera1/\r\n" //
+					+ "Content-Type: application/sdp\r\n" //
+					+ "Content-Length: " + SDP.length() + "\r\n" //
+					+ "\r\n" //
+					+ SDP };
+
+	private final RTSPDecoder decoder = new RTSPDecoder();
+
+	@BeforeClass
+	public static void registerURLHandler() {
+		// rtsp:// URLs are handled by org.red5.server.net.rtsp.Handler
+		String pkgs = System.getProperty("java.protocol.handler.pkgs");
+		if (pkgs == null || !pkgs.contains("org.red5.server.net")) {
+			System.setProperty("java.protocol.handler.pkgs", pkgs == null ? "org.red5.server.net" : pkgs + "|org.red5.server.net");
+		}
+	}
+
+	@Test
+	public void splitReadsDecodeLikeASingleRead() throws Exception {
+		for (long seed = 0; seed < 2000; seed++) {
+			Random random = new Random(seed);
+			byte[] bytes = pipeline(random);
+			List<String> expected = decode(bytes, new int[0]);
+			assertFalse("seed " + seed + " decoded nothing", expected.isEmpty());
+			assertEquals("seed " + seed, expected, decode(bytes, cuts(random, bytes.length)));
+		}
+	}
+
+	@Test
+	public void oneByteReadsDecodeLikeASingleRead() throws Exception {
+		for (long seed = 0; seed < 50; seed++) {
+			byte[] bytes = pipeline(new Random(seed));
+			int[] cuts = new int[bytes.length - 1];
+			for (int i = 0; i < cuts.length; i++) {
+				cuts[i] = i + 1;
+			}
+			assertEquals("seed " + seed, decode(bytes, new int[0]), decode(bytes, cuts));
+		}
+	}
+
+	@Test
+	public void mutatedBytesAreOnlyRejectedAsInvalid() throws Exception {
+		int rejected = 0;
+		for (long seed = 0; seed < 2000; seed++) {
+			Random random = new Random(seed);
+			byte[] mutated = mutate(random, pipeline(random));
+			try {
+				decode(mutated, cuts(random, mutated.length));
+			} catch (ProtocolDecoderException e) {
+				rejected++;
+			}
+		}
+		// some mutations are harmless, the forged lengths and long lines are not
+		assertFalse("nothing rejected", rejected == 0);
+	}
+
+	/**
+	 * @return one to four sample messages, sometimes with keep alive line ends or interleaved packets in between
+	 */
+	private static byte[] pipeline(Random random) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int count = 1 + random.nextInt(4);
+		for (int i = 0; i < count; i++) {
+			if (random.nextInt(8) == 0) {
+				out.write('\r');
+				out.write('\n');
+			}
+			while (random.nextInt(3) == 0) {
+				// channels 0 and 1 have a handler, 2 has none
+				int length = random.nextInt(8) == 0 ? random.nextInt(4) : random.nextInt(3000);
+				out.write('$');
+				out.write(random.nextInt(3));
+				out.write(length >> 8);
+				out.write(length);
+				for (int j = 0; j < length; j++) {
+					out.write(random.nextInt(256));
+				}
+			}
+			byte[] sample = SAMPLES[random.nextInt(SAMPLES.length)].getBytes(ISO_8859_1);
+			out.write(sample, 0, sample.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return up to 16 sorted read boundaries
+	 */
+	private static int[] cuts(Random random, int length) {
+		if (length < 2) {
+			return new int[0];
+		}
+		int[] cuts = new int[random.nextInt(Math.min(length - 1, 16)) + 1];
+		for (int i = 0; i < cuts.length; i++) {
+			cuts[i] = 1 + random.nextInt(length - 1);
+		}
+		Arrays.sort(cuts);
+		return cuts;
+	}
+
+	private static byte[] mutate(Random random, byte[] bytes) {
+		int mutations = 1 + random.nextInt(4);
+		for (int m = 0; m < mutations; m++) {
+			int pos = random.nextInt(bytes.length);
+			switch (random.nextInt(7)) {
+				case 0:
+					// flip a byte
+					bytes = bytes.clone();
+					bytes[pos] = (byte) random.nextInt(256);
+					break;
+				case 1:
+					// insert a byte, line ends and separators more likely
+					byte[] special = { '\r', '\n', ':', ' ', '$', '\t', 0 };
+					bytes = splice(bytes, pos, 0, new byte[] { random.nextBoolean() ? special[random.nextInt(special.length)] : (byte) random.nextInt(256) });
+					break;
+				case 2:
+					// remove a range
+					bytes = splice(bytes, pos, Math.min(1 + random.nextInt(16), bytes.length - pos), new byte[0]);
+					break;
+				case 3:
+					// repeat a range
+					int length = Math.min(1 + random.nextInt(64), bytes.length - pos);
+					bytes = splice(bytes, pos, 0, Arrays.copyOfRange(bytes, pos, pos + length));
+					break;
+				case 4:
+					// forge a Content-Length
+					String[] lengths = { "-1", "99999999999", "0x10", "", "2147483648", "70000", "3" };
+					bytes = splice(bytes, pos, 0, ("\r\nContent-Length: " + lengths[random.nextInt(lengths.length)] + "\r\n").getBytes(ISO_8859_1));
+					break;
+				case 5:
+					// a very long line
+					byte[] line = new byte[4096 + random.nextInt(8192)];
+					Arrays.fill(line, (byte) 'a');
+					bytes = splice(bytes, pos, 0, line);
+					break;
+				default:
+					// truncate
+					bytes = Arrays.copyOf(bytes, pos);
+			}
+			if (bytes.length == 0) {
+				bytes = new byte[] { '\n' };
+			}
+		}
+		return bytes;
+	}
+
+	private static byte[] splice(byte[] bytes, int pos, int removed, byte[] inserted) {
+		byte[] result = new byte[bytes.length - removed + inserted.length];
+		System.arraycopy(bytes, 0, result, 0, pos);
+		System.arraycopy(inserted, 0, result, pos, inserted.length);
+		System.arraycopy(bytes, pos + removed, result, pos + inserted.length, bytes.length - pos - removed);
+		return result;
+	}
+
+	/**
+	 * Decodes the reads, checking each one is consumed; after a rejection the following reads are still fed, as MINA does, and must be dropped.
+	 *
+	 * @return the decoded messages as they would be sent back, and the packets received on the channels with a handler
+	 * @throws ProtocolDecoderException
+	 *             the first rejection
+	 */
+	private List<String> decode(byte[] bytes, int[] cuts) throws Exception {
+		IoSession session = new DummySession();
+		final Output out = new Output();
+		InterleavedHandler handler = new InterleavedHandler() {
+			@Override
+			public void packetReceived(IoSession session, int channel, IoBuffer packet) {
+				out.messages.add("$" + channel + " " + (packet.hasRemaining() ? packet.getHexDump(packet.remaining()) : ""));
+				packet.position(packet.limit());
+			}
+		};
+		InterleavedChannels.get(session).bind(0, handler);
+		InterleavedChannels.get(session).bind(1, handler);
+		ProtocolDecoderException rejection = null;
+		int start = 0;
+		for (int i = 0; i <= cuts.length; i++) {
+			int end = i < cuts.length ? cuts[i] : bytes.length;
+			// each read in its own buffer, like MINA hands them to the decoder
+			IoBuffer read = IoBuffer.allocate(end - start);
+			read.put(bytes, start, end - start);
+			read.flip();
+			start = end;
+			try {
+				decoder.decode(session, read, out);
+			} catch (ProtocolDecoderException e) {
+				if (rejection == null) {
+					rejection = e;
+				}
+				// MINA hands the rest of the read over again
+				if (read.hasRemaining()) {
+					decoder.decode(session, read, out);
+				}
+			}
+			assertFalse(read.remaining() + " bytes of a read not consumed", read.hasRemaining());
+		}
+		decoder.dispose(session);
+		if (rejection != null) {
+			throw rejection;
+		}
+		List<String> decoded = new ArrayList<String>(out.messages.size());
+		for (Object message : out.messages) {
+			decoded.add(message.toString());
+		}
+		return decoded;
+	}
+
+	/**
+	 * Collects the decoded messages.
+	 */
+	private static final class Output implements ProtocolDecoderOutput {
+
+		final List<Object> messages = new ArrayList<Object>();
+
+		@Override
+		public void write(Object message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+
+	}
+
+}